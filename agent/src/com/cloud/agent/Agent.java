@@ -50,6 +50,7 @@ import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.UpgradeAnswer;
 import com.cloud.agent.api.UpgradeCommand;
+import com.cloud.agent.transport.Codecs;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
@@ -106,6 +107,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     ServerResource              _resource;
     Link                        _link;
     Long                        _id;
+    volatile Request.Version    _peerVersion          = Request.Version.v1;
 
     Timer                       _timer                = new Timer("Agent Timer");
 
@@ -152,6 +154,8 @@ public class Agent implements HandlerFactory, IAgentControl {
             params.put(cmdLineProp.getKey(), cmdLineProp.getValue());
         }
 
+        Codecs.configure((String)params.get("agent.codec"), (String)params.get("agent.codec.level"));
+
         if (!_resource.configure(getResourceName(), params)) {
             throw new ConfigurationException("Unable to configure " + _resource.getName());
         }
@@ -190,6 +194,8 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     protected void setLink(final Link link) {
         _link = link;
+        // Don't know what the management server understands until it talks to us.
+        _peerVersion = Request.Version.v1;
     }
 
     public ServerResource getResource() {
@@ -240,6 +246,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             try {
                 if (_link != null) {
                     Request req = new Request((_id != null ? _id : -1), -1, cmd, false);
+                    req.negotiateVersion(_peerVersion);
                     _link.send(req.toBytes());
                 }
             } catch (final ClosedChannelException e) {
@@ -568,6 +575,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            request.negotiateVersion(_peerVersion);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -678,6 +686,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
+            request.negotiateVersion(_peerVersion);
             try {
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
@@ -812,6 +821,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    _peerVersion = request.getPeerVersion();
                     if (request instanceof Response) {
                         processResponse((Response) request, task.getLink());
                     } else {
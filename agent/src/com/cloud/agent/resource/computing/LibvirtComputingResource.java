@@ -322,6 +322,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     protected HashMap<String, State> _vms = new HashMap<String, State>(20);
     protected List<String> _vmsKilled = new ArrayList<String>();
+    protected NamedLockManager _vmLocks = new NamedLockManager(0);
+    protected final NamedLockManager _vnetLocks = new NamedLockManager(0);
     
 	private VirtualRoutingResource _virtRouterResource;
 	protected LibvirtStorageResource _storageResource;
@@ -609,6 +611,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         
         value = (String)params.get("host.reserved.mem.mb");
         _dom0MinMem = NumbersUtil.parseInt(value, 0)*1024*1024;
+
+        value = (String)params.get("vm.ops.concurrency");
+        _vmLocks = new NamedLockManager(NumbersUtil.parseInt(value, 4));
          
         
         value = (String)params.get("debug.mode");
@@ -1824,7 +1829,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return command.execute();
     }
     
-	private synchronized Answer execute(MigrateCommand cmd) {
+	private Answer execute(MigrateCommand cmd) {
+		String vmName = cmd.getVmName();
+		_vmLocks.lock(vmName);
+		try {
+			return migrate(cmd);
+		} finally {
+			_vmLocks.unlock(vmName);
+		}
+	}
+
+	private Answer migrate(MigrateCommand cmd) {
 		String vmName = cmd.getVmName();
     	
 		State state = null;
@@ -1878,7 +1893,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		return new MigrateAnswer(cmd, result == null, result, null);
 	}
 
-	private synchronized Answer execute(PrepareForMigrationCommand cmd) {
+	private Answer execute(PrepareForMigrationCommand cmd) {
 		
 		VirtualMachineTO vm = cmd.getVirtualMachine();
 		if (s_logger.isDebugEnabled()) {
@@ -1886,7 +1901,15 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 		}
 
 		NicTO[] nics = vm.getNics();
+		boolean success = false;
+		State state = null;
+		_vmLocks.lock(vm.getName());
 		try {
+			/*Claim the vm before setting up its bridges so cleanupVnet leaves them alone*/
+			synchronized (_vms) {
+				state = _vms.put(vm.getName(), State.Migrating);
+			}
+
 			Connect conn = LibvirtConnection.getConnection();
 			for (NicTO nic : nics) {
 				String vlanId = null;
@@ -1915,11 +1938,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 			        getVolumePath(conn, volume);
 			    }
 			}
-			
-			synchronized (_vms) {
-				_vms.put(vm.getName(), State.Migrating);
-			}
 
+			success = true;
 			return new PrepareForMigrationAnswer(cmd);
 		} catch (LibvirtException e) {
 			return new PrepareForMigrationAnswer(cmd, e.toString()); 
@@ -1927,6 +1947,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 			return new PrepareForMigrationAnswer(cmd, e.toString()); 
 		} catch (URISyntaxException e) {
 		    return new PrepareForMigrationAnswer(cmd, e.toString()); 
+		} finally {
+			if (!success) {
+				synchronized (_vms) {
+					if (state != null) {
+						_vms.put(vm.getName(), state);
+					} else {
+						_vms.remove(vm.getName());
+					}
+				}
+			}
+			_vmLocks.unlock(vm.getName());
 		}
 	}
 	
@@ -2255,13 +2286,14 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	}
 	
 
-	protected synchronized StartAnswer execute(StartCommand cmd) {
+	protected StartAnswer execute(StartCommand cmd) {
 		VirtualMachineTO vmSpec = cmd.getVirtualMachine();
 		String vmName = vmSpec.getName();
 		LibvirtVMDef vm = null;
 		
 		State state = State.Stopped;
 		Connect conn = null;
+		_vmLocks.lock(vmName);
 		try {
 			conn = LibvirtConnection.getConnection();
 			synchronized (_vms) {
@@ -2312,6 +2344,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 					_vms.remove(vmName);
 				}
 			}
+			_vmLocks.unlock(vmName);
 		}
 	}
 	
@@ -2397,7 +2430,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
 	private String createVlanBr(String vlanId, String nic) throws InternalErrorException{
 		String brName = setVnetBrName(vlanId);
-		createVnet(vlanId, nic);
+		_vnetLocks.lock(vlanId);
+		try {
+			createVnet(vlanId, nic);
+		} finally {
+			_vnetLocks.unlock(vlanId);
+		}
 		return brName;
 	}
 	
@@ -2465,28 +2503,34 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	        return new CheckSshAnswer(cmd);
 	    }
 	
-	protected synchronized String attachOrDetachISO(Connect conn, String vmName, String isoPath, boolean isAttach) throws LibvirtException, URISyntaxException, InternalErrorException {
-		String isoXml = null;
-		if (isoPath != null && isAttach) {
-			StorageVol isoVol = _storageResource.getVolumeFromURI(conn, isoPath);
-			isoPath = isoVol.getPath();
+	protected String attachOrDetachISO(Connect conn, String vmName, String isoPath, boolean isAttach) throws LibvirtException, URISyntaxException, InternalErrorException {
+		_vmLocks.lock(vmName);
+		try {
+			String isoXml = null;
+			if (isoPath != null && isAttach) {
+				StorageVol isoVol = _storageResource.getVolumeFromURI(conn, isoPath);
+				isoPath = isoVol.getPath();
+				
+				DiskDef iso = new DiskDef();
+				iso.defISODisk(isoPath);
+				isoXml = iso.toString();
+			} else {
+				DiskDef iso = new DiskDef();
+				iso.defISODisk(null);
+				isoXml = iso.toString();
+			}
 			
-			DiskDef iso = new DiskDef();
-			iso.defISODisk(isoPath);
-			isoXml = iso.toString();
-		} else {
-			DiskDef iso = new DiskDef();
-			iso.defISODisk(null);
-			isoXml = iso.toString();
+			return attachOrDetachDevice(conn, true, vmName, isoXml);
+		} finally {
+			_vmLocks.unlock(vmName);
 		}
-		
-		return attachOrDetachDevice(conn, true, vmName, isoXml);
 	}
 	
-	protected synchronized String attachOrDetachDisk(Connect conn, boolean attach, String vmName, String sourceFile, int devId) throws LibvirtException, InternalErrorException {
+	protected String attachOrDetachDisk(Connect conn, boolean attach, String vmName, String sourceFile, int devId) throws LibvirtException, InternalErrorException {
 		List<DiskDef> disks = null;
 		Domain dm = null;
 		int deviceId = devId;
+		_vmLocks.lock(vmName);
 		try {
 		    if (!attach) {
 		        dm = conn.domainLookupByUUID(UUID.nameUUIDFromBytes(vmName.getBytes()));
@@ -2515,14 +2559,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	        String xml = disk.toString();
 	        return attachOrDetachDevice(conn, attach, vmName, xml);
 		} finally {
-			if (dm != null) {
-				dm.free();
+			try {
+				if (dm != null) {
+					dm.free();
+				}
+			} finally {
+				_vmLocks.unlock(vmName);
 			}
 		}
 	}
 	
-	private synchronized String attachOrDetachDevice(Connect conn, boolean attach, String vmName, String xml) throws LibvirtException, InternalErrorException{
+	private String attachOrDetachDevice(Connect conn, boolean attach, String vmName, String xml) throws LibvirtException, InternalErrorException{
 		Domain dm = null;
+		_vmLocks.lock(vmName);
 		try {
 			dm = conn.domainLookupByUUID(UUID.nameUUIDFromBytes((vmName.getBytes())));
 			
@@ -2550,6 +2599,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 					
 				}
 			}
+			_vmLocks.unlock(vmName);
 		}
 		
 		return null;
@@ -3082,26 +3132,40 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return null;
     }
 
-    public synchronized String cleanupVnet(Connect conn, final String vnetId) {
+    public String cleanupVnet(Connect conn, final String vnetId) {
 		// VNC proxy VMs do not have vnet
 		if(vnetId == null || vnetId.isEmpty() || isDirectAttachedNetwork(vnetId)) {
             return null;
         }
 
-		final List<String> names = getAllVmNames(conn);
-		
-		if (!names.isEmpty()) {
-			for (final String name : names) {
-				if (VirtualMachineName.getVnet(name).equals(vnetId)) {
-					return null;    // Can't remove the vnet yet.
+		_vnetLocks.lock(vnetId);
+		try {
+			final List<String> names = getAllVmNames(conn);
+
+			// vms that are still starting or migrating in aren't defined in libvirt yet
+			synchronized (_vms) {
+				for (Map.Entry<String, State> entry : _vms.entrySet()) {
+					if (entry.getValue() == State.Starting || entry.getValue() == State.Migrating) {
+						names.add(entry.getKey());
+					}
+				}
+			}
+			
+			if (!names.isEmpty()) {
+				for (final String name : names) {
+					if (VirtualMachineName.getVnet(name).equals(vnetId)) {
+						return null;    // Can't remove the vnet yet.
+					}
 				}
 			}
+			
+	        final Script command = new Script(_modifyVlanPath, _timeout, s_logger);
+	        command.add("-o", "delete");
+	        command.add("-v", vnetId);
+	        return command.execute();
+		} finally {
+			_vnetLocks.unlock(vnetId);
 		}
-		
-        final Script command = new Script(_modifyVlanPath, _timeout, s_logger);
-        command.add("-o", "delete");
-        command.add("-v", vnetId);
-        return command.execute();
     }
 
     protected Integer getVncPort(Connect conn, String vmName) throws LibvirtException {
@@ -0,0 +1,121 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.computing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks by name so that operations on the same vm (or vnet) are serialized
+ * while operations on different ones run in parallel.  Locks are reentrant
+ * and are dropped from the table once nobody holds or waits on them.
+ * 
+ * If a limit is given, at most that many names can be locked at the same
+ * time; the rest wait for a permit after getting their own lock so a queue
+ * of operations on one vm doesn't use up the permits.
+ */
+public class NamedLockManager {
+    private final Map<String, NamedLock> _locks = new HashMap<String, NamedLock>();
+    private final Semaphore _permits;
+    private final int _limit;
+
+    /**
+     * @param limit how many names may be locked at once.  0 means no limit.
+     */
+    public NamedLockManager(int limit) {
+        _limit = limit;
+        _permits = limit > 0 ? new Semaphore(limit, true) : null;
+    }
+
+    public void lock(String name) {
+        NamedLock lock = checkout(name);
+        lock.lock();
+        if (_permits != null && lock.getHoldCount() == 1) {
+            _permits.acquireUninterruptibly();
+        }
+    }
+
+    public void unlock(String name) {
+        NamedLock lock;
+        synchronized (_locks) {
+            lock = _locks.get(name);
+        }
+        if (lock == null || !lock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("Lock on " + name + " isn't held by " + Thread.currentThread().getName());
+        }
+
+        if (_permits != null && lock.getHoldCount() == 1) {
+            _permits.release();
+        }
+        lock.unlock();
+        checkin(name, lock);
+    }
+
+    public int getLimit() {
+        return _limit;
+    }
+
+    /**
+     * @return number of names locked or waited on.
+     */
+    public int getLockCount() {
+        synchronized (_locks) {
+            return _locks.size();
+        }
+    }
+
+    /**
+     * @return number of locked names that are waiting for a permit.  Always 0
+     * without a limit.
+     */
+    public int getQueueLength() {
+        return _permits != null ? _permits.getQueueLength() : 0;
+    }
+
+    private NamedLock checkout(String name) {
+        synchronized (_locks) {
+            NamedLock lock = _locks.get(name);
+            if (lock == null) {
+                lock = new NamedLock();
+                _locks.put(name, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private void checkin(String name, NamedLock lock) {
+        synchronized (_locks) {
+            if (--lock.users == 0) {
+                _locks.remove(name);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    protected static class NamedLock extends ReentrantLock {
+        int users;  // guarded by _locks
+
+        public NamedLock() {
+            super(true);
+        }
+    }
+}
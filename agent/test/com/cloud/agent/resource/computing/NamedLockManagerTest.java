@@ -0,0 +1,153 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.computing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.testcase.Log4jEnabledTestCase;
+
+/**
+ * Starts a lot of mock domains at once, the way a host sees it after an HA
+ * event, and checks that different vms run in parallel up to the limit while
+ * operations on the same vm never overlap.
+ */
+public class NamedLockManagerTest extends Log4jEnabledTestCase {
+    protected final static Logger s_logger = Logger.getLogger(NamedLockManagerTest.class);
+
+    private static final int LIMIT = 4;
+    private static final int VMS = 40;
+    private static final int OPS_PER_VM = 3;
+
+    private final NamedLockManager _vmLocks = new NamedLockManager(LIMIT);
+    private final ConcurrentHashMap<String, Thread> _domains = new ConcurrentHashMap<String, Thread>();
+    private final AtomicInteger _running = new AtomicInteger();
+    private final AtomicInteger _maxRunning = new AtomicInteger();
+    private final List<String> _errors = new ArrayList<String>();
+
+    /**
+     * Stands in for execute(StartCommand): holds the vm for a while and attaches
+     * a deferred disk while it still has the lock, like the real start does.
+     */
+    private void startDomain(String vmName) throws InterruptedException {
+        _vmLocks.lock(vmName);
+        try {
+            enter(vmName);
+            try {
+                Thread.sleep(getRandomMilliseconds(5, 20));
+                attachDisk(vmName);
+            } finally {
+                leave(vmName);
+            }
+        } finally {
+            _vmLocks.unlock(vmName);
+        }
+    }
+
+    private void attachDisk(String vmName) throws InterruptedException {
+        _vmLocks.lock(vmName);
+        try {
+            if (_domains.get(vmName) != Thread.currentThread()) {
+                error("Attach on " + vmName + " ran outside of its start");
+            }
+            Thread.sleep(1);
+        } finally {
+            _vmLocks.unlock(vmName);
+        }
+    }
+
+    private void enter(String vmName) {
+        Thread owner = _domains.putIfAbsent(vmName, Thread.currentThread());
+        if (owner != null) {
+            error("Two operations on " + vmName + " at once: " + owner.getName() + " and " + Thread.currentThread().getName());
+        }
+
+        int running = _running.incrementAndGet();
+        if (running > LIMIT) {
+            error(running + " operations running, limit is " + LIMIT);
+        }
+        int max = _maxRunning.get();
+        while (running > max && !_maxRunning.compareAndSet(max, running)) {
+            max = _maxRunning.get();
+        }
+    }
+
+    private void leave(String vmName) {
+        _running.decrementAndGet();
+        _domains.remove(vmName);
+    }
+
+    private void error(String msg) {
+        s_logger.error(msg);
+        synchronized (_errors) {
+            _errors.add(msg);
+        }
+    }
+
+    public void testConcurrentStarts() throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < VMS * OPS_PER_VM; i++) {
+            final String vmName = "i-2-" + (i % VMS) + "-VM";
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        startDomain(vmName);
+                    } catch (InterruptedException e) {
+                        error("Interrupted starting " + vmName);
+                    }
+                }
+            }, "Start-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long startTick = System.currentTimeMillis();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join(60000);
+            assertFalse(thread.getName() + " is stuck", thread.isAlive());
+        }
+        s_logger.info("Started " + threads.size() + " mock domains in " + (System.currentTimeMillis() - startTick) + "ms, at most " + _maxRunning.get() + " at a time");
+
+        assertTrue(_errors.toString(), _errors.isEmpty());
+        assertEquals("Different vms should have started in parallel", LIMIT, _maxRunning.get());
+        assertEquals(0, _vmLocks.getLockCount());
+        assertEquals(0, _vmLocks.getQueueLength());
+    }
+
+    public void testUnlockWithoutLock() {
+        NamedLockManager locks = new NamedLockManager(0);
+        locks.lock("i-2-1-VM");
+        locks.unlock("i-2-1-VM");
+        try {
+            locks.unlock("i-2-1-VM");
+            fail("Unlocking a vm that isn't locked should fail");
+        } catch (IllegalMonitorStateException e) {
+        }
+        assertEquals(0, locks.getLockCount());
+    }
+}
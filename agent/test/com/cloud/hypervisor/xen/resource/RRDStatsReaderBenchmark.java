@@ -0,0 +1,151 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Times reading the VM averages out of an rrd_updates document the size a
+ * pool master returns, with RRDStatsReader and with the DOM walk the XenServer
+ * resource used to do.
+ *
+ * Usage: RRDStatsReaderBenchmark [-vms 80] [-rows 120] [-requested 10] [-iterations 20]
+ */
+public class RRDStatsReaderBenchmark {
+    private static final Logger s_logger = Logger.getLogger(RRDStatsReaderBenchmark.class);
+
+    private static final String[] s_params = new String[] { "cpu0", "cpu1", "cpu2", "cpu3", "vif_0_rx", "vif_0_tx", "vif_1_rx", "vif_1_tx", "vbd_xvda_read",
+            "vbd_xvda_write", "memory", "memory_internal_free" };
+
+    static String generate(int vms, int rows, List<String> uuids) {
+        StringBuilder xml = new StringBuilder("<xport><meta><start>1300000000</start><step>5</step><end>1300000600</end>");
+        xml.append("<rows>").append(rows).append("</rows><columns>").append(vms * s_params.length).append("</columns><legend>");
+        for (int i = 0; i < vms; i++) {
+            String uuid = UUID.randomUUID().toString();
+            uuids.add(uuid);
+            for (String param : s_params) {
+                xml.append("<entry>AVERAGE:vm:").append(uuid).append(":").append(param).append("</entry>");
+            }
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            xml.append("<row><t>").append(1300000600 - row * 5).append("</t>");
+            for (int col = 0; col < vms * s_params.length; col++) {
+                xml.append("<v>").append(row % 7 == 0 ? "NaN" : String.valueOf((row * 31 + col) % 1000 / 1000.0)).append("</v>");
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    static Map<String, Double> readDom(List<String> uuids, String stats) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(stats)));
+        NodeList sections = doc.getDocumentElement().getChildNodes();
+        NodeList legend = sections.item(0).getChildNodes().item(5).getChildNodes();
+        NodeList data = sections.item(1).getChildNodes();
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (int col = 0; col < legend.getLength(); col++) {
+            String[] entry = legend.item(col).getTextContent().split(":");
+            if (!uuids.contains(entry[2])) {
+                continue;
+            }
+            double value = 0;
+            int used = 0;
+            for (int row = 0; row < data.getLength(); row++) {
+                Node v = data.item(row).getChildNodes().item(col + 1);
+                double d = Double.parseDouble(v.getTextContent());
+                if (!Double.isNaN(d)) {
+                    value += d;
+                    used++;
+                }
+            }
+            averages.put(entry[1] + ":" + entry[2] + ":" + entry[3], used == 0 ? value : value / used);
+        }
+        return averages;
+    }
+
+    static Map<String, Double> readStax(List<String> uuids, String stats) throws Exception {
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (RRDStatsReader.Column column : new RRDStatsReader("vm", uuids).read(new StringReader(stats))) {
+            averages.put(column.toString(), column.getAverage());
+        }
+        return averages;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int vms = 80;
+        int rows = 120;
+        int requestedVms = 10;
+        int iterations = 20;
+
+        Iterator<String> iter = Arrays.asList(args).iterator();
+        while (iter.hasNext()) {
+            String arg = iter.next();
+            if (arg.equals("-vms")) {
+                vms = Integer.parseInt(iter.next());
+            } else if (arg.equals("-rows")) {
+                rows = Integer.parseInt(iter.next());
+            } else if (arg.equals("-requested")) {
+                requestedVms = Integer.parseInt(iter.next());
+            } else if (arg.equals("-iterations")) {
+                iterations = Integer.parseInt(iter.next());
+            }
+        }
+
+        List<String> uuids = new ArrayList<String>();
+        String stats = generate(vms, rows, uuids);
+        List<String> requested = uuids.subList(0, Math.min(requestedVms, vms));
+        if (!readDom(requested, stats).equals(readStax(requested, stats))) {
+            s_logger.error("RRDStatsReader and the DOM walk disagree, not timing them");
+            System.exit(1);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            Runtime.getRuntime().gc();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                readDom(requested, stats);
+            }
+            long dom = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                readStax(requested, stats);
+            }
+            long stax = System.currentTimeMillis() - start;
+            s_logger.info("rrd_updates of " + stats.length() + " chars, " + requested.size() + " of " + vms + " vms: dom " + (dom / iterations) + "ms, stax "
+                    + (stax / iterations) + "ms per parse");
+        }
+    }
+}
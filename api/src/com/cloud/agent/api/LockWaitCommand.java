@@ -0,0 +1,43 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.api;
+
+/**
+ * Tells the management server holding global locks that threads on the
+ * sender wait for them, so that it sends a LockReleasedCommand back when
+ * it releases them.
+ */
+public class LockWaitCommand extends Command {
+    String[] keys;
+
+    protected LockWaitCommand() {
+    }
+
+    public LockWaitCommand(String[] keys) {
+        this.keys = keys;
+    }
+
+    public String[] getKeys() {
+        return keys;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
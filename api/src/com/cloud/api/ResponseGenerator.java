@@ -233,4 +233,10 @@ public interface ResponseGenerator {
 
     SystemVmInstanceResponse createSystemVmInstanceResponse(VirtualMachine systemVM);
 
+    /**
+     * Loads the entities referenced by a page of list results in batches, so the
+     * per-object create*Response calls that follow are served from the response cache.
+     */
+    void prefetchReferences(List<?> objects);
+
 }
@@ -137,6 +137,7 @@ public class ListHostsCmd extends BaseListCmd {
 
         ListResponse<HostResponse> response = new ListResponse<HostResponse>();
         List<HostResponse> hostResponses = new ArrayList<HostResponse>();
+        _responseGenerator.prefetchReferences(result);
         for (Host host : result) {
             HostResponse hostResponse = _responseGenerator.createHostResponse(host);
             Boolean suitableForMigration = false;
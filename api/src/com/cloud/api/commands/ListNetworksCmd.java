@@ -128,6 +128,7 @@ public class ListNetworksCmd extends BaseListCmd {
         List<? extends Network> networks = _networkService.searchForNetworks(this);
         ListResponse<NetworkResponse> response = new ListResponse<NetworkResponse>();
         List<NetworkResponse> networkResponses = new ArrayList<NetworkResponse>();
+        _responseGenerator.prefetchReferences(networks);
         for (Network network : networks) {
             NetworkResponse networkResponse = _responseGenerator.createNetworkResponse(network);
             networkResponses.add(networkResponse);
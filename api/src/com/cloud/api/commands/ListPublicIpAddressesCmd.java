@@ -125,6 +125,7 @@ public class ListPublicIpAddressesCmd extends BaseListCmd {
         List<? extends IpAddress> result = _mgr.searchForIPAddresses(this);
         ListResponse<IPAddressResponse> response = new ListResponse<IPAddressResponse>();
         List<IPAddressResponse> ipAddrResponses = new ArrayList<IPAddressResponse>();
+        _responseGenerator.prefetchReferences(result);
         for (IpAddress ipAddress : result) {
             IPAddressResponse ipResponse = _responseGenerator.createIPAddressResponse(ipAddress);
             ipResponse.setObjectName("publicipaddress");
@@ -134,6 +134,7 @@ public class ListRoutersCmd extends BaseListCmd {
         List<? extends VirtualRouter> result = _mgr.searchForRouters(this);
         ListResponse<DomainRouterResponse> response = new ListResponse<DomainRouterResponse>();
         List<DomainRouterResponse> routerResponses = new ArrayList<DomainRouterResponse>();
+        _responseGenerator.prefetchReferences(result);
         for (VirtualRouter router : result) {
             DomainRouterResponse routerResponse = _responseGenerator.createDomainRouterResponse(router);
             routerResponse.setObjectName("router");
@@ -126,6 +126,7 @@ public class ListSnapshotsCmd extends BaseListCmd {
         List<? extends Snapshot> result = _snapshotService.listSnapshots(this);
         ListResponse<SnapshotResponse> response = new ListResponse<SnapshotResponse>();
         List<SnapshotResponse> snapshotResponses = new ArrayList<SnapshotResponse>();
+        _responseGenerator.prefetchReferences(result);
         for (Snapshot snapshot : result) {
             SnapshotResponse snapshotResponse = _responseGenerator.createSnapshotResponse(snapshot);
             snapshotResponse.setObjectName("snapshot");
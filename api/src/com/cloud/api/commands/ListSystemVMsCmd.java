@@ -112,6 +112,7 @@ public class ListSystemVMsCmd extends BaseListCmd {
         List<? extends VirtualMachine> systemVMs = _mgr.searchForSystemVm(this);
         ListResponse<SystemVmResponse> response = new ListResponse<SystemVmResponse>();
         List<SystemVmResponse> vmResponses = new ArrayList<SystemVmResponse>();
+        _responseGenerator.prefetchReferences(systemVMs);
         for (VirtualMachine systemVM : systemVMs) {
             SystemVmResponse vmResponse = _responseGenerator.createSystemVmResponse(systemVM);
             vmResponse.setObjectName("systemvm");
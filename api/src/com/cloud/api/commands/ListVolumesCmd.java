@@ -142,6 +142,7 @@ public class ListVolumesCmd extends BaseListCmd {
 
         ListResponse<VolumeResponse> response = new ListResponse<VolumeResponse>();
         List<VolumeResponse> volResponses = new ArrayList<VolumeResponse>();
+        _responseGenerator.prefetchReferences(volumes);
         for (Volume volume : volumes) {
             VolumeResponse volResponse = _responseGenerator.createVolumeResponse(volume);
             volResponse.setObjectName("volume");
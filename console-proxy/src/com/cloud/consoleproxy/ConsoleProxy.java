@@ -30,7 +30,11 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLServerSocket;
 
@@ -63,6 +67,8 @@ public class ConsoleProxy {
 	static int tcpListenPort = 5999;
 	static int httpListenPort = 80;
 	static int httpCmdListenPort = 8001;
+	static int httpMaxThreads = 64;
+	static String tileEncoding = ConsoleProxyTileEncoder.MODE_AUTO;
 	static String jarDir = "./applet/";
 	static boolean compressServerMessage = true;
 	static int viewerLinger = 180;
@@ -71,6 +77,7 @@ public class ConsoleProxy {
 	static int keyboardType = KEYBOARD_RAW;
 	static String factoryClzName;
 	static boolean standaloneStart = false;
+	static ThreadPoolExecutor httpExecutor;
 
 	private static void configLog4j() {
 		URL configUrl = System.class.getResource("/conf/log4j-cloud.xml");
@@ -133,6 +140,16 @@ public class ConsoleProxy {
 			httpCmdListenPort = Integer.parseInt(s);
 			s_logger.info("Setting httpCmdListenPort=" + s);
 		}
+		s = conf.getProperty("consoleproxy.httpMaxThreads");
+		if (s!=null) {
+			httpMaxThreads = Integer.parseInt(s);
+			s_logger.info("Setting httpMaxThreads=" + s);
+		}
+		s = conf.getProperty("consoleproxy.tileEncoding");
+		if (s!=null) {
+			tileEncoding = s;
+			s_logger.info("Setting tileEncoding=" + s);
+		}
 		s = conf.getProperty("consoleproxy.jarDir");
 		if (s!=null) {
 			jarDir = s;
@@ -376,7 +393,8 @@ public class ConsoleProxy {
 			server.createContext("/resource/", new ConsoleProxyResourceHandler());
 			server.createContext("/ajax", new ConsoleProxyAjaxHandler());
 			server.createContext("/ajaximg", new ConsoleProxyAjaxImageHandler());
-			server.setExecutor(new ThreadExecutor()); // creates a default executor
+			httpExecutor = new ThreadExecutor("HTTP Thread", httpMaxThreads);
+			server.setExecutor(httpExecutor);
 			server.start();
 		} catch(Exception e) {
 			s_logger.error(e.getMessage(), e);
@@ -389,7 +407,7 @@ public class ConsoleProxy {
 		    s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
 			HttpServer cmdServer = HttpServer.create(new InetSocketAddress(httpCmdListenPort), 2);
 			cmdServer.createContext("/cmd", new ConsoleProxyCmdHandler());
-			cmdServer.setExecutor(new ThreadExecutor()); // creates a default executor
+			cmdServer.setExecutor(new ThreadExecutor("Cmd Thread", 2));
 			cmdServer.start();
 		} catch(Exception e) {
 			s_logger.error(e.getMessage(), e);
@@ -474,8 +492,7 @@ public class ConsoleProxy {
 		}
 		
 		if(reportLoadChange) {
-			ConsoleProxyStatus status = new ConsoleProxyStatus();
-			status.setConnections(ConsoleProxy.connectionMap);
+			ConsoleProxyStatus status = getStatus();
 			Gson gson = new GsonBuilder().setPrettyPrinting().create();
 			String loadInfo = gson.toJson(status);
 			
@@ -527,8 +544,7 @@ public class ConsoleProxy {
 			}
 			
 			if(reportLoadChange) {
-				ConsoleProxyStatus status = new ConsoleProxyStatus();
-				status.setConnections(ConsoleProxy.connectionMap);
+				ConsoleProxyStatus status = getStatus();
 				Gson gson = new GsonBuilder().setPrettyPrinting().create();
 				String loadInfo = gson.toJson(status);
 				
@@ -580,10 +596,30 @@ public class ConsoleProxy {
 				(System.currentTimeMillis() - startTime) + "ms for VncViewer to start");
 	}
 
-	static class ThreadExecutor implements Executor {
-	     public void execute(Runnable r) {
-	         new Thread(r).start();
-	     }
+	static ConsoleProxyStatus getStatus() {
+		ConsoleProxyStatus status = new ConsoleProxyStatus();
+		status.setConnections(ConsoleProxy.connectionMap);
+		status.setThreadStatus(httpExecutor, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+		return status;
+	}
+
+	/**
+	 * Bounded worker pool for the HTTP servers. Once all workers are busy and the queue is full,
+	 * the exchange runs on the HTTP dispatcher thread, which stops accepting new ones meanwhile.
+	 */
+	static class ThreadExecutor extends ThreadPoolExecutor {
+		public ThreadExecutor(final String name, int maxThreads) {
+			super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(maxThreads * 4), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(1);
+				
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name + " " + count.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+			allowCoreThreadTimeOut(true);
+		}
 	}
 
     static class ViewerGCThread extends Thread {
@@ -669,8 +705,7 @@ public class ConsoleProxy {
     		    	}
 
 	    		    // report load change for removal of the viewer
-    				ConsoleProxyStatus status = new ConsoleProxyStatus();
-    				status.setConnections(ConsoleProxy.connectionMap);
+    				ConsoleProxyStatus status = getStatus();
     				Gson gson = new GsonBuilder().setPrettyPrinting().create();
     				String loadInfo = gson.toJson(status);
     				
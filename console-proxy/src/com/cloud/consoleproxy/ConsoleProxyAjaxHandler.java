@@ -40,13 +40,14 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 	}
 	
 	public void handle(HttpExchange t) throws IOException {
+		boolean parked = false;
 		try {
 	        if(s_logger.isTraceEnabled())
 	        	s_logger.trace("AjaxHandler " + t.getRequestURI());
 	        
 	        long startTick = System.currentTimeMillis();
 	        
-	        doHandle(t);
+	        parked = doHandle(t);
 	        
 	        if(s_logger.isTraceEnabled())
 	        	s_logger.trace(t.getRequestURI() + " process time " + (System.currentTimeMillis() - startTick) + " ms");
@@ -59,11 +60,15 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 			s_logger.error("Unexpected exception, ", e);
 			t.sendResponseHeaders(500, -1);		// server error
 		} finally {
-			t.close();
+			if(!parked)
+				t.close();
 		}
 	}
 	
-	private void doHandle(HttpExchange t) throws Exception, IllegalArgumentException {
+	/**
+	 * @return true if the exchange has been parked for a long poll and will be closed once answered
+	 */
+	private boolean doHandle(HttpExchange t) throws Exception, IllegalArgumentException {
 		String queries = t.getRequestURI().getQuery();
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("Handle AJAX request: " + queries);
@@ -144,7 +149,7 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 				sb.append(content[i]);
 			
 			sendResponse(t, "text/html", sb.toString());
-			return;
+			return false;
 		}
 		
 		if(event != 0) {
@@ -180,9 +185,10 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 				if(s_logger.isTraceEnabled())
 					s_logger.trace("Ajax request indicates client update");
 				
-				handleClientUpdate(t, viewer);
+				return handleClientUpdate(t, viewer);
 			}
 		}
+		return false;
 	}
 	
 	public static Map<String, String> getQueryMap(String query) {
@@ -412,7 +418,15 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 		}
 	}
 	
-	private void handleClientUpdate(HttpExchange t, ConsoleProxyViewer viewer) throws IOException {
+	private boolean handleClientUpdate(HttpExchange t, ConsoleProxyViewer viewer) throws IOException {
+		if(ConsoleProxyAjaxUpdatePoller.park(t, viewer, ConsoleProxy.httpExecutor))
+			return true;
+		
+		sendClientUpdate(t, viewer);
+		return false;
+	}
+	
+	static void sendClientUpdate(HttpExchange t, ConsoleProxyViewer viewer) throws IOException {
 		String response = viewer.onAjaxClientUpdate();
 		
 		Headers hds = t.getResponseHeaders();
@@ -95,7 +95,7 @@ public class ConsoleProxyAjaxImageHandler implements HttpHandler {
 		byte[] img = viewer.getAjaxImageCache().getImage(key);
 		if(img != null) {
 			Headers hds = t.getResponseHeaders();
-			hds.set("Content-Type", "image/jpeg");
+			hds.set("Content-Type", isPng(img) ? "image/png" : "image/jpeg");
 			t.sendResponseHeaders(200, img.length);
 			
 			OutputStream os = t.getResponseBody();
@@ -111,6 +111,10 @@ public class ConsoleProxyAjaxImageHandler implements HttpHandler {
 		}
 	}
 	
+	private static boolean isPng(byte[] img) {
+		return img.length > 4 && (img[0] & 0xff) == 0x89 && img[1] == 'P' && img[2] == 'N' && img[3] == 'G';
+	}
+	
 	public static Map<String, String> getQueryMap(String query) {
 		String[] params = query.split("&");
 		Map<String, String> map = new HashMap<String, String>();
@@ -0,0 +1,124 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.consoleproxy;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.console.Logger;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Long poll support for AJAX viewer updates. Instead of holding a worker thread in a wait
+ * until the frame buffer changes, the exchange is parked on the viewer and answered from
+ * the worker pool once tiles get dirty or the poll times out.
+ */
+public class ConsoleProxyAjaxUpdatePoller {
+	private static final Logger s_logger = Logger.getLogger(ConsoleProxyAjaxUpdatePoller.class);
+	
+	private static final long POLL_TIMEOUT_MS = 3000;
+	
+	private static final AtomicInteger s_parkedCount = new AtomicInteger();
+	private static final ScheduledExecutorService s_timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Ajax Poll Timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	public static int getParkedCount() {
+		return s_parkedCount.get();
+	}
+	
+	/**
+	 * @return false if the update has to be answered right away by the caller, true if the exchange
+	 * has been parked and will be answered and closed later.
+	 */
+	public static boolean park(HttpExchange t, ConsoleProxyViewer viewer, Executor executor) {
+		if(viewer.status != ConsoleProxyViewer.STATUS_NORMAL_OPERATION)
+			return false;
+		
+		final Poll poll = new Poll(t, viewer, executor);
+		s_parkedCount.incrementAndGet();
+		if(!viewer.parkAjaxClientUpdate(poll)) {
+			s_parkedCount.decrementAndGet();
+			return false;
+		}
+		
+		poll.timeout = s_timer.schedule(new Runnable() {
+			public void run() {
+				if(poll.viewer.unparkAjaxClientUpdate(poll))
+					poll.wakeup();
+			}
+		}, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		return true;
+	}
+	
+	static class Poll implements Runnable {
+		final HttpExchange exchange;
+		final ConsoleProxyViewer viewer;
+		final Executor executor;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		volatile ScheduledFuture<?> timeout;
+		
+		Poll(HttpExchange exchange, ConsoleProxyViewer viewer, Executor executor) {
+			this.exchange = exchange;
+			this.viewer = viewer;
+			this.executor = executor;
+		}
+		
+		/**
+		 * Called once the poll has been taken off the viewer, either by a tile change or by the timer.
+		 */
+		void wakeup() {
+			if(!done.compareAndSet(false, true))
+				return;
+			
+			s_parkedCount.decrementAndGet();
+			ScheduledFuture<?> future = timeout;
+			if(future != null)
+				future.cancel(false);
+			
+			if(executor != null)
+				executor.execute(this);
+			else
+				run();
+		}
+		
+		public void run() {
+			try {
+				ConsoleProxyAjaxHandler.sendClientUpdate(exchange, viewer);
+			} catch(IOException e) {
+				if(s_logger.isDebugEnabled())
+					s_logger.debug("Unable to answer parked ajax update " + exchange.getRequestURI() + " due to " + e.getMessage());
+			} catch(Throwable e) {
+				s_logger.error("Unexpected exception while answering parked ajax update, ", e);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -34,9 +34,7 @@ public class ConsoleProxyCmdHandler implements HttpHandler {
 	
 	public void handle(HttpExchange t) throws IOException {
 		try {
-	        Thread.currentThread().setName("Cmd Thread " + 
-	        		Thread.currentThread().getId() + " " + t.getRemoteAddress());
-			s_logger.info("CmdHandler " + t.getRequestURI());
+			s_logger.info("CmdHandler " + t.getRequestURI() + " from " + t.getRemoteAddress());
 			doHandle(t);
 		} catch (Exception e) {
 			s_logger.error(e.toString(), e);
@@ -61,8 +59,7 @@ public class ConsoleProxyCmdHandler implements HttpHandler {
 		String cmd = path.substring(i + 1);
 		s_logger.info("Get CMD request for " + cmd);
 		if (cmd.equals("getstatus")) {
-			ConsoleProxyStatus status = new ConsoleProxyStatus();
-			status.setConnections(ConsoleProxy.connectionMap);
+			ConsoleProxyStatus status = ConsoleProxy.getStatus();
 			Headers hds = t.getResponseHeaders();
 			hds.set("Content-Type", "text/plain");
 			t.sendResponseHeaders(200, 0);
@@ -18,12 +18,20 @@
 
 package com.cloud.consoleproxy;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class ConsoleProxyStatus {
 	ArrayList<ConsoleProxyConnection> connections;
+	int activeSessions;
+	int parkedPolls;
+	int httpThreads;
+	int httpBusyThreads;
+	int httpQueuedRequests;
+	int totalThreads;
 	public ConsoleProxyStatus() {
 	}
 	public void setConnections(Hashtable<String, ConsoleProxyViewer> connMap) {
@@ -41,10 +49,26 @@ public class ConsoleProxyStatus {
 		         conn.tag = viewer.getTag();
 		         conn.createTime = viewer.createTime;
 		         conn.lastUsedTime = viewer.lastUsedTime;
+		         ConsoleProxyTileEncoder encoder = viewer.getTileEncoder();
+		         conn.encodedFrames = encoder.getFrameCount();
+		         conn.pngFrames = encoder.getPngFrameCount();
+		         conn.tilesSkipped = encoder.getTilesSkipped();
+		         conn.averageEncodeTimeMs = encoder.getAverageEncodeTimeMs();
+		         conn.averageFrameBytes = encoder.getAverageFrameBytes();
 		         conns.add(conn);
 	    	}
 	    }
 	    connections = conns;
+	    activeSessions = conns.size();
+	}
+	public void setThreadStatus(ThreadPoolExecutor httpExecutor, int parkedPolls) {
+		if(httpExecutor != null) {
+			httpThreads = httpExecutor.getPoolSize();
+			httpBusyThreads = httpExecutor.getActiveCount();
+			httpQueuedRequests = httpExecutor.getQueue().size();
+		}
+		this.parkedPolls = parkedPolls;
+		totalThreads = ManagementFactory.getThreadMXBean().getThreadCount();
 	}
 	public static class ConsoleProxyConnection {
 		public int id;
@@ -54,6 +78,11 @@ public class ConsoleProxyStatus {
 		public String tag;
 		public long createTime;
 		public long lastUsedTime;
+		public long encodedFrames;
+		public long pngFrames;
+		public long tilesSkipped;
+		public double averageEncodeTimeMs;
+		public long averageFrameBytes;
 		
 		public ConsoleProxyConnection() {
 		}
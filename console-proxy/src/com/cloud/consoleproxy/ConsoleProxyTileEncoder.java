@@ -0,0 +1,346 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.consoleproxy;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.cloud.console.Logger;
+import com.cloud.console.TileInfo;
+
+/**
+ * Per viewer encoder for the AJAX tile images. The merge image, the image writers and the
+ * output buffer are kept between updates, tiles whose content has not changed since they
+ * were last sent to the client are dropped, and frames with few colors (text consoles)
+ * can be sent as palette PNG instead of JPEG.
+ */
+public class ConsoleProxyTileEncoder {
+	private static final Logger s_logger = Logger.getLogger(ConsoleProxyTileEncoder.class);
+	
+	public static final String MODE_JPEG = "jpeg";
+	public static final String MODE_PNG = "png";
+	public static final String MODE_AUTO = "auto";
+	
+	// frames with up to this many colors are sent as palette PNG in auto mode
+	private static final int AUTO_PALETTE_COLORS = 64;
+	private static final int MAX_PALETTE_COLORS = 256;
+	
+	private final String mode;
+	
+	private BufferedImage mergeImage;
+	private WritableRaster indexRaster;
+	private ImageWriter jpegWriter;
+	private ImageWriter pngWriter;
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+	
+	private final Map<Integer, Long> tileHashes = new HashMap<Integer, Long>();
+	private final PaletteBuilder palette = new PaletteBuilder();
+	
+	private long frames;
+	private long pngFrames;
+	private long encodeNanos;
+	private long encodedBytes;
+	private long tilesEncoded;
+	private long tilesSkipped;
+	
+	public ConsoleProxyTileEncoder(String mode) {
+		if(MODE_JPEG.equalsIgnoreCase(mode) || MODE_PNG.equalsIgnoreCase(mode))
+			this.mode = mode.toLowerCase();
+		else
+			this.mode = MODE_AUTO;
+	}
+	
+	/**
+	 * Forgets what has been sent to the client, needed when the client starts over or resizes.
+	 */
+	public synchronized void reset() {
+		tileHashes.clear();
+	}
+	
+	public synchronized byte[] encodeFrame(Image memImage, int width, int height) throws IOException {
+		long startTick = System.nanoTime();
+		BufferedImage image = getMergeImage(width, height);
+		if(memImage != null) {
+			synchronized(memImage) {
+				Graphics2D g = image.createGraphics();
+				g.drawImage(memImage, 0, 0, width, height, 0, 0, width, height, null);
+				g.dispose();
+			}
+		}
+		
+		// a full frame replaces whatever the client had
+		tileHashes.clear();
+		return encode(image, new Rectangle[] { new Rectangle(0, 0, width, height) }, width, height, startTick);
+	}
+	
+	/**
+	 * Merges the tiles side by side into one image. Tiles that are identical to what was last
+	 * sent for the same position are removed from tileList, the remaining ones keep their order.
+	 * @return the encoded image, null if none of the tiles changed
+	 */
+	public synchronized byte[] encodeTiles(Image memImage, List<TileInfo> tileList, int tileWidth, int tileHeight) throws IOException {
+		long startTick = System.nanoTime();
+		int count = tileList.size();
+		BufferedImage image = getMergeImage(Math.max(tileWidth, tileWidth * count), tileHeight);
+		
+		if(memImage != null) {
+			synchronized(memImage) {
+				Graphics2D g = image.createGraphics();
+				int i = 0;
+				for(TileInfo tile : tileList) {
+					Rectangle rc = tile.getTileRect();
+					g.drawImage(memImage, i*tileWidth, 0, i*tileWidth + rc.width, rc.height, 
+						rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+					i++;
+				}
+				g.dispose();
+			}
+		}
+		
+		byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		int stride = image.getWidth() * 3;
+		int slot = 0;
+		int i = 0;
+		for(Iterator<TileInfo> it = tileList.iterator(); it.hasNext(); i++) {
+			TileInfo tile = it.next();
+			Rectangle rc = tile.getTileRect();
+			long hash = hashTile(pixels, stride, i*tileWidth, rc.width, rc.height);
+			Long lastHash = tileHashes.put((tile.getRow() << 16) | tile.getCol(), hash);
+			if(lastHash != null && lastHash.longValue() == hash) {
+				it.remove();
+				tilesSkipped++;
+				continue;
+			}
+			
+			if(slot != i)
+				moveTile(pixels, stride, i*tileWidth, slot*tileWidth, rc.width, rc.height);
+			slot++;
+		}
+		
+		if(tileList.isEmpty())
+			return null;
+		
+		Rectangle[] regions = new Rectangle[tileList.size()];
+		i = 0;
+		for(TileInfo tile : tileList) {
+			Rectangle rc = tile.getTileRect();
+			regions[i] = new Rectangle(i*tileWidth, 0, rc.width, rc.height);
+			i++;
+		}
+		
+		if(s_logger.isTraceEnabled())
+			s_logger.trace("Merged " + tileList.size() + " of " + count + " dirty tiles");
+		return encode(image, regions, tileWidth * tileList.size(), tileHeight, startTick);
+	}
+	
+	private byte[] encode(BufferedImage image, Rectangle[] regions, int width, int height, long startTick) throws IOException {
+		Rectangle source = new Rectangle(0, 0, width, height);
+		
+		byte[] bits = null;
+		if(!mode.equals(MODE_JPEG)) {
+			int limit = mode.equals(MODE_PNG) ? MAX_PALETTE_COLORS : AUTO_PALETTE_COLORS;
+			if(palette.build(image, regions, getIndexRaster(image.getWidth(), image.getHeight()), limit)) {
+				bits = write(getPngWriter(), new BufferedImage(palette.getColorModel(), indexRaster, false, null), source);
+			} else if(mode.equals(MODE_PNG)) {
+				bits = write(getPngWriter(), image, source);
+			}
+		}
+		
+		if(bits == null) {
+			bits = write(getJpegWriter(), image, source);
+		} else {
+			pngFrames++;
+		}
+		
+		frames++;
+		tilesEncoded += regions.length;
+		encodedBytes += bits.length;
+		encodeNanos += System.nanoTime() - startTick;
+		return bits;
+	}
+	
+	private byte[] write(ImageWriter writer, BufferedImage image, Rectangle source) throws IOException {
+		bos.reset();
+		MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bos);
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setSourceRegion(source);
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.reset();
+			out.close();
+		}
+		return bos.toByteArray();
+	}
+	
+	private BufferedImage getMergeImage(int width, int height) {
+		if(mergeImage == null || mergeImage.getWidth() < width || mergeImage.getHeight() < height) {
+			int w = Math.max(width, mergeImage != null ? mergeImage.getWidth() : 0);
+			int h = Math.max(height, mergeImage != null ? mergeImage.getHeight() : 0);
+			if(s_logger.isDebugEnabled())
+				s_logger.debug("Allocate merge image, w: " + w + ", h: " + h);
+			mergeImage = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+		}
+		return mergeImage;
+	}
+	
+	private WritableRaster getIndexRaster(int width, int height) {
+		if(indexRaster == null || indexRaster.getWidth() != width || indexRaster.getHeight() != height)
+			indexRaster = palette.getColorModel().createCompatibleWritableRaster(width, height);
+		return indexRaster;
+	}
+	
+	private ImageWriter getJpegWriter() {
+		if(jpegWriter == null)
+			jpegWriter = ImageIO.getImageWritersByFormatName("jpg").next();
+		return jpegWriter;
+	}
+	
+	private ImageWriter getPngWriter() {
+		if(pngWriter == null)
+			pngWriter = ImageIO.getImageWritersByFormatName("png").next();
+		return pngWriter;
+	}
+	
+	private static long hashTile(byte[] pixels, int stride, int x, int width, int height) {
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for(int row = 0; row < height; row++) {
+			int offset = row * stride + x * 3;
+			int end = offset + width * 3;
+			for(int i = offset; i < end; i++) {
+				hash ^= pixels[i] & 0xff;
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+	
+	private static void moveTile(byte[] pixels, int stride, int fromX, int toX, int width, int height) {
+		for(int row = 0; row < height; row++)
+			System.arraycopy(pixels, row * stride + fromX * 3, pixels, row * stride + toX * 3, width * 3);
+	}
+	
+	public synchronized long getFrameCount() {
+		return frames;
+	}
+	
+	public synchronized long getPngFrameCount() {
+		return pngFrames;
+	}
+	
+	public synchronized long getTilesEncoded() {
+		return tilesEncoded;
+	}
+	
+	public synchronized long getTilesSkipped() {
+		return tilesSkipped;
+	}
+	
+	public synchronized double getAverageEncodeTimeMs() {
+		return frames == 0 ? 0 : encodeNanos / 1000000.0 / frames;
+	}
+	
+	public synchronized long getAverageFrameBytes() {
+		return frames == 0 ? 0 : encodedBytes / frames;
+	}
+	
+	/**
+	 * Collects the colors used in the regions of a TYPE_3BYTE_BGR image and maps its pixels to
+	 * palette indexes, giving up as soon as there are more colors than the limit.
+	 */
+	static class PaletteBuilder {
+		private final int[] keys = new int[MAX_PALETTE_COLORS * 4];
+		private final byte[] indexes = new byte[MAX_PALETTE_COLORS * 4];
+		private final int[] colors = new int[MAX_PALETTE_COLORS];
+		private int count;
+		private IndexColorModel colorModel = new IndexColorModel(8, 1, new int[] { 0 }, 0, false, -1, DataBuffer.TYPE_BYTE);
+		
+		public IndexColorModel getColorModel() {
+			return colorModel;
+		}
+		
+		public boolean build(BufferedImage image, Rectangle[] regions, WritableRaster indexRaster, int limit) {
+			Arrays.fill(keys, 0);
+			count = 0;
+			
+			byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+			byte[] out = ((DataBufferByte)indexRaster.getDataBuffer()).getData();
+			int stride = image.getWidth() * 3;
+			int outStride = indexRaster.getWidth();
+			for(Rectangle rc : regions) {
+				for(int y = rc.y; y < rc.y + rc.height; y++) {
+					int offset = y * stride + rc.x * 3;
+					int outOffset = y * outStride + rc.x;
+					for(int x = 0; x < rc.width; x++) {
+						int rgb = ((pixels[offset + 2] & 0xff) << 16) | ((pixels[offset + 1] & 0xff) << 8) | (pixels[offset] & 0xff);
+						int index = lookup(rgb, limit);
+						if(index < 0)
+							return false;
+						out[outOffset + x] = (byte)index;
+						offset += 3;
+					}
+				}
+			}
+			
+			int[] cmap = new int[Math.max(count, 1)];
+			System.arraycopy(colors, 0, cmap, 0, count);
+			colorModel = new IndexColorModel(8, cmap.length, cmap, 0, false, -1, DataBuffer.TYPE_BYTE);
+			return true;
+		}
+		
+		private int lookup(int rgb, int limit) {
+			// keys hold rgb + 1 so that 0 marks an empty slot
+			int key = rgb + 1;
+			int mask = keys.length - 1;
+			int slot = (key * 0x9E3779B1) >>> 22 & mask;
+			while(keys[slot] != 0) {
+				if(keys[slot] == key)
+					return indexes[slot] & 0xff;
+				slot = (slot + 1) & mask;
+			}
+			
+			if(count >= limit)
+				return -1;
+			keys[slot] = key;
+			indexes[slot] = (byte)count;
+			colors[count] = rgb;
+			return count++;
+		}
+	}
+}
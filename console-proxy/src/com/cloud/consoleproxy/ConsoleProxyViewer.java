@@ -27,12 +27,12 @@ import java.awt.Toolkit;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
@@ -92,8 +92,11 @@ public class ConsoleProxyViewer implements java.lang.Runnable, RfbViewer, RfbPro
 	TileTracker tracker;
 	Object tileDirtyEvent;
 	boolean dirtyFlag = false;
+	List<ConsoleProxyAjaxUpdatePoller.Poll> ajaxPolls = new ArrayList<ConsoleProxyAjaxUpdatePoller.Poll>();
 	boolean justCreated = true;
 	AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
+	ConsoleProxyTileEncoder tileEncoder = new ConsoleProxyTileEncoder(ConsoleProxy.tileEncoding);
+	String lastAjaxImageUrl;
 	
 	String cursorUpdatesDef;
 	String eightBitColorsDef;
@@ -771,6 +774,35 @@ public class ConsoleProxyViewer implements java.lang.Runnable, RfbViewer, RfbPro
 			dirtyFlag = true;
 			tileDirtyEvent.notifyAll();
 		}
+		
+		List<ConsoleProxyAjaxUpdatePoller.Poll> polls;
+		synchronized(ajaxPolls) {
+			if(ajaxPolls.isEmpty())
+				return;
+			polls = new ArrayList<ConsoleProxyAjaxUpdatePoller.Poll>(ajaxPolls);
+			ajaxPolls.clear();
+		}
+		for(ConsoleProxyAjaxUpdatePoller.Poll poll : polls)
+			poll.wakeup();
+	}
+	
+	/**
+	 * Parks an AJAX update request until the next tile change.
+	 * @return false if there are dirty tiles already, the request should be answered right away
+	 */
+	boolean parkAjaxClientUpdate(ConsoleProxyAjaxUpdatePoller.Poll poll) {
+		synchronized(ajaxPolls) {
+			if(dirtyFlag)
+				return false;
+			ajaxPolls.add(poll);
+			return true;
+		}
+	}
+	
+	boolean unparkAjaxClientUpdate(ConsoleProxyAjaxUpdatePoller.Poll poll) {
+		synchronized(ajaxPolls) {
+			return ajaxPolls.remove(poll);
+		}
 	}
 	
 	public String getTag() {
@@ -793,7 +825,7 @@ public class ConsoleProxyViewer implements java.lang.Runnable, RfbViewer, RfbPro
 		}
 	}
 	
-	public byte[] getFrameBufferJpeg() {
+	public byte[] getFrameBufferImage() {
 		int width = 800;
 		int height = 600;
 		if(vc != null) {
@@ -802,91 +834,63 @@ public class ConsoleProxyViewer implements java.lang.Runnable, RfbViewer, RfbPro
 		}
 		
 		if(s_logger.isTraceEnabled())
-			s_logger.trace("getFrameBufferJpeg, w: " + width + ", h: " + height);
-		
-		BufferedImage bufferedImage = new BufferedImage(width, height,
-				BufferedImage.TYPE_3BYTE_BGR);
-		if(vc != null && vc.memImage != null) {
-			synchronized(vc.memImage) {
-				Graphics2D g = bufferedImage.createGraphics();
-				g.drawImage(vc.memImage, 0, 0, width, height, 0, 0, width, height, null);
-			}
-		}
+			s_logger.trace("getFrameBufferImage, w: " + width + ", h: " + height);
 		
 		byte[] imgBits = null;
 		try {
-			imgBits = jpegFromImage(bufferedImage);
+			imgBits = tileEncoder.encodeFrame(vc != null ? vc.memImage : null, width, height);
 		} catch (IOException e) {
+			s_logger.warn("Unable to encode frame buffer image", e);
 		}
 		return imgBits;
 	}
 	
-	public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
-		
-		int width = Math.max(tileWidth, tileWidth*tileList.size());
-		BufferedImage bufferedImage = new BufferedImage(width, tileHeight,
-			BufferedImage.TYPE_3BYTE_BGR);
-		
-		if(s_logger.isTraceEnabled())
-			s_logger.trace("Create merged image, w: " + width + ", h: " + tileHeight);
-		
-		if(vc != null && vc.memImage != null) {
-			synchronized(vc.memImage) {
-				Graphics2D g = bufferedImage.createGraphics();
-				int i = 0;
-				for(TileInfo tile : tileList) {
-					Rectangle rc = tile.getTileRect();
-					
-					if(s_logger.isTraceEnabled())
-						s_logger.trace("Merge tile into jpeg from (" + rc.x + "," + rc.y + "," + (rc.x + rc.width) + "," + (rc.y + rc.height) + ") to (" + i*tileWidth + ",0)" );
-					
-					g.drawImage(vc.memImage, i*tileWidth, 0, i*tileWidth + rc.width, rc.height, 
-						rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
-					
-					i++;
-				}
-			}
-		}
-		
+	/**
+	 * Tiles that have not changed since they were last sent are removed from tileList.
+	 * @return the merged image, null if there is nothing left to send
+	 */
+	public byte[] getTilesMergedImage(List<TileInfo> tileList, int tileWidth, int tileHeight) {
 		byte[] imgBits = null;
 		try {
-			imgBits = jpegFromImage(bufferedImage);
+			imgBits = tileEncoder.encodeTiles(vc != null ? vc.memImage : null, tileList, tileWidth, tileHeight);
 			
-			if(s_logger.isTraceEnabled())
-				s_logger.trace("Merge jpeg image size: " + imgBits.length + ", tiles: " + tileList.size());
+			if(s_logger.isTraceEnabled() && imgBits != null)
+				s_logger.trace("Merge image size: " + imgBits.length + ", tiles: " + tileList.size());
 		} catch (IOException e) {
+			s_logger.warn("Unable to encode merged tile image", e);
 		}
 		return imgBits;
 	}
 	
-	public byte[] jpegFromImage(BufferedImage image) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
-		javax.imageio.ImageIO.write(image, "jpg", bos);
-		
-		byte[] jpegBits = bos.toByteArray();
-		bos.close();
-		return jpegBits;
+	public ConsoleProxyTileEncoder getTileEncoder() {
+		return tileEncoder;
 	}
 	
 	private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
 		byte[] imgBits;
-		if(init)
-			imgBits = getFrameBufferJpeg();
-		else 
-			imgBits = getTilesMergedJpeg(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+		if(init) {
+			imgBits = getFrameBufferImage();
+		} else {
+			imgBits = getTilesMergedImage(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+			
+			// nothing changed, the client keeps the image it has
+			if(imgBits == null && tiles.isEmpty() && lastAjaxImageUrl != null)
+				return lastAjaxImageUrl;
+		}
 		
 		if(imgBits == null) {
-			s_logger.warn("Unable to generate jpeg image");
+			s_logger.warn("Unable to generate tile image");
 		} else {
 			if(s_logger.isTraceEnabled())
-				s_logger.trace("Generated jpeg image size: " + imgBits.length);
+				s_logger.trace("Generated tile image size: " + imgBits.length);
 		}
 		
 		int key = ajaxImageCache.putImage(imgBits);
 		StringBuffer sb = new StringBuffer("/ajaximg?host=");
 		sb.append(host).append("&port=").append(port).append("&sid=").append(passwordParam);
 		sb.append("&key=").append(key).append("&ts=").append(System.currentTimeMillis());
-		return sb.toString(); 
+		lastAjaxImageUrl = sb.toString();
+		return lastAjaxImageUrl; 
 	}
 	
 	private String prepareAjaxSession(boolean init) {
@@ -1093,19 +1097,14 @@ public class ConsoleProxyViewer implements java.lang.Runnable, RfbViewer, RfbPro
 		return "onDisconnect();";
 	}
 	
+	/**
+	 * Builds the update for the AJAX client right away, callers wanting to wait for tile changes
+	 * park the request with parkAjaxClientUpdate() first.
+	 */
 	public String onAjaxClientUpdate() {
 		if(!waitForViewerReady())
 			return onAjaxClientDisconnected();
 		
-		synchronized(tileDirtyEvent) {
-			if(!dirtyFlag) {
-				try {
-					tileDirtyEvent.wait(3000);
-				} catch(InterruptedException e) {
-				}
-			}
-		}
-		
 		boolean doResize = false;
 		synchronized(this) {
 			if(framebufferResized) {
@@ -1116,9 +1115,11 @@ public class ConsoleProxyViewer implements java.lang.Runnable, RfbViewer, RfbPro
 		
 		List<TileInfo> tiles;
 		
-		if(doResize)
+		if(doResize) {
+			// the client rebuilds its canvas, every tile has to be sent again
+			tileEncoder.reset();
 			tiles = tracker.scan(true);
-		else
+		} else
 			tiles = tracker.scan(false);
 		dirtyFlag = false;
 		
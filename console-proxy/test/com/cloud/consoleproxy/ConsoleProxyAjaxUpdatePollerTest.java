@@ -0,0 +1,278 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.consoleproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.console.TileTracker;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+public class ConsoleProxyAjaxUpdatePollerTest extends TestCase {
+	
+	/**
+	 * Viewer that is ready right away and answers updates without a VNC connection.
+	 */
+	static class TestViewer extends ConsoleProxyViewer {
+		final AtomicInteger updates = new AtomicInteger();
+		
+		TestViewer() {
+			status = STATUS_NORMAL_OPERATION;
+			tileDirtyEvent = new Object();
+			tracker = new TileTracker();
+			tracker.initTracking(64, 64, 800, 600);
+		}
+		
+		@Override
+		public String onAjaxClientUpdate() {
+			updates.incrementAndGet();
+			dirtyFlag = false;
+			return "update";
+		}
+	}
+	
+	static class TestExchange extends HttpExchange {
+		final CountDownLatch closed;
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final Headers responseHeaders = new Headers();
+		volatile int responseCode = -1;
+		volatile Thread answeredBy;
+		
+		TestExchange(CountDownLatch closed) {
+			this.closed = closed;
+		}
+		
+		@Override
+		public void close() {
+			answeredBy = Thread.currentThread();
+			closed.countDown();
+		}
+		
+		@Override
+		public void sendResponseHeaders(int code, long length) {
+			responseCode = code;
+		}
+		
+		@Override
+		public OutputStream getResponseBody() {
+			return body;
+		}
+		
+		@Override
+		public Headers getResponseHeaders() {
+			return responseHeaders;
+		}
+		
+		@Override
+		public Headers getRequestHeaders() {
+			return new Headers();
+		}
+		
+		@Override
+		public URI getRequestURI() {
+			return URI.create("/ajax?event=update");
+		}
+		
+		@Override
+		public String getRequestMethod() {
+			return "GET";
+		}
+		
+		@Override
+		public HttpContext getHttpContext() {
+			return null;
+		}
+		
+		@Override
+		public InputStream getRequestBody() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		
+		@Override
+		public int getResponseCode() {
+			return responseCode;
+		}
+		
+		@Override
+		public InetSocketAddress getRemoteAddress() {
+			return null;
+		}
+		
+		@Override
+		public InetSocketAddress getLocalAddress() {
+			return null;
+		}
+		
+		@Override
+		public String getProtocol() {
+			return "HTTP/1.1";
+		}
+		
+		@Override
+		public Object getAttribute(String name) {
+			return null;
+		}
+		
+		@Override
+		public void setAttribute(String name, Object value) {
+		}
+		
+		@Override
+		public void setStreams(InputStream i, OutputStream o) {
+		}
+		
+		@Override
+		public HttpPrincipal getPrincipal() {
+			return null;
+		}
+	}
+	
+	public void testExecutorSaturation() throws Exception {
+		ConsoleProxy.ThreadExecutor executor = new ConsoleProxy.ThreadExecutor("Test Thread", 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(10);
+		try {
+			// 2 busy workers and 8 queued requests fill the pool
+			for(int i = 0; i < 10; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+						}
+						done.countDown();
+					}
+				});
+			}
+			assertEquals(2, executor.getPoolSize());
+			assertEquals(8, executor.getQueue().size());
+			
+			// one more is not rejected, it runs on the submitting thread instead of a new worker
+			final List<Thread> ranOn = new ArrayList<Thread>();
+			executor.execute(new Runnable() {
+				public void run() {
+					ranOn.add(Thread.currentThread());
+				}
+			});
+			assertEquals(1, ranOn.size());
+			assertSame(Thread.currentThread(), ranOn.get(0));
+			assertEquals(2, executor.getPoolSize());
+			
+			release.countDown();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(2, executor.getLargestPoolSize());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+	
+	public void testParkedPollsResumedOnTileChange() throws Exception {
+		ConsoleProxy.ThreadExecutor executor = new ConsoleProxy.ThreadExecutor("Test Thread", 2);
+		try {
+			TestViewer viewer = new TestViewer();
+			int parked = ConsoleProxyAjaxUpdatePoller.getParkedCount();
+			
+			// more polls than the pool has threads and queue slots, none of them holds a worker
+			int polls = 20;
+			CountDownLatch closed = new CountDownLatch(polls);
+			List<TestExchange> exchanges = new ArrayList<TestExchange>();
+			for(int i = 0; i < polls; i++) {
+				TestExchange exchange = new TestExchange(closed);
+				exchanges.add(exchange);
+				assertTrue(ConsoleProxyAjaxUpdatePoller.park(exchange, viewer, executor));
+			}
+			assertEquals(parked + polls, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+			assertEquals(0, executor.getActiveCount());
+			assertEquals(0, executor.getQueue().size());
+			assertEquals(polls, closed.getCount());
+			assertEquals(0, viewer.updates.get());
+			
+			viewer.onFramebufferUpdate(0, 0, 10, 10);
+			assertTrue(closed.await(2, TimeUnit.SECONDS));
+			assertEquals(parked, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+			assertEquals(polls, viewer.updates.get());
+			for(TestExchange exchange : exchanges) {
+				assertEquals(200, exchange.responseCode);
+				assertEquals("update", exchange.body.toString());
+			}
+			assertEquals(2, executor.getLargestPoolSize());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	public void testParkedPollTimeout() throws Exception {
+		ConsoleProxy.ThreadExecutor executor = new ConsoleProxy.ThreadExecutor("Test Thread", 2);
+		try {
+			TestViewer viewer = new TestViewer();
+			int parked = ConsoleProxyAjaxUpdatePoller.getParkedCount();
+			
+			CountDownLatch closed = new CountDownLatch(1);
+			TestExchange exchange = new TestExchange(closed);
+			long start = System.currentTimeMillis();
+			assertTrue(ConsoleProxyAjaxUpdatePoller.park(exchange, viewer, executor));
+			assertEquals(parked + 1, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+			
+			// nothing changes, the poll is answered from the pool after the timeout
+			assertTrue(closed.await(10, TimeUnit.SECONDS));
+			assertTrue(System.currentTimeMillis() - start >= 2900);
+			assertTrue(exchange.answeredBy.getName().startsWith("Test Thread"));
+			assertEquals(200, exchange.responseCode);
+			assertEquals(parked, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+			
+			// a late tile change has nothing left to wake up
+			viewer.onFramebufferUpdate(0, 0, 10, 10);
+			assertEquals(1, viewer.updates.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	public void testAnsweredRightAway() {
+		TestViewer viewer = new TestViewer();
+		int parked = ConsoleProxyAjaxUpdatePoller.getParkedCount();
+		TestExchange exchange = new TestExchange(new CountDownLatch(1));
+		
+		// dirty tiles are sent without waiting
+		viewer.dirtyFlag = true;
+		assertFalse(ConsoleProxyAjaxUpdatePoller.park(exchange, viewer, null));
+		assertEquals(parked, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+		
+		// so are viewers that are not connected yet
+		viewer.dirtyFlag = false;
+		viewer.status = ConsoleProxyViewer.STATUS_CONNECTING;
+		assertFalse(ConsoleProxyAjaxUpdatePoller.park(exchange, viewer, null));
+		assertEquals(parked, ConsoleProxyAjaxUpdatePoller.getParkedCount());
+		assertNull(exchange.answeredBy);
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.consoleproxy;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.cloud.console.TileInfo;
+
+public class ConsoleProxyTileEncoderTest extends TestCase {
+	// 40x24 frame with 16x16 tiles, the last column is 8 pixels wide and the last row 8 pixels high
+	private static final int WIDTH = 40;
+	private static final int HEIGHT = 24;
+	private static final int TILE = 16;
+	
+	private BufferedImage memImage;
+	
+	@Override
+	protected void setUp() {
+		memImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for(int row = 0; row < 2; row++) {
+			for(int col = 0; col < 3; col++)
+				fill(row, col, (40 * col + 20) << 16 | (60 * row + 30) << 8 | 100);
+		}
+	}
+	
+	private void fill(int row, int col, int rgb) {
+		Rectangle rc = tileRect(row, col);
+		for(int y = rc.y; y < rc.y + rc.height; y++) {
+			for(int x = rc.x; x < rc.x + rc.width; x++)
+				memImage.setRGB(x, y, rgb);
+		}
+	}
+	
+	private static Rectangle tileRect(int row, int col) {
+		int x = col * TILE;
+		int y = row * TILE;
+		return new Rectangle(x, y, Math.min(TILE, WIDTH - x), Math.min(TILE, HEIGHT - y));
+	}
+	
+	private static List<TileInfo> allTiles() {
+		List<TileInfo> tiles = new ArrayList<TileInfo>();
+		for(int row = 0; row < 2; row++) {
+			for(int col = 0; col < 3; col++)
+				tiles.add(new TileInfo(row, col, tileRect(row, col)));
+		}
+		return tiles;
+	}
+	
+	private static String positions(List<TileInfo> tiles) {
+		StringBuilder sb = new StringBuilder();
+		for(TileInfo tile : tiles)
+			sb.append("[").append(tile.getRow()).append(",").append(tile.getCol()).append("]");
+		return sb.toString();
+	}
+	
+	/**
+	 * Decodes a merged image and checks that slot i holds the pixels of the i-th tile.
+	 */
+	private void assertTiles(byte[] bits, List<TileInfo> tiles) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(bits));
+		assertEquals(TILE * tiles.size(), image.getWidth());
+		assertEquals(TILE, image.getHeight());
+		
+		int slot = 0;
+		for(TileInfo tile : tiles) {
+			Rectangle rc = tile.getTileRect();
+			for(int y = 0; y < rc.height; y++) {
+				for(int x = 0; x < rc.width; x++) {
+					assertEquals("tile " + tile.getRow() + "," + tile.getCol() + " at " + x + "," + y,
+						memImage.getRGB(rc.x + x, rc.y + y) & 0xffffff, image.getRGB(slot * TILE + x, y) & 0xffffff);
+				}
+			}
+			slot++;
+		}
+	}
+	
+	public void testMergeDirtyTiles() throws IOException {
+		ConsoleProxyTileEncoder encoder = new ConsoleProxyTileEncoder(ConsoleProxyTileEncoder.MODE_PNG);
+		
+		List<TileInfo> tiles = allTiles();
+		assertTiles(encoder.encodeTiles(memImage, tiles, TILE, TILE), tiles);
+		assertEquals(6, tiles.size());
+		
+		// nothing changed, nothing to send
+		tiles = allTiles();
+		assertNull(encoder.encodeTiles(memImage, tiles, TILE, TILE));
+		assertTrue(tiles.isEmpty());
+		assertEquals(6, encoder.getTilesSkipped());
+		
+		// the changed tiles are moved to the front, the partial corner tile goes from slot 5 to slot 1
+		fill(0, 1, 0xff0000);
+		fill(1, 2, 0x00ff00);
+		tiles = allTiles();
+		byte[] bits = encoder.encodeTiles(memImage, tiles, TILE, TILE);
+		assertEquals("[0,1][1,2]", positions(tiles));
+		assertTiles(bits, tiles);
+		assertEquals(8, encoder.getTilesEncoded());
+		assertEquals(10, encoder.getTilesSkipped());
+	}
+	
+	public void testTileAndFrameBoundaries() throws IOException {
+		ConsoleProxyTileEncoder encoder = new ConsoleProxyTileEncoder(ConsoleProxyTileEncoder.MODE_PNG);
+		encoder.encodeTiles(memImage, allTiles(), TILE, TILE);
+		
+		// last pixel of the frame only dirties the corner tile
+		memImage.setRGB(WIDTH - 1, HEIGHT - 1, 0xffffff);
+		List<TileInfo> tiles = allTiles();
+		assertTiles(encoder.encodeTiles(memImage, tiles, TILE, TILE), tiles);
+		assertEquals("[1,2]", positions(tiles));
+		
+		// the last column of a tile belongs to that tile, the next one starts the neighbour
+		memImage.setRGB(TILE - 1, 0, 0xffffff);
+		tiles = allTiles();
+		assertTiles(encoder.encodeTiles(memImage, tiles, TILE, TILE), tiles);
+		assertEquals("[0,0]", positions(tiles));
+		
+		memImage.setRGB(TILE, TILE, 0xffffff);
+		tiles = allTiles();
+		assertTiles(encoder.encodeTiles(memImage, tiles, TILE, TILE), tiles);
+		assertEquals("[1,1]", positions(tiles));
+		
+		// bottom row tile with a full width but only 8 pixels high
+		memImage.setRGB(0, HEIGHT - 1, 0xffffff);
+		tiles = allTiles();
+		assertTiles(encoder.encodeTiles(memImage, tiles, TILE, TILE), tiles);
+		assertEquals("[1,0]", positions(tiles));
+	}
+	
+	public void testEncodeFrame() throws IOException {
+		ConsoleProxyTileEncoder encoder = new ConsoleProxyTileEncoder(ConsoleProxyTileEncoder.MODE_PNG);
+		encoder.encodeTiles(memImage, allTiles(), TILE, TILE);
+		
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(encoder.encodeFrame(memImage, WIDTH, HEIGHT)));
+		assertEquals(WIDTH, image.getWidth());
+		assertEquals(HEIGHT, image.getHeight());
+		for(int y = 0; y < HEIGHT; y++) {
+			for(int x = 0; x < WIDTH; x++)
+				assertEquals(memImage.getRGB(x, y) & 0xffffff, image.getRGB(x, y) & 0xffffff);
+		}
+		
+		// the client has a new frame, every tile is sent again on the next update
+		List<TileInfo> tiles = allTiles();
+		assertTiles(encoder.encodeTiles(memImage, tiles, TILE, TILE), tiles);
+		assertEquals(6, tiles.size());
+	}
+	
+	public void testReset() throws IOException {
+		ConsoleProxyTileEncoder encoder = new ConsoleProxyTileEncoder(ConsoleProxyTileEncoder.MODE_PNG);
+		encoder.encodeTiles(memImage, allTiles(), TILE, TILE);
+		encoder.reset();
+		
+		List<TileInfo> tiles = allTiles();
+		assertNotNull(encoder.encodeTiles(memImage, tiles, TILE, TILE));
+		assertEquals(6, tiles.size());
+	}
+	
+	public void testAutoMode() throws IOException {
+		ConsoleProxyTileEncoder encoder = new ConsoleProxyTileEncoder("unknown");
+		
+		// six colors, sent as palette PNG
+		byte[] bits = encoder.encodeFrame(memImage, WIDTH, HEIGHT);
+		assertEquals((byte)0x89, bits[0]);
+		assertEquals('P', bits[1]);
+		assertEquals('N', bits[2]);
+		assertEquals('G', bits[3]);
+		
+		// noise, sent as JPEG
+		Random random = new Random(1);
+		for(int y = 0; y < HEIGHT; y++) {
+			for(int x = 0; x < WIDTH; x++)
+				memImage.setRGB(x, y, random.nextInt(0x1000000));
+		}
+		bits = encoder.encodeFrame(memImage, WIDTH, HEIGHT);
+		assertEquals((byte)0xff, bits[0]);
+		assertEquals((byte)0xd8, bits[1]);
+		
+		assertEquals(2, encoder.getFrameCount());
+		assertEquals(1, encoder.getPngFrameCount());
+	}
+	
+	public void testPngTrueColor() throws IOException {
+		ConsoleProxyTileEncoder encoder = new ConsoleProxyTileEncoder(ConsoleProxyTileEncoder.MODE_PNG);
+		
+		// more colors than a palette holds, still lossless
+		for(int y = 0; y < HEIGHT; y++) {
+			for(int x = 0; x < WIDTH; x++)
+				memImage.setRGB(x, y, (x * 6) << 16 | (y * 10) << 8 | (x + y));
+		}
+		List<TileInfo> tiles = allTiles();
+		byte[] bits = encoder.encodeTiles(memImage, tiles, TILE, TILE);
+		assertEquals((byte)0x89, bits[0]);
+		assertTiles(bits, tiles);
+		assertEquals(1, encoder.getPngFrameCount());
+	}
+}
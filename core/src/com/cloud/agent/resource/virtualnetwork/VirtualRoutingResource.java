@@ -26,10 +26,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -70,10 +73,13 @@ import com.cloud.agent.api.to.StaticNatRuleTO;
 import com.cloud.network.HAProxyConfigurator;
 import com.cloud.network.LoadBalancerConfigurator;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.Manager;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.ssh.SshConnectionPool;
 
 /**
  * VirtualNetworkResource controls and configures virtual networking
@@ -86,10 +92,14 @@ import com.cloud.utils.script.Script;
 @Local(value={VirtualRoutingResource.class})
 public class VirtualRoutingResource implements Manager {
     private static final Logger s_logger = Logger.getLogger(VirtualRoutingResource.class);
+    // what the router's shell exits with for a script its systemvm patch does not have
+    private static final int COMMAND_NOT_FOUND = 127;
+
     private String _savepasswordPath; 	// This script saves a random password to the DomR file system
     private String _ipassocPath;
     private String _publicIpAddress;
     private String _firewallPath;
+    private String _firewallBulkPath;
     private String _loadbPath;
     private String _dhcpEntryPath;
     private String _vmDataPath;
@@ -99,6 +109,7 @@ public class VirtualRoutingResource implements Manager {
     private String _bumpUpPriorityPath;
     private String _l2tpVpnPath;
     private String _getDomRVersionPath;
+    private SshConnectionPool _sshPool;
 
 
     private int _timeout;
@@ -224,56 +235,81 @@ public class VirtualRoutingResource implements Manager {
 
     private Answer execute(SetPortForwardingRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        String[] results = new String[cmd.getRules().length];
-        int i = 0;
-        
-        boolean endResult = true;
+        List<String[]> rules = new ArrayList<String[]>(cmd.getRules().length);
         for (PortForwardingRuleTO rule : cmd.getRules()) {
-            String result = null;
-            final Script command = new Script(_firewallPath, _timeout, s_logger);
-            
-            command.add(routerIp);
-            command.add(rule.revoked() ? "-D" : "-A");
-            command.add("-P ", rule.getProtocol().toLowerCase());
-            command.add("-l ", rule.getSrcIp());
-            command.add("-p ", rule.getStringSrcPortRange());
-            command.add("-r ", rule.getDstIp());
-            command.add("-d ", rule.getStringDstPortRange());
-            result = command.execute();
-            if (result == null) {
-                results[i++] = null;
-            } else {
-                results[i++] = "Failed";
-                endResult = false;
-            }
+            rules.add(new String[] { rule.revoked() ? "-D" : "-A",
+                    "-P", rule.getProtocol().toLowerCase(),
+                    "-l", rule.getSrcIp(),
+                    "-p", rule.getStringSrcPortRange(),
+                    "-r", rule.getDstIp(),
+                    "-d", rule.getStringDstPortRange() });
         }
 
+        String[] results = new String[rules.size()];
+        boolean endResult = applyFirewallRules(routerIp, rules, results);
         return new SetPortForwardingRulesAnswer(cmd, results, endResult);
     }
     
     private Answer execute(SetStaticNatRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        String[] results = new String[cmd.getRules().length];
-        int i = 0;
-        boolean endResult = true;
+        List<String[]> rules = new ArrayList<String[]>(cmd.getRules().length);
         for (StaticNatRuleTO rule : cmd.getRules()) {
-            String result = null;
-            final Script command = new Script(_firewallPath, _timeout, s_logger);
-            command.add(routerIp);
-            command.add(rule.revoked() ? "-D" : "-A");
+            List<String> args = new ArrayList<String>();
+            args.add(rule.revoked() ? "-D" : "-A");
             
             //1:1 NAT needs instanceip;publicip;domrip;op
-            command.add(" -l ", rule.getSrcIp());
-            command.add(" -r ", rule.getDstIp());
+            args.add("-l");
+            args.add(rule.getSrcIp());
+            args.add("-r");
+            args.add(rule.getDstIp());
             
             if (rule.getProtocol() != null) { 
-                command.add(" -P ", rule.getProtocol().toLowerCase());
+                args.add("-P");
+                args.add(rule.getProtocol().toLowerCase());
             }
             
-            command.add(" -d ", rule.getStringSrcPortRange());
-            command.add(" -G ") ;
-            
-            result = command.execute();
+            args.add("-d");
+            args.add(rule.getStringSrcPortRange());
+            args.add("-G");
+            rules.add(args.toArray(new String[args.size()]));
+        }
+
+        String[] results = new String[rules.size()];
+        boolean endResult = applyFirewallRules(routerIp, rules, results);
+        return new SetStaticNatRulesAnswer(cmd, results, endResult);
+    }
+
+    /**
+     * Applies firewall.sh rules to the router.  With call_firewall_bulk.sh
+     * available the whole set is sent over one ssh session, otherwise, or
+     * when the router's systemvm patch predates firewall_bulk.sh, every rule
+     * is applied by its own call_firewall.sh.
+     *
+     * @param results filled in with null for each rule applied and "Failed" otherwise.
+     * @return true if all the rules were applied.
+     */
+    protected boolean applyFirewallRules(String routerIp, List<String[]> rules, String[] results) {
+        if (_firewallBulkPath != null && rules.size() > 1) {
+            Boolean endResult = applyFirewallRulesInBulk(routerIp, rules, results);
+            if (endResult != null) {
+                return endResult;
+            }
+            s_logger.info("Router " + routerIp + " can not apply firewall rules in bulk, applying " + rules.size() + " rules one at a time");
+        }
+
+        boolean endResult = true;
+        int i = 0;
+        for (String[] rule : rules) {
+            String result = null;
+            Pair<Integer, String> output = executeInRouter(routerIp, "/root/firewall.sh " + join(rule), null, _timeout);
+            if (output != null) {
+                result = interpret(output, null);
+            } else {
+                final Script command = new Script(_firewallPath, _timeout, s_logger);
+                command.add(routerIp);
+                command.add(rule);
+                result = command.execute();
+            }
             if (result == null) {
                 results[i++] = null;
             } else {
@@ -281,10 +317,142 @@ public class VirtualRoutingResource implements Manager {
                 endResult = false;
             }
         }
+        return endResult;
+    }
 
-        return new SetStaticNatRulesAnswer(cmd, results, endResult);
+    /**
+     * @return null if the router has no firewall_bulk.sh, nothing has been applied then.
+     */
+    private Boolean applyFirewallRulesInBulk(String routerIp, List<String[]> rules, String[] results) {
+        Arrays.fill(results, "Failed");
+
+        StringBuilder batch = new StringBuilder();
+        for (String[] rule : rules) {
+            batch.append(join(rule)).append('\n');
+        }
+
+        // every rule is still a firewall.sh run on the router, so give the batch a proportional budget
+        long timeout = _timeout + rules.size() * 1000L;
+        BulkResultParser parser = new BulkResultParser(rules.size());
+        String result = null;
+        Pair<Integer, String> output = executeInRouter(routerIp, "/root/firewall_bulk.sh", batch.toString().getBytes(), timeout);
+        if (output != null) {
+            if (output.first() == COMMAND_NOT_FOUND) {
+                return null;
+            }
+            result = interpret(output, parser);
+        } else {
+            File rulesFile = null;
+            try {
+                rulesFile = File.createTempFile("firewall", ".rules");
+                FileWriter out = new FileWriter(rulesFile);
+                try {
+                    out.write(batch.toString());
+                } finally {
+                    out.close();
+                }
+
+                final Script command = new Script(_firewallBulkPath, timeout, s_logger);
+                command.add(routerIp);
+                command.add(rulesFile.getAbsolutePath());
+                result = command.execute(parser);
+                if (command.getExitValue() == COMMAND_NOT_FOUND) {
+                    return null;
+                }
+            } catch (IOException e) {
+                s_logger.warn("Unable to apply firewall rules to router " + routerIp, e);
+                return false;
+            } finally {
+                if (rulesFile != null) {
+                    rulesFile.delete();
+                }
+            }
+        }
+
+        if (result != null) {
+            s_logger.warn("Unable to apply " + rules.size() + " firewall rules to router " + routerIp + ": " + result);
+            return false;
+        }
+        if (!parser.isReported()) {
+            // the rules may or may not have been applied, so they are not replayed
+            s_logger.warn("firewall_bulk.sh on router " + routerIp + " reported nothing about the " + rules.size() + " rules it was given");
+            return false;
+        }
+
+        boolean endResult = true;
+        for (int i = 0; i < results.length; i++) {
+            results[i] = parser.getResults()[i];
+            if (results[i] != null) {
+                endResult = false;
+            }
+        }
+        return endResult;
+    }
+
+    private static String join(String[] args) {
+        StringBuilder line = new StringBuilder();
+        for (String arg : args) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(arg);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Parses the "<rule index> <exit code>" lines printed by firewall_bulk.sh.
+     * Rules the router never reported on stay failed.
+     */
+    protected static class BulkResultParser extends OutputInterpreter {
+        private final String[] _results;
+        private boolean _reported;
+
+        public BulkResultParser(int count) {
+            _results = new String[count];
+            Arrays.fill(_results, "Failed");
+        }
+
+        public String[] getResults() {
+            return _results;
+        }
+
+        /**
+         * @return true if the router reported on any of the rules.
+         */
+        public boolean isReported() {
+            return _reported;
+        }
+
+        @Override
+        public boolean drain() {
+            return true;
+        }
+
+        @Override
+        public String processError(BufferedReader reader) {
+            // the output went to interpret() while the script ran
+            return "firewall_bulk.sh failed";
+        }
+
+        @Override
+        public String interpret(BufferedReader reader) throws IOException {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length != 2) {
+                    s_logger.debug("Ignoring firewall output: " + line);
+                    continue;
+                }
+                int index = NumbersUtil.parseInt(tokens[0], -1);
+                if (index >= 0 && index < _results.length) {
+                    _results[index] = "0".equals(tokens[1]) ? null : "Failed";
+                    _reported = true;
+                }
+            }
+            return null;
+        }
     }
-    
 
     private Answer execute(LoadBalancerConfigCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
@@ -322,6 +490,7 @@ public class VirtualRoutingResource implements Manager {
     }
 
     protected Answer execute(VmDataCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
         List<String[]> vmData = cmd.getVmData();
 
         for (String[] vmDataEntry : vmData) {
@@ -339,6 +508,19 @@ public class VirtualRoutingResource implements Manager {
                 }
             }
 
+            if (folder.equals("userdata") || folder.equals("metadata")) {
+                // one call with the data on stdin instead of vm_data.sh's ssh and scp sessions, routers without vmdata.sh still get those
+                String command = "/root/vmdata.sh -v " + quote(cmd.getVmIpAddress()) + " -F " + quote(folder) + " -f " + quote(file) + (dataBytes != null ? " -d" : "");
+                Pair<Integer, String> output = executeInRouter(routerIp, command, dataBytes, _timeout);
+                if (output != null && output.first() != COMMAND_NOT_FOUND) {
+                    String result = interpret(output, null);
+                    if (result != null) {
+                        return new Answer(cmd, false, result);
+                    }
+                    continue;
+                }
+            }
+
             try {
                 tmpFile = File.createTempFile("vmdata_", null);
                 FileOutputStream outStream = new FileOutputStream(tmpFile);
@@ -353,7 +535,7 @@ public class VirtualRoutingResource implements Manager {
        
 
             final Script command  = new Script(_vmDataPath, _timeout, s_logger);
-            command.add("-r", cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP));
+            command.add("-r", routerIp);
             command.add("-v", cmd.getVmIpAddress());
             command.add("-F", folder);
             command.add("-f", file);
@@ -457,8 +639,15 @@ public class VirtualRoutingResource implements Manager {
     }
 
     protected synchronized Answer execute (final DhcpEntryCommand cmd) {
+        String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+        Pair<Integer, String> output = executeInRouter(routerIp, "/root/edithosts.sh " + cmd.getVmMac() + " " + cmd.getVmIpAddress() + " " + cmd.getVmName(), null, _timeout);
+        if (output != null) {
+            String result = interpret(output, null);
+            return new Answer(cmd, result==null, result);
+        }
+
         final Script command  = new Script(_dhcpEntryPath, _timeout, s_logger);
-        command.add("-r", cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP));
+        command.add("-r", routerIp);
         command.add("-v", cmd.getVmIpAddress());
         command.add("-m", cmd.getVmMac());
         command.add("-n", cmd.getVmName());
@@ -468,10 +657,16 @@ public class VirtualRoutingResource implements Manager {
     }
 
     public String getRouterStatus(String routerIP) {
-        final Script command  = new Script(_getRouterStatusPath, _timeout, s_logger);
         final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        command.add(routerIP);
-        String result = command.execute(parser);
+        String result = null;
+        Pair<Integer, String> output = executeInRouter(routerIP, "/root/checkrouter.sh", null, _timeout);
+        if (output != null) {
+            result = interpret(output, parser);
+        } else {
+            final Script command  = new Script(_getRouterStatusPath, _timeout, s_logger);
+            command.add(routerIP);
+            result = command.execute(parser);
+        }
         if (result == null) {
             return parser.getLine();
         }
@@ -490,10 +685,16 @@ public class VirtualRoutingResource implements Manager {
 
     protected Answer execute(BumpUpPriorityCommand cmd) {
         final String routerPrivateIPAddress = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
-        final Script command  = new Script(_bumpUpPriorityPath, _timeout, s_logger);
         final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        command.add(routerPrivateIPAddress);
-        String result = command.execute(parser);
+        String result = null;
+        Pair<Integer, String> output = executeInRouter(routerPrivateIPAddress, "/root/bumpup_priority.sh", null, _timeout);
+        if (output != null) {
+            result = interpret(output, parser);
+        } else {
+            final Script command  = new Script(_bumpUpPriorityPath, _timeout, s_logger);
+            command.add(routerPrivateIPAddress);
+            result = command.execute(parser);
+        }
         if (result != null) {
             return new Answer(cmd, false, "BumpUpPriorityCommand failed: " + result);
         }
@@ -501,10 +702,16 @@ public class VirtualRoutingResource implements Manager {
     }
 
     protected String getDomRVersion(String routerIP) {
-        final Script command  = new Script(_getDomRVersionPath, _timeout, s_logger);
         final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-        command.add(routerIP);
-        String result = command.execute(parser);
+        String result = null;
+        Pair<Integer, String> output = executeInRouter(routerIP, "/opt/cloud/bin/get_template_version.sh", null, _timeout);
+        if (output != null) {
+            result = interpret(output, parser);
+        } else {
+            final Script command  = new Script(_getDomRVersionPath, _timeout, s_logger);
+            command.add(routerIP);
+            result = command.execute(parser);
+        }
         if (result == null) {
             return parser.getLine();
         }
@@ -754,6 +961,46 @@ public class VirtualRoutingResource implements Manager {
     //    	return new Answer(cmd, result == null, result);
     //    }
 
+    /**
+     * Runs a command in the router over the pooled ssh connection.
+     *
+     * @return the exit status and output of the command, or null if the pool
+     * is disabled or can't reach the router and the caller should fall back to
+     * its domr script.
+     */
+    protected Pair<Integer, String> executeInRouter(String routerIp, String command, byte[] input, long timeout) {
+        if (_sshPool == null) {
+            return null;
+        }
+        try {
+            return _sshPool.execute(routerIp, command, input, timeout);
+        } catch (IOException e) {
+            s_logger.warn("Unable to reach router " + routerIp + " over the ssh pool, falling back to the scripts: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Turns the outcome of a command run in the router into what Script.execute() returns.
+     */
+    protected static String interpret(Pair<Integer, String> output, OutputInterpreter parser) {
+        if (output.first() != 0) {
+            return output.second().length() > 0 ? output.second() : "Exit code " + output.first();
+        }
+        if (parser == null) {
+            return null;
+        }
+        try {
+            return parser.interpret(new BufferedReader(new StringReader(output.second())));
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
     protected String getDefaultScriptsDir() {
         return "scripts/network/domr/dom0";
     }
@@ -793,6 +1040,22 @@ public class VirtualRoutingResource implements Manager {
         value = (String)params.get("ssh.port");
         _port = NumbersUtil.parseInt(value, 3922);
 
+        value = (String)params.get("domr.ssh.key");
+        File sshKey = new File(value != null ? value : "/root/.ssh/id_rsa.cloud");
+        // off unless asked for in agent.properties
+        value = (String)params.get("domr.ssh.pool");
+        if (Boolean.parseBoolean(value) && !sshKey.canRead()) {
+            s_logger.warn("Unable to read " + sshKey + ", not pooling ssh connections to routers");
+        } else if (Boolean.parseBoolean(value)) {
+            value = (String)params.get("domr.ssh.idle.timeout");
+            _sshPool = new SshConnectionPool("root", sshKey, _port, NumbersUtil.parseInt(value, 120));
+            try {
+                JmxUtil.registerMBean("VirtualRoutingResource", "SshConnectionPool", _sshPool);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register the router ssh pool statistics into JMX monitoring", e);
+            }
+        }
+
         _ipassocPath = findScript("ipassoc.sh");
         if (_ipassocPath == null) {
             throw new ConfigurationException("Unable to find the ipassoc.sh");
@@ -809,6 +1072,11 @@ public class VirtualRoutingResource implements Manager {
             throw new ConfigurationException("Unable to find the call_firewall.sh");
         }
 
+        _firewallBulkPath = findScript("call_firewall_bulk.sh");
+        if (_firewallBulkPath == null) {
+            s_logger.info("Unable to find call_firewall_bulk.sh, firewall rules will be applied one at a time");
+        }
+
         _loadbPath = findScript("call_loadbalancer.sh");
         if (_loadbPath == null) {
             throw new ConfigurationException("Unable to find the call_loadbalancer.sh");
@@ -921,6 +1189,9 @@ public class VirtualRoutingResource implements Manager {
 
     @Override
     public boolean stop() {
+        if (_sshPool != null) {
+            _sshPool.stop();
+        }
         return true;
     }
 
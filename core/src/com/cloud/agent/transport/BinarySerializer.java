@@ -0,0 +1,901 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.CheckHealthAnswer;
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.CheckVirtualMachineAnswer;
+import com.cloud.agent.api.CheckVirtualMachineCommand;
+import com.cloud.agent.api.ClusterSyncAnswer;
+import com.cloud.agent.api.ClusterSyncCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetStorageStatsAnswer;
+import com.cloud.agent.api.GetStorageStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.PingStorageCommand;
+import com.cloud.agent.api.ReadyAnswer;
+import com.cloud.agent.api.ReadyCommand;
+import com.cloud.agent.api.RebootAnswer;
+import com.cloud.agent.api.RebootCommand;
+import com.cloud.agent.api.StartAnswer;
+import com.cloud.agent.api.StartCommand;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.agent.api.StartupStorageCommand;
+import com.cloud.agent.api.StopAnswer;
+import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.agent.api.to.NicTO;
+import com.cloud.agent.api.to.StorageFilerTO;
+import com.cloud.agent.api.to.VirtualMachineTO;
+import com.cloud.agent.api.to.VolumeTO;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Compact binary form of the commands and answers sent between the agent
+ * and the management server.  It replaces the json content for requests in
+ * Version.v5 and later.
+ * 
+ * The schema is derived from the classes themselves: the fields gson would
+ * serialize (non-static, non-transient, and included at GsonHelper.VERSION)
+ * are looked up once per class and cached.  Every value is prefixed by a one
+ * byte tag so readers can skip values they don't understand.  The classes
+ * that make up most of the traffic are written as ids from a fixed table;
+ * other class names and all field names are written only the first time
+ * they are used in a message and are referred to by index afterwards, so a
+ * list of a hundred VolumeTOs carries the VolumeTO schema once.  Fields are
+ * matched by name on the receiving side, which keeps the format as tolerant
+ * of added and removed fields as json is.
+ * 
+ * Values whose declared type has a type adapter registered in GsonHelper
+ * are written by that adapter, so both encodings of a command agree.  Types
+ * from the jdk that are not collections, maps, arrays, boxed primitives,
+ * strings or dates are embedded as json too.
+ * 
+ * Decoding is driven by the declared types, the same way gson is: every
+ * object read must be assignable to the field, element or array type it is
+ * read into, starting from the Command or Answer array of the message.
+ * Only classes under com.cloud and the jdk are resolved at all, they are
+ * not initialized while being resolved, and only com.cloud classes are
+ * created field by field.
+ */
+public class BinarySerializer {
+    private static final Logger s_logger = Logger.getLogger(BinarySerializer.class);
+
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected static final byte TAG_NULL       = 0;
+    protected static final byte TAG_TRUE       = 1;
+    protected static final byte TAG_FALSE      = 2;
+    protected static final byte TAG_BYTE       = 3;
+    protected static final byte TAG_SHORT      = 4;
+    protected static final byte TAG_INT        = 5;
+    protected static final byte TAG_LONG       = 6;
+    protected static final byte TAG_FLOAT      = 7;
+    protected static final byte TAG_DOUBLE     = 8;
+    protected static final byte TAG_CHAR       = 9;
+    protected static final byte TAG_STRING     = 10;
+    protected static final byte TAG_ENUM       = 11;
+    protected static final byte TAG_OBJECT     = 12;
+    protected static final byte TAG_ARRAY      = 13;
+    protected static final byte TAG_BYTES      = 14;
+    protected static final byte TAG_COLLECTION = 15;
+    protected static final byte TAG_MAP        = 16;
+    protected static final byte TAG_DATE       = 17;
+    protected static final byte TAG_JSON       = 18;
+    protected static final byte TAG_ADAPTED    = 19;
+
+    private static final Map<String, Class<?>> s_primitives = new HashMap<String, Class<?>>();
+    static {
+        Class<?>[] primitives = new Class<?>[] { boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class, char.class };
+        for (Class<?> primitive : primitives) {
+            s_primitives.put(primitive.getName(), primitive);
+        }
+    }
+
+    /**
+     * Classes written as a fixed id instead of by name.  Both ends of a
+     * connection have to agree on the ids, so only ever append to it.
+     */
+    private static final Class<?>[] s_registered = new Class<?>[] {
+        // array components and containers
+        boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class, char.class,
+        String.class, Boolean.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Character.class, Object.class,
+        ArrayList.class, LinkedList.class, HashMap.class, LinkedHashMap.class, TreeMap.class, HashSet.class, LinkedHashSet.class, TreeSet.class,
+        Pair.class, Ternary.class, VirtualMachine.State.class,
+        // commands, answers and transfer objects sent most often
+        Command.class, Answer.class, PingCommand.class, PingRoutingCommand.class, PingRoutingWithNwGroupsCommand.class, PingStorageCommand.class,
+        ReadyCommand.class, ReadyAnswer.class, CheckHealthCommand.class, CheckHealthAnswer.class,
+        GetHostStatsCommand.class, GetHostStatsAnswer.class, HostStatsEntry.class, GetVmStatsCommand.class, GetVmStatsAnswer.class, VmStatsEntry.class,
+        GetStorageStatsCommand.class, GetStorageStatsAnswer.class, ClusterSyncCommand.class, ClusterSyncAnswer.class,
+        StartupCommand.class, StartupRoutingCommand.class, StartupStorageCommand.class,
+        StartCommand.class, StartAnswer.class, StopCommand.class, StopAnswer.class, RebootCommand.class, RebootAnswer.class,
+        CheckVirtualMachineCommand.class, CheckVirtualMachineAnswer.class, NetworkUsageCommand.class, NetworkUsageAnswer.class,
+        VirtualMachineTO.class, NicTO.class, VolumeTO.class, StorageFilerTO.class,
+    };
+    private static final Map<Class<?>, Integer> s_registeredIds = new HashMap<Class<?>, Integer>();
+    static {
+        for (int i = 0; i < s_registered.length; i++) {
+            s_registeredIds.put(s_registered[i], i);
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>, ClassSchema> s_schemas = new ConcurrentHashMap<Class<?>, ClassSchema>();
+    private static final ConcurrentHashMap<String, Class<?>> s_classes = new ConcurrentHashMap<String, Class<?>>();
+
+    private static Object s_unsafe;
+    private static Method s_allocateInstance;
+    static {
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            s_unsafe = field.get(null);
+            s_allocateInstance = clazz.getMethod("allocateInstance", Class.class);
+        } catch (Exception e) {
+            s_logger.debug("Classes without a default constructor can only be created through their constructors", e);
+        }
+    }
+
+    public static ByteBuffer serialize(Object[] objs) {
+        Writer writer = new Writer();
+        writer.writeVarLong(objs.length);
+        for (Object obj : objs) {
+            writer.writeValue(obj, objs.getClass().getComponentType());
+        }
+        return ByteBuffer.wrap(writer._buf, 0, writer._pos);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T[] deserialize(ByteBuffer buffer, Class<? extends T[]> type) {
+        Reader reader = new Reader(buffer.slice());
+        int count = (int)reader.readVarLong();
+        T[] objs = (T[])Array.newInstance(type.getComponentType(), count);
+        for (int i = 0; i < count; i++) {
+            objs[i] = (T)reader.readValue(type.getComponentType());
+        }
+        return objs;
+    }
+
+    protected static ClassSchema getSchema(Class<?> clazz) {
+        ClassSchema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new ClassSchema(clazz);
+            s_schemas.putIfAbsent(clazz, schema);
+        }
+        return schema;
+    }
+
+    protected static Class<?> getClass(String name) {
+        Class<?> clazz = s_classes.get(name);
+        if (clazz == null) {
+            clazz = s_primitives.get(name);
+            if (clazz == null) {
+                if (!isAllowed(name)) {
+                    throw new CloudRuntimeException(name + " is not allowed in agent messages");
+                }
+                try {
+                    clazz = Class.forName(name, false, BinarySerializer.class.getClassLoader());
+                } catch (ClassNotFoundException e) {
+                    throw new CloudRuntimeException("can't find " + name);
+                }
+            }
+            s_classes.putIfAbsent(name, clazz);
+        }
+        return clazz;
+    }
+
+    protected static boolean isAllowed(String name) {
+        if (name.startsWith("[")) {
+            String element = name.replaceFirst("^\\[+", "");
+            if (element.length() == 1) {
+                return true;
+            }
+            name = element.startsWith("L") && element.endsWith(";") ? element.substring(1, element.length() - 1) : element;
+        }
+        return name.startsWith("com.cloud.") || name.startsWith("java.");
+    }
+
+    /**
+     * @return the class values of the type are created as.
+     */
+    protected static Class<?> rawClass(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>)type;
+        } else if (type instanceof ParameterizedType) {
+            return rawClass(((ParameterizedType)type).getRawType());
+        } else if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawClass(((GenericArrayType)type).getGenericComponentType()), 0).getClass();
+        } else if (type instanceof WildcardType) {
+            return rawClass(((WildcardType)type).getUpperBounds()[0]);
+        } else if (type instanceof TypeVariable) {
+            return rawClass(((TypeVariable<?>)type).getBounds()[0]);
+        }
+        return Object.class;
+    }
+
+    /**
+     * @return the index'th type argument of a parameterized collection or map type, Object otherwise.
+     */
+    protected static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type[] args = ((ParameterizedType)type).getActualTypeArguments();
+            if (index < args.length) {
+                return args[index];
+            }
+        }
+        return Object.class;
+    }
+
+    /**
+     * @return the type of the elements of an array type.
+     */
+    protected static Type componentType(Type type) {
+        if (type instanceof GenericArrayType) {
+            return ((GenericArrayType)type).getGenericComponentType();
+        }
+        Class<?> clazz = rawClass(type);
+        return clazz.isArray() ? clazz.getComponentType() : Object.class;
+    }
+
+    protected static void checkAssignable(Class<?> clazz, Type expected) {
+        Class<?> raw = rawClass(expected);
+        if (!raw.isAssignableFrom(wrap(clazz))) {
+            throw new CloudRuntimeException(clazz.getName() + " can't be read as " + raw.getName());
+        }
+    }
+
+    protected static Class<?> wrap(Class<?> clazz) {
+        if (!clazz.isPrimitive()) {
+            return clazz;
+        }
+        return Array.get(Array.newInstance(clazz, 1), 0).getClass();
+    }
+
+    protected static boolean isJdkClass(Class<?> clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.");
+    }
+
+    /**
+     * Fields of a class in the order they are written.
+     */
+    protected static class ClassSchema {
+        final Class<?> _clazz;
+        final Field[] _fields;
+        // set for the fields gson writes through a registered adapter
+        final boolean[] _adapted;
+        final String[] _names;
+        final Map<String, Field> _byName;
+        final Constructor<?> _constructor;
+
+        ClassSchema(Class<?> clazz) {
+            _clazz = clazz;
+            List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+
+            List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c : hierarchy) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic() || !GsonHelper.isIncluded(field)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            _fields = fields.toArray(new Field[fields.size()]);
+            _adapted = new boolean[_fields.length];
+            for (int i = 0; i < _fields.length; i++) {
+                _adapted[i] = GsonHelper.hasTypeAdapter(_fields[i].getGenericType());
+            }
+            Set<String> shadowed = new HashSet<String>();
+            Set<String> seen = new HashSet<String>();
+            for (Field field : _fields) {
+                if (!seen.add(field.getName())) {
+                    shadowed.add(field.getName());
+                }
+            }
+
+            // A field hidden by one of the same name in a subclass is qualified by its declaring class.
+            _names = new String[_fields.length];
+            _byName = new HashMap<String, Field>(_fields.length * 2);
+            for (int i = 0; i < _fields.length; i++) {
+                Field field = _fields[i];
+                boolean hidden = shadowed.contains(field.getName()) && field.getDeclaringClass() != lastDeclaring(field.getName());
+                _names[i] = hidden ? field.getDeclaringClass().getName() + "." + field.getName() : field.getName();
+                _byName.put(_names[i], field);
+            }
+
+            Constructor<?> constructor = null;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+            }
+            _constructor = constructor;
+        }
+
+        /**
+         * @return the most derived class declaring a field of the name.
+         */
+        Class<?> lastDeclaring(String name) {
+            Class<?> declaring = null;
+            for (Field field : _fields) {
+                if (field.getName().equals(name)) {
+                    declaring = field.getDeclaringClass();
+                }
+            }
+            return declaring;
+        }
+
+        Object newInstance() {
+            try {
+                if (_constructor != null) {
+                    return _constructor.newInstance();
+                }
+                if (s_allocateInstance != null) {
+                    return s_allocateInstance.invoke(s_unsafe, _clazz);
+                }
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to create " + _clazz.getName(), e);
+            }
+            throw new CloudRuntimeException("Unable to create " + _clazz.getName() + " without a default constructor");
+        }
+    }
+
+    protected static class Writer {
+        byte[] _buf = new byte[1024];
+        int _pos = 0;
+        final Map<Class<?>, Integer> _classIds = new HashMap<Class<?>, Integer>();
+        final Set<Class<?>> _schemasSent = new HashSet<Class<?>>();
+
+        void ensure(int len) {
+            if (_pos + len > _buf.length) {
+                byte[] buf = new byte[Math.max(_buf.length << 1, _pos + len)];
+                System.arraycopy(_buf, 0, buf, 0, _pos);
+                _buf = buf;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            _buf[_pos++] = (byte)b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _buf, _pos, bytes.length);
+            _pos += bytes.length;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                _buf[_pos++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buf[_pos++] = (byte)value;
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixed(long value, int len) {
+            ensure(len);
+            for (int i = len - 1; i >= 0; i--) {
+                _buf[_pos++] = (byte)(value >>> (i << 3));
+            }
+        }
+
+        void writeString(String str) {
+            writeBytes(str.getBytes(UTF8));
+        }
+
+        /**
+         * Registered classes are written as (id << 1) | 1, the others as
+         * their index in the message << 1, followed by the name on first use.
+         */
+        void writeClass(Class<?> clazz) {
+            Integer id = s_registeredIds.get(clazz);
+            if (id != null) {
+                writeVarLong((id << 1) | 1);
+                return;
+            }
+            id = _classIds.get(clazz);
+            if (id != null) {
+                writeVarLong(id << 1);
+                return;
+            }
+            id = _classIds.size();
+            _classIds.put(clazz, id);
+            writeVarLong(id << 1);
+            writeString(clazz.getName());
+        }
+
+        void writeValue(Object value) {
+            writeValue(value, Object.class);
+        }
+
+        /**
+         * @param declared type of the field, element or array the value is written for.
+         */
+        void writeValue(Object value, Type declared) {
+            if (value == null) {
+                writeByte(TAG_NULL);
+                return;
+            }
+
+            if (declared instanceof ParameterizedType && GsonHelper.hasTypeAdapter(declared)) {
+                writeAdapted(value, declared);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                writeByte(TAG_STRING);
+                writeString((String)value);
+            } else if (clazz == Boolean.class) {
+                writeByte((Boolean)value ? TAG_TRUE : TAG_FALSE);
+            } else if (clazz == Integer.class) {
+                writeByte(TAG_INT);
+                writeZigZag((Integer)value);
+            } else if (clazz == Long.class) {
+                writeByte(TAG_LONG);
+                writeZigZag((Long)value);
+            } else if (clazz == Short.class) {
+                writeByte(TAG_SHORT);
+                writeZigZag((Short)value);
+            } else if (clazz == Byte.class) {
+                writeByte(TAG_BYTE);
+                writeByte((Byte)value);
+            } else if (clazz == Double.class) {
+                writeByte(TAG_DOUBLE);
+                writeFixed(Double.doubleToRawLongBits((Double)value), 8);
+            } else if (clazz == Float.class) {
+                writeByte(TAG_FLOAT);
+                writeFixed(Float.floatToRawIntBits((Float)value), 4);
+            } else if (clazz == Character.class) {
+                writeByte(TAG_CHAR);
+                writeVarLong((Character)value);
+            } else if (value instanceof Enum) {
+                writeByte(TAG_ENUM);
+                writeClass(((Enum<?>)value).getDeclaringClass());
+                writeString(((Enum<?>)value).name());
+            } else if (clazz == byte[].class) {
+                writeByte(TAG_BYTES);
+                writeBytes((byte[])value);
+            } else if (clazz.isArray()) {
+                writeByte(TAG_ARRAY);
+                writeClass(clazz.getComponentType());
+                int length = Array.getLength(value);
+                writeVarLong(length);
+                Type elementType = rawClass(declared).isArray() ? componentType(declared) : clazz.getComponentType();
+                for (int i = 0; i < length; i++) {
+                    writeValue(Array.get(value, i), elementType);
+                }
+            } else if (value instanceof Collection) {
+                writeByte(TAG_COLLECTION);
+                writeClass(clazz);
+                Collection<?> collection = (Collection<?>)value;
+                writeVarLong(collection.size());
+                Type elementType = typeArgument(declared, 0);
+                for (Object element : collection) {
+                    writeValue(element, elementType);
+                }
+            } else if (value instanceof Map) {
+                writeByte(TAG_MAP);
+                writeClass(clazz);
+                Map<?, ?> map = (Map<?, ?>)value;
+                writeVarLong(map.size());
+                Type keyType = typeArgument(declared, 0);
+                Type valueType = typeArgument(declared, 1);
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey(), keyType);
+                    writeValue(entry.getValue(), valueType);
+                }
+            } else if (value instanceof Date) {
+                writeByte(TAG_DATE);
+                writeZigZag(((Date)value).getTime());
+            } else if (isJdkClass(clazz)) {
+                writeByte(TAG_JSON);
+                writeClass(clazz);
+                writeString(GsonHelper.getGson().toJson(value));
+            } else {
+                writeObject(value, clazz);
+            }
+        }
+
+        void writeAdapted(Object value, Type declared) {
+            String json = GsonHelper.getGson().toJson(value, declared);
+            if ("null".equals(json)) {
+                // the adapter has nothing to say; json leaves the field out
+                writeByte(TAG_NULL);
+                return;
+            }
+            writeByte(TAG_ADAPTED);
+            writeString(json);
+        }
+
+        void writeObject(Object value, Class<?> clazz) {
+            ClassSchema schema = getSchema(clazz);
+            writeByte(TAG_OBJECT);
+            writeClass(clazz);
+            if (_schemasSent.add(clazz)) {
+                writeVarLong(schema._names.length);
+                for (String name : schema._names) {
+                    writeString(name);
+                }
+            }
+            try {
+                for (int i = 0; i < schema._fields.length; i++) {
+                    Field field = schema._fields[i];
+                    Class<?> type = field.getType();
+                    if (schema._adapted[i]) {
+                        Object fieldValue = field.get(value);
+                        if (fieldValue == null) {
+                            writeByte(TAG_NULL);
+                        } else {
+                            writeAdapted(fieldValue, field.getGenericType());
+                        }
+                    } else if (type == int.class) {
+                        writeByte(TAG_INT);
+                        writeZigZag(field.getInt(value));
+                    } else if (type == long.class) {
+                        writeByte(TAG_LONG);
+                        writeZigZag(field.getLong(value));
+                    } else if (type == boolean.class) {
+                        writeByte(field.getBoolean(value) ? TAG_TRUE : TAG_FALSE);
+                    } else {
+                        writeValue(field.get(value), field.getGenericType());
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to serialize " + clazz.getName(), e);
+            }
+        }
+    }
+
+    protected static class Reader {
+        final ByteBuffer _buf;
+        final List<Class<?>> _classes = new ArrayList<Class<?>>();
+        final Map<Class<?>, String[]> _schemas = new HashMap<Class<?>, String[]>();
+
+        Reader(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = _buf.get();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        byte[] readBytes() {
+            byte[] bytes = new byte[(int)readVarLong()];
+            _buf.get(bytes);
+            return bytes;
+        }
+
+        String readString() {
+            int length = (int)readVarLong();
+            String str;
+            if (_buf.hasArray()) {
+                str = new String(_buf.array(), _buf.arrayOffset() + _buf.position(), length, UTF8);
+                _buf.position(_buf.position() + length);
+            } else {
+                byte[] bytes = new byte[length];
+                _buf.get(bytes);
+                str = new String(bytes, UTF8);
+            }
+            return str;
+        }
+
+        Class<?> readClass() {
+            long code = readVarLong();
+            int id = (int)(code >>> 1);
+            if ((code & 1) != 0) {
+                if (id >= s_registered.length) {
+                    throw new CloudRuntimeException("Unknown class id " + id);
+                }
+                return s_registered[id];
+            }
+            if (id < _classes.size()) {
+                return _classes.get(id);
+            }
+            if (id != _classes.size()) {
+                throw new CloudRuntimeException("Class index " + id + " is out of order");
+            }
+            Class<?> clazz = BinarySerializer.getClass(readString());
+            _classes.add(clazz);
+            return clazz;
+        }
+
+        /**
+         * @param expected declared type of the value being read.
+         */
+        Object readValue(Type expected) {
+            byte tag = _buf.get();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return _buf.get();
+            case TAG_SHORT:
+                return (short)readZigZag();
+            case TAG_INT:
+                return (int)readZigZag();
+            case TAG_LONG:
+                return readZigZag();
+            case TAG_FLOAT:
+                return _buf.getFloat();
+            case TAG_DOUBLE:
+                return _buf.getDouble();
+            case TAG_CHAR:
+                return (char)readVarLong();
+            case TAG_STRING:
+                return readString();
+            case TAG_ENUM:
+                return readEnum();
+            case TAG_BYTES:
+                return readBytes();
+            case TAG_ARRAY:
+                return readArray(expected);
+            case TAG_COLLECTION:
+                return readCollection(expected);
+            case TAG_MAP:
+                return readMap(expected);
+            case TAG_DATE:
+                return new Date(readZigZag());
+            case TAG_JSON: {
+                Class<?> clazz = readClass();
+                // gson only creates the declared type, so don't let the message pick an arbitrary one
+                if (rawClass(expected) == Object.class || !isJdkClass(clazz)) {
+                    throw new CloudRuntimeException(clazz.getName() + " can't be read as " + expected);
+                }
+                checkAssignable(clazz, expected);
+                return GsonHelper.getGson().fromJson(readString(), clazz);
+            }
+            case TAG_ADAPTED:
+                // only the registered adapters decide what gets created here
+                if (!GsonHelper.hasTypeAdapter(expected)) {
+                    throw new CloudRuntimeException(expected + " is not written by a type adapter");
+                }
+                return GsonHelper.getGson().fromJson(readString(), expected);
+            case TAG_OBJECT:
+                return readObject(expected);
+            default:
+                throw new CloudRuntimeException("Unknown tag " + tag + " at " + (_buf.position() - 1));
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readEnum() {
+            Class clazz = readClass();
+            String name = readString();
+            if (!clazz.isEnum()) {
+                throw new CloudRuntimeException(clazz.getName() + " is not an enum");
+            }
+            try {
+                return Enum.valueOf(clazz, name);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        Object readArray(Type expected) {
+            Class<?> component = readClass();
+            int length = (int)readVarLong();
+            Object array = Array.newInstance(component, length);
+            checkAssignable(array.getClass(), expected);
+            Type elementType = rawClass(expected).isArray() ? componentType(expected) : component;
+            for (int i = 0; i < length; i++) {
+                Object element = readValue(elementType);
+                if (element != null || !component.isPrimitive()) {
+                    Array.set(array, i, element);
+                }
+            }
+            return array;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readCollection(Type expected) {
+            Class<?> clazz = readClass();
+            if (!Collection.class.isAssignableFrom(clazz)) {
+                throw new CloudRuntimeException(clazz.getName() + " is not a collection");
+            }
+            int size = (int)readVarLong();
+            Collection<Object> collection = (Collection<Object>)newContainer(clazz);
+            if (collection == null) {
+                if (SortedSet.class.isAssignableFrom(clazz)) {
+                    collection = new TreeSet<Object>();
+                } else if (Set.class.isAssignableFrom(clazz)) {
+                    collection = new HashSet<Object>(size * 2);
+                } else {
+                    collection = new ArrayList<Object>(size);
+                }
+            }
+            Type elementType = typeArgument(expected, 0);
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue(elementType));
+            }
+            return collection;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readMap(Type expected) {
+            Class<?> clazz = readClass();
+            if (!Map.class.isAssignableFrom(clazz)) {
+                throw new CloudRuntimeException(clazz.getName() + " is not a map");
+            }
+            int size = (int)readVarLong();
+            Map<Object, Object> map = (Map<Object, Object>)newContainer(clazz);
+            if (map == null) {
+                map = SortedMap.class.isAssignableFrom(clazz) ? new TreeMap<Object, Object>() : new HashMap<Object, Object>(size * 2);
+            }
+            Type keyType = typeArgument(expected, 0);
+            Type valueType = typeArgument(expected, 1);
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(keyType);
+                map.put(key, readValue(valueType));
+            }
+            return map;
+        }
+
+        /**
+         * Creates the same kind of collection or map if it has a public
+         * default constructor.  Wrappers such as the unmodifiable and
+         * Arrays.asList views don't and are read back as plain ones.
+         */
+        Object newContainer(Class<?> clazz) {
+            if (!Modifier.isPublic(clazz.getModifiers())) {
+                return null;
+            }
+            try {
+                return clazz.getConstructor().newInstance();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        Object readObject(Type expected) {
+            Class<?> clazz = readClass();
+            if (!clazz.getName().startsWith("com.cloud.") || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
+                throw new CloudRuntimeException(clazz.getName() + " can't be created from an agent message");
+            }
+            checkAssignable(clazz, expected);
+
+            String[] names = _schemas.get(clazz);
+            if (names == null) {
+                names = new String[(int)readVarLong()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = readString();
+                }
+                _schemas.put(clazz, names);
+            }
+
+            ClassSchema schema = getSchema(clazz);
+            Object obj = schema.newInstance();
+            for (String name : names) {
+                Field field = schema._byName.get(name);
+                Object value = readValue(field != null ? field.getGenericType() : Object.class);
+                if (field == null || value == null) {
+                    // Unknown field or null; gson leaves the field as the constructor set it in both cases.
+                    continue;
+                }
+                try {
+                    setField(field, obj, value);
+                } catch (Exception e) {
+                    throw new CloudRuntimeException("Unable to set " + clazz.getName() + "." + name, e);
+                }
+            }
+            return obj;
+        }
+
+        static void setField(Field field, Object obj, Object value) throws IllegalAccessException {
+            Class<?> type = field.getType();
+            if (!type.isPrimitive()) {
+                field.set(obj, value);
+            } else if (type == boolean.class) {
+                field.setBoolean(obj, (Boolean)value);
+            } else if (type == char.class) {
+                field.setChar(obj, value instanceof Character ? (Character)value : (char)((Number)value).intValue());
+            } else {
+                Number number = value instanceof Character ? Integer.valueOf((Character)value) : (Number)value;
+                if (type == int.class) {
+                    field.setInt(obj, number.intValue());
+                } else if (type == long.class) {
+                    field.setLong(obj, number.longValue());
+                } else if (type == double.class) {
+                    field.setDouble(obj, number.doubleValue());
+                } else if (type == float.class) {
+                    field.setFloat(obj, number.floatValue());
+                } else if (type == short.class) {
+                    field.setShort(obj, number.shortValue());
+                } else {
+                    field.setByte(obj, number.byteValue());
+                }
+            }
+        }
+    }
+}
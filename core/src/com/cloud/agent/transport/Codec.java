@@ -0,0 +1,53 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec compresses and decompresses the content of a Request.  The id is
+ * sent over the wire in the flags of the request so it must never change
+ * once a codec has been released.
+ */
+public interface Codec {
+    /**
+     * @return id sent in the request flags.  Must fit in the bits of Request.FLAG_CODEC_MASK.
+     */
+    byte getId();
+
+    String getName();
+
+    /**
+     * Compresses the remaining bytes in the buffer.
+     * 
+     * @param data data to compress.  The position is moved to the limit.
+     * @return buffer holding the compressed data, ready to be read.
+     */
+    ByteBuffer compress(ByteBuffer data);
+
+    /**
+     * Decompresses the remaining bytes in the buffer.
+     * 
+     * @param data compressed data.  The position is moved to the limit.
+     * @param length uncompressed length as given in the request header.
+     * @return buffer holding the decompressed data, ready to be read.
+     * @throws IOException if the data is not understood.
+     */
+    ByteBuffer decompress(ByteBuffer data, int length) throws IOException;
+}
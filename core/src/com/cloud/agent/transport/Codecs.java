@@ -0,0 +1,105 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+
+/**
+ * Codecs keeps the codecs known to this side of the transport and which one
+ * to use when the peer understands codec ids.
+ */
+public class Codecs {
+    private static final Logger s_logger = Logger.getLogger(Codecs.class);
+
+    private static final Codec[] s_codecs = new Codec[(Request.FLAG_CODEC_MASK >> Request.CODEC_SHIFT) + 1];
+    private static final Codec s_legacy = new GzipCodec();
+    private static volatile Codec s_preferred;
+
+    static {
+        register(s_legacy);
+        s_preferred = register(new DeflateCodec());
+    }
+
+    public static synchronized Codec register(Codec codec) {
+        if (codec.getId() < 0 || codec.getId() >= s_codecs.length) {
+            throw new IllegalArgumentException("Codec id " + codec.getId() + " is out of range");
+        }
+        s_codecs[codec.getId()] = codec;
+        return codec;
+    }
+
+    /**
+     * @param id codec id as given in the request flags.
+     * @return codec or null if there's no codec with that id.
+     */
+    public static Codec get(int id) {
+        if (id < 0 || id >= s_codecs.length) {
+            return null;
+        }
+        return s_codecs[id];
+    }
+
+    /**
+     * @return codec used with peers that don't understand codec ids.
+     */
+    public static Codec getLegacy() {
+        return s_legacy;
+    }
+
+    public static Codec getPreferred() {
+        return s_preferred;
+    }
+
+    public static void setPreferred(Codec codec) {
+        register(codec);
+        s_logger.info("Compressing requests with " + codec.getName());
+        s_preferred = codec;
+    }
+
+    /**
+     * Picks the codec used with peers that understand codec ids, from the
+     * agent.codec and agent.codec.level settings.
+     * 
+     * @param name "deflate" or "gzip"; null means deflate.
+     * @param level zlib level for deflate, 0-9; null keeps the default.
+     */
+    public static void configure(String name, String level) {
+        if (name == null || name.equalsIgnoreCase("deflate")) {
+            if (level == null) {
+                return;
+            }
+            int deflateLevel = NumbersUtil.parseInt(level, -1);
+            if (deflateLevel < Deflater.NO_COMPRESSION || deflateLevel > Deflater.BEST_COMPRESSION) {
+                s_logger.warn("Ignoring deflate level " + level + ", it should be between " + Deflater.NO_COMPRESSION + " and " + Deflater.BEST_COMPRESSION);
+                return;
+            }
+            setPreferred(new DeflateCodec(deflateLevel));
+        } else if (name.equalsIgnoreCase(s_legacy.getName())) {
+            setPreferred(s_legacy);
+        } else {
+            s_logger.warn("Unknown codec " + name + ", compressing requests with " + s_preferred.getName());
+        }
+    }
+
+    private Codecs() {
+    }
+}
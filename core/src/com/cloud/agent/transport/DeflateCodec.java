@@ -0,0 +1,163 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
+
+/**
+ * DeflateCodec uses zlib with a configurable level.  The Deflater and
+ * Inflater are kept per thread and reset between uses instead of being
+ * allocated for every request, and data is read from and written to the
+ * arrays backing the buffers without going through streams.
+ */
+public class DeflateCodec implements Codec {
+    public static final byte ID = 1;
+
+    protected final int _level;
+    protected final ThreadLocal<Deflater> _deflaters;
+    protected final ThreadLocal<Inflater> _inflaters;
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public DeflateCodec(final int level) {
+        _level = level;
+        _deflaters = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(_level, isRaw());
+            }
+        };
+        _inflaters = new ThreadLocal<Inflater>() {
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater(isRaw());
+            }
+        };
+    }
+
+    protected boolean isRaw() {
+        return false;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    public int getLevel() {
+        return _level;
+    }
+
+    protected static byte[] toArray(ByteBuffer data) {
+        byte[] array = new byte[data.remaining()];
+        data.get(array);
+        return array;
+    }
+
+    /**
+     * Deflates the data into output starting at offset, growing output as needed.
+     * 
+     * @return the output array, which may be a new one, and the number of bytes in it.
+     */
+    protected Pair<byte[], Integer> deflate(byte[] input, int inOffset, int inLength, byte[] output, int offset, int trailer) {
+        Deflater deflater = _deflaters.get();
+        deflater.reset();
+        deflater.setInput(input, inOffset, inLength);
+        deflater.finish();
+        int count = offset;
+        while (!deflater.finished()) {
+            if (count == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            count += deflater.deflate(output, count, output.length - count);
+        }
+        if (count + trailer > output.length) {
+            output = Arrays.copyOf(output, count + trailer);
+        }
+        return new Pair<byte[], Integer>(output, count);
+    }
+
+    /**
+     * Inflates the data into an array of the expected length, growing it if the length was wrong.
+     * 
+     * @return the output array, the number of bytes inflated and the number of input bytes consumed.
+     */
+    protected Ternary<byte[], Integer, Integer> inflate(byte[] input, int inOffset, int inLength, int length) throws IOException {
+        Inflater inflater = _inflaters.get();
+        inflater.reset();
+        inflater.setInput(input, inOffset, inLength);
+        byte[] output = new byte[length > 0 ? length : 1024];
+        int count = 0;
+        try {
+            while (!inflater.finished()) {
+                if (count == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int n = inflater.inflate(output, count, output.length - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed data is truncated after " + count + " bytes");
+                }
+                count += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Unable to decompress: " + e.getMessage());
+        }
+        return new Ternary<byte[], Integer, Integer>(output, count, inLength - inflater.getRemaining());
+    }
+
+    protected static int estimate(int length) {
+        return (length >> 2) + 64;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer data) {
+        int length = data.remaining();
+        int offset = data.hasArray() ? data.arrayOffset() + data.position() : 0;
+        byte[] input = data.hasArray() ? data.array() : toArray(data);
+        data.position(data.limit());
+
+        Pair<byte[], Integer> result = deflate(input, offset, length, new byte[estimate(length)], 0, 0);
+        return ByteBuffer.wrap(result.first(), 0, result.second());
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer data, int length) throws IOException {
+        int inLength = data.remaining();
+        int offset = data.hasArray() ? data.arrayOffset() + data.position() : 0;
+        byte[] input = data.hasArray() ? data.array() : toArray(data);
+        data.position(data.limit());
+
+        Ternary<byte[], Integer, Integer> result = inflate(input, offset, inLength, length);
+        return ByteBuffer.wrap(result.first(), 0, result.second());
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.Ternary;
+
+/**
+ * GzipCodec writes and reads the gzip format that has always been used for
+ * compressed requests, so it is what's used with peers that don't
+ * understand codec ids.  The gzip header and trailer are handled here so
+ * the deflater and inflater can be reused like in DeflateCodec.
+ */
+public class GzipCodec extends DeflateCodec {
+    public static final byte ID = 0;
+
+    protected static final int GZIP_MAGIC = 0x8b1f;
+    protected static final int HEADER_SIZE = 10;
+    protected static final int TRAILER_SIZE = 8;
+
+    protected static final int FHCRC = 2;
+    protected static final int FEXTRA = 4;
+    protected static final int FNAME = 8;
+    protected static final int FCOMMENT = 16;
+
+    public GzipCodec() {
+        super(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public GzipCodec(int level) {
+        super(level);
+    }
+
+    @Override
+    protected boolean isRaw() {
+        return true;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer data) {
+        int length = data.remaining();
+        int offset = data.hasArray() ? data.arrayOffset() + data.position() : 0;
+        byte[] input = data.hasArray() ? data.array() : toArray(data);
+        data.position(data.limit());
+
+        byte[] output = new byte[estimate(length) + HEADER_SIZE + TRAILER_SIZE];
+        output[0] = (byte)GZIP_MAGIC;
+        output[1] = (byte)(GZIP_MAGIC >> 8);
+        output[2] = Deflater.DEFLATED;
+        output[9] = (byte)0xff;      // Unknown OS, same as GZIPOutputStream.
+
+        Pair<byte[], Integer> result = deflate(input, offset, length, output, HEADER_SIZE, TRAILER_SIZE);
+        output = result.first();
+        int count = result.second();
+
+        CRC32 crc = new CRC32();
+        crc.update(input, offset, length);
+        count = writeInt(output, count, (int)crc.getValue());
+        count = writeInt(output, count, length);
+        return ByteBuffer.wrap(output, 0, count);
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer data, int length) throws IOException {
+        int inLength = data.remaining();
+        int offset = data.hasArray() ? data.arrayOffset() + data.position() : 0;
+        byte[] input = data.hasArray() ? data.array() : toArray(data);
+        data.position(data.limit());
+
+        int end = offset + inLength;
+        int pos = offset;
+        if (inLength < HEADER_SIZE + TRAILER_SIZE || readShort(input, pos) != GZIP_MAGIC || input[pos + 2] != Deflater.DEFLATED) {
+            throw new IOException("Not in gzip format");
+        }
+        int flags = input[pos + 3] & 0xff;
+        pos += HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            pos += readShort(input, pos) + 2;
+        }
+        if ((flags & FNAME) != 0) {
+            while (pos < end && input[pos++] != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (pos < end && input[pos++] != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos >= end) {
+            throw new IOException("Truncated gzip header");
+        }
+
+        Ternary<byte[], Integer, Integer> result = inflate(input, pos, end - pos, length);
+        byte[] output = result.first();
+        int count = result.second();
+        pos += result.third();
+
+        if (pos + TRAILER_SIZE <= end) {
+            CRC32 crc = new CRC32();
+            crc.update(output, 0, count);
+            if (readInt(input, pos) != (int)crc.getValue()) {
+                throw new IOException("Corrupt gzip content: crc mismatch");
+            }
+        }
+        return ByteBuffer.wrap(output, 0, count);
+    }
+
+    protected static int writeInt(byte[] buf, int pos, int value) {
+        buf[pos++] = (byte)value;
+        buf[pos++] = (byte)(value >> 8);
+        buf[pos++] = (byte)(value >> 16);
+        buf[pos++] = (byte)(value >> 24);
+        return pos;
+    }
+
+    protected static int readShort(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8);
+    }
+
+    protected static int readInt(byte[] buf, int pos) {
+        return readShort(buf, pos) | (readShort(buf, pos + 2) << 16);
+    }
+}
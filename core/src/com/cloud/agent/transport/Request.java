@@ -17,21 +17,16 @@
  */
 package com.cloud.agent.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand.PortConfig;
 import com.cloud.exception.UnsupportedVersionException;
@@ -58,13 +53,18 @@ import com.google.gson.JsonSerializer;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
- * 3. Sequence - 8 bytes;
- * 4. Length - 4 bytes;
- * 5. ManagementServerId - 8 bytes;
- * 6. AgentId - 8 bytes;
- * 7. Data Package.
+ * 2. Latest version understood by the sender - 1 byte;
+ * 3. Flags - 2 bytes;
+ * 4. Sequence - 8 bytes;
+ * 5. Length - 4 bytes;
+ * 6. ManagementServerId - 8 bytes;
+ * 7. AgentId - 8 bytes;
+ * 8. Via - 8 bytes;
+ * 9. Data Package.
  * 
+ * The second byte used to be reserved and was sent as 0 so older peers are
+ * treated as understanding only the version they send.  A request is only
+ * sent in a newer version after the peer has said it understands it.
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -76,7 +76,13 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4, // Compressed content carries the codec id in the flags.
+        v5; // Content is serialized by BinarySerializer instead of gson.
+
+        public static Version getLatest() {
+            return v5;
+        }
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -95,9 +101,15 @@ public class Request {
     protected static final short       FLAG_FROM_SERVER     = 0x20;
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
+    protected static final short       FLAG_CODEC_MASK      = 0x700;
+    protected static final int         CODEC_SHIFT          = 8;
+
+    /* Content smaller than this isn't worth compressing */
+    protected static final int         COMPRESSION_THRESHOLD = 8192;
 
 
     protected Version   _ver;
+    protected Version   _peerVer;
     protected long      _session;
     protected long      _seq;
     protected short     _flags;
@@ -106,6 +118,7 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected ByteBuffer _binary;
     
     protected Request() {
     }
@@ -130,6 +143,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final ByteBuffer binary) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binary = binary;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] { command }, true, fromServer);
     }
@@ -158,6 +176,7 @@ public class Request {
 
     protected Request(final Request that, final Command[] cmds) {
         this._ver = that._ver;
+        this._peerVer = that._peerVer;
         this._seq = that._seq;
         setInSequence(that.executeInSequence());
         setStopOnError(that.stopOnError());
@@ -200,6 +219,38 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * @return latest version the sender of this request understands.
+     */
+    public Version getPeerVersion() {
+        return _peerVer != null ? _peerVer : _ver;
+    }
+
+    /**
+     * Sends this request in the latest version both sides understand.  Must
+     * be called before the request is serialized.
+     * 
+     * @param peerVersion latest version understood by the peer.
+     */
+    public void negotiateVersion(Version peerVersion) {
+        Version target = Version.getLatest().ordinal() <= peerVersion.ordinal() ? Version.getLatest() : peerVersion;
+        if (_peerVer != null && _peerVer.ordinal() < target.ordinal()) {
+            // Request routed from another management server.  The answer goes back to it so stay within what it understands.
+            target = _peerVer;
+        }
+        if (target.ordinal() >= Version.v4.ordinal()) {
+            _ver = target;
+        }
+    }
+
+    protected boolean hasCodecId() {
+        return _ver.ordinal() >= Version.v4.ordinal();
+    }
+
+    protected static boolean isBinary(Version version) {
+        return version.ordinal() >= Version.v5.ordinal();
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -227,16 +278,27 @@ public class Request {
 
     public Command[] getCommands() {
         if (_cmds == null) {
-            try {
-                _cmds = s_gson.fromJson(_content, Command[].class);
-            } catch (RuntimeException e) {
-                s_logger.error("Caught problem with " + _content, e);
-                throw e;
-            }
+            _cmds = deserialize(Command[].class);
         }
         return _cmds;
     }
 
+    protected Command[] deserialize(Class<? extends Command[]> type) {
+        try {
+            if (_binary != null) {
+                return BinarySerializer.deserialize(_binary, type);
+            }
+            return s_gson.fromJson(_content, type);
+        } catch (RuntimeException e) {
+            s_logger.error("Caught problem with " + (_binary != null ? "binary content of " + _binary.remaining() + " bytes" : _content), e);
+            throw e;
+        }
+    }
+
+    protected Class<? extends Command[]> getContentType() {
+        return Command[].class;
+    }
+
     protected String getType() {
         return "Cmd ";
     }
@@ -244,7 +306,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
+        buffer.put((byte) Version.getLatest().ordinal());
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -258,70 +320,43 @@ public class Request {
     }
 
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
-        int allocLength = length;
-        /* Add default length to support 2.2.8 */
-        if (allocLength < 65535) {
-            allocLength = 65535;
-        }
-        ByteArrayInputStream byteIn;
-        if (buffer.hasArray()) {
-            byteIn = new ByteArrayInputStream(buffer.array(),
-                    buffer.position() + buffer.arrayOffset(),
-                    buffer.remaining());
-        } else {
-            byte[] array = new byte[buffer.limit() - buffer.position()];
-            buffer.get(array);
-            byteIn = new ByteArrayInputStream(array);
-        }
-        ByteBuffer retBuff = ByteBuffer.allocate(allocLength);
-        int len = 0;
         try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
-            }
-            in.close();
+            return Codecs.getLegacy().decompress(buffer, length);
         } catch (IOException e) {
             s_logger.error("Fail to decompress the request!", e);
+            return ByteBuffer.allocate(0);
         }
-        retBuff.flip();
-        return retBuff;
     }
     
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
-        byte[] array;
-        if (buffer.hasArray()) {
-            array = buffer.array();
-        } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
-        }
-        try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
-            out.finish();
-            out.close();
-        } catch (IOException e) {
-            s_logger.error("Fail to compress the request!", e);
-        }
-        return ByteBuffer.wrap(byteOut.toByteArray());
+        return Codecs.getLegacy().compress(buffer);
     }
     
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (isBinary(_ver)) {
+            if (_binary == null) {
+                _binary = BinarySerializer.serialize(_cmds != null ? _cmds : deserialize(getContentType()));
+            }
+            tmp = _binary.duplicate();
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds != null ? _cmds : deserialize(getContentType()), getContentType());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
+        int capacity = tmp.remaining();
         /* Check if we need to compress the data */
-        if (capacity >= 8192) {
-            tmp = doCompress(tmp, capacity);
+        if (capacity >= COMPRESSION_THRESHOLD) {
+            Codec codec = hasCodecId() ? Codecs.getPreferred() : Codecs.getLegacy();
+            tmp = codec.compress(tmp);
+            _flags &= ~FLAG_CODEC_MASK;
             _flags |= FLAG_COMPRESSED;
+            if (hasCodecId()) {
+                _flags |= (codec.getId() << CODEC_SHIFT) & FLAG_CODEC_MASK;
+            }
         }
         buffers[1] = tmp;
         buffers[0] = serializeHeader(capacity);
@@ -383,12 +418,7 @@ public class Request {
         StringBuilder content = new StringBuilder();
         if (logContent) {
             if (_cmds == null) {
-                try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
-                } catch (RuntimeException e) {
-                    s_logger.error("Unable to convert to json: " + _content);
-                    throw e;
-                }
+                _cmds = deserialize(getContentType());
             }
             try {
                 s_gogger.toJson(_cmds, content);
@@ -406,7 +436,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = deserialize(getContentType());
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -445,10 +475,10 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (!isSupported(version)) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        final byte peerVer = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -459,34 +489,72 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() != Version.v3.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
         }
 
         if ((flags & FLAG_COMPRESSED) != 0) {
-            buff = doDecompress(buff, size);
+            Codec codec = Codecs.getLegacy();
+            if (version.ordinal() >= Version.v4.ordinal()) {
+                int codecId = (flags & FLAG_CODEC_MASK) >> CODEC_SHIFT;
+                codec = Codecs.get(codecId);
+                if (codec == null) {
+                    throw new UnsupportedVersionException("Unknown codec " + codecId + " in " + version, UnsupportedVersionException.IncompatibleVersion);
+                }
+            }
+            try {
+                buff = codec.decompress(buff, size);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to decompress request with " + codec.getName(), e);
+            }
         }
         
         byte[] command = null;
         int offset = 0;
+        int length = buff.remaining();
         if (buff.hasArray()) {
             command = buff.array();
             offset = buff.arrayOffset() + buff.position();
         } else {
-            command = new byte[buff.remaining()];
+            command = new byte[length];
             buff.get(command);
             offset = 0;
         }
 
-        final String content = new String(command, offset, command.length - offset);
-
-        if (isRequest) {
-            return new Request(version, seq, agentId, mgmtId, via, flags, content);
+        Request request;
+        if (isBinary(version)) {
+            final ByteBuffer content = ByteBuffer.wrap(command, offset, length).slice();
+            if (isRequest) {
+                request = new Request(version, seq, agentId, mgmtId, via, flags, content);
+            } else {
+                request = new Response(version, seq, agentId, mgmtId, via, flags, content);
+            }
         } else {
-            return new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
+            final String content = new String(command, offset, length);
+            if (isRequest) {
+                request = new Request(version, seq, agentId, mgmtId, via, flags, content);
+            } else {
+                request = new Response(version, seq, agentId, mgmtId, via, flags, content);
+            }
+        }
+        request._peerVer = getPeerVersion(version, peerVer);
+        return request;
+    }
+
+    protected static Version getPeerVersion(Version version, byte peerVer) {
+        if (peerVer <= version.ordinal()) {
+            return version;
         }
+        if (peerVer >= Version.getLatest().ordinal()) {
+            return Version.getLatest();
+        }
+        return Version.values()[peerVer];
+    }
+
+    public static boolean isSupported(Version version) {
+        return version.ordinal() == Version.v1.ordinal() || version.ordinal() >= Version.v3.ordinal();
     }
 
     public long getAgentId() {
@@ -26,6 +26,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 @Entity
 @Table(name="sync_queue_item")
@@ -53,6 +54,10 @@ public class SyncQueueItemVO implements SyncQueueItem{
     
 	@Column(name="created")
 	private Date created;
+
+	// sync object type of the queue, filled in when the item is dequeued
+	@Transient
+	private String syncObjType;
     
 	public Long getId() {
 		return id;
@@ -111,6 +116,14 @@ public class SyncQueueItemVO implements SyncQueueItem{
 	public void setCreated(Date created) {
 		this.created = created;
 	}
+
+	public String getSyncObjType() {
+		return syncObjType;
+	}
+
+	public void setSyncObjType(String syncObjType) {
+		this.syncObjType = syncObjType;
+	}
 	
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
@@ -29,6 +29,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -45,14 +46,9 @@ import java.util.UUID;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -1747,68 +1743,41 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
 
         HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
+        List<RRDStatsReader.Column> columns = getRRDData(conn, 1, null); // call rrd method with 1 for host
 
-        if (rrdData == null) {
+        if (columns == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
+        for (RRDStatsReader.Column column : columns) {
+            String param = column.getParam();
 
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
+            if (param.contains("pif_eth0_rx")) {
+                hostStats.setNetworkReadKBs(column.getAverage());
             }
 
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
+            if (param.contains("pif_eth0_tx")) {
+                hostStats.setNetworkWriteKBs(column.getAverage());
             }
 
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
+            if (param.contains("memory_total_kib")) {
+                hostStats.setTotalMemoryKBs(column.getAverage());
             }
 
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("memory_free_kib")) {
+                hostStats.setFreeMemoryKBs(column.getAverage());
+            }
 
-                if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
+            if (param.contains("cpu")) {
+                // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + column.getAverage());
+            }
 
 /*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-*/
+            if (param.contains("loadavg")) {
+                hostStats.setAverageLoad((hostStats.getAverageLoad() + column.getAverage()));
             }
+*/
         }
 
         // add the host cpu utilization
@@ -1867,55 +1836,26 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
+        List<RRDStatsReader.Column> columns = getRRDData(conn, 2, vmResponseMap.keySet()); // call rrddata with 2 for vm
 
-        if (rrdData == null) {
+        if (columns == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
-
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
+        for (RRDStatsReader.Column column : columns) {
+            VmStatsEntry vmStatsAnswer = vmResponseMap.get(column.getUuid());
+            String param = column.getParam();
 
-                vmStatsAnswer.setEntityType("vm");
+            vmStatsAnswer.setEntityType("vm");
 
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
-                } else if (param.equals("vif_0_rx")) {
-                	vmStatsAnswer.setNetworkReadKBs(getDataAverage(dataNode, col, numRows)/(8*2));
-                } else if (param.equals("vif_0_tx")) {
-                	vmStatsAnswer.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows)/(8*2));
-                }
+            if (param.contains("cpu")) {
+                vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + column.getAverage())));
+            } else if (param.equals("vif_0_rx")) {
+            	vmStatsAnswer.setNetworkReadKBs(column.getAverage()/(8*2));
+            } else if (param.equals("vif_0_tx")) {
+            	vmStatsAnswer.setNetworkWriteKBs(column.getAverage()/(8*2));
             }
-
         }
 
         for (String vmUUID : vmResponseMap.keySet()) {
@@ -1934,7 +1874,11 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return vmResponseMap;
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
+    /**
+     * Streams the rrd_updates xml of the host and returns the averaged columns of the requested entities.
+     * @param uuids uuids of the vms to collect, null for all of them.
+     */
+    protected List<RRDStatsReader.Column> getRRDData(Connection conn, int flag, Collection<String> uuids) {
 
         /*
          * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
@@ -1960,88 +1904,14 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         if(stats == null) {
             return null;
         }
-        
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
 
-        Document doc = null;
+        RRDStatsReader reader = new RRDStatsReader(flag == 1 ? "host" : "vm", uuids);
         try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            return reader.read(new StringReader(stats));
         } catch (Exception e) {
-        	s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-        	return null;
-        }
-
-        if(doc==null){
-        	s_logger.warn("Null document found after tryinh to parse the stats source");
-        	return null;
-        }
-        
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
-    }
-
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-        	if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-        	{
-        		return value;
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-        		return dummy;
-        	}
-        }
-        else
-        {
-        	if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-        	{
-        		return (value/numRowsUsed);
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-        		return dummy;
-        	}
+            s_logger.warn("Exception caught whilst processing the stats xml:", e);
+            return null;
         }
-        
     }
 
     protected String getHostStatsRawXML(Connection conn) {
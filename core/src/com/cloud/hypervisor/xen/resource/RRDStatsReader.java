@@ -0,0 +1,187 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single pass reader for the rrd_updates xml returned by the gethostvmstats plugin.
+ * Only the legend columns matching the requested type and uuids are kept, and each
+ * of them is reduced to a running sum while the rows stream by, so the memory used
+ * does not depend on the number of rows or on the other VMs on the host.
+ */
+public class RRDStatsReader {
+    private static final Logger s_logger = Logger.getLogger(RRDStatsReader.class);
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+
+    public static class Column {
+        private final String _type;
+        private final String _uuid;
+        private final String _param;
+        private double _sum;
+        private int _count;
+
+        Column(String type, String uuid, String param) {
+            _type = type;
+            _uuid = uuid;
+            _param = param;
+        }
+
+        public String getType() {
+            return _type;
+        }
+
+        public String getUuid() {
+            return _uuid;
+        }
+
+        public String getParam() {
+            return _param;
+        }
+
+        void add(double value) {
+            if (!Double.isNaN(value)) {
+                _sum += value;
+                _count++;
+            }
+        }
+
+        /**
+         * @return the average of the non NaN values of the column, 0 if that is not a finite number.
+         */
+        public double getAverage() {
+            double value = _count == 0 ? _sum : _sum / _count;
+            if (Double.isInfinite(value) || Double.isNaN(value)) {
+                s_logger.warn("Found an invalid value (infinity/NaN) in " + _type + ":" + _uuid + ":" + _param + ", rows=" + _count);
+                return 0;
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return _type + ":" + _uuid + ":" + _param;
+        }
+    }
+
+    private final String _type;
+    private final Collection<String> _uuids;
+
+    /**
+     * @param type entity type of the columns to keep, "host" or "vm".
+     * @param uuids uuids of the entities to keep, null to keep all of them.
+     */
+    public RRDStatsReader(String type, Collection<String> uuids) {
+        _type = type;
+        _uuids = uuids;
+    }
+
+    public List<Column> read(Reader in) throws XMLStreamException {
+        XMLStreamReader reader;
+        synchronized (s_factory) {
+            reader = s_factory.createXMLStreamReader(in);
+        }
+        try {
+            return read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    protected List<Column> read(XMLStreamReader reader) throws XMLStreamException {
+        List<Column> columns = new ArrayList<Column>();
+        Map<Integer, Column> selected = new HashMap<Integer, Column>();
+        int legendIndex = 0;
+        int valueIndex = 0;
+        boolean inLegend = false;
+        boolean inData = false;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (inData) {
+                    if (name.equals("row")) {
+                        valueIndex = 0;
+                    } else if (name.equals("v")) {
+                        Column column = selected.get(valueIndex++);
+                        if (column == null) {
+                            reader.getElementText();
+                        } else {
+                            column.add(Double.parseDouble(reader.getElementText().trim()));
+                        }
+                    }
+                } else if (inLegend) {
+                    if (name.equals("entry")) {
+                        Column column = select(reader.getElementText());
+                        if (column != null) {
+                            columns.add(column);
+                            selected.put(legendIndex, column);
+                        }
+                        legendIndex++;
+                    }
+                } else if (name.equals("legend")) {
+                    inLegend = true;
+                } else if (name.equals("data")) {
+                    if (selected.isEmpty()) {
+                        // nothing requested is on this host, the rows can be skipped altogether
+                        break;
+                    }
+                    inData = true;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = reader.getLocalName();
+                if (name.equals("legend")) {
+                    inLegend = false;
+                } else if (name.equals("data")) {
+                    break;
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Legend entries have the form "AVERAGE:vm:<uuid>:cpu0".
+     */
+    protected Column select(String entry) {
+        String[] columnMetadata = entry.trim().split(":");
+        if (columnMetadata.length != 4) {
+            return null;
+        }
+        if (!columnMetadata[1].equalsIgnoreCase(_type)) {
+            return null;
+        }
+        if (_uuids != null && !_uuids.contains(columnMetadata[2])) {
+            return null;
+        }
+        return new Column(columnMetadata[1], columnMetadata[2], columnMetadata[3]);
+    }
+}
@@ -20,6 +20,10 @@ package com.cloud.serializer;
 
 
 
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -34,11 +38,22 @@ import com.cloud.agent.transport.Request.PortConfigListTypeAdaptor;
 import com.cloud.utils.Pair;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.Since;
+import com.google.gson.annotations.Until;
 import com.google.gson.reflect.TypeToken;
 
 public class GsonHelper {
     private static final Logger s_logger = Logger.getLogger(GsonHelper.class);
 
+    public static final double VERSION = 1.5;
+
+    // field types with an adapter of their own; BinarySerializer hands these to gson
+    private static final Type s_portConfigListType = new TypeToken<List<PortConfig>>() {
+    }.getType();
+    private static final Type s_nwGroupsType = new TypeToken<Pair<Long, Long>>() {
+    }.getType();
+    private static final List<Type> s_adaptedTypes = Arrays.asList(s_portConfigListType, s_nwGroupsType);
+
     protected static final Gson s_gson;
     protected static final Gson s_gogger;
 
@@ -53,15 +68,13 @@ public class GsonHelper {
     }
 
     static Gson setDefaultGsonConfig(GsonBuilder builder) {
-        builder.setVersion(1.5);
+        builder.setVersion(VERSION);
         ArrayTypeAdaptor<Command> cmdAdaptor = new ArrayTypeAdaptor<Command>();
         builder.registerTypeAdapter(Command[].class, cmdAdaptor);
         ArrayTypeAdaptor<Answer> ansAdaptor = new ArrayTypeAdaptor<Answer>();
         builder.registerTypeAdapter(Answer[].class, ansAdaptor);
-        builder.registerTypeAdapter(new TypeToken<List<PortConfig>>() {
-        }.getType(), new PortConfigListTypeAdaptor());
-        builder.registerTypeAdapter(new TypeToken<Pair<Long, Long>>() {
-        }.getType(), new NwGroupsCommandTypeAdaptor());
+        builder.registerTypeAdapter(s_portConfigListType, new PortConfigListTypeAdaptor());
+        builder.registerTypeAdapter(s_nwGroupsType, new NwGroupsCommandTypeAdaptor());
         Gson gson = builder.create();
         cmdAdaptor.initGson(gson);
         ansAdaptor.initGson(gson);
@@ -79,4 +92,48 @@ public class GsonHelper {
     public final static Logger getLogger() {
         return s_logger;
     }
+
+    /**
+     * @return true if values of the declared type are written by one of the
+     *         type adapters registered here rather than field by field.  The
+     *         Command and Answer array adapters only record the element
+     *         classes and aren't counted.
+     */
+    public static boolean hasTypeAdapter(Type type) {
+        for (Type adapted : s_adaptedTypes) {
+            if (sameType(adapted, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static boolean sameType(Type a, Type b) {
+        if (a instanceof ParameterizedType && b instanceof ParameterizedType) {
+            Type[] aArgs = ((ParameterizedType)a).getActualTypeArguments();
+            Type[] bArgs = ((ParameterizedType)b).getActualTypeArguments();
+            if (!sameType(((ParameterizedType)a).getRawType(), ((ParameterizedType)b).getRawType()) || aArgs.length != bArgs.length) {
+                return false;
+            }
+            for (int i = 0; i < aArgs.length; i++) {
+                if (!sameType(aArgs[i], bArgs[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * @return false if gson leaves the field out at VERSION because of its @Since or @Until.
+     */
+    public static boolean isIncluded(Field field) {
+        Since since = field.getAnnotation(Since.class);
+        if (since != null && since.value() > VERSION) {
+            return false;
+        }
+        Until until = field.getAnnotation(Until.class);
+        return until == null || until.value() > VERSION;
+    }
 }
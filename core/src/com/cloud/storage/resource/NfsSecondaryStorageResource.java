@@ -18,13 +18,8 @@
 package com.cloud.storage.resource;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.net.InetAddress;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -68,6 +63,7 @@ import com.cloud.host.Host;
 import com.cloud.host.Host.Type;
 import com.cloud.resource.ServerResourceBase;
 import com.cloud.storage.StorageLayer;
+import com.cloud.storage.template.ChecksumCache;
 import com.cloud.storage.template.DownloadManager;
 import com.cloud.storage.template.DownloadManagerImpl;
 import com.cloud.storage.template.TemplateInfo;
@@ -98,6 +94,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     
     DownloadManager _dlMgr;
     UploadManager _upldMgr;
+    ChecksumCache _checksums;
 	private String _configSslScr;
 	private String _configAuthScr;
 	private String _configIpFirewallScr;
@@ -159,50 +156,21 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             parent += File.separator;
         }
         String absoluteTemplatePath = parent + relativeTemplatePath;
-        MessageDigest digest;
-        String checksum = null;
-        File f = new File(absoluteTemplatePath);   
-        InputStream is = null;
-        byte[] buffer = new byte[8192];
-        int read = 0;
         if(s_logger.isDebugEnabled()){
             s_logger.debug("parent path " +parent+ " relative template path " +relativeTemplatePath );   
         }
         
-        
         try {
-            digest = MessageDigest.getInstance("MD5");           
-            is = new FileInputStream(f);     
-            while( (read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }       
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            checksum = bigInt.toString(16);
+            String checksum = _checksums.getChecksum(absoluteTemplatePath);
             if(s_logger.isDebugEnabled()){
                 s_logger.debug("Successfully calculated checksum for file " +absoluteTemplatePath+ " - " +checksum );   
             }
-        
-        }catch(IOException e) {
+            return new Answer(cmd, true, checksum);
+        } catch (IOException e) {
             String logMsg = "Unable to process file for MD5 - " + absoluteTemplatePath;
             s_logger.error(logMsg);
-            return new Answer(cmd, false, checksum); 
-        }catch (NoSuchAlgorithmException e) {         
-            return new Answer(cmd, false, checksum);
+            return new Answer(cmd, false, null); 
         }
-        finally {
-            try {
-            	if(is != null)
-            		is.close();
-            } catch (IOException e) {
-                if(s_logger.isDebugEnabled()){
-                  s_logger.debug("Could not close the file " +absoluteTemplatePath);   
-                }
-                return new Answer(cmd, false, checksum);   
-            }                        
-    }       
-
-        return new Answer(cmd, true, checksum);
     }
 
     
@@ -538,6 +506,8 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         
         try {
             _params.put(StorageLayer.InstanceConfigKey, _storage);
+            _checksums = new ChecksumCache(NumbersUtil.parseInt((String)params.get("checksum.threads"), 2));
+            _params.put(ChecksumCache.InstanceConfigKey, _checksums);
             _dlMgr = new DownloadManagerImpl();
             _dlMgr.configure("DownloadManager", _params);
             _upldMgr = new UploadManagerImpl();
@@ -700,6 +670,9 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
 
     @Override
     public boolean stop() {
+        if (_checksums != null) {
+            _checksums.stop();
+        }
         return true;
     }
 
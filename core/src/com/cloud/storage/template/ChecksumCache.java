@@ -0,0 +1,282 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * ChecksumCache hands out the MD5 checksums of files on secondary storage.
+ * Each file is read once through a large direct buffer, and the result is
+ * kept in memory and in a checksum.properties file next to it, keyed by the
+ * file's size and modification time, so asking again for an unchanged
+ * template doesn't re-read it over NFS.  Files can be hashed in the
+ * background ahead of the first request, e.g. right after they have been
+ * installed; a request for a file that is still queued or being hashed
+ * waits for that work instead of starting over.
+ */
+public class ChecksumCache {
+    private static final Logger s_logger = Logger.getLogger(ChecksumCache.class);
+
+    public final static String InstanceConfigKey = "checksum.cache.instance";
+    public final static String Filename = "checksum.properties";
+
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> s_buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, FutureTask<String>> _pending = new ConcurrentHashMap<String, FutureTask<String>>();
+    private final ExecutorService _executor;
+
+    public ChecksumCache(int threads) {
+        _executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Checksum"));
+    }
+
+    /**
+     * @return the checksum of the file, computing it in the calling thread
+     *         unless it is known or already being computed.
+     */
+    public String getChecksum(String path) throws IOException {
+        File file = new File(path);
+        String checksum = lookup(file);
+        if (checksum != null) {
+            return checksum;
+        }
+
+        FutureTask<String> task = getTask(file);
+        // a no-op if a worker has picked it up already
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while computing the checksum of " + path);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new CloudRuntimeException("Unable to compute the checksum of " + path, e.getCause());
+        }
+    }
+
+    /**
+     * Queues the file to be hashed by the background workers.
+     */
+    public void prefetch(String path) {
+        File file = new File(path);
+        if (!file.isFile() || lookup(file) != null) {
+            return;
+        }
+        _executor.execute(getTask(file));
+    }
+
+    /**
+     * Remembers a checksum computed elsewhere, e.g. by the downloader while
+     * the file was coming in, so the file is not read again just to hash it.
+     */
+    public void seed(String path, String checksum) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return;
+        }
+        // keep the unpadded format compute() answers with
+        Entry entry = new Entry(file.length(), file.lastModified(), new BigInteger(checksum, 16).toString(16));
+        _entries.put(file.getAbsolutePath(), entry);
+        store(file, entry);
+    }
+
+    public void stop() {
+        _executor.shutdownNow();
+    }
+
+    protected FutureTask<String> getTask(final File file) {
+        final String path = file.getAbsolutePath();
+        FutureTask<String> task = _pending.get(path);
+        if (task != null) {
+            return task;
+        }
+
+        task = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                try {
+                    return hash(file);
+                } finally {
+                    _pending.remove(path);
+                }
+            }
+        });
+        FutureTask<String> existing = _pending.putIfAbsent(path, task);
+        return existing != null ? existing : task;
+    }
+
+    protected String hash(File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        long start = System.currentTimeMillis();
+        String checksum = compute(file);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Computed checksum " + checksum + " of " + file.getAbsolutePath() + " (" + size + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        // don't remember a checksum of a file that changed underneath us
+        if (file.length() == size && file.lastModified() == modified) {
+            Entry entry = new Entry(size, modified, checksum);
+            _entries.put(file.getAbsolutePath(), entry);
+            store(file, entry);
+        }
+        return checksum;
+    }
+
+    protected String lookup(File file) {
+        String path = file.getAbsolutePath();
+        Entry entry = _entries.get(path);
+        if (entry == null) {
+            entry = load(file);
+            if (entry == null) {
+                return null;
+            }
+            _entries.put(path, entry);
+        }
+        if (entry.size != file.length() || entry.modified != file.lastModified()) {
+            return null;
+        }
+        return entry.checksum;
+    }
+
+    protected synchronized Entry load(File file) {
+        Properties props = loadProperties(file);
+        String name = file.getName();
+        String checksum = props.getProperty(name + ".md5");
+        if (checksum == null) {
+            return null;
+        }
+        return new Entry(NumbersUtil.parseLong(props.getProperty(name + ".size"), -1), NumbersUtil.parseLong(props.getProperty(name + ".modified"), -1), checksum);
+    }
+
+    protected synchronized void store(File file, Entry entry) {
+        Properties props = loadProperties(file);
+        String name = file.getName();
+        props.setProperty(name + ".md5", entry.checksum);
+        props.setProperty(name + ".size", Long.toString(entry.size));
+        props.setProperty(name + ".modified", Long.toString(entry.modified));
+
+        FileOutputStream strm = null;
+        try {
+            strm = new FileOutputStream(new File(file.getParentFile(), Filename));
+            props.store(strm, "");
+        } catch (IOException e) {
+            s_logger.warn("Unable to save the checksum of " + file.getAbsolutePath(), e);
+        } finally {
+            if (strm != null) {
+                try {
+                    strm.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    protected Properties loadProperties(File file) {
+        Properties props = new Properties();
+        File propsFile = new File(file.getParentFile(), Filename);
+        if (!propsFile.exists()) {
+            return props;
+        }
+
+        FileInputStream strm = null;
+        try {
+            strm = new FileInputStream(propsFile);
+            props.load(strm);
+        } catch (IOException e) {
+            s_logger.warn("Unable to read " + propsFile.getAbsolutePath(), e);
+        } finally {
+            if (strm != null) {
+                try {
+                    strm.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return props;
+    }
+
+    /**
+     * @return MD5 of the file as an unpadded hex number, the format
+     *         ComputeChecksumCommand has always answered with.
+     */
+    public static String compute(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("MD5 is not available", e);
+        }
+
+        ByteBuffer buffer = s_buffers.get();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    protected static class Entry {
+        final long size;
+        final long modified;
+        final String checksum;
+
+        Entry(long size, long modified, String checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+}
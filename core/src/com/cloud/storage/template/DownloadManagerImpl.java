@@ -209,6 +209,8 @@ public class DownloadManagerImpl implements DownloadManager {
     private String listTmpltScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
     private boolean _sslCopy;
+    private int _downloadConnections = HttpTemplateDownloader.DEFAULT_CONNECTIONS;
+    private ChecksumCache _checksums;
 
     /**
      * Get notified of change of job status. Executed in context of downloader thread
@@ -226,7 +228,8 @@ public class DownloadManagerImpl implements DownloadManager {
         }
         TemplateDownloader td = dj.getTemplateDownloader();
         s_logger.info("Download Completion for jobId: " + jobId + ", status=" + status);
-        s_logger.info("local: " + td.getDownloadLocalPath() + ", bytes=" + td.getDownloadedBytes() + ", error=" + td.getDownloadError() + ", pct=" + td.getDownloadPercent());
+        s_logger.info("local: " + td.getDownloadLocalPath() + ", bytes=" + td.getDownloadedBytes() + ", error=" + td.getDownloadError() + ", pct=" + td.getDownloadPercent()
+                + ", time=" + td.getDownloadTime() / 1000 + "s");
 
         switch (status) {
         case ABORTED:
@@ -280,7 +283,8 @@ public class DownloadManagerImpl implements DownloadManager {
         String finalTemplatePath = _templateDir + File.separator + dnld.getAccountId() + File.separator + dnld.getId() + File.separator;
         dnld.setTmpltPath(finalTemplatePath);
 
-        int imgSizeGigs = (int) Math.ceil(_storage.getSize(td.getDownloadLocalPath()) * 1.0d / (1024 * 1024 * 1024));
+        long downloadedSize = _storage.getSize(td.getDownloadLocalPath());
+        int imgSizeGigs = (int) Math.ceil(downloadedSize * 1.0d / (1024 * 1024 * 1024));
         imgSizeGigs++; // add one just in case
         long timeout = imgSizeGigs * installTimeoutPerGig;
         Script scr = null;
@@ -310,7 +314,16 @@ public class DownloadManagerImpl implements DownloadManager {
         scr.add("-t", templatePath);
         scr.add("-f", td.getDownloadLocalPath());
         if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
-            scr.add("-c", dnld.getChecksum());
+            // the http downloader digests the file as it comes in, saving the script another pass over it
+            String downloadedChecksum = (td instanceof HttpTemplateDownloader) ? ((HttpTemplateDownloader)td).getChecksum() : null;
+            if (downloadedChecksum == null) {
+                scr.add("-c", dnld.getChecksum());
+            } else if (downloadedChecksum.equalsIgnoreCase(dnld.getChecksum().trim())) {
+                scr.add("-C", dnld.getChecksum());
+            } else {
+                s_logger.warn("Checksum of " + td.getDownloadLocalPath() + " is " + downloadedChecksum + ", expected " + dnld.getChecksum());
+                return "Checksum failed, not proceeding with install";
+            }
         }
         scr.add("-u"); // cleanup
         String result;
@@ -359,6 +372,15 @@ public class DownloadManagerImpl implements DownloadManager {
         if (!loc.save()) {
             s_logger.warn("Cleaning up because we're unable to save the formats");
             loc.purge();
+        } else if (_checksums != null) {
+            // the downloader's digest still holds unless the script uncompressed the file
+            String downloadedChecksum = (td instanceof HttpTemplateDownloader) ? ((HttpTemplateDownloader)td).getChecksum() : null;
+            if (downloadedChecksum != null && downloadedTemplate.length() == downloadedSize) {
+                _checksums.seed(downloadedTemplate.getAbsolutePath(), downloadedChecksum);
+            } else {
+                // have the checksum ready by the time someone extracts the template
+                _checksums.prefetch(downloadedTemplate.getAbsolutePath());
+            }
         }
 
         return null;
@@ -408,7 +430,9 @@ public class DownloadManagerImpl implements DownloadManager {
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password);
+                    HttpTemplateDownloader httpTd = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password);
+                    httpTd.setConnections(_downloadConnections);
+                    td = httpTd;
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -438,7 +462,13 @@ public class DownloadManagerImpl implements DownloadManager {
     public String getDownloadError(String jobId) {
         DownloadJob dj = jobs.get(jobId);
         if (dj != null) {
-            return dj.getTemplateDownloader().getDownloadError();
+            TemplateDownloader td = dj.getTemplateDownloader();
+            if (td instanceof HttpTemplateDownloader && td.getStatus() == Status.IN_PROGRESS) {
+                HttpTemplateDownloader httpTd = (HttpTemplateDownloader)td;
+                return "Downloaded " + httpTd.getDownloadedBytes() + " bytes at " + httpTd.getDownloadRate() / 1024 + " KB/s over "
+                        + httpTd.getConnections() + " connection(s)";
+            }
+            return td.getDownloadError();
         }
         return null;
     }
@@ -772,6 +802,11 @@ public class DownloadManagerImpl implements DownloadManager {
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        _checksums = (ChecksumCache) params.get(ChecksumCache.InstanceConfigKey);
+
+        value = (String) params.get("download.connections");
+        _downloadConnections = NumbersUtil.parseInt(value, HttpTemplateDownloader.DEFAULT_CONNECTIONS);
+
         String scriptsDir = (String) params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
@@ -28,7 +28,23 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
 
 import org.apache.commons.httpclient.ChunkedInputStream;
 import org.apache.commons.httpclient.Credentials;
@@ -38,6 +54,7 @@ import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
@@ -46,6 +63,7 @@ import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
 
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.Pair;
 
@@ -58,15 +76,38 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public static final Logger s_logger = Logger.getLogger(HttpTemplateDownloader.class.getName());
 
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	private static final long MIN_SEGMENT_SIZE = 64L*1024*1024;
+	private static final int SEGMENT_RETRIES = 3;
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+\\d+-\\d+/(\\d+)");
+	public static final int DEFAULT_CONNECTIONS = 4;
+	// shared by all downloads, segments beyond it wait for a free thread
+	private static final int MAX_SEGMENT_THREADS = 4 * DEFAULT_CONNECTIONS;
+	private static final ThreadPoolExecutor s_segmentExecutor = new ThreadPoolExecutor(MAX_SEGMENT_THREADS, MAX_SEGMENT_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Template-Download-Segment"));
+	static {
+		s_segmentExecutor.allowCoreThreadTimeOut(true);
+	}
 	private String downloadUrl;
 	private String toFile;
 	public TemplateDownloader.Status status= TemplateDownloader.Status.NOT_STARTED;
 	public String errorString = " ";
 	private long remoteSize = 0;
 	public long downloadTime = 0;
-	public long totalBytes;
+	public volatile long totalBytes;
 	private final HttpClient client;
+	private final MultiThreadedHttpConnectionManager connectionManager;
 	private GetMethod request;
+	private final List<HttpMethod> rangeRequests = Collections.synchronizedList(new ArrayList<HttpMethod>());
+	private volatile String rangeError;
+	// the range error is a connection that kept dropping rather than a server refusing the range
+	private volatile boolean rangeDropped;
+	private int connections = DEFAULT_CONNECTIONS;
+	private int segments = 1;
+	// the file has been written by parallel ranges, its length says nothing about how much of it has arrived
+	private boolean segmented = false;
+	private long minSegmentSize = MIN_SEGMENT_SIZE;
+	private volatile long started = 0;
+	private String checksum;
 	private boolean resume = false;
 	private DownloadCompleteCallback completionCallback;
 	StorageLayer _storage;
@@ -86,7 +127,9 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		this.MAX_TEMPLATE_SIZE_IN_BYTES = maxTemplateSizeInBytes;
 		
 		this.totalBytes = 0;
-		this.client = new HttpClient();
+		this.connectionManager = new MultiThreadedHttpConnectionManager();
+		this.connectionManager.getParams().setDefaultMaxConnectionsPerHost(connections);
+		this.client = new HttpClient(connectionManager);
 
 		myretryhandler = new HttpMethodRetryHandler() {
 		    public boolean retryMethod(
@@ -148,7 +191,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	}
 	
 
-	private  Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
+	protected Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
 		try {
 			URI uri = new URI(url);
 			if (!uri.getScheme().equalsIgnoreCase("http") && !uri.getScheme().equalsIgnoreCase("https") ) {
@@ -197,12 +240,21 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		default:
 
 		}
-        int bytes=0;
 		File file = new File(toFile);
+		FileChannel out = null;
 		try {
 			
 			long localFileSize = 0;
-			if (file.exists() && resume) {
+			if (segmented) {
+				// the ranges may have stopped anywhere, start over rather than trust the file length
+				s_logger.info("Not resuming download to " + toFile + " that was fetched in parallel ranges, starting over");
+				file.delete();
+				segmented = false;
+				totalBytes = 0;
+				// the probe of the last attempt has been aborted and cannot be sent again
+				request = new GetMethod(downloadUrl);
+				request.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+			} else if (file.exists() && resume) {
 				localFileSize = file.length();
 				s_logger.info("Resuming download to file (current size)=" + localFileSize);
 			}
@@ -210,20 +262,32 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             Date start = new Date();
 
 			int responseCode=0;
+			boolean ranged = false;
 			
 			if (localFileSize > 0 ) {
 				// require partial content support for resume
-				request.addRequestHeader("Range", "bytes=" + localFileSize + "-");
+				request.setRequestHeader("Range", "bytes=" + localFileSize + "-");
 				if (client.executeMethod(request) != HttpStatus.SC_PARTIAL_CONTENT) {
 					errorString = "HTTP Server does not support partial get";
 					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
 					return 0;
 				}
-			} else if ((responseCode = client.executeMethod(request)) != HttpStatus.SC_OK) {
-				status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
-				errorString = " HTTP Server returned " + responseCode + " (expected 200 OK) ";
-                return 0; //FIXME: retry?
-            }
+			} else {
+				// ask for the whole file as a range to find out whether the server can serve parts of it
+				if (connections > 1) {
+					request.setRequestHeader("Range", "bytes=0-");
+				} else {
+					request.removeRequestHeader("Range");
+				}
+				responseCode = client.executeMethod(request);
+				if (responseCode == HttpStatus.SC_PARTIAL_CONTENT && connections > 1) {
+					ranged = true;
+				} else if (responseCode != HttpStatus.SC_OK) {
+					status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+					errorString = " HTTP Server returned " + responseCode + " (expected 200 OK) ";
+					return 0; //FIXME: retry?
+				}
+			}
 			
             Header contentLengthHeader = request.getResponseHeader("Content-Length");
             boolean chunked = false;
@@ -241,6 +305,16 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             	remoteSize2 = Long.parseLong(contentLengthHeader.getValue());
             }
 
+            if (ranged) {
+            	Header contentRangeHeader = request.getResponseHeader("Content-Range");
+            	Matcher matcher = contentRangeHeader == null ? null : CONTENT_RANGE.matcher(contentRangeHeader.getValue());
+            	if (matcher != null && matcher.matches()) {
+            		remoteSize2 = Long.parseLong(matcher.group(1));
+            	} else {
+            		ranged = false;
+            	}
+            }
+
             if (remoteSize == 0) {
             	remoteSize = remoteSize2;
             }
@@ -254,39 +328,44 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             
             if (remoteSize == 0) {
             	remoteSize = MAX_TEMPLATE_SIZE_IN_BYTES;
+            	ranged = false;
             }
             
-            InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
-            						: new ChunkedInputStream(request.getResponseBodyAsStream());
-            
-            RandomAccessFile out = new RandomAccessFile(file, "rwd");
-            out.seek(localFileSize);
+            out = new RandomAccessFile(file, "rw").getChannel();
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            if (localFileSize > 0) {
+            	digest(out, digest, 0, localFileSize, ByteBuffer.allocate(CHUNK_SIZE));
+            }
 
-            s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
+            int count = ranged ? (int)Math.min(connections, remoteSize / minSegmentSize) : 1;
+            segments = Math.max(count, 1);
+            s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES
+            		+ " over " + segments + " connection(s)");
             
-            byte[] block = new byte[CHUNK_SIZE];
-            long offset=0;
-            boolean done=false;
+            started = System.currentTimeMillis();
             status = TemplateDownloader.Status.IN_PROGRESS;
-            while (!done && status != Status.ABORTED && offset <= remoteSize) {
-            	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
-            		out.write(block, 0, bytes);
-            		offset +=bytes;
-            		out.seek(offset);
-            		totalBytes += bytes;
-            	} else {
-            		done = true;
-            	}
+            if (count > 1) {
+            	// the probe is not needed any more, abort rather than drain it
+            	request.abort();
+            	segmented = true;
+            	downloadSegments(out, digest, count);
+            } else {
+            	InputStream in = !chunked?new BufferedInputStream(request.getResponseBodyAsStream())
+            			: new ChunkedInputStream(request.getResponseBodyAsStream());
+            	downloadStream(in, out, digest, localFileSize);
             }
+
             Date finish = new Date();
             String downloaded = "(incomplete download)";
-            if (totalBytes >= remoteSize) {
+            if (totalBytes >= remoteSize && status != Status.ABORTED) {
             	status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+            	checksum = Hex.encodeHexString(digest.digest());
             	downloaded = "(download complete remote=" + remoteSize + "bytes)";
             }
             errorString = "Downloaded " + totalBytes + " bytes " + downloaded;
             downloadTime += finish.getTime() - start.getTime();
-            out.close();
+            started = 0;
+            s_logger.info(errorString + " in " + (finish.getTime() - start.getTime()) / 1000 + " secs at " + getDownloadRate() / 1024 + " KB/s");
             
             return totalBytes;
 		}catch (HttpException hte) {
@@ -295,11 +374,27 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		} catch (IOException ioe) {
 			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR; //probably a file write error?
 			errorString = ioe.getMessage();
+		} catch (NoSuchAlgorithmException e) {
+			status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+			errorString = e.getMessage();
 		} finally {
+			started = 0;
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
 			if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
 				file.delete();
 			}
 			request.releaseConnection();
+			if (status == Status.IN_PROGRESS) {
+				// incomplete, a later call may pick it up again
+				connectionManager.closeIdleConnections(0);
+			} else {
+				connectionManager.shutdown();
+			}
             if (callback != null) {
             	callback.downloadComplete(status);
             }
@@ -307,6 +402,184 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return 0;
 	}
 
+	/**
+	 * Copies a single response body to the file, digesting it on the way.
+	 */
+	private void downloadStream(InputStream in, FileChannel out, MessageDigest digest, long position) throws IOException {
+		byte[] block = new byte[CHUNK_SIZE];
+		long offset = 0;
+		int bytes;
+		while (status != Status.ABORTED && offset <= remoteSize && (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
+			write(out, ByteBuffer.wrap(block, 0, bytes), position + offset);
+			digest.update(block, 0, bytes);
+			offset += bytes;
+			totalBytes += bytes;
+		}
+	}
+
+	/**
+	 * Fetches the file as count byte ranges over parallel connections.  This
+	 * thread digests the file behind the first unfinished segment while the
+	 * rest are still coming in, so the checksum is ready when the last byte
+	 * lands.
+	 */
+	private void downloadSegments(FileChannel out, MessageDigest digest, int count) throws IOException {
+		rangeError = null;
+		rangeDropped = false;
+		long length = remoteSize / count;
+		Segment[] segments = new Segment[count];
+		Future<?>[] futures = new Future<?>[count];
+		for (int i = 0; i < count; i++) {
+			long from = i * length;
+			segments[i] = new Segment(out, from, i == count - 1 ? remoteSize : from + length);
+			futures[i] = s_segmentExecutor.submit(segments[i]);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		long digested = 0;
+		for (Segment segment : segments) {
+			while (digested < segment.to) {
+				long received = segment.position;
+				if (received > digested) {
+					digest(out, digest, digested, received, buffer);
+					digested = received;
+					continue;
+				}
+				synchronized (segment) {
+					if (segment.position == digested) {
+						if (segment.finished) {
+							break;
+						}
+						try {
+							segment.wait(1000);
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+			}
+			if (digested < segment.to) {
+				break;
+			}
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+			} catch (ExecutionException e) {
+			}
+		}
+		if (rangeError != null) {
+			if (rangeDropped) {
+				// incomplete like a dropped single connection, a later call starts the download over
+				s_logger.warn("Giving up on " + downloadUrl + " for now: " + rangeError);
+				return;
+			}
+			throw new IOException(rangeError);
+		}
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+	}
+
+	private static void digest(FileChannel in, MessageDigest digest, long from, long to, ByteBuffer buffer) throws IOException {
+		while (from < to) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), to - from));
+			int bytes = in.read(buffer, from);
+			if (bytes < 0) {
+				throw new IOException("Unexpected end of " + from + " bytes into the download");
+			}
+			digest.update(buffer.array(), 0, bytes);
+			from += bytes;
+		}
+	}
+
+	private synchronized void received(long bytes) {
+		totalBytes += bytes;
+	}
+
+	private boolean isStopped() {
+		return status == Status.ABORTED || rangeError != null;
+	}
+
+	/**
+	 * One byte range of the file, [from, to), written at its own offset.  A
+	 * dropped connection resumes the range from the last byte written.
+	 */
+	private class Segment implements Runnable {
+		final FileChannel out;
+		final long from;
+		final long to;
+		volatile long position;
+		boolean finished;
+
+		Segment(FileChannel out, long from, long to) {
+			this.out = out;
+			this.from = from;
+			this.to = to;
+			this.position = from;
+		}
+
+		@Override
+		public void run() {
+			byte[] block = new byte[CHUNK_SIZE];
+			int attempts = 0;
+			try {
+				while (position < to && !isStopped()) {
+					GetMethod method = new GetMethod(downloadUrl);
+					method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+					method.setRequestHeader("Range", "bytes=" + position + "-" + (to - 1));
+					rangeRequests.add(method);
+					try {
+						int responseCode = client.executeMethod(method);
+						if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+							rangeError = " HTTP Server returned " + responseCode + " for bytes " + position + "-" + (to - 1) + " (expected 206 Partial Content) ";
+							break;
+						}
+						InputStream in = method.getResponseBodyAsStream();
+						int bytes;
+						while (position < to && !isStopped() && (bytes = in.read(block, 0, (int)Math.min(CHUNK_SIZE, to - position))) > -1) {
+							write(out, ByteBuffer.wrap(block, 0, bytes), position);
+							received(bytes);
+							synchronized (this) {
+								position += bytes;
+								notifyAll();
+							}
+						}
+						if (position < to && !isStopped()) {
+							throw new IOException("Connection closed " + (position - from) + " bytes into range " + from + "-" + (to - 1));
+						}
+					} catch (IOException e) {
+						if (++attempts > SEGMENT_RETRIES) {
+							rangeDropped = true;
+							rangeError = e.getMessage();
+						} else {
+							s_logger.info("Retrying bytes " + position + "-" + (to - 1) + " of " + downloadUrl + " after " + e.getMessage());
+						}
+					} finally {
+						if (position < to) {
+							method.abort();
+						}
+						method.releaseConnection();
+						rangeRequests.remove(method);
+					}
+				}
+			} catch (Throwable th) {
+				s_logger.warn("Unexpected exception downloading bytes " + from + "-" + (to - 1) + " of " + downloadUrl, th);
+				rangeError = th.getMessage();
+			} finally {
+				synchronized (this) {
+					finished = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
 	public String getDownloadUrl() {
 		return downloadUrl;
 	}
@@ -323,10 +596,49 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 
 
 	public long getDownloadTime() {
+		long start = started;
+		if (start > 0) {
+			return downloadTime + System.currentTimeMillis() - start;
+		}
 		return downloadTime;
 	}
+
+	/**
+	 * @return average bytes per second over the time spent downloading.
+	 */
+	public long getDownloadRate() {
+		long time = getDownloadTime();
+		return time > 0 ? totalBytes * 1000 / time : 0;
+	}
+
+	/**
+	 * @return hex MD5 of the downloaded file, computed while downloading, or
+	 *         null until the download has finished.
+	 */
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public int getConnections() {
+		return segments;
+	}
+
+	/**
+	 * Sets the number of parallel range requests used for large files.
+	 */
+	public void setConnections(int connections) {
+		this.connections = Math.max(connections, 1);
+		connectionManager.getParams().setDefaultMaxConnectionsPerHost(this.connections);
+	}
 	
 	
+	/**
+	 * Files shorter than twice this are fetched over a single connection.
+	 */
+	void setMinSegmentSize(long minSegmentSize) {
+		this.minSegmentSize = minSegmentSize;
+	}
+
 	public long getDownloadedBytes() {
 		return totalBytes;
 	}
@@ -336,10 +648,15 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	public boolean stopDownload() {
 		switch (getStatus()) {
 		case IN_PROGRESS:
+			status = TemplateDownloader.Status.ABORTED;
 			if (request != null) {
 				request.abort();
 			}
-			status = TemplateDownloader.Status.ABORTED;
+			synchronized (rangeRequests) {
+				for (HttpMethod method : rangeRequests) {
+					method.abort();
+				}
+			}
 			return true;
 		case UNKNOWN:
 		case NOT_STARTED:
@@ -0,0 +1,135 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Times applying port forwarding rules to a running router in bulk through
+ * call_firewall_bulk.sh and one at a time through call_firewall.sh.  The rules
+ * are added and then revoked again, so the router is left as it was.  Run it
+ * on a host that can reach the router's control address with the domr ssh key.
+ *
+ * Usage: FirewallBulkBenchmark -router <control ip> -public <public ip> -guest <guest vm ip>
+ *        [-rules 100] [-scripts scripts/network/domr] [-pool true|false]
+ */
+public class FirewallBulkBenchmark {
+    private static final Logger s_logger = Logger.getLogger(FirewallBulkBenchmark.class);
+
+    static class Resource extends VirtualRoutingResource {
+        final boolean _bulk;
+
+        Resource(boolean bulk) {
+            _bulk = bulk;
+        }
+
+        @Override
+        protected String findScript(String script) {
+            if (!_bulk && script.equals("call_firewall_bulk.sh")) {
+                return null;
+            }
+            return super.findScript(script);
+        }
+
+        boolean apply(String routerIp, List<String[]> rules) {
+            String[] results = new String[rules.size()];
+            boolean applied = applyFirewallRules(routerIp, rules, results);
+            if (!applied) {
+                int failed = 0;
+                for (String result : results) {
+                    if (result != null) {
+                        failed++;
+                    }
+                }
+                s_logger.warn(failed + " of " + rules.size() + " rules failed to apply");
+            }
+            return applied;
+        }
+    }
+
+    static List<String[]> rules(String op, String publicIp, String guestIp, int count) {
+        List<String[]> rules = new ArrayList<String[]>(count);
+        for (int i = 0; i < count; i++) {
+            rules.add(new String[] { op, "-P", "tcp", "-l", publicIp, "-p", Integer.toString(20000 + i), "-r", guestIp, "-d", "22" });
+        }
+        return rules;
+    }
+
+    static void benchmark(boolean bulk, Map<String, Object> params, String routerIp, String publicIp, String guestIp, int count) throws Exception {
+        Resource resource = new Resource(bulk);
+        resource.configure("FirewallBulkBenchmark", params);
+        try {
+            long start = System.currentTimeMillis();
+            resource.apply(routerIp, rules("-A", publicIp, guestIp, count));
+            long add = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            resource.apply(routerIp, rules("-D", publicIp, guestIp, count));
+            long revoke = System.currentTimeMillis() - start;
+
+            s_logger.info((bulk ? "bulk" : "one at a time") + ": added " + count + " rules in " + add + "ms, revoked them in " + revoke + "ms");
+        } finally {
+            resource.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String routerIp = null;
+        String publicIp = null;
+        String guestIp = null;
+        int count = 100;
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("domr.scripts.dir", "scripts/network/domr");
+        params.put("domr.ssh.pool", "false");
+
+        Iterator<String> iter = Arrays.asList(args).iterator();
+        while (iter.hasNext()) {
+            String arg = iter.next();
+            if (arg.equals("-router")) {
+                routerIp = iter.next();
+            } else if (arg.equals("-public")) {
+                publicIp = iter.next();
+            } else if (arg.equals("-guest")) {
+                guestIp = iter.next();
+            } else if (arg.equals("-rules")) {
+                count = Integer.parseInt(iter.next());
+            } else if (arg.equals("-scripts")) {
+                params.put("domr.scripts.dir", iter.next());
+            } else if (arg.equals("-pool")) {
+                params.put("domr.ssh.pool", iter.next());
+            }
+        }
+        if (routerIp == null || publicIp == null || guestIp == null) {
+            System.out.println("Usage: FirewallBulkBenchmark -router <control ip> -public <public ip> -guest <guest vm ip> [-rules 100] [-scripts dir] [-pool true|false]");
+            System.exit(1);
+        }
+
+        benchmark(true, params, routerIp, publicIp, guestIp, count);
+        benchmark(false, params, routerIp, publicIp, guestIp, count);
+        // Script's executor threads would keep the vm running
+        System.exit(0);
+    }
+}
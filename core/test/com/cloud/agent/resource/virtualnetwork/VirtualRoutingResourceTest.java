@@ -0,0 +1,140 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+public class VirtualRoutingResourceTest extends TestCase {
+    private final static String[] REQUIRED_SCRIPTS = { "ipassoc.sh", "call_loadbalancer.sh", "save_password_to_domr.sh", "dhcp_entry.sh",
+            "vm_data.sh", "getRouterStatus.sh", "bumpUpPriority.sh", "l2tp_vpn.sh", "getDomRVersion.sh" };
+
+    File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("domr", "");
+        _dir.delete();
+        _dir.mkdir();
+        for (String name : REQUIRED_SCRIPTS) {
+            script(name, "exit 0");
+        }
+        // stub routers: any rule forwarding to 10.0.0.13 fails to apply
+        script("call_firewall.sh", "case \"$*\" in *\"-r 10.0.0.13 \"*) exit 1;; esac\nexit 0");
+        script("call_firewall_bulk.sh", "[ \"$1\" = \"10.0.0.1\" ] || exit 1\nn=0\nwhile read -r line\ndo\n" +
+                "  case \"$line\" in *\"-r 10.0.0.13 \"*) rc=1;; *) rc=0;; esac\n  echo \"$n $rc\"\n  n=$((n+1))\ndone < $2\n");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    public void testBulkApply() throws Exception {
+        List<String[]> rules = rules(500);
+        VirtualRoutingResource resource = resource();
+
+        String[] results = new String[rules.size()];
+        Assert.assertFalse(resource.applyFirewallRules("10.0.0.1", rules, results));
+        assertResults(results);
+
+        // an unreachable router fails the whole batch
+        results = new String[rules.size()];
+        Assert.assertFalse(resource.applyFirewallRules("10.0.0.2", rules, results));
+        for (String result : results) {
+            Assert.assertEquals("Failed", result);
+        }
+
+        new File(_dir, "call_firewall_bulk.sh").delete();
+        resource = resource();
+        results = new String[rules.size()];
+        Assert.assertFalse(resource.applyFirewallRules("10.0.0.1", rules, results));
+        assertResults(results);
+    }
+
+    /**
+     * Routers on a systemvm patch without firewall_bulk.sh get their rules one at a time.
+     */
+    public void testBulkFallback() throws Exception {
+        List<String[]> rules = rules(20);
+
+        script("call_firewall_bulk.sh", "echo \"bash: /root/firewall_bulk.sh: No such file or directory\"\nexit 127");
+        String[] results = new String[rules.size()];
+        Assert.assertFalse(resource().applyFirewallRules("10.0.0.1", rules, results));
+        assertResults(results);
+
+        // a run that exits 0 without reporting may have applied the rules, they are failed rather than replayed
+        script("call_firewall_bulk.sh", "cat $2 > /dev/null\nexit 0");
+        script("call_firewall.sh", "touch " + new File(_dir, "replayed").getAbsolutePath());
+        results = new String[rules.size()];
+        Assert.assertFalse(resource().applyFirewallRules("10.0.0.1", rules, results));
+        for (String result : results) {
+            Assert.assertEquals("Failed", result);
+        }
+        Assert.assertFalse(new File(_dir, "replayed").exists());
+    }
+
+    protected VirtualRoutingResource resource() throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("domr.scripts.dir", _dir.getAbsolutePath());
+        params.put("domr.ssh.pool", "false");
+        VirtualRoutingResource resource = new VirtualRoutingResource();
+        resource.configure("VirtualRoutingResource", params);
+        return resource;
+    }
+
+    protected List<String[]> rules(int count) {
+        List<String[]> rules = new ArrayList<String[]>(count);
+        for (int i = 0; i < count; i++) {
+            rules.add(new String[] { "-A", "-P", "tcp", "-l", "192.168.1.1", "-p", Integer.toString(1000 + i),
+                    "-r", "10.0.0." + (i % 250 + 2), "-d", "22" });
+        }
+        return rules;
+    }
+
+    protected void assertResults(String[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (i % 250 + 2 == 13) {
+                Assert.assertEquals("Failed", results[i]);
+            } else {
+                Assert.assertNull(results[i]);
+            }
+        }
+    }
+
+    protected void script(String name, String body) throws IOException {
+        File file = new File(_dir, name);
+        FileWriter out = new FileWriter(file);
+        out.write("#!/bin/bash\n" + body + "\n");
+        out.close();
+        file.setExecutable(true);
+    }
+}
@@ -1,6 +1,11 @@
 package com.cloud.agent.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import junit.framework.TestCase;
 
@@ -11,17 +16,25 @@ import org.junit.Assert;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
+import com.cloud.agent.api.SecStorageFirewallCfgCommand.PortConfig;
 import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.host.Host;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VirtualMachine.State;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 
 /**
  *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
@@ -157,6 +170,248 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testCodecs() throws Exception {
+        s_logger.info("testCodecs");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("{\"vm\":\"i-2-").append(i).append("-VM\"}");
+        }
+        byte[] input = builder.toString().getBytes();
+        
+        for (Codec codec : new Codec[] { Codecs.getLegacy(), Codecs.getPreferred() }) {
+            ByteBuffer compressed = codec.compress(ByteBuffer.wrap(input));
+            assert compressed.remaining() < input.length : codec.getName() + " didn't compress";
+            ByteBuffer decompressed = codec.decompress(compressed, input.length);
+            Assert.assertEquals(input.length, decompressed.remaining());
+            byte[] output = new byte[decompressed.remaining()];
+            decompressed.get(output);
+            Assert.assertArrayEquals(input, output);
+            
+            // A wrong length in the header must not truncate the content.
+            decompressed = codec.decompress(codec.compress(ByteBuffer.wrap(input)), 100);
+            Assert.assertEquals(input.length, decompressed.remaining());
+        }
+        
+        // Peers that don't know about codecs still read gzip with GZIPInputStream.
+        ByteBuffer compressed = Codecs.getLegacy().compress(ByteBuffer.wrap(input));
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array(), compressed.position(), compressed.remaining()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        Assert.assertArrayEquals(input, out.toByteArray());
+    }
+    
+    public void testConfigureCodec() {
+        Codec preferred = Codecs.getPreferred();
+        try {
+            Codecs.configure("deflate", "9");
+            Assert.assertEquals(9, ((DeflateCodec)Codecs.getPreferred()).getLevel());
+            
+            // bad values keep what was there
+            Codecs.configure("deflate", "12");
+            Assert.assertEquals(9, ((DeflateCodec)Codecs.getPreferred()).getLevel());
+            Codecs.configure("lzma", null);
+            Assert.assertEquals("deflate", Codecs.getPreferred().getName());
+            
+            Codecs.configure("gzip", null);
+            Assert.assertSame(Codecs.getLegacy(), Codecs.getPreferred());
+        } finally {
+            Codecs.setPreferred(preferred);
+        }
+    }
+    
+    public void testVersionNegotiation() throws Exception {
+        s_logger.info("testVersionNegotiation");
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 1000; i++) {
+            cmd.addPortConfig("10.1.1." + (i % 255), Integer.toString(i), true, "eth1");
+        }
+        
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(1);
+        Request creq = Request.parse(sreq.getBytes());
+        assert creq.getVersion() == Request.Version.v1;
+        assert creq.getPeerVersion() == Request.Version.getLatest();
+        
+        sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(2);
+        sreq.negotiateVersion(Request.Version.v1);
+        assert sreq.getVersion() == Request.Version.v1;
+        sreq.negotiateVersion(Request.Version.v4);
+        assert sreq.getVersion() == Request.Version.v4;
+        byte[] bytes = sreq.getBytes();
+        assert (bytes[3] & Request.FLAG_COMPRESSED) != 0;
+        creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        Assert.assertEquals(1000, ((SecStorageFirewallCfgCommand)creq.getCommand()).getPortConfigs().size());
+        
+        Response cresp = new Response(creq, new Answer(cmd, true, "No Problem"));
+        assert cresp.getVersion() == Request.Version.v4;
+        
+        sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.negotiateVersion(creq.getPeerVersion());
+        assert sreq.getVersion() == Request.Version.getLatest();
+    }
+    
+    public void testBinary() throws Exception {
+        s_logger.info("testBinary");
+        UpdateHostPasswordCommand cmd1 = new UpdateHostPasswordCommand("abc", "def");
+        SecStorageFirewallCfgCommand cmd2 = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 1000; i++) {
+            cmd2.addPortConfig("10.1.1." + (i % 255), Integer.toString(i), true, "eth1");
+        }
+        VMTemplateVO template = new VMTemplateVO(1, "templatename", ImageFormat.QCOW2, true, true, true, TemplateType.USER, "url", true, 32, 1, "chksum", "displayText", true, 30, true,
+                HypervisorType.KVM);
+        DownloadCommand cmd3 = new DownloadCommand("secUrl", template, 30000000l);
+        Command[] cmds = new Command[] { cmd1, cmd2, cmd3 };
+        
+        Request sreq = new Request(2, 3, cmds, true, true);
+        sreq.setSequence(3);
+        sreq.negotiateVersion(Request.Version.v5);
+        assert sreq.getVersion() == Request.Version.v5;
+        byte[] bytes = sreq.getBytes();
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        Gson gson = GsonHelper.getGson();
+        Assert.assertEquals(gson.toJson(cmds, Command[].class), gson.toJson(creq.getCommands(), Command[].class));
+        
+        // The binary form is much smaller than json even before compression.
+        // The port configs above go through their gson adapter in both forms.
+        Command[] stats = new Command[1000];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new GetHostStatsCommand("guid-" + i, "host-" + i, i);
+        }
+        int json = gson.toJson(stats, Command[].class).getBytes().length;
+        int binary = BinarySerializer.serialize(stats).remaining();
+        s_logger.info("json: " + json + " bytes, binary: " + binary + " bytes");
+        assert binary < json;
+        
+        DownloadAnswer answer = new DownloadAnswer("jobId", 50, "errorString", Status.ABANDONED, "filesystempath", "installpath", 10000000, 20000000);
+        Response cresp = new Response(creq, answer);
+        assert cresp.getVersion() == Request.Version.v5;
+        Response sresp = Response.parse(cresp.getBytes());
+        compareRequest(cresp, sresp);
+        Assert.assertEquals(gson.toJson(cresp.getAnswers(), Answer[].class), gson.toJson(sresp.getAnswers(), Answer[].class));
+        
+        // A json request forwarded to a peer that understands the binary form.
+        sreq = new Request(2, 3, cmds, true, true);
+        sreq.setSequence(4);
+        creq = Request.parse(sreq.getBytes());
+        assert creq.getVersion() == Request.Version.v1;
+        creq.negotiateVersion(Request.Version.v5);
+        creq = Request.parse(creq.getBytes());
+        assert creq.getVersion() == Request.Version.v5;
+        Assert.assertEquals(gson.toJson(cmds, Command[].class), gson.toJson(creq.getCommands(), Command[].class));
+    }
+    
+    protected static class ShadowedCommand extends GetHostStatsCommand {
+        String hostName;
+
+        @Override
+        public boolean executeInSequence() {
+            return false;
+        }
+    }
+
+    public void testBinaryFields() throws Exception {
+        ShadowedCommand cmd = new ShadowedCommand();
+        cmd.hostName = "shadow";
+        Command[] cmds = BinarySerializer.deserialize(BinarySerializer.serialize(new Command[] { cmd }), Command[].class);
+        Assert.assertEquals("shadow", ((ShadowedCommand)cmds[0]).hostName);
+
+        GetHostStatsCommand orig = new GetHostStatsCommand("guid", "host", 1);
+        ShadowedCommand copy = new ShadowedCommand();
+        copy.hostName = "other";
+        cmds = BinarySerializer.deserialize(BinarySerializer.serialize(new Command[] { orig, copy }), Command[].class);
+        Assert.assertEquals("host", ((GetHostStatsCommand)cmds[0]).getHostName());
+        Assert.assertEquals("other", ((ShadowedCommand)cmds[1]).hostName);
+        Assert.assertNull(((GetHostStatsCommand)cmds[1]).getHostName());
+    }
+
+    public void testBinaryRejectsUnexpectedClasses() throws Exception {
+        // not a command
+        try {
+            BinarySerializer.deserialize(BinarySerializer.serialize(new Object[] { new Pair<String, String>("a", "b") }), Command[].class);
+            Assert.fail("Decoded a class that isn't a command");
+        } catch (CloudRuntimeException e) {
+        }
+
+        // outside of com.cloud and the jdk
+        try {
+            BinarySerializer.deserialize(BinarySerializer.serialize(new Object[] { Level.INFO }), Command[].class);
+            Assert.fail("Decoded a class from an arbitrary package");
+        } catch (CloudRuntimeException e) {
+        }
+
+        // a value that doesn't fit the declared type of the field it is read into
+        BinarySerializer.Writer writer = new BinarySerializer.Writer();
+        writer.writeVarLong(1);
+        writer.writeByte(BinarySerializer.TAG_OBJECT);
+        writer.writeClass(ShadowedCommand.class);
+        writer.writeVarLong(1);
+        writer.writeString("hostName");
+        writer.writeValue(new Pair<String, String>("a", "b"));
+        try {
+            BinarySerializer.deserialize(ByteBuffer.wrap(writer._buf, 0, writer._pos), Command[].class);
+            Assert.fail("Decoded a field with a value of the wrong type");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+
+    public void testBinaryRegisteredClasses() throws Exception {
+        ByteBuffer buf = BinarySerializer.serialize(new Command[] { new GetHostStatsCommand("guid", "host", 1) });
+        String bytes = new String(buf.array(), buf.position(), buf.remaining(), "ISO-8859-1");
+        Assert.assertFalse("Registered class was written by name", bytes.contains(GetHostStatsCommand.class.getName()));
+
+        buf = BinarySerializer.serialize(new Command[] { new ShadowedCommand() });
+        bytes = new String(buf.array(), buf.position(), buf.remaining(), "ISO-8859-1");
+        Assert.assertTrue(bytes.contains(ShadowedCommand.class.getName()));
+
+        // an id beyond the table
+        BinarySerializer.Writer writer = new BinarySerializer.Writer();
+        writer.writeVarLong(1);
+        writer.writeByte(BinarySerializer.TAG_OBJECT);
+        writer.writeVarLong((10000 << 1) | 1);
+        try {
+            BinarySerializer.deserialize(ByteBuffer.wrap(writer._buf, 0, writer._pos), Command[].class);
+            Assert.fail("Decoded an unknown class id");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+
+    public void testBinaryAdapters() throws Exception {
+        Gson gson = GsonHelper.getGson();
+        SecStorageFirewallCfgCommand fw = new SecStorageFirewallCfgCommand();
+        fw.addPortConfig("10.1.1.1", "80", true, "eth1");
+        fw.addPortConfig("10.1.1.2", "443", false, "eth2");
+        HashMap<String, Pair<Long, Long>> groups = new HashMap<String, Pair<Long, Long>>();
+        groups.put("group", new Pair<Long, Long>(1L, 2L));
+        PingRoutingWithNwGroupsCommand ping = new PingRoutingWithNwGroupsCommand(Host.Type.Routing, 3, new HashMap<String, State>(), groups);
+        Command[] cmds = new Command[] { fw, ping };
+
+        ByteBuffer buf = BinarySerializer.serialize(cmds);
+        // the adapters' json is embedded as is
+        String bytes = new String(buf.array(), buf.position(), buf.remaining(), "ISO-8859-1");
+        Assert.assertTrue(bytes.contains(gson.toJson(fw.getPortConfigs(), new TypeToken<List<PortConfig>>() {}.getType())));
+
+        Command[] copy = BinarySerializer.deserialize(buf, Command[].class);
+        Assert.assertEquals(gson.toJson(cmds, Command[].class), gson.toJson(copy, Command[].class));
+        Pair<Long, Long> group = ((PingRoutingWithNwGroupsCommand)copy[1]).getNewGroupStates().get("group");
+        Assert.assertEquals(2L, group.second().longValue());
+    }
+
+    public void testCopyKeepsPeerVersion() throws Exception {
+        Request sreq = new Request(2, 3, new Command[] { new GetHostStatsCommand("guid", "host", 1) }, true, true);
+        sreq.setSequence(5);
+        Request creq = Request.parse(sreq.getBytes());
+        Assert.assertEquals(Request.Version.getLatest(), creq.getPeerVersion());
+        Response resp = new Response(creq, new Answer(creq.getCommand()));
+        Assert.assertEquals(creq.getPeerVersion(), resp.getPeerVersion());
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
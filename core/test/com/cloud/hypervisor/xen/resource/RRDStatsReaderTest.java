@@ -0,0 +1,143 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class RRDStatsReaderTest extends TestCase {
+    private static final String VM1 = "8e2a4c1b-0f3d-4b6a-9c2e-7d1f3a5b9e11";
+    private static final String VM2 = "c41d7e2a-5b8f-4e93-a1c6-0e9b2d4f6a22";
+
+    private Map<String, Double> read(String type, List<String> uuids, Reader in) throws Exception {
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (RRDStatsReader.Column column : new RRDStatsReader(type, uuids).read(in)) {
+            averages.put(column.toString(), column.getAverage());
+        }
+        return averages;
+    }
+
+    private Reader fixture() {
+        return new InputStreamReader(getClass().getResourceAsStream("rrd_updates.xml"));
+    }
+
+    public void testHostColumns() throws Exception {
+        Map<String, Double> averages = read("host", null, fixture());
+        Assert.assertEquals(7, averages.size());
+        String prefix = "host:2b6f1a70-6d9f-4c3e-9a5e-5a1d4e0c7f01:";
+        Assert.assertEquals(0.2, averages.get(prefix + "cpu0"), 1e-9);
+        Assert.assertEquals(0.4, averages.get(prefix + "cpu1"), 1e-9);
+        Assert.assertEquals(1572864.0, averages.get(prefix + "memory_free_kib"), 1e-9);
+        Assert.assertEquals(2048.0, averages.get(prefix + "pif_eth0_tx"), 1e-9);
+    }
+
+    public void testVmColumns() throws Exception {
+        Map<String, Double> averages = read("vm", Arrays.asList(VM2), fixture());
+        Assert.assertEquals(4, averages.size());
+        // NaN rows are left out of the average, a column of only NaN averages to 0
+        Assert.assertEquals(0.5, averages.get("vm:" + VM2 + ":cpu0"), 1e-9);
+        Assert.assertEquals(0.0, averages.get("vm:" + VM2 + ":vif_0_rx"), 1e-9);
+
+        averages = read("vm", Arrays.asList(VM1, VM2), fixture());
+        Assert.assertEquals(9, averages.size());
+        Assert.assertEquals(0.5, averages.get("vm:" + VM1 + ":cpu1"), 1e-9);
+        Assert.assertEquals(480.0, averages.get("vm:" + VM1 + ":vif_0_tx"), 1e-9);
+
+        Assert.assertTrue(read("vm", Arrays.asList(UUID.randomUUID().toString()), fixture()).isEmpty());
+    }
+
+    /**
+     * Compares against the DOM walk the resource used to do.
+     */
+    public void testMatchesDomWalk() throws Exception {
+        List<String> uuids = new ArrayList<String>();
+        String stats = generate(8, 20, uuids);
+        List<String> requested = uuids.subList(0, 3);
+
+        Map<String, Double> expected = readDom(requested, stats);
+        Assert.assertEquals(3 * s_params.length, expected.size());
+        Assert.assertEquals(expected, read("vm", requested, new StringReader(stats)));
+    }
+
+    private static final String[] s_params = new String[] { "cpu0", "cpu1", "vif_0_rx", "vif_0_tx", "vbd_xvda_read", "vbd_xvda_write", "memory" };
+
+    private String generate(int vms, int rows, List<String> uuids) {
+        StringBuilder xml = new StringBuilder("<xport><meta><start>1300000000</start><step>5</step><end>1300000600</end>");
+        xml.append("<rows>").append(rows).append("</rows><columns>").append(vms * s_params.length).append("</columns><legend>");
+        for (int i = 0; i < vms; i++) {
+            String uuid = UUID.randomUUID().toString();
+            uuids.add(uuid);
+            for (String param : s_params) {
+                xml.append("<entry>AVERAGE:vm:").append(uuid).append(":").append(param).append("</entry>");
+            }
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < rows; row++) {
+            xml.append("<row><t>").append(1300000600 - row * 5).append("</t>");
+            for (int col = 0; col < vms * s_params.length; col++) {
+                xml.append("<v>").append(row % 7 == 0 ? "NaN" : String.valueOf((row * 31 + col) % 1000 / 1000.0)).append("</v>");
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    private Map<String, Double> readDom(List<String> uuids, String stats) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(stats)));
+        NodeList sections = doc.getDocumentElement().getChildNodes();
+        NodeList legend = sections.item(0).getChildNodes().item(5).getChildNodes();
+        NodeList data = sections.item(1).getChildNodes();
+        Map<String, Double> averages = new HashMap<String, Double>();
+        for (int col = 0; col < legend.getLength(); col++) {
+            String[] entry = legend.item(col).getTextContent().split(":");
+            if (!uuids.contains(entry[2])) {
+                continue;
+            }
+            double value = 0;
+            int used = 0;
+            for (int row = 0; row < data.getLength(); row++) {
+                Node v = data.item(row).getChildNodes().item(col + 1);
+                double d = Double.parseDouble(v.getTextContent());
+                if (!Double.isNaN(d)) {
+                    value += d;
+                    used++;
+                }
+            }
+            averages.put(entry[1] + ":" + entry[2] + ":" + entry[3], used == 0 ? value : value / used);
+        }
+        return averages;
+    }
+}
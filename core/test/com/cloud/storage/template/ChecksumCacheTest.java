@@ -0,0 +1,135 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+public class ChecksumCacheTest extends TestCase {
+    File _dir;
+    File _file;
+    byte[] _data;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("checksum", "");
+        _dir.delete();
+        _dir.mkdir();
+        _file = new File(_dir, "template.vhd");
+        _data = new byte[10 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(_data);
+        write(_data);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    public void testChecksumIsRemembered() throws Exception {
+        String expected = new BigInteger(1, MessageDigest.getInstance("MD5").digest(_data)).toString(16);
+
+        ChecksumCache cache = new ChecksumCache(1);
+        try {
+            Assert.assertEquals(expected, cache.getChecksum(_file.getPath()));
+            Assert.assertTrue(new File(_dir, ChecksumCache.Filename).exists());
+        } finally {
+            cache.stop();
+        }
+
+        // a new cache trusts the persisted value as long as size and mtime match
+        Properties props = new Properties();
+        props.setProperty("template.vhd.md5", "cafe");
+        props.setProperty("template.vhd.size", Long.toString(_file.length()));
+        props.setProperty("template.vhd.modified", Long.toString(_file.lastModified()));
+        FileOutputStream out = new FileOutputStream(new File(_dir, ChecksumCache.Filename));
+        props.store(out, "");
+        out.close();
+
+        cache = new ChecksumCache(1);
+        try {
+            Assert.assertEquals("cafe", cache.getChecksum(_file.getPath()));
+
+            _data[0]++;
+            write(_data);
+            _file.setLastModified(_file.lastModified() + 2000);
+            Assert.assertEquals(new BigInteger(1, MessageDigest.getInstance("MD5").digest(_data)).toString(16), cache.getChecksum(_file.getPath()));
+        } finally {
+            cache.stop();
+        }
+    }
+
+    public void testPrefetch() throws Exception {
+        ChecksumCache cache = new ChecksumCache(1);
+        try {
+            cache.prefetch(_file.getPath());
+            String checksum = cache.getChecksum(_file.getPath());
+            Assert.assertEquals(ChecksumCache.compute(_file), checksum);
+        } finally {
+            cache.stop();
+        }
+
+        try {
+            new ChecksumCache(1).getChecksum(new File(_dir, "missing.vhd").getPath());
+            Assert.fail("Should not have a checksum of a missing file");
+        } catch (IOException e) {
+        }
+    }
+
+    public void testSeed() throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(_data);
+        // the downloader hands out zero padded hex
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md5) {
+            hex.append(String.format("%02x", b));
+        }
+
+        ChecksumCache cache = new ChecksumCache(1);
+        try {
+            cache.seed(_file.getPath(), hex.toString());
+        } finally {
+            cache.stop();
+        }
+
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream(new File(_dir, ChecksumCache.Filename));
+        props.load(in);
+        in.close();
+        Assert.assertEquals(new BigInteger(1, md5).toString(16), props.getProperty("template.vhd.md5"));
+        Assert.assertEquals(Long.toString(_file.length()), props.getProperty("template.vhd.size"));
+    }
+
+    protected void write(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(_file);
+        out.write(data);
+        out.close();
+    }
+}
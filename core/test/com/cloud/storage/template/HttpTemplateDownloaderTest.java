@@ -0,0 +1,341 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.storage.template;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+
+import com.cloud.utils.Pair;
+
+public class HttpTemplateDownloaderTest extends TestCase {
+    static final int SEGMENT = 256 * 1024;
+
+    File _dir;
+    byte[] _data;
+    RangeServer _server;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("download", "");
+        _dir.delete();
+        _dir.mkdir();
+        _data = new byte[4 * SEGMENT];
+        new Random(11).nextBytes(_data);
+        _server = new RangeServer(_data);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _server.close();
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    public void testSegments() throws Exception {
+        HttpTemplateDownloader td = create(4);
+        Assert.assertEquals(_data.length, td.download(false, null));
+        Assert.assertEquals(4, td.getConnections());
+        assertDownloaded(td);
+
+        // the probe asks for everything, then each connection for its quarter
+        List<String> requests = new ArrayList<String>(_server._requests);
+        Assert.assertEquals("bytes=0-", requests.remove(0));
+        Collections.sort(requests);
+        Assert.assertEquals(Arrays.asList("bytes=0-262143", "bytes=262144-524287", "bytes=524288-786431", "bytes=786432-1048575"), requests);
+    }
+
+    public void testResumeDroppedRange() throws Exception {
+        long dropAt = 3 * SEGMENT + 1000;
+        _server._dropAt = dropAt;
+        HttpTemplateDownloader td = create(4);
+        Assert.assertEquals(_data.length, td.download(false, null));
+        assertDownloaded(td);
+
+        // the retry picks up where the connection dropped rather than starting the range over
+        Assert.assertTrue(_server._requests.contains("bytes=" + dropAt + "-" + (_data.length - 1)));
+        Assert.assertEquals(6, _server._requests.size());
+    }
+
+    public void testNoResumeOfSegments() throws Exception {
+        // the first range keeps dropping until its retries are used up, the others finish
+        _server._dropAt = 1000;
+        _server._drops = 4;
+        HttpTemplateDownloader td = create(4);
+        Assert.assertEquals(_data.length - SEGMENT + 1000, td.download(false, null));
+        Assert.assertEquals(TemplateDownloader.Status.IN_PROGRESS, td.getStatus());
+        Assert.assertEquals(_data.length, new File(td.getDownloadLocalPath()).length());
+
+        // the file is as long as the template with a hole in the first range, it is not resumed from its length
+        _server._requests.clear();
+        Assert.assertEquals(_data.length, td.download(true, null));
+        assertDownloaded(td);
+        List<String> requests = new ArrayList<String>(_server._requests);
+        Assert.assertEquals("bytes=0-", requests.remove(0));
+        Collections.sort(requests);
+        Assert.assertEquals(Arrays.asList("bytes=0-262143", "bytes=262144-524287", "bytes=524288-786431", "bytes=786432-1048575"), requests);
+    }
+
+    public void testDigestBehindUnfinishedSegment() throws Exception {
+        _server._hold = new CountDownLatch(1);
+        final HttpTemplateDownloader td = create(4);
+        Thread thread = start(td);
+
+        // let the first segment finish only after the others are in
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_server._completed.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, _server._completed.size());
+        Assert.assertNull(td.getChecksum());
+        _server._hold.countDown();
+
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals("bytes=0-262143", _server._completed.get(3));
+        assertDownloaded(td);
+    }
+
+    public void testAbort() throws Exception {
+        _server._hold = new CountDownLatch(1);
+        final HttpTemplateDownloader td = create(4);
+        Thread thread = start(td);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_server._completed.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(td.stopDownload());
+
+        // the stalled connection is aborted instead of waited for
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(TemplateDownloader.Status.ABORTED, td.getStatus());
+        Assert.assertNull(td.getChecksum());
+        Assert.assertTrue(td.getDownloadedBytes() < _data.length);
+    }
+
+    public void testRangesNotSupported() throws Exception {
+        _server._ranges = false;
+        HttpTemplateDownloader td = create(4);
+        Assert.assertEquals(_data.length, td.download(false, null));
+        Assert.assertEquals(1, td.getConnections());
+        assertDownloaded(td);
+
+        // the body of the probe is the download
+        Assert.assertEquals(Arrays.asList("bytes=0-"), _server._requests);
+    }
+
+    protected HttpTemplateDownloader create(int connections) {
+        HttpTemplateDownloader td = new HttpTemplateDownloader(null, "http://localhost:" + _server.getPort() + "/template.vhd", _dir.getPath(), null,
+                TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES, null, null) {
+            @Override
+            protected Pair<String, Integer> validateUrl(String url) {
+                // real downloads may not come from the loopback
+                return new Pair<String, Integer>("localhost", 80);
+            }
+        };
+        Assert.assertTrue(td.isInited());
+        td.setConnections(connections);
+        td.setMinSegmentSize(SEGMENT);
+        return td;
+    }
+
+    protected Thread start(final HttpTemplateDownloader td) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                td.download(false, null);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    protected void assertDownloaded(HttpTemplateDownloader td) throws Exception {
+        Assert.assertEquals(TemplateDownloader.Status.DOWNLOAD_FINISHED, td.getStatus());
+        Assert.assertEquals(new String(Hex.encodeHex(MessageDigest.getInstance("MD5").digest(_data))), td.getChecksum());
+
+        File file = new File(td.getDownloadLocalPath());
+        Assert.assertEquals(_data.length, file.length());
+        byte[] content = new byte[_data.length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int bytes;
+            while (offset < content.length && (bytes = in.read(content, offset, content.length - offset)) > 0) {
+                offset += bytes;
+            }
+        } finally {
+            in.close();
+        }
+        Assert.assertTrue(Arrays.equals(_data, content));
+    }
+
+    /**
+     * Serves one file over HTTP, a connection per request, honouring byte
+     * ranges unless told otherwise.
+     */
+    static class RangeServer implements Runnable {
+        static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+        final ServerSocket _socket;
+        final byte[] _data;
+        final List<String> _requests = Collections.synchronizedList(new ArrayList<String>());
+        // bounded ranges served in full, in the order they finished
+        final List<String> _completed = Collections.synchronizedList(new ArrayList<String>());
+        // answer ranges with the whole file
+        volatile boolean _ranges = true;
+        // the first _drops ranges covering this offset are cut off there
+        volatile long _dropAt = -1;
+        volatile int _drops = 1;
+        // the range starting at 0 stops half way until released
+        volatile CountDownLatch _hold;
+
+        RangeServer(byte[] data) throws IOException {
+            _data = data;
+            _socket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+            Thread thread = new Thread(this, "RangeServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return _socket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            CountDownLatch hold = _hold;
+            if (hold != null) {
+                hold.countDown();
+            }
+            _socket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!_socket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = _socket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "RangeServer-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void serve(Socket socket) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                String range = null;
+                String line;
+                while ((line = reader.readLine()) != null && line.length() > 0) {
+                    if (line.toLowerCase().startsWith("range:")) {
+                        range = line.substring(6).trim();
+                    }
+                }
+                _requests.add(range);
+
+                int from = 0;
+                int to = _data.length;
+                boolean bounded = false;
+                Matcher matcher = range == null || !_ranges ? null : RANGE.matcher(range);
+                boolean partial = matcher != null && matcher.matches();
+                if (partial) {
+                    from = Integer.parseInt(matcher.group(1));
+                    if (matcher.group(2).length() > 0) {
+                        to = Integer.parseInt(matcher.group(2)) + 1;
+                        bounded = true;
+                    }
+                }
+
+                StringBuilder headers = new StringBuilder(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+                if (partial) {
+                    headers.append("Content-Range: bytes ").append(from).append("-").append(to - 1).append("/").append(_data.length).append("\r\n");
+                }
+                headers.append("Content-Length: ").append(to - from).append("\r\n");
+                headers.append("Connection: close\r\n\r\n");
+                OutputStream out = socket.getOutputStream();
+                out.write(headers.toString().getBytes("ISO-8859-1"));
+
+                int end = to;
+                synchronized (this) {
+                    if (bounded && _dropAt >= from && _dropAt < to) {
+                        end = (int)_dropAt;
+                        if (--_drops == 0) {
+                            _dropAt = -1;
+                        }
+                    }
+                }
+                CountDownLatch hold = _hold;
+                if (bounded && from == 0 && hold != null) {
+                    int half = (to - from) / 2;
+                    out.write(_data, from, half);
+                    out.flush();
+                    hold.await(30, TimeUnit.SECONDS);
+                    from += half;
+                }
+                out.write(_data, from, end - from);
+                out.flush();
+                if (bounded && end == to) {
+                    _completed.add(range);
+                }
+            } catch (Exception e) {
+                // the client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+#!/usr/bin/env bash
+  #
+  # Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+  # 
+  # This software is licensed under the GNU General Public License v3 or later.
+  # 
+  # It is free software: you can redistribute it and/or modify
+  # it under the terms of the GNU General Public License as published by
+  # the Free Software Foundation, either version 3 of the License, or any later version.
+  # This program is distributed in the hope that it will be useful,
+  # but WITHOUT ANY WARRANTY; without even the implied warranty of
+  # MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  # GNU General Public License for more details.
+  # 
+  # You should have received a copy of the GNU General Public License
+  # along with this program.  If not, see <http://www.gnu.org/licenses/>.
+  #
+# firewall_bulk.sh -- apply a batch of firewall.sh rules read from stdin
+#
+# Each input line holds the arguments of one firewall.sh call.  Prints
+# "<line> <exit code>" per rule so the caller can report them one by one.
+# firewall.sh takes the router lock for every rule itself.
+#
+# @VERSION@
+
+n=0
+while read -r line
+do
+  out=$(/root/firewall.sh $line < /dev/null 2>&1)
+  rc=$?
+  if [ $rc -ne 0 ]
+  then
+    logger -t cloud "firewall_bulk.sh: rule $n ($line) failed with $rc: $out"
+  fi
+  echo "$n $rc"
+  n=$((n+1))
+done
+
+exit 0
@@ -0,0 +1,108 @@
+#!/usr/bin/env bash
+  #
+  # Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+  # 
+  # This software is licensed under the GNU General Public License v3 or later.
+  # 
+  # It is free software: you can redistribute it and/or modify
+  # it under the terms of the GNU General Public License as published by
+  # the Free Software Foundation, either version 3 of the License, or any later version.
+  # This program is distributed in the hope that it will be useful,
+  # but WITHOUT ANY WARRANTY; without even the implied warranty of
+  # MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  # GNU General Public License for more details.
+  # 
+  # You should have received a copy of the GNU General Public License
+  # along with this program.  If not, see <http://www.gnu.org/licenses/>.
+  #
+# vmdata.sh -- write one vm data entry served by the router's web server
+#
+# Usage: vmdata.sh -v <vm ip> -F <userdata|metadata> -f <file> [-d]
+# With -d the content of the file is read from stdin, without it the file
+# is removed.  Does in one call what vm_data.sh on the host does over
+# several ssh and scp sessions.
+#
+# @VERSION@
+
+source /root/func.sh
+
+lock="biglock"
+locked=$(getLockFile $lock)
+if [ "$locked" != "1" ]
+then
+    exit 1
+fi
+
+usage() {
+  printf "Usage: %s: -v <vm ip> -F <vm data folder> -f <vm data file> [-d]\n" $(basename $0) >&2
+  unlock_exit 2 $lock $locked
+}
+
+# appends the line to the file unless it is already there
+add_line() {
+  grep -qxF -- "$1" $2 || echo "$1" >> $2
+}
+
+vmIp=
+folder=
+file=
+data=
+
+while getopts 'v:F:f:d' OPTION
+do
+  case $OPTION in
+  v)	vmIp="$OPTARG"
+		;;
+  F)	folder="$OPTARG"
+		;;
+  f)	file="$OPTARG"
+		;;
+  d)	data=1
+		;;
+  ?)	usage
+		;;
+  esac
+done
+
+[ "$vmIp" == "" ] || [ "$folder" == "" ] || [ "$file" == "" ] && usage
+[ "$folder" != "userdata" ] && [ "$folder" != "metadata" ] && usage
+# the file name ends up in paths and rewrite rules
+case "$file" in
+  */*|.*|*[!A-Za-z0-9._-]*) usage ;;
+esac
+
+dir="/var/www/html/$folder/$vmIp"
+dest="$dir/$file"
+
+if [ "$data" == "" ]
+then
+  rm -f "$dest"
+  unlock_exit $? $lock $locked
+fi
+
+top=/var/www/html/latest/.htaccess
+mkdir -p /var/www/html/latest "$dir" && touch $top || unlock_exit 1 $lock $locked
+
+# requests to /latest/<file> are sent to the folder of the vm asking
+add_line "RewriteRule ^$file\$  ../$folder/%{REMOTE_ADDR}/$file [L,NC,QSA]" $top || unlock_exit 1 $lock $locked
+if [ "$folder" == "metadata" ]
+then
+  # also http://<router>/latest/meta-data/<file>
+  add_line "RewriteRule ^meta-data/(.+)\$  ../$folder/%{REMOTE_ADDR}/\$1 [L,NC,QSA]" $top &&
+  add_line "RewriteRule ^meta-data/\$  ../$folder/%{REMOTE_ADDR}/meta-data [L,NC,QSA]" $top || unlock_exit 1 $lock $locked
+fi
+
+# only the vm the data belongs to may read it
+printf "Options -Indexes\nOrder Deny,Allow\nDeny from all\nAllow from %s\n" "$vmIp" > "$dir/.htaccess" || unlock_exit 1 $lock $locked
+
+cat > "$dest" && chmod 644 "$dest" || unlock_exit 1 $lock $locked
+
+manifest="$dir/meta-data"
+touch "$manifest" && chmod 644 "$manifest" || unlock_exit 1 $lock $locked
+if [ "$folder" == "metadata" ]
+then
+  grep -vxF -- "$file" "$manifest" > "$manifest.new"
+  echo "$file" >> "$manifest.new" && mv "$manifest.new" "$manifest" && chmod 644 "$manifest"
+fi
+
+unlock_exit $? $lock $locked
@@ -24,7 +24,7 @@
 # createtmplt.sh -- install a template
 
 usage() {
-  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -s <size in Gigabytes> -c <md5 cksum> -d <descr> -h  [-u]\n" $(basename $0) >&2
+  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -s <size in Gigabytes> -c <md5 cksum> | -C <verified md5 cksum> -d <descr> -h  [-u]\n" $(basename $0) >&2
 }
 
 
@@ -128,7 +128,7 @@ cleanup=false
 dflag=
 cflag=
 
-while getopts 'uht:n:f:s:c:d:' OPTION
+while getopts 'uht:n:f:s:c:C:d:' OPTION
 do
   case $OPTION in
   t)	tflag=1
@@ -146,6 +146,10 @@ do
   c)	cflag=1
 		cksum="$OPTARG"
 		;;
+  C)	cflag=1
+		cksum="$OPTARG"
+		cksum_verified=1
+		;;
   d)	dflag=1
 		descr="$OPTARG"
 		;;
@@ -166,7 +170,7 @@ then
  exit 2
 fi
 
-if [ -n "$cksum" ]
+if [ -n "$cksum" ] && [ -z "$cksum_verified" ]
 then
   verify_cksum $cksum $tmpltimg
 fi
@@ -0,0 +1,62 @@
+#!/usr/bin/env bash
+
+
+
+  #
+  # Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+  # 
+  # This software is licensed under the GNU General Public License v3 or later.
+  # 
+  # It is free software: you can redistribute it and/or modify
+  # it under the terms of the GNU General Public License as published by
+  # the Free Software Foundation, either version 3 of the License, or any later version.
+  # This program is distributed in the hope that it will be useful,
+  # but WITHOUT ANY WARRANTY; without even the implied warranty of
+  # MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  # GNU General Public License for more details.
+  # 
+  # You should have received a copy of the GNU General Public License
+  # along with this program.  If not, see <http://www.gnu.org/licenses/>.
+  #
+ 
+
+# call_firewall_bulk.sh -- apply a batch of firewall rules to the domR over one ssh session
+#
+# Each line of the rules file holds the arguments of one call_firewall.sh
+# rule (without the domR ip).  The router prints "<line> <exit code>" for
+# every rule it applied.
+#
+usage() {
+  printf "Usage: %s: <domR eth1 ip> <rules file>\n" $(basename $0) >&2
+}
+
+# check if gateway domain is up and running
+check_gw() {
+  ping -c 1 -n -q $1 > /dev/null
+  if [ $? -gt 0 ]
+  then
+    sleep 1
+    ping -c 1 -n -q $1 > /dev/null
+  fi
+  return $?;
+}
+
+if [ $# -ne 2 ] || [ ! -f "$2" ]
+then
+  usage
+  exit 2
+fi
+
+cert="/root/.ssh/id_rsa.cloud"
+domRIp=$1
+rulesFile=$2
+
+# Check if DomR is up and running. If not, exit with error code 1.
+check_gw "$domRIp"
+if [ $? -gt 0 ]
+then
+  exit 1
+fi
+
+ssh -p 3922 -q -o StrictHostKeyChecking=no -i $cert root@$domRIp "/root/firewall_bulk.sh" < $rulesFile
+exit $?
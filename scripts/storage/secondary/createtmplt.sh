@@ -24,7 +24,7 @@
 # createtmplt.sh -- install a template
 
 usage() {
-  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -c <md5 cksum> -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
+  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -c <md5 cksum> | -C <verified md5 cksum> -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
 }
 
 
@@ -133,7 +133,7 @@ cleanup=false
 dflag=
 cflag=
 
-while getopts 'vuht:n:f:s:c:d:S:' OPTION
+while getopts 'vuht:n:f:s:c:C:d:S:' OPTION
 do
   case $OPTION in
   t)	tflag=1
@@ -150,6 +150,10 @@ do
   c)	cflag=1
 		cksum="$OPTARG"
 		;;
+  C)	cflag=1
+		cksum="$OPTARG"
+		cksum_verified=1
+		;;
   d)	dflag=1
 		descr="$OPTARG"
 		;;
@@ -185,7 +189,7 @@ then
   exit 3
 fi
 
-if [ -n "$cksum" ]
+if [ -n "$cksum" ] && [ -z "$cksum_verified" ]
 then
   verify_cksum $cksum $tmpltimg
 fi
@@ -19,18 +19,17 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -64,45 +63,20 @@ public abstract class AgentAttache {
     private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
     private static final Random                       s_rand                               = new Random(System.currentTimeMillis());
 
-    protected static final Comparator<Request> s_reqComparator =
-        new Comparator<Request>() {
-        @Override
-        public int compare(Request o1, Request o2) {
-            long seq1 = o1.getSequence();
-            long seq2 = o2.getSequence();
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
-    protected static final Comparator<Object> s_seqComparator =
-        new Comparator<Object>() {
-        @Override
-        public int compare(Object o1, Object o2) {
-            long seq1 = ((Request) o1).getSequence();
-            long seq2 = (Long) o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
+    protected final ConcurrentHashMap<Long, Long> _queuedAt;
     protected Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
     protected long                                    _nextSequence;
+    protected volatile Request.Version _peerVersion = Request.Version.v1;
+
+    protected volatile int _maxQueueSize;
+    protected final AtomicLong _queuedCount = new AtomicLong();
+    protected final AtomicLong _queueWaitTotal = new AtomicLong();
+    protected volatile long _queueWaitMax;
 
     protected AgentManager _agentMgr;
 
@@ -121,7 +95,8 @@ public abstract class AgentAttache {
         _waitForList = new ConcurrentHashMap<Long, Listener>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
+        _queuedAt = new ConcurrentHashMap<Long, Long>();
         _agentMgr = agentMgr;
         _nextSequence = s_rand.nextInt(Short.MAX_VALUE) << 48;
     }
@@ -150,6 +125,17 @@ public abstract class AgentAttache {
         return false;
     }
 
+    /**
+     * @param version latest transport version the agent said it understands.
+     */
+    public void setPeerVersion(Request.Version version) {
+        _peerVersion = version;
+    }
+
+    public Request.Version getPeerVersion() {
+        return _peerVersion;
+    }
+
     protected void checkAvailability(final Command[] cmds) throws AgentUnavailableException {
         if (!_maintenance && _status != Status.Connecting) {
             return;
@@ -173,9 +159,32 @@ public abstract class AgentAttache {
     }
 
     protected synchronized void addRequest(Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+        Request old = _requests.put(req.getSequence(), req);
+        assert (old == null) : "How can we get the same sequence again? " + req.toString();
+        _queuedAt.put(req.getSequence(), System.currentTimeMillis());
+        int size = _requests.size();
+        if (size > _maxQueueSize) {
+            _maxQueueSize = size;
+        }
+    }
+
+    protected Request removeRequest(long seq) {
+        Long queuedAt = _queuedAt.remove(seq);
+        Request req = _requests.remove(seq);
+        if (req != null && queuedAt != null) {
+            long wait = System.currentTimeMillis() - queuedAt;
+            _queuedCount.incrementAndGet();
+            _queueWaitTotal.addAndGet(wait);
+            if (wait > _queueWaitMax) {
+                _queueWaitMax = wait;
+            }
+        }
+        return req;
+    }
+
+    protected void clearRequests() {
+        _requests.clear();
+        _queuedAt.clear();
     }
 
 
@@ -192,18 +201,7 @@ public abstract class AgentAttache {
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
-    }
-
-    protected synchronized int findRequest(Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
-    }
-
-    protected synchronized int findRequest(long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+        removeRequest(seq);
     }
 
 
@@ -239,6 +237,45 @@ public abstract class AgentAttache {
     public int getQueueSize() {
         return _requests.size();
     }
+
+    public int getMaxQueueSize() {
+        return _maxQueueSize;
+    }
+
+    /**
+     * @return number of requests that had to wait in the queue for an earlier sequence.
+     */
+    public long getQueuedCount() {
+        return _queuedCount.get();
+    }
+
+    public long getAverageQueueWait() {
+        long count = _queuedCount.get();
+        return count == 0 ? 0 : _queueWaitTotal.get() / count;
+    }
+
+    public long getMaxQueueWait() {
+        return _queueWaitMax;
+    }
+
+    /**
+     * @return milliseconds the request at the head of the queue has been waiting.
+     */
+    public long getOldestQueueWait() {
+        Map.Entry<Long, Request> first = _requests.firstEntry();
+        if (first == null) {
+            return 0;
+        }
+        Long queuedAt = _queuedAt.get(first.getKey());
+        return queuedAt == null ? 0 : System.currentTimeMillis() - queuedAt;
+    }
+
+    public void resetQueueStats() {
+        _maxQueueSize = _requests.size();
+        _queuedCount.set(0);
+        _queueWaitTotal.set(0);
+        _queueWaitMax = 0;
+    }
     
     public int getNonRecurringListenersSize() {
         List<Listener> nonRecurringListenersList = new ArrayList<Listener>();
@@ -317,7 +354,7 @@ public abstract class AgentAttache {
 
     public void cleanup(final Status state) {
         cancelAllCommands(state, true);
-        _requests.clear();
+        clearRequests();
     }
 
     @Override
@@ -333,6 +370,7 @@ public abstract class AgentAttache {
 
     public void send(Request req, final Listener listener) throws AgentUnavailableException {
         checkAvailability(req.getCommands());
+        req.negotiateVersion(_peerVersion);
 
         long seq = req.getSequence();
         
@@ -447,14 +485,15 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        Map.Entry<Long, Request> first = _requests.firstEntry();
+        Request req = first != null ? removeRequest(first.getKey()) : null;
+        if (req == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
 
-        Request req = _requests.pop();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
@@ -72,6 +72,7 @@ import com.cloud.agent.api.StartupTrafficMonitorCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.manager.allocator.PodAllocator;
+import com.cloud.agent.transport.Codecs;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
@@ -148,6 +149,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.HypervisorVersionChangedException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.nio.HandlerFactory;
@@ -312,7 +314,27 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
 
         _executor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentTaskPool"));
 
-        _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        Codecs.configure(configs.get(Config.AgentCodec.key()), configs.get(Config.AgentCodecLevel.key()));
+
+        if (Boolean.parseBoolean(configs.get(Config.AgentReactorEnabled.key()))) {
+            int reactors = NumbersUtil.parseInt(configs.get(Config.AgentReactorCount.key()), 0);
+            if (reactors <= 0) {
+                reactors = Runtime.getRuntime().availableProcessors();
+            }
+            NioServer.ReactorAssignment assignment = NioServer.ReactorAssignment.RoundRobin;
+            value = configs.get(Config.AgentReactorAssignment.key());
+            if (value != null) {
+                try {
+                    assignment = NioServer.ReactorAssignment.valueOf(value);
+                } catch (IllegalArgumentException e) {
+                    s_logger.warn("Unknown agent reactor assignment " + value + ", using " + assignment);
+                }
+            }
+            _connection = new NioServer("AgentManager", _port, workers + 10, this, reactors, assignment);
+            s_logger.info("Serving agent connections with " + reactors + " reactors");
+        } else {
+            _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        }
 
         s_logger.info("Listening on " + _port + " with " + workers + " workers");
         return true;
@@ -1191,6 +1213,12 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
             _connection.start();
         }
 
+        try {
+            JmxUtil.registerMBean("AgentManager", "AgentManager", new AgentManagerMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the agent manager into JMX monitoring", e);
+        }
+
         return true;
     }
 
@@ -1370,6 +1398,12 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
             _connection.stop();
         }
 
+        try {
+            JmxUtil.unregisterMBean("AgentManager", "AgentManager");
+        } catch (Exception e) {
+            s_logger.warn("Unable to unregister the agent manager from JMX monitoring", e);
+        }
+
         s_logger.info("Disconnecting agents: " + _agents.size());
         synchronized (_agents) {
             for (final AgentAttache agent : _agents.values()) {
@@ -2428,6 +2462,10 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                         } else {
                             processRequest(task.getLink(), event);
                         }
+                        final Object attachment = task.getLink().attachment();
+                        if (attachment instanceof AgentAttache) {
+                            ((AgentAttache) attachment).setPeerVersion(event.getPeerVersion());
+                        }
                     } catch (final UnsupportedVersionException e) {
                         s_logger.warn(e.getMessage());
                         // upgradeAgent(task.getLink(), data, e.getReason());
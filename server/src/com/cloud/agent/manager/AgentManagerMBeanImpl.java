@@ -0,0 +1,110 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class AgentManagerMBeanImpl extends StandardMBean implements AgentManagerMBean {
+    private final AgentManagerImpl _agentMgr;
+
+    public AgentManagerMBeanImpl(AgentManagerImpl agentMgr) {
+        super(AgentManagerMBean.class, false);
+        _agentMgr = agentMgr;
+    }
+
+    @Override
+    public int getAttacheCount() {
+        return _agentMgr._agents.size();
+    }
+
+    @Override
+    public int getQueuedRequestCount() {
+        int count = 0;
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            count += attache.getQueueSize();
+        }
+        return count;
+    }
+
+    @Override
+    public Map<Long, Integer> getQueueSizes() {
+        Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            int size = attache.getQueueSize();
+            if (size > 0) {
+                sizes.put(attache.getId(), size);
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public Map<Long, Integer> getMaxQueueSizes() {
+        Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            int size = attache.getMaxQueueSize();
+            if (size > 0) {
+                sizes.put(attache.getId(), size);
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public Map<Long, Long> getAverageQueueWaitTimes() {
+        Map<Long, Long> waits = new HashMap<Long, Long>();
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            if (attache.getQueuedCount() > 0) {
+                waits.put(attache.getId(), attache.getAverageQueueWait());
+            }
+        }
+        return waits;
+    }
+
+    @Override
+    public Map<Long, Long> getMaxQueueWaitTimes() {
+        Map<Long, Long> waits = new HashMap<Long, Long>();
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            if (attache.getQueuedCount() > 0) {
+                waits.put(attache.getId(), attache.getMaxQueueWait());
+            }
+        }
+        return waits;
+    }
+
+    @Override
+    public Map<Long, Long> getOldestQueueWaitTimes() {
+        Map<Long, Long> waits = new HashMap<Long, Long>();
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            if (attache.getQueueSize() > 0) {
+                waits.put(attache.getId(), attache.getOldestQueueWait());
+            }
+        }
+        return waits;
+    }
+
+    @Override
+    public void resetQueueStats() {
+        for (AgentAttache attache : _agentMgr._agents.values()) {
+            attache.resetQueueStats();
+        }
+    }
+}
@@ -10,9 +10,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import javax.net.ssl.SSLEngine;
 
@@ -32,7 +32,7 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     private static ClusteredAgentManagerImpl s_clusteredAgentMgr;
     protected ByteBuffer _buffer = ByteBuffer.allocate(2048);
     private boolean _forward = false;
-    protected final LinkedList<Request> _transferRequests;
+    protected final ConcurrentSkipListMap<Long, Request> _transferRequests;
     protected boolean _transferMode = false;
 
     static public void initialize(ClusteredAgentManagerImpl agentMgr) {
@@ -42,13 +42,13 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     public ClusteredAgentAttache(AgentManager agentMgr, long id) {
         super(agentMgr, id, null, false);
         _forward = true;
-        _transferRequests = new LinkedList<Request>();
+        _transferRequests = new ConcurrentSkipListMap<Long, Request>();
     }
 
     public ClusteredAgentAttache(AgentManager agentMgr, long id, Link link, boolean maintenance) {
         super(agentMgr, id, link, maintenance);
         _forward = link == null;
-        _transferRequests = new LinkedList<Request>();
+        _transferRequests = new ConcurrentSkipListMap<Long, Request>();
     }
 
     @Override
@@ -210,21 +210,13 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     }
     
     public Request getRequestToTransfer() {
-        if (_transferRequests.isEmpty()) {
-            return null;
-        } else {
-            return _transferRequests.pop();
-        } 
+        Map.Entry<Long, Request> entry = _transferRequests.pollFirstEntry();
+        return entry == null ? null : entry.getValue();
     }
     
     protected synchronized void addRequestToTransfer(Request req) {
-        int index = findTransferRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _transferRequests.add(-index - 1, req);
-    }
-    
-    protected synchronized int findTransferRequest(Request req) {
-        return Collections.binarySearch(_transferRequests, req, s_reqComparator);
+        Request old = _transferRequests.put(req.getSequence(), req);
+        assert (old == null) : "How can we get the same sequence again? " + req.toString();
     }
     
     @Override
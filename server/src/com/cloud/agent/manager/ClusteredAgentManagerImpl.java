@@ -598,7 +598,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (!Request.isSupported(ver)) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
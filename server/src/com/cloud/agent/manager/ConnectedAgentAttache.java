@@ -67,7 +67,7 @@ public class ConnectedAgentAttache extends AgentAttache {
             _link = null;
         }
         cancelAllCommands(state, true);
-        _requests.clear();
+        clearRequests();
     }
 
     @Override
@@ -18,6 +18,7 @@
 
 package com.cloud.api;
 
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -77,6 +78,7 @@ import com.cloud.projects.ProjectService;
 import com.cloud.server.Criteria;
 import com.cloud.server.ManagementServer;
 import com.cloud.server.StatsCollector;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.DiskOfferingVO;
 import com.cloud.storage.GuestOS;
@@ -230,7 +232,7 @@ public class ApiDBUtils {
     // ///////////////////////////////////////////////////////////
 
     public static VMInstanceVO findVMInstanceById(long vmId) {
-        return _vmDao.findById(vmId);
+        return ApiResponseContext.findById(VMInstanceVO.class, _vmDao, vmId, false);
     }
 
     public static long getMemoryOrCpuCapacitybyHost(Long hostId, short capacityType) {
@@ -355,12 +357,68 @@ public class ApiDBUtils {
     // Dao methods //
     // ///////////////////////////////////////////////////////////
 
+    public static void prefetchVMInstances(Collection<Long> vmIds) {
+        ApiResponseContext.prefetch(VMInstanceVO.class, _vmDao, vmIds, false);
+    }
+
+    public static void prefetchAccounts(Collection<Long> accountIds) {
+        ApiResponseContext.prefetch(AccountVO.class, _accountDao, accountIds, true);
+    }
+
+    public static void prefetchClusters(Collection<Long> clusterIds) {
+        ApiResponseContext.prefetch(ClusterVO.class, _clusterDao, clusterIds, false);
+    }
+
+    public static void prefetchDiskOfferings(Collection<Long> diskOfferingIds) {
+        ApiResponseContext.prefetch(DiskOfferingVO.class, _diskOfferingDao, diskOfferingIds, true);
+    }
+
+    public static void prefetchDomains(Collection<Long> domainIds) {
+        ApiResponseContext.prefetch(DomainVO.class, _domainDao, domainIds, true);
+    }
+
+    public static void prefetchHosts(Collection<Long> hostIds) {
+        ApiResponseContext.prefetch(HostVO.class, _hostDao, hostIds, true);
+    }
+
+    public static void prefetchPods(Collection<Long> podIds) {
+        ApiResponseContext.prefetch(HostPodVO.class, _podDao, podIds, false);
+    }
+
+    public static void prefetchServiceOfferings(Collection<Long> serviceOfferingIds) {
+        ApiResponseContext.prefetch(ServiceOfferingVO.class, _serviceOfferingDao, serviceOfferingIds, true);
+    }
+
+    public static void prefetchStoragePools(Collection<Long> storagePoolIds) {
+        ApiResponseContext.prefetch(StoragePoolVO.class, _storagePoolDao, storagePoolIds, true);
+    }
+
+    public static void prefetchTemplates(Collection<Long> templateIds) {
+        ApiResponseContext.prefetch(VMTemplateVO.class, _templateDao, templateIds, true);
+    }
+
+    public static void prefetchVlans(Collection<Long> vlanIds) {
+        ApiResponseContext.prefetch(VlanVO.class, _vlanDao, vlanIds, false);
+    }
+
+    public static void prefetchZones(Collection<Long> zoneIds) {
+        ApiResponseContext.prefetch(DataCenterVO.class, _zoneDao, zoneIds, false);
+    }
+
+    public static void prefetchNetworkOfferings(Collection<Long> networkOfferingIds) {
+        ApiResponseContext.prefetch(NetworkOfferingVO.class, _networkOfferingDao, networkOfferingIds, true);
+    }
+
+    public static void prefetchNetworks(Collection<Long> networkIds) {
+        ApiResponseContext.prefetch(NetworkVO.class, _networkDao, networkIds, false);
+    }
+
     public static Account findAccountById(Long accountId) {
-        return _accountDao.findByIdIncludingRemoved(accountId);
+        return ApiResponseContext.findById(AccountVO.class, _accountDao, accountId, true);
     }
 
     public static Account findAccountByIdIncludingRemoved(Long accountId) {
-        return _accountDao.findByIdIncludingRemoved(accountId);
+        return ApiResponseContext.findById(AccountVO.class, _accountDao, accountId, true);
     }
 
     public static Account findAccountByNameDomain(String accountName, Long domainId) {
@@ -368,19 +426,19 @@ public class ApiDBUtils {
     }
 
     public static ClusterVO findClusterById(long clusterId) {
-        return _clusterDao.findById(clusterId);
+        return ApiResponseContext.findById(ClusterVO.class, _clusterDao, clusterId, false);
     }
 
     public static DiskOfferingVO findDiskOfferingById(Long diskOfferingId) {
-        return _diskOfferingDao.findByIdIncludingRemoved(diskOfferingId);
+        return ApiResponseContext.findById(DiskOfferingVO.class, _diskOfferingDao, diskOfferingId, true);
     }
 
     public static DomainVO findDomainById(Long domainId) {
-        return _domainDao.findByIdIncludingRemoved(domainId);
+        return ApiResponseContext.findById(DomainVO.class, _domainDao, domainId, true);
     }
 
     public static DomainVO findDomainByIdIncludingRemoved(Long domainId) {
-        return _domainDao.findByIdIncludingRemoved(domainId);
+        return ApiResponseContext.findById(DomainVO.class, _domainDao, domainId, true);
     }
 
     public static DomainRouterVO findDomainRouterById(Long routerId) {
@@ -396,7 +454,7 @@ public class ApiDBUtils {
     }
     
     public static HostVO findHostById(Long hostId) {
-        return _hostDao.findByIdIncludingRemoved(hostId);
+        return ApiResponseContext.findById(HostVO.class, _hostDao, hostId, true);
     }
 
     public static IPAddressVO findIpAddressById(long addressId) {
@@ -430,7 +488,7 @@ public class ApiDBUtils {
     }
 
     public static HostPodVO findPodById(Long podId) {
-        return _podDao.findById(podId);
+        return ApiResponseContext.findById(HostPodVO.class, _podDao, podId, false);
     }
 
     public static VolumeVO findRootVolume(long vmId) {
@@ -443,7 +501,7 @@ public class ApiDBUtils {
     }
 
     public static ServiceOffering findServiceOfferingById(Long serviceOfferingId) {
-        return _serviceOfferingDao.findByIdIncludingRemoved(serviceOfferingId);
+        return ApiResponseContext.findById(ServiceOfferingVO.class, _serviceOfferingDao, serviceOfferingId, true);
     }
 
     public static Snapshot findSnapshotById(long snapshotId) {
@@ -456,11 +514,11 @@ public class ApiDBUtils {
     }
 
     public static StoragePoolVO findStoragePoolById(Long storagePoolId) {
-        return _storagePoolDao.findByIdIncludingRemoved(storagePoolId);
+        return ApiResponseContext.findById(StoragePoolVO.class, _storagePoolDao, storagePoolId, true);
     }
 
     public static VMTemplateVO findTemplateById(Long templateId) {
-        return _templateDao.findByIdIncludingRemoved(templateId);
+        return ApiResponseContext.findById(VMTemplateVO.class, _templateDao, templateId, true);
     }
     
     public static VMTemplateHostVO findTemplateHostRef(long templateId, long zoneId) {
@@ -490,7 +548,7 @@ public class ApiDBUtils {
     }
 
     public static VlanVO findVlanById(long vlanDbId) {
-        return _vlanDao.findById(vlanDbId);
+        return ApiResponseContext.findById(VlanVO.class, _vlanDao, vlanDbId, false);
     }
 
     public static VolumeVO findVolumeById(Long volumeId) {
@@ -502,7 +560,7 @@ public class ApiDBUtils {
     }
 
     public static DataCenterVO findZoneById(Long zoneId) {
-        return _zoneDao.findById(zoneId);
+        return ApiResponseContext.findById(DataCenterVO.class, _zoneDao, zoneId, false);
     }
 
     public static Long getAccountIdForVlan(long vlanDbId) {
@@ -562,7 +620,7 @@ public class ApiDBUtils {
     }
 
     public static NetworkOfferingVO findNetworkOfferingById(long networkOfferingId) {
-        return _networkOfferingDao.findByIdIncludingRemoved(networkOfferingId);
+        return ApiResponseContext.findById(NetworkOfferingVO.class, _networkOfferingDao, networkOfferingId, true);
     }
 
     public static List<? extends Vlan> listVlanByNetworkId(long networkId) {
@@ -570,7 +628,7 @@ public class ApiDBUtils {
     }
 
     public static NetworkVO findNetworkById(long id) {
-        return _networkDao.findById(id);
+        return ApiResponseContext.findById(NetworkVO.class, _networkDao, id, false);
     }
 
     public static Map<Service, Map<Capability, String>> getNetworkCapabilities(long networkOfferingId, long zoneId) {
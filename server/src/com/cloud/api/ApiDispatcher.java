@@ -45,7 +45,9 @@ import com.cloud.user.Account;
 import com.cloud.user.UserContext;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * A class that dispatches API commands to the appropriate manager for execution.
@@ -55,6 +57,7 @@ public class ApiDispatcher {
 
     ComponentLocator _locator;
     AsyncJobManager _asyncMgr;
+    private final ApiQueryStatsMBeanImpl _queryStats = new ApiQueryStatsMBeanImpl();
 
     // singleton class
     private static ApiDispatcher s_instance = new ApiDispatcher();
@@ -66,6 +69,11 @@ public class ApiDispatcher {
     private ApiDispatcher() {
         _locator = ComponentLocator.getLocator(ManagementServer.Name);
         _asyncMgr = _locator.getManager(AsyncJobManager.class);
+        try {
+            JmxUtil.registerMBean("ApiDispatcher", "QueryStats", _queryStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the API query stats", e);
+        }
     }
 
     public void dispatchCreateCmd(BaseAsyncCreateCmd cmd, Map<String, String> params) {
@@ -113,6 +121,7 @@ public class ApiDispatcher {
 
     public void dispatch(BaseCmd cmd, Map<String, String> params) {
         setupParameters(cmd, params);
+        long statements = Transaction.getStatementCount();
         try {
             UserContext ctx = UserContext.current();
             ctx.setAccountId(cmd.getEntityOwnerId());
@@ -128,7 +137,21 @@ public class ApiDispatcher {
                 }
             }
 
-            cmd.execute();
+            if (cmd instanceof BaseListCmd) {
+                // list responses look up the same zones, accounts, offerings, etc. for every row, so
+                // let ApiDBUtils serve those lookups from a per-call cache
+                ApiResponseContext responseCtx = ApiResponseContext.registerContext();
+                try {
+                    cmd.execute();
+                } finally {
+                    ApiResponseContext.unregisterContext();
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(cmd.getCommandName() + " issued " + (Transaction.getStatementCount() - statements) + " queries, " + responseCtx.getCacheHitCount() + " reference cache hits");
+                    }
+                }
+            } else {
+                cmd.execute();
+            }
 
         } catch (Throwable t) {
             if (t instanceof InvalidParameterValueException || t instanceof IllegalArgumentException) {
@@ -162,6 +185,8 @@ public class ApiDispatcher {
                     throw new ServerApiException(BaseCmd.INTERNAL_ERROR, BaseCmd.USER_ERROR_MESSAGE);
                 }
             }
+        } finally {
+            _queryStats.record(cmd.getCommandName(), Transaction.getStatementCount() - statements);
         }
     }
 
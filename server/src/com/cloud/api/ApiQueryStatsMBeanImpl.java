@@ -0,0 +1,127 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.StandardMBean;
+
+public class ApiQueryStatsMBeanImpl extends StandardMBean implements ApiQueryStatsMBean {
+    // upper bounds of the histogram buckets, the last bucket takes the rest
+    private static final long[] BUCKETS = new long[] { 0, 1, 5, 10, 50, 100, 500, 1000 };
+
+    private final ConcurrentHashMap<String, QueryStats> _stats = new ConcurrentHashMap<String, QueryStats>();
+
+    public ApiQueryStatsMBeanImpl() {
+        super(ApiQueryStatsMBean.class, false);
+    }
+
+    public void record(String command, long queries) {
+        QueryStats stats = _stats.get(command);
+        if (stats == null) {
+            stats = new QueryStats();
+            QueryStats existing = _stats.putIfAbsent(command, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(queries);
+    }
+
+    @Override
+    public Map<String, Long> getCallCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, QueryStats> entry : _stats.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().count.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getAverageQueryCounts() {
+        Map<String, Long> queries = new HashMap<String, Long>();
+        for (Map.Entry<String, QueryStats> entry : _stats.entrySet()) {
+            QueryStats stats = entry.getValue();
+            long count = stats.count.get();
+            queries.put(entry.getKey(), count == 0 ? 0 : stats.total.get() / count);
+        }
+        return queries;
+    }
+
+    @Override
+    public Map<String, Long> getMaxQueryCounts() {
+        Map<String, Long> queries = new HashMap<String, Long>();
+        for (Map.Entry<String, QueryStats> entry : _stats.entrySet()) {
+            queries.put(entry.getKey(), entry.getValue().max.get());
+        }
+        return queries;
+    }
+
+    @Override
+    public Map<String, String> getQueryCountHistograms() {
+        Map<String, String> histograms = new HashMap<String, String>();
+        for (Map.Entry<String, QueryStats> entry : _stats.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().formatHistogram());
+        }
+        return histograms;
+    }
+
+    @Override
+    public void resetQueryStats() {
+        _stats.clear();
+    }
+
+    protected static class QueryStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        void record(long queries) {
+            count.incrementAndGet();
+            total.addAndGet(queries);
+            long current = max.get();
+            while (queries > current && !max.compareAndSet(current, queries)) {
+                current = max.get();
+            }
+
+            int bucket = 0;
+            while (bucket < BUCKETS.length && queries > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        /**
+         * @return the calls per bucket as "<=0:3 <=1:10 ... >1000:0".
+         */
+        String formatHistogram() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                sb.append("<=").append(BUCKETS[i]).append(':').append(buckets.get(i)).append(' ');
+            }
+            sb.append('>').append(BUCKETS[BUCKETS.length - 1]).append(':').append(buckets.get(BUCKETS.length));
+            return sb.toString();
+        }
+    }
+}
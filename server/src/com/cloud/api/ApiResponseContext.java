@@ -0,0 +1,136 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.api;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Per API call cache of the entities referenced by the responses being built. List commands
+ * prefetch the ids referenced by a whole page with one IN query per entity type, and the
+ * ApiDBUtils lookups done while building each response are then served from here.
+ * 
+ * Outside of a registered context the lookups go straight to the DAO.
+ */
+public class ApiResponseContext {
+    private static final int PREFETCH_BATCH_SIZE = 500;
+    private static final Object NOT_FOUND = new Object();
+
+    private static ThreadLocal<ApiResponseContext> s_currentContext = new ThreadLocal<ApiResponseContext>();
+    private static final Map<Class<?>, Method> s_idGetters = new ConcurrentHashMap<Class<?>, Method>();
+
+    private final Map<String, Map<Long, Object>> _entities = new HashMap<String, Map<Long, Object>>();
+    private int _cacheHitCount;
+
+    public static ApiResponseContext current() {
+        return s_currentContext.get();
+    }
+
+    public static ApiResponseContext registerContext() {
+        ApiResponseContext context = new ApiResponseContext();
+        s_currentContext.set(context);
+        return context;
+    }
+
+    public static void unregisterContext() {
+        s_currentContext.set(null);
+    }
+
+    public int getCacheHitCount() {
+        return _cacheHitCount;
+    }
+
+    public static <T> T findById(Class<T> type, GenericDao<T, Long> dao, Long id, boolean includingRemoved) {
+        ApiResponseContext context = current();
+        if (context == null || id == null) {
+            return includingRemoved ? dao.findByIdIncludingRemoved(id) : dao.findById(id);
+        }
+
+        Map<Long, Object> entities = context.getEntities(type, includingRemoved);
+        Object entity = entities.get(id);
+        if (entity != null) {
+            context._cacheHitCount++;
+            return entity == NOT_FOUND ? null : type.cast(entity);
+        }
+
+        T found = includingRemoved ? dao.findByIdIncludingRemoved(id) : dao.findById(id);
+        entities.put(id, found == null ? NOT_FOUND : found);
+        return found;
+    }
+
+    public static <T> void prefetch(Class<T> type, GenericDao<T, Long> dao, Collection<Long> ids, boolean includingRemoved) {
+        ApiResponseContext context = current();
+        if (context == null || ids.isEmpty()) {
+            return;
+        }
+
+        Map<Long, Object> entities = context.getEntities(type, includingRemoved);
+        List<Long> missing = new ArrayList<Long>();
+        for (Long id : ids) {
+            if (id != null && !entities.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+
+        for (int i = 0; i < missing.size(); i += PREFETCH_BATCH_SIZE) {
+            List<Long> batch = missing.subList(i, Math.min(missing.size(), i + PREFETCH_BATCH_SIZE));
+            SearchCriteria<T> sc = dao.createSearchCriteria();
+            sc.addAnd("id", SearchCriteria.Op.IN, batch.toArray());
+
+            List<T> found = includingRemoved ? dao.searchIncludingRemoved(sc, null, null, false) : dao.search(sc, null);
+            for (Long id : batch) {
+                entities.put(id, NOT_FOUND);
+            }
+            for (T entity : found) {
+                entities.put(getId(entity), entity);
+            }
+        }
+    }
+
+    private Map<Long, Object> getEntities(Class<?> type, boolean includingRemoved) {
+        String key = includingRemoved ? type.getName() + ":removed" : type.getName();
+        Map<Long, Object> entities = _entities.get(key);
+        if (entities == null) {
+            entities = new HashMap<Long, Object>();
+            _entities.put(key, entities);
+        }
+        return entities;
+    }
+
+    private static Long getId(Object entity) {
+        try {
+            Method getter = s_idGetters.get(entity.getClass());
+            if (getter == null) {
+                getter = entity.getClass().getMethod("getId");
+                s_idGetters.put(entity.getClass(), getter);
+            }
+            return ((Number) getter.invoke(entity)).longValue();
+        } catch (Exception e) {
+            throw new CloudRuntimeException("Unable to get the id of " + entity.getClass().getName(), e);
+        }
+    }
+}
@@ -2521,4 +2521,82 @@ public class ApiResponseHelper implements ResponseGenerator {
         vmResponse.setObjectName("systemvminstance");
         return vmResponse;
     }
+
+    @Override
+    public void prefetchReferences(List<?> objects) {
+        if (ApiResponseContext.current() == null || objects == null || objects.isEmpty()) {
+            return;
+        }
+
+        Set<Long> accountIds = new HashSet<Long>();
+        Set<Long> domainIds = new HashSet<Long>();
+        Set<Long> zoneIds = new HashSet<Long>();
+        Set<Long> podIds = new HashSet<Long>();
+        Set<Long> clusterIds = new HashSet<Long>();
+        Set<Long> hostIds = new HashSet<Long>();
+        Set<Long> vmIds = new HashSet<Long>();
+        Set<Long> serviceOfferingIds = new HashSet<Long>();
+        Set<Long> diskOfferingIds = new HashSet<Long>();
+        Set<Long> templateIds = new HashSet<Long>();
+        Set<Long> poolIds = new HashSet<Long>();
+        Set<Long> vlanIds = new HashSet<Long>();
+        Set<Long> networkOfferingIds = new HashSet<Long>();
+
+        for (Object object : objects) {
+            if (object instanceof ControlledEntity) {
+                ControlledEntity entity = (ControlledEntity)object;
+                accountIds.add(entity.getAccountId());
+                domainIds.add(entity.getDomainId());
+            }
+            if (object instanceof VirtualMachine) {
+                VirtualMachine vm = (VirtualMachine)object;
+                zoneIds.add(vm.getDataCenterIdToDeployIn());
+                addId(podIds, vm.getPodIdToDeployIn());
+                addId(hostIds, vm.getHostId());
+                serviceOfferingIds.add(vm.getServiceOfferingId());
+                addId(templateIds, vm.getTemplateId());
+            } else if (object instanceof Host) {
+                Host host = (Host)object;
+                zoneIds.add(host.getDataCenterId());
+                addId(podIds, host.getPodId());
+                addId(clusterIds, host.getClusterId());
+            } else if (object instanceof Volume) {
+                Volume volume = (Volume)object;
+                zoneIds.add(volume.getDataCenterId());
+                addId(podIds, volume.getPodId());
+                addId(vmIds, volume.getInstanceId());
+                addId(diskOfferingIds, volume.getDiskOfferingId());
+                addId(templateIds, volume.getTemplateId());
+                addId(poolIds, volume.getPoolId());
+            } else if (object instanceof IpAddress) {
+                IpAddress ip = (IpAddress)object;
+                zoneIds.add(ip.getDataCenterId());
+                vlanIds.add(ip.getVlanId());
+            } else if (object instanceof Network) {
+                Network network = (Network)object;
+                zoneIds.add(network.getDataCenterId());
+                networkOfferingIds.add(network.getNetworkOfferingId());
+            }
+        }
+
+        ApiDBUtils.prefetchAccounts(accountIds);
+        ApiDBUtils.prefetchDomains(domainIds);
+        ApiDBUtils.prefetchZones(zoneIds);
+        ApiDBUtils.prefetchPods(podIds);
+        ApiDBUtils.prefetchClusters(clusterIds);
+        ApiDBUtils.prefetchHosts(hostIds);
+        ApiDBUtils.prefetchVMInstances(vmIds);
+        ApiDBUtils.prefetchServiceOfferings(serviceOfferingIds);
+        ApiDBUtils.prefetchDiskOfferings(diskOfferingIds);
+        ApiDBUtils.prefetchTemplates(templateIds);
+        ApiDBUtils.prefetchStoragePools(poolIds);
+        ApiDBUtils.prefetchVlans(vlanIds);
+        ApiDBUtils.prefetchNetworkOfferings(networkOfferingIds);
+    }
+
+    private static void addId(Set<Long> ids, Long id) {
+        if (id != null) {
+            ids.add(id);
+        }
+    }
 }
@@ -25,6 +25,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -82,6 +83,7 @@ import org.apache.http.protocol.ResponseServer;
 import org.apache.log4j.Logger;
 
 import com.cloud.api.response.ApiResponseSerializer;
+import com.cloud.api.response.BufferedResponseWriter;
 import com.cloud.api.response.ExceptionResponse;
 import com.cloud.api.response.ListResponse;
 import com.cloud.async.AsyncJob;
@@ -140,6 +142,9 @@ public class ApiServer implements HttpRequestHandler {
     private static List<String> s_allCommands = null;
     private static final DateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
     
+    // streamed responses are held back up to this many chars so that a failure can still be reported as an error
+    private static final int s_streamBufferSize = 64 * 1024;
+
     private static ExecutorService _executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ApiServer"));
 
     static {
@@ -312,6 +317,16 @@ public class ApiServer implements HttpRequestHandler {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, decode, responseType, auditTrailSb, null);
+    }
+
+    /**
+     * Handles the request like above, except that list responses are streamed to out, in which case null is returned.
+     * Errors are still reported through ServerApiException; when one happens after part of a streamed response has been
+     * written to out, out is committed and the caller can only abandon the response.
+     */
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb, Writer out) throws ServerApiException {
         String response = null;
         String[] command = null;
         try {
@@ -361,8 +376,13 @@ public class ApiServer implements HttpRequestHandler {
                     cmdObj.setFullUrlParams(paramMap);
                     cmdObj.setResponseType(responseType);
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    buildAuditTrail(auditTrailSb, command[0], response);
+                    response = queueCommand(cmdObj, paramMap, out);
+                    if (response == null && out != null && cmdObj instanceof BaseListCmd) {
+                        // streamed list responses are not kept around, only log their size
+                        auditTrailSb.append(" " + HttpServletResponse.SC_OK + " " + ((ListResponse) cmdObj.getResponseObject()).getCount() + " objects streamed");
+                    } else {
+                        buildAuditTrail(auditTrailSb, command[0], response);
+                    }
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
                         String errorString = "Unknown API command: " + ((command == null) ? "null" : command[0]);
@@ -387,7 +407,7 @@ public class ApiServer implements HttpRequestHandler {
         return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) {
+    private String queueCommand(BaseCmd cmdObj, Map<String, String> params, Writer out) {
         UserContext ctx = UserContext.current();
         Long callerUserId = ctx.getCallerUserId();
         Account caller = ctx.getCaller();
@@ -454,6 +474,27 @@ public class ApiServer implements HttpRequestHandler {
             // the job id and status if possible
             if (cmdObj instanceof BaseListCmd) {
                 buildAsyncListResponse((BaseListCmd) cmdObj, caller);
+
+                if (out != null) {
+                    BufferedResponseWriter buffered = new BufferedResponseWriter(out, s_streamBufferSize);
+                    try {
+                        ApiResponseSerializer.serialize((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType(), buffered);
+                        buffered.close();
+                    } catch (IOException e) {
+                        // the client went away
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Unable to stream response of " + cmdObj.getCommandName() + ": " + e);
+                        }
+                    } catch (RuntimeException e) {
+                        if (buffered.isCommitted()) {
+                            s_logger.error("Unable to serialize the response of " + cmdObj.getCommandName() + ", part of it has already been sent", e);
+                            throw new ServerApiException(BaseCmd.INTERNAL_ERROR, "Internal server error, the response is incomplete.");
+                        }
+                        s_logger.error("Unable to serialize the response of " + cmdObj.getCommandName(), e);
+                        throw new ServerApiException(BaseCmd.INTERNAL_ERROR, "Internal server error, unable to serialize the response.");
+                    }
+                    return null;
+                }
             }
             return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
         }
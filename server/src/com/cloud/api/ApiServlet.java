@@ -299,13 +299,23 @@ public class ApiServlet extends HttpServlet {
                                 + ")");
 
                 try {
-                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb);
-                    writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                    // list responses are streamed straight to the client, everything else comes back as a string
+                    setContentType(resp, responseType);
+                    String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb, resp.getWriter());
+                    if (response != null) {
+                        writeResponse(resp, response, HttpServletResponse.SC_OK, responseType);
+                    }
                 } catch (ServerApiException se) {
-                    String serializedResponseText = _apiServer.getSerializedApiError(se.getErrorCode(), se.getDescription(), params, responseType);
-                    resp.setHeader("X-Description", se.getDescription());
-                    writeResponse(resp, serializedResponseText, se.getErrorCode(), responseType);
-                    auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+                    if (resp.isCommitted()) {
+                        // part of a streamed response already went out with a 200, leave it truncated rather than append an error body to it
+                        auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription() + " (response already committed)");
+                    } else {
+                        resp.resetBuffer();
+                        String serializedResponseText = _apiServer.getSerializedApiError(se.getErrorCode(), se.getDescription(), params, responseType);
+                        resp.setHeader("X-Description", se.getDescription());
+                        writeResponse(resp, serializedResponseText, se.getErrorCode(), responseType);
+                        auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+                    }
                 }
             } else {
                 if (session != null) {
@@ -351,11 +361,7 @@ public class ApiServlet extends HttpServlet {
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
     private void writeResponse(HttpServletResponse resp, String response, int responseCode, String responseType) {
         try {
-            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
-            } else {
-                resp.setContentType("text/xml; charset=UTF-8");
-            }
+            setContentType(resp, responseType);
 
             resp.setStatus(responseCode);
             resp.getWriter().print(response);
@@ -370,6 +376,14 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    private void setContentType(HttpServletResponse resp, String responseType) {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+        } else {
+            resp.setContentType("text/xml; charset=UTF-8");
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     private String getLoginSuccessResponse(HttpSession session, String responseType) {
         StringBuffer sb = new StringBuffer();
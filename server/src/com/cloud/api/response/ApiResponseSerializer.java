@@ -18,14 +18,16 @@
 
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -35,144 +37,141 @@ import com.cloud.api.ApiResponseGsonHelper;
 import com.cloud.api.ApiServer;
 import com.cloud.api.BaseCmd;
 import com.cloud.api.ResponseObject;
-import com.cloud.configuration.Config;
-import com.cloud.configuration.dao.ConfigurationDao;
-import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.encoding.URLEncoder;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
+/**
+ * Serializes API responses to XML or JSON. Responses are written straight to a Writer so that
+ * large list responses can be streamed to the client instead of being built up in memory first.
+ */
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
-    public static String toSerializedString(ResponseObject result, String responseType) {
-        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-            return toJSONSerializedString(result);
-        } else {
-            return toXMLSerializedString(result);
-        }
-    }
+    // Gson is thread safe; HTML escaping is turned off so we no longer have to unescape its output
+    private static final Gson s_gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).disableHtmlEscaping().create();
 
-    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
+    // serialized fields of each response class, in declaration order
+    private static final Map<Class<?>, ResponseField[]> s_xmlFields = new ConcurrentHashMap<Class<?>, ResponseField[]>();
 
-    public static String unescape(String escaped) {
-        String str = escaped;
-        Matcher matcher = s_unicodeEscapePattern.matcher(str);
-        while (matcher.find()) {
-            str = str.replaceAll("\\" + matcher.group(0), Character.toString((char) Integer.parseInt(matcher.group(1), 16)));
+    private static class ResponseField {
+        final Field field;
+        final String name;
+
+        ResponseField(Field field, String name) {
+            this.field = field;
+            this.name = name;
         }
-        return str;
     }
 
-    private static String toJSONSerializedString(ResponseObject result) {
-        if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("{ \"" + result.getResponseName() + "\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-                if ((responses != null) && !responses.isEmpty()) {
+    public static String toSerializedString(ResponseObject result, String responseType) {
+        if (result == null) {
+            return null;
+        }
+        StringWriter out = new StringWriter();
+        try {
+            serialize(result, responseType, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize " + result.getResponseName(), e);
+        }
+        return out.toString();
+    }
 
-                    Integer count = ((ListResponse) result).getCount();
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
+    public static void serialize(ResponseObject result, String responseType, Writer out) throws IOException {
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            serializeJSON(result, out);
+        } else {
+            serializeXML(result, ApiDBUtils.getVersion(), out);
+        }
+    }
 
-                    if (count != null && count != 0) {
-                        sb.append("{ \"" + ApiConstants.COUNT + "\":" + ((ListResponse) result).getCount() + " ,\"" + responses.get(0).getObjectName() + "\" : [  " + jsonStr);
-                    }
-                    for (int i = 1; i < count; i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(", " + jsonStr);
+    public static void serializeJSON(ResponseObject result, Writer out) throws IOException {
+        out.write("{ \"");
+        out.write(result.getResponseName());
+        out.write("\" : ");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
+            if ((responses != null) && !responses.isEmpty()) {
+                out.write("{ \"" + ApiConstants.COUNT + "\":" + responses.size() + " ,\"" + responses.get(0).getObjectName() + "\" : [  ");
+                for (int i = 0; i < responses.size(); i++) {
+                    if (i > 0) {
+                        out.write(", ");
                     }
-                    sb.append(" ] }");
-                } else {
-                    sb.append("{ }");
+                    s_gson.toJson(responses.get(i), out);
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
-            } else if (result instanceof ExceptionResponse) {
-                sb.append("{\"errorcode\" : " + ((ExceptionResponse) result).getErrorCode() + ", \"errortext\" : \"" + ((ExceptionResponse) result).getErrorText() + "\"} ");
+                out.write(" ] }");
             } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append(" { \"" + result.getObjectName() + "\" : " + jsonStr + " } ");
-                    }
+                out.write("{ }");
+            }
+        } else if (result instanceof SuccessResponse) {
+            out.write("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
+        } else if (result instanceof ExceptionResponse) {
+            out.write("{\"errorcode\" : " + ((ExceptionResponse) result).getErrorCode() + ", \"errortext\" : \"" + ((ExceptionResponse) result).getErrorText() + "\"} ");
+        } else {
+            String jsonStr = s_gson.toJson(result);
+            if ((jsonStr != null) && !"".equals(jsonStr)) {
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+                    out.write(jsonStr);
                 } else {
-                    sb.append("{ }");
+                    out.write(" { \"" + result.getObjectName() + "\" : " + jsonStr + " } ");
                 }
+            } else {
+                out.write("{ }");
             }
-            sb.append(" }");
-            return sb.toString();
         }
-        return null;
+        out.write(" }");
     }
 
-    private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
-        sb.append("<" + result.getResponseName() + " cloud-stack-version=\"" + ApiDBUtils.getVersion() + "\">");
+    public static void serializeXML(ResponseObject result, String version, Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
+        out.write("<" + result.getResponseName() + " cloud-stack-version=\"" + version + "\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse) result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<" + ApiConstants.COUNT + ">" + ((ListResponse) result).getCount() + "</" + ApiConstants.COUNT + ">");
+                out.write("<" + ApiConstants.COUNT + ">" + count + "</" + ApiConstants.COUNT + ">");
             }
             List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result);
             }
         }
 
-        sb.append("</" + result.getResponseName() + ">");
-        return sb.toString();
+        out.write("</");
+        out.write(result.getResponseName());
+        out.write(">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
-        if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<" + obj.getObjectName() + ">");
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj) throws IOException {
+        boolean wrap = !(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse);
+        if (wrap) {
+            writeStartTag(out, obj.getObjectName());
         }
-        serializeResponseObjFieldsXML(sb, obj);
-        if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</" + obj.getObjectName() + ">");
+        serializeResponseObjFieldsXML(out, obj);
+        if (wrap) {
+            writeEndTag(out, obj.getObjectName());
         }
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj) throws IOException {
         boolean isAsync = false;
         if (obj instanceof AsyncJobResponse)
             isAsync = true;
 
-        Field[] fields = obj.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
-                continue; // skip transient fields
-            }
-
-            SerializedName serializedName = field.getAnnotation(SerializedName.class);
-            if (serializedName == null) {
-                continue; // skip fields w/o serialized name
-            }
-
-            field.setAccessible(true);
+        for (ResponseField responseField : getXmlFields(obj.getClass())) {
             Object fieldValue = null;
             try {
-                fieldValue = field.get(obj);
+                fieldValue = responseField.field.get(obj);
             } catch (IllegalArgumentException e) {
                 throw new CloudRuntimeException("how illegal is it?", e);
             } catch (IllegalAccessException e) {
@@ -182,106 +181,116 @@ public class ApiResponseSerializer {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject) fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.write("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.write("</jobresult>");
                     }
                 } else if (fieldValue instanceof List<?>) {
-                    List<?> subResponseList = (List<Object>) fieldValue;
+                    List<?> subResponseList = (List<?>) fieldValue;
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject) value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, subObj);
+                            subObj.setObjectName(responseField.name);
+                            serializeResponseObjXML(out, subObj);
                         }
                     }
 
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<" + serializedName.value() + ">" + BaseCmd.getDateString((Date) fieldValue) + "</" + serializedName.value() + ">");
+                    writeStartTag(out, responseField.name);
+                    out.write(BaseCmd.getDateString((Date) fieldValue));
+                    writeEndTag(out, responseField.name);
                 } else {
-                    String resultString = escapeSpecialXmlChars(fieldValue.toString());
-                    if (!(obj instanceof ExceptionResponse)) {
-                        resultString = encodeParam(resultString);
+                    writeStartTag(out, responseField.name);
+                    if (ApiServer.encodeApiResponse && !(obj instanceof ExceptionResponse)) {
+                        out.write(encodeParam(escapeSpecialXmlChars(fieldValue.toString())));
+                    } else {
+                        writeEscapedXml(out, fieldValue.toString());
                     }
-                    
-                    sb.append("<" + serializedName.value() + ">" + resultString + "</" + serializedName.value() + ">");
+                    writeEndTag(out, responseField.name);
                 }
             }
         }
     }
 
-    private static Method getGetMethod(Object o, String propName) {
-        Method method = null;
-        String methodName = getGetMethodName("get", propName);
-        try {
-            method = o.getClass().getMethod(methodName);
-        } catch (SecurityException e1) {
-            s_logger.error("Security exception in getting ResponseObject " + o.getClass().getName() + " get method for property: " + propName);
-        } catch (NoSuchMethodException e1) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("ResponseObject " + o.getClass().getName() + " does not have " + methodName + "() method for property: " + propName
-                        + ", will check is-prefixed method to see if it is boolean property");
-            }
-        }
+    private static ResponseField[] getXmlFields(Class<?> clazz) {
+        ResponseField[] fields = s_xmlFields.get(clazz);
+        if (fields == null) {
+            List<ResponseField> list = new ArrayList<ResponseField>();
+            for (Field field : clazz.getDeclaredFields()) {
+                if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
+                    continue; // skip transient fields
+                }
 
-        if (method != null)
-            return method;
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                if (serializedName == null) {
+                    continue; // skip fields w/o serialized name
+                }
 
-        methodName = getGetMethodName("is", propName);
-        try {
-            method = o.getClass().getMethod(methodName);
-        } catch (SecurityException e1) {
-            s_logger.error("Security exception in getting ResponseObject " + o.getClass().getName() + " get method for property: " + propName);
-        } catch (NoSuchMethodException e1) {
-            s_logger.warn("ResponseObject " + o.getClass().getName() + " does not have " + methodName + "() method for property: " + propName);
+                field.setAccessible(true);
+                list.add(new ResponseField(field, serializedName.value()));
+            }
+            fields = list.toArray(new ResponseField[list.size()]);
+            s_xmlFields.put(clazz, fields);
         }
-        return method;
+        return fields;
     }
 
-    private static String getGetMethodName(String prefix, String fieldName) {
-        StringBuffer sb = new StringBuffer(prefix);
+    private static void writeStartTag(Writer out, String name) throws IOException {
+        out.write('<');
+        out.write(name);
+        out.write('>');
+    }
 
-        if (fieldName.length() >= prefix.length() && fieldName.substring(0, prefix.length()).equals(prefix)) {
-            return fieldName;
-        } else {
-            sb.append(fieldName.substring(0, 1).toUpperCase());
-            sb.append(fieldName.substring(1));
+    private static void writeEndTag(Writer out, String name) throws IOException {
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    private static void writeEscapedXml(Writer out, String value) throws IOException {
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            String entity = getXmlEntity(value.charAt(i));
+            if (entity != null) {
+                out.write(value, start, i - start);
+                out.write(entity);
+                start = i + 1;
+            }
         }
+        out.write(value, start, length - start);
+    }
 
-        return sb.toString();
+    private static String getXmlEntity(char c) {
+        switch (c) {
+        case '"':
+            return "&quot;";
+        case '\'':
+            return "&apos;";
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '&':
+            return "&amp;";
+        default:
+            return null;
+        }
     }
 
     private static String escapeSpecialXmlChars(String originalString) {
-        char[] origChars = originalString.toCharArray();
-        StringBuilder resultString = new StringBuilder();
-
-        for (char singleChar : origChars) {
-            if (singleChar == '"') {
-                resultString.append("&quot;");
-            } else if (singleChar == '\'') {
-                resultString.append("&apos;");
-            } else if (singleChar == '<') {
-                resultString.append("&lt;");
-            } else if (singleChar == '>') {
-                resultString.append("&gt;");
-            } else if (singleChar == '&') {
-                resultString.append("&amp;");
-            } else {
-                resultString.append(singleChar);
-            }
+        StringWriter resultString = new StringWriter(originalString.length());
+        try {
+            writeEscapedXml(resultString, originalString);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
         }
-        
         return resultString.toString();
     }
     
     private static String encodeParam(String value) {
-        if (!ApiServer.encodeApiResponse) {
-            return value;
-        }
         try {
             return new URLEncoder().encode(value).replaceAll("\\+", "%20");
         } catch (Exception e) {
@@ -0,0 +1,98 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Holds a streamed response back until it outgrows the buffer.  A response
+ * that fails to serialize before then has not reached the client and can
+ * still be answered with an error; once committed everything passes
+ * straight through.
+ */
+public class BufferedResponseWriter extends Writer {
+    private final Writer _out;
+    private final int _limit;
+    private StringBuilder _buffer;
+
+    public BufferedResponseWriter(Writer out, int limit) {
+        _out = out;
+        _limit = limit;
+        _buffer = new StringBuilder(Math.min(limit, 8192));
+    }
+
+    /**
+     * @return true if part of the response has been handed to the underlying writer.
+     */
+    public boolean isCommitted() {
+        return _buffer == null;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (_buffer == null) {
+            _out.write(cbuf, off, len);
+            return;
+        }
+        _buffer.append(cbuf, off, len);
+        if (_buffer.length() > _limit) {
+            commit();
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (_buffer == null) {
+            _out.write(str, off, len);
+            return;
+        }
+        _buffer.append(str, off, off + len);
+        if (_buffer.length() > _limit) {
+            commit();
+        }
+    }
+
+    private void commit() throws IOException {
+        StringBuilder buffer = _buffer;
+        _buffer = null;
+        _out.write(buffer.toString());
+    }
+
+    /**
+     * Only flushes a committed response, an uncommitted one is held back until close().
+     */
+    @Override
+    public void flush() throws IOException {
+        if (_buffer == null) {
+            _out.flush();
+        }
+    }
+
+    /**
+     * Writes out whatever is still buffered and flushes, the underlying writer is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (_buffer != null) {
+            commit();
+        }
+        _out.flush();
+    }
+}
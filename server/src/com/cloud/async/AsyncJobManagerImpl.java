@@ -83,6 +83,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int REDISPATCH_DELAY = 500;            // queue items returned for lack of threads are retried locally
+    private static final int MAX_QUEUE_CHECK_RETRIES = 3;       // failed queue checks are then left to the heartbeat
     
     private String _name;
     
@@ -100,6 +102,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
 
+    private final SyncQueueMBeanImpl _queueStats = new SyncQueueMBeanImpl();
+
     @Override
 	public AsyncJobExecutorContext getExecutorContext() {
 		return _context;
@@ -266,7 +270,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	SyncQueueVO queue = null;
 
 		// to deal with temporary DB exceptions like DB deadlock/Lock-wait time out cased rollbacks
-    	// we retry five times until we throw an exception
+    	// we retry five times with exponential backoff until we throw an exception
 		Random random = new Random();
 
     	for(int i = 0; i < 5; i++) {
@@ -276,7 +280,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             }
 
     		try {
-				Thread.sleep(1000 + random.nextInt(5000));
+    		    int backoff = 100 << i;
+				Thread.sleep(backoff + random.nextInt(backoff));
 			} catch (InterruptedException e) {
 			}
     	}
@@ -504,7 +509,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         };
     }
 
-    private void executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession) {
+    /**
+     * @return false if the item had to be returned to its queue.
+     */
+    private boolean executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession, boolean fromScan) {
         AsyncJobVO job = _jobDao.findById(item.getContentId());
         if (job != null) {
             if(s_logger.isDebugEnabled()) {
@@ -522,7 +530,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 			} catch(RejectedExecutionException e) {
 				s_logger.warn("Execution for job-" + job.getId() + " is rejected, return it to the queue for next turn");
 				_queueMgr.returnItem(item.getId());
+				scheduleQueueCheck(item.getQueueId());
+				return false;
 			}
+            recordDispatch(item, fromScan);
             
         } else {
             if(s_logger.isDebugEnabled()) {
@@ -531,6 +542,43 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
             _queueMgr.purgeItem(item.getId());
         }
+        return true;
+    }
+
+    private void recordDispatch(SyncQueueItemVO item, boolean fromScan) {
+        String syncObjType = item.getSyncObjType() != null ? item.getSyncObjType() : "Unknown";
+
+        long wait = 0;
+        if (item.getCreated() != null) {
+            wait = Math.max(0, DateUtil.currentGMTTime().getTime() - item.getCreated().getTime());
+        }
+        _queueStats.recordDispatch(syncObjType, wait, fromScan);
+    }
+
+    private void scheduleQueueCheck(final long queueId) {
+        scheduleQueueCheck(queueId, 0);
+    }
+
+    /**
+     * Retries the queue shortly on this server instead of leaving it to the
+     * heartbeat scan.  The delay doubles with each failed check.
+     */
+    private void scheduleQueueCheck(final long queueId, final int failures) {
+        _queueStats.recordRedispatch();
+        try {
+            _heartbeatScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkQueue(queueId, failures);
+                    } finally {
+                        StackMaid.current().exitCleanup();
+                    }
+                }
+            }, REDISPATCH_DELAY << failures, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            s_logger.debug("Unable to reschedule sync queue-" + queueId + ", it will be picked up by the heartbeat");
+        }
     }
 
     @Override
@@ -548,6 +596,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     }
     
     private void checkQueue(long queueId) {
+        checkQueue(queueId, 0);
+    }
+
+    private void checkQueue(long queueId, int failures) {
     	while(true) {
     		try {
 	        	SyncQueueItemVO item = _queueMgr.dequeueFromOne(queueId, getMsid());
@@ -556,12 +608,19 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                         s_logger.debug("Executing sync queue item: " + item.toString());
                     }
 		    		
-		    		executeQueueItem(item, false);
+		    		if (!executeQueueItem(item, false, false)) {
+		    		    break;
+		    		}
 		    	} else {
 		    		break;
 		    	}
     		} catch(Throwable e) {
     			s_logger.error("Unexpected exception when kicking sync queue-" + queueId, e);
+    			if (failures < MAX_QUEUE_CHECK_RETRIES) {
+    			    scheduleQueueCheck(queueId, failures + 1);
+    			} else {
+    			    s_logger.warn("Leaving sync queue-" + queueId + " to the heartbeat after " + (failures + 1) + " failed checks");
+    			}
     			break;
     		}
     	}
@@ -578,7 +637,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 							if(s_logger.isDebugEnabled()) {
                                 s_logger.debug("Execute sync-queue item: " + item.toString());
                             }
-							executeQueueItem(item, false);
+							executeQueueItem(item, false, true);
 						}
 					}
 				} catch(Throwable e) {
@@ -780,6 +839,12 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     		s_logger.error("Unexpected exception " + e.getMessage(), e);
     	}
     	
+    	try {
+    	    JmxUtil.registerMBean("AsyncJobManager", "SyncQueues", _queueStats);
+    	} catch(Exception e) {
+    	    s_logger.warn("Unable to register sync queue statistics to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+    	}
+
     	_heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL,
 			HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
     	_heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
@@ -801,6 +866,11 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
     @Override
     public boolean stop() {
+    	try {
+    	    JmxUtil.unregisterMBean("AsyncJobManager", "SyncQueues");
+    	} catch(Exception e) {
+    	    s_logger.warn("Unable to unregister sync queue statistics from JMX monitoring");
+    	}
     	_heartbeatScheduler.shutdown();
     	_executor.shutdown();
         return true;
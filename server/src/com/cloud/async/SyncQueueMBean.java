@@ -0,0 +1,35 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.async;
+
+import java.util.Map;
+
+/**
+ * Sync queue dispatch statistics.  Wait times are in milliseconds from the
+ * time an item was queued until it was scheduled, keyed by sync object type.
+ */
+public interface SyncQueueMBean {
+    public long getLocalDispatchCount();
+    public long getScanDispatchCount();
+    public long getRedispatchCount();
+    public Map<String, Long> getDispatchCounts();
+    public Map<String, Long> getAverageQueueWaitTimes();
+    public Map<String, Long> getMaxQueueWaitTimes();
+    public void resetQueueStats();
+}
@@ -0,0 +1,126 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.async;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+public class SyncQueueMBeanImpl extends StandardMBean implements SyncQueueMBean {
+    private final ConcurrentHashMap<String, WaitStats> _stats = new ConcurrentHashMap<String, WaitStats>();
+    private final AtomicLong _localDispatches = new AtomicLong();
+    private final AtomicLong _scanDispatches = new AtomicLong();
+    private final AtomicLong _redispatches = new AtomicLong();
+
+    public SyncQueueMBeanImpl() {
+        super(SyncQueueMBean.class, false);
+    }
+
+    public void recordDispatch(String syncObjType, long wait, boolean fromScan) {
+        if (fromScan) {
+            _scanDispatches.incrementAndGet();
+        } else {
+            _localDispatches.incrementAndGet();
+        }
+
+        WaitStats stats = _stats.get(syncObjType);
+        if (stats == null) {
+            stats = new WaitStats();
+            WaitStats existing = _stats.putIfAbsent(syncObjType, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(wait);
+    }
+
+    public void recordRedispatch() {
+        _redispatches.incrementAndGet();
+    }
+
+    @Override
+    public long getLocalDispatchCount() {
+        return _localDispatches.get();
+    }
+
+    @Override
+    public long getScanDispatchCount() {
+        return _scanDispatches.get();
+    }
+
+    @Override
+    public long getRedispatchCount() {
+        return _redispatches.get();
+    }
+
+    @Override
+    public Map<String, Long> getDispatchCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, WaitStats> entry : _stats.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().count.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getAverageQueueWaitTimes() {
+        Map<String, Long> waits = new HashMap<String, Long>();
+        for (Map.Entry<String, WaitStats> entry : _stats.entrySet()) {
+            WaitStats stats = entry.getValue();
+            long count = stats.count.get();
+            waits.put(entry.getKey(), count == 0 ? 0 : stats.total.get() / count);
+        }
+        return waits;
+    }
+
+    @Override
+    public Map<String, Long> getMaxQueueWaitTimes() {
+        Map<String, Long> waits = new HashMap<String, Long>();
+        for (Map.Entry<String, WaitStats> entry : _stats.entrySet()) {
+            waits.put(entry.getKey(), entry.getValue().max.get());
+        }
+        return waits;
+    }
+
+    @Override
+    public void resetQueueStats() {
+        _stats.clear();
+        _localDispatches.set(0);
+        _scanDispatches.set(0);
+        _redispatches.set(0);
+    }
+
+    protected static class WaitStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long wait) {
+            count.incrementAndGet();
+            total.addAndGet(wait);
+            long current = max.get();
+            while (wait > current && !max.compareAndSet(current, wait)) {
+                current = max.get();
+            }
+        }
+    }
+}
@@ -108,6 +108,7 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 	    			itemVO.setLastProcessMsid(msid);
 	    			itemVO.setLastProcessNumber(processNumber);
 	    			_syncQueueItemDao.update(itemVO.getId(), itemVO);
+	    			itemVO.setSyncObjType(queueVO.getSyncObjType());
 	    			
 	        		txt.commit();
 	    			return itemVO;
@@ -160,6 +161,7 @@ public class SyncQueueManagerImpl implements SyncQueueManager {
 		    			itemVO.setLastProcessNumber(processNumber);
 		    			_syncQueueItemDao.update(item.getId(), itemVO);
 		    			
+		    			item.setSyncObjType(queueVO.getSyncObjType());
 		    			resultList.add(item);
     				}
     			}
@@ -29,10 +29,12 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -48,6 +50,9 @@ import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.Listener;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.ChangeAgentCommand;
+import com.cloud.agent.api.InvalidateQueryCacheCommand;
+import com.cloud.agent.api.LockReleasedCommand;
+import com.cloud.agent.api.LockWaitCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.manager.Commands;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
@@ -70,6 +75,8 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Merovingian2;
+import com.cloud.utils.db.QueryCache;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.events.SubscriptionMgr;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -106,6 +113,10 @@ public class ClusterManagerImpl implements ClusterManager {
     private ConnectionConcierge _heartbeatConnection = null;
 
     private final ExecutorService _executor;
+    private final Set<String> _pendingCacheInvalidations = new HashSet<String>();
+    // lock keys to send to each peer, by peer msid
+    private final Map<Long, Set<String>> _pendingLockWaits = new HashMap<Long, Set<String>>();
+    private final Map<Long, Set<String>> _pendingLockReleases = new HashMap<Long, Set<String>>();
 
     private ClusterServiceAdapter _currentServiceAdapter;
 
@@ -224,6 +235,81 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
 
+    /**
+     * Tells the peers about writes that invalidated query caches.  Writes
+     * that come in while a broadcast is pending are sent with it.
+     */
+    protected class QueryCacheInvalidator implements QueryCache.Listener {
+        @Override
+        public void invalidated(String name) {
+            synchronized (_pendingCacheInvalidations) {
+                if (!_pendingCacheInvalidations.add(name) || _pendingCacheInvalidations.size() > 1) {
+                    return;
+                }
+            }
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    String[] daos;
+                    synchronized (_pendingCacheInvalidations) {
+                        daos = _pendingCacheInvalidations.toArray(new String[_pendingCacheInvalidations.size()]);
+                        _pendingCacheInvalidations.clear();
+                    }
+                    broadcast(0, new Command[] { new InvalidateQueryCacheCommand(daos) });
+                }
+            });
+        }
+    }
+
+    /**
+     * Tells the peer holding a global lock that threads here wait for it,
+     * and tells only the peers waiting for a released lock about the
+     * release, so their waiters don't have to poll for it.  Keys for the
+     * same peer are coalesced like the query cache invalidations.
+     */
+    protected class LockReleaseNotifier implements Merovingian2.Listener {
+        @Override
+        public void waiting(String key, long ownerMsId) {
+            send(_pendingLockWaits, ownerMsId, key);
+        }
+
+        @Override
+        public void released(String key, Set<Long> waiters) {
+            for (Long msId : waiters) {
+                send(_pendingLockReleases, msId, key);
+            }
+        }
+
+        protected void send(final Map<Long, Set<String>> pending, final long msId, String key) {
+            synchronized (pending) {
+                Set<String> keys = pending.get(msId);
+                if (keys != null) {
+                    keys.add(key);
+                    return;
+                }
+                keys = new HashSet<String>();
+                keys.add(key);
+                pending.put(msId, keys);
+            }
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Set<String> keys;
+                    synchronized (pending) {
+                        keys = pending.remove(msId);
+                    }
+                    String[] array = keys.toArray(new String[keys.size()]);
+                    Command cmd = pending == _pendingLockWaits ? new LockWaitCommand(array) : new LockReleasedCommand(array);
+                    try {
+                        execute(Long.toString(msId), 0, new Command[] { cmd }, true);
+                    } catch (Exception e) {
+                        s_logger.warn("Caught exception while talking to " + msId);
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     public Answer[] execute(String strPeer, long agentId, Command [] cmds, boolean stopOnError) {
         ClusterService peerService =  null;
@@ -548,6 +634,16 @@ public class ClusterManagerImpl implements ClusterManager {
         return service;
     }
 
+    /**
+     * @return the link to the peer if the nio cluster service adapter is in use.
+     */
+    public ClusterServiceNioPeer getNioPeer(long msid) {
+        if(_currentServiceAdapter instanceof ClusterServiceNioAdapter) {
+            return ((ClusterServiceNioAdapter)_currentServiceAdapter).getPeer(Long.toString(msid));
+        }
+        return null;
+    }
+
     public void invalidatePeerService(String strPeer) {
         synchronized(clusterPeers) {
             if(clusterPeers.containsKey(strPeer)) {
@@ -973,6 +1069,11 @@ public class ClusterManagerImpl implements ClusterManager {
             // use seperate thread for heartbeat updates
             _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
             _notificationExecutor.submit(getNotificationTask());
+            QueryCache.setListener(new QueryCacheInvalidator());
+            Merovingian2 lockMaster = Merovingian2.getLockMaster();
+            if (lockMaster != null) {
+                lockMaster.setListener(new LockReleaseNotifier());
+            }
 
         } catch (Throwable e) {
             s_logger.error("Unexpected exception : ", e);
@@ -996,6 +1097,11 @@ public class ClusterManagerImpl implements ClusterManager {
             _mshostDao.update(_mshostId, mshost);
         }
 
+        QueryCache.setListener(null);
+        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if (lockMaster != null) {
+            lockMaster.setListener(null);
+        }
         _heartbeatScheduler.shutdownNow();
         _executor.shutdownNow();
 
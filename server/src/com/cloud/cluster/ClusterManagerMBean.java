@@ -26,4 +26,15 @@ public interface ClusterManagerMBean {
 	public int getHeartbeatInterval();
 	public int getHeartbeatThreshold();
 	public void setHeartbeatThreshold(int threshold);
+
+	// Link statistics of the peer, only available with the nio cluster service adapter
+	public boolean isPeerConnected();
+	public int getPeerPendingRequests();
+	public long getPeerRequestCount();
+	public long getPeerFailureCount();
+	public long getPeerConnectCount();
+	public long getPeerConnectFailureCount();
+	public long getPeerAverageLatency();
+	public long getPeerMaxLatency();
+	public String getPeerLastFailureTime();
 }
@@ -66,4 +66,51 @@ public class ClusterManagerMBeanImpl extends StandardMBean implements ClusterMan
     	if(threshold >= ClusterManager.DEFAULT_HEARTBEAT_THRESHOLD)
     		_clusterMgr.setHeartbeatThreshold(threshold);
 	}
+
+	public boolean isPeerConnected() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null && peer.isConnected();
+	}
+
+	public int getPeerPendingRequests() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getPendingRequestCount() : 0;
+	}
+
+	public long getPeerRequestCount() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getRequestCount() : 0;
+	}
+
+	public long getPeerFailureCount() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getFailureCount() : 0;
+	}
+
+	public long getPeerConnectCount() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getConnectCount() : 0;
+	}
+
+	public long getPeerConnectFailureCount() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getConnectFailureCount() : 0;
+	}
+
+	public long getPeerAverageLatency() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getAverageLatency() : 0;
+	}
+
+	public long getPeerMaxLatency() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		return peer != null ? peer.getMaxLatency() : 0;
+	}
+
+	public String getPeerLastFailureTime() {
+		ClusterServiceNioPeer peer = _clusterMgr.getNioPeer(_mshostVo.getMsid());
+		if(peer == null || peer.getLastFailureTime() == 0)
+			return null;
+		return DateUtil.getDateDisplayString(TimeZone.getDefault(), new Date(peer.getLastFailureTime()));
+	}
 }
@@ -0,0 +1,287 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.cluster;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.ejb.Local;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.dao.ManagementServerHostDao;
+import com.cloud.configuration.Config;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.PropertiesUtil;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+/**
+ * Cluster service transport that keeps one nio link open to each peer and
+ * pipelines the calls over it, instead of opening an HTTP connection and
+ * form encoding the payload for every call.  It listens on the same
+ * cluster.servlet.port as the servlet adapter, so all management servers
+ * in a cluster have to use the same adapter.
+ */
+@Local(value={ClusterServiceAdapter.class})
+public class ClusterServiceNioAdapter implements ClusterServiceAdapter, HandlerFactory {
+
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioAdapter.class);
+    private static final int DEFAULT_SERVICE_PORT = 9090;
+    private static final int DEFAULT_REQUEST_TIMEOUT = 300;			// 300 seconds
+    private static final int NIO_WORKERS = 5;
+
+    private ClusterManager _manager;
+
+    private ManagementServerHostDao _mshostDao;
+
+    private ConfigurationDao _configDao;
+
+    private ClusterServiceDispatcher _dispatcher;
+    private NioServer _server;
+    private ExecutorService _requestExecutor;
+    private final ConcurrentHashMap<String, ClusterServiceNioPeer> _peers = new ConcurrentHashMap<String, ClusterServiceNioPeer>();
+
+    private String _name;
+    private int _clusterServicePort = DEFAULT_SERVICE_PORT;
+
+    private int _clusterRequestTimeoutSeconds = DEFAULT_REQUEST_TIMEOUT;
+
+    @Override
+    public ClusterService getPeerService(String strPeer) throws RemoteException {
+        try {
+            init();
+        } catch (ConfigurationException e) {
+            s_logger.error("Unable to init ClusterServiceNioAdapter");
+            throw new RemoteException("Unable to init ClusterServiceNioAdapter");
+        }
+
+        ManagementServerHostVO mshost = _mshostDao.findByMsid(Long.parseLong(strPeer));
+        if(mshost == null) {
+            return null;
+        }
+
+        ClusterServiceNioPeer peer = _peers.get(strPeer);
+        if (peer != null) {
+            if (peer.getHost().equals(mshost.getServiceIP()) && peer.getPort() == mshost.getServicePort()) {
+                return peer;
+            }
+            if (_peers.remove(strPeer, peer)) {
+                peer.close();
+            }
+        }
+
+        peer = new ClusterServiceNioPeer(strPeer, mshost.getServiceIP(), mshost.getServicePort(), _clusterRequestTimeoutSeconds);
+        ClusterServiceNioPeer existing = _peers.putIfAbsent(strPeer, peer);
+        return existing != null ? existing : peer;
+    }
+
+    /**
+     * @return the peer's link, or null if no call has been made to it yet.
+     */
+    public ClusterServiceNioPeer getPeer(String strPeer) {
+        return _peers.get(strPeer);
+    }
+
+    @Override
+    public String getServiceEndpointName(String strPeer) {
+        try {
+            init();
+        } catch (ConfigurationException e) {
+            s_logger.error("Unable to init ClusterServiceNioAdapter");
+            return null;
+        }
+
+        long msid = Long.parseLong(strPeer);
+
+        ManagementServerHostVO mshost = _mshostDao.findByMsid(msid);
+        if(mshost == null) {
+            return null;
+        }
+
+        return mshost.getServiceIP() + ":" + mshost.getServicePort();
+    }
+
+    @Override
+    public int getServicePort() {
+        return _clusterServicePort;
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        _name = name;
+
+        init();
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public boolean start() {
+        _dispatcher = new ClusterServiceDispatcher(_manager);
+        _requestExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Cluster-Listener"));
+        _server = new NioServer("ClusterService", _clusterServicePort, NIO_WORKERS, this);
+        _server.start();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        for (ClusterServiceNioPeer peer : _peers.values()) {
+            peer.close();
+        }
+        _peers.clear();
+
+        if(_server != null) {
+            _server.stop();
+        }
+        if(_requestExecutor != null) {
+            _requestExecutor.shutdown();
+        }
+        return true;
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new RequestTask(type, link, data);
+    }
+
+    protected ClusterServiceNioMessage dispatch(ClusterServiceNioMessage request) {
+        switch(request.getMethod()) {
+        case RemoteMethodConstants.METHOD_EXECUTE :
+            return request.response(0, true, _dispatcher.execute(request.getPeer(), request.getAgentId(), request.getPayload(), request.getFlag()));
+
+        case RemoteMethodConstants.METHOD_EXECUTE_ASYNC :
+            return request.response(_dispatcher.executeAsync(request.getPeer(), request.getAgentId(), request.getPayload(), request.getFlag()), true, null);
+
+        case RemoteMethodConstants.METHOD_ASYNC_RESULT :
+            return request.response(0, _dispatcher.onAsyncResult(request.getPeer(), request.getAgentId(), request.getValue(), request.getPayload()), null);
+
+        case RemoteMethodConstants.METHOD_PING :
+            return request.response(0, _dispatcher.ping(request.getPeer()), null);
+
+        default :
+            s_logger.error("unrecognized method " + request.getMethod());
+            return null;
+        }
+    }
+
+    protected class RequestTask extends Task {
+        public RequestTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() != Task.Type.DATA) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster service link " + task.getType() + " from " + task.getLink().getIpAddress());
+                }
+                return;
+            }
+
+            final Link link = task.getLink();
+            final ClusterServiceNioMessage request = ClusterServiceNioMessage.parse(task.getData());
+
+            // Calls can block on agents for a long time, so they don't run
+            // on the nio workers, which also have to deliver the responses.
+            _requestExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ClusterServiceNioMessage response = null;
+                    try {
+                        response = dispatch(request);
+                    } catch(Throwable e) {
+                        s_logger.error("Unexpected exception when processing cluster service request : ", e);
+                    }
+                    if (response == null) {
+                        response = request.failure();
+                    }
+
+                    try {
+                        link.send(response.toBytes());
+                    } catch (ClosedChannelException e) {
+                        s_logger.info("Unable to respond to " + request + ", the link is closed");
+                    }
+                }
+            });
+        }
+    }
+
+    private void init() throws ConfigurationException {
+        if(_mshostDao != null) {
+            return;
+        }
+
+        ComponentLocator locator = ComponentLocator.getCurrentLocator();
+
+        _manager = locator.getManager(ClusterManager.class);
+        if(_manager == null) {
+            throw new ConfigurationException("Unable to get " + ClusterManager.class.getName());
+        }
+
+        _mshostDao = locator.getDao(ManagementServerHostDao.class);
+        if(_mshostDao == null) {
+            throw new ConfigurationException("Unable to get " + ManagementServerHostDao.class.getName());
+        }
+
+        _configDao = locator.getDao(ConfigurationDao.class);
+        if(_configDao == null) {
+            throw new ConfigurationException("Unable to get " + ConfigurationDao.class.getName());
+        }
+
+        String value = _configDao.getValue(Config.ClusterMessageTimeOutSeconds.key());
+        _clusterRequestTimeoutSeconds = NumbersUtil.parseInt(value, DEFAULT_REQUEST_TIMEOUT);
+        s_logger.info("Configure cluster request time out. timeout: " + _clusterRequestTimeoutSeconds + " seconds");
+
+        File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
+        Properties dbProps = new Properties();
+        try {
+            dbProps.load(new FileInputStream(dbPropsFile));
+        } catch (FileNotFoundException e) {
+            throw new ConfigurationException("Unable to find db.properties");
+        } catch (IOException e) {
+            throw new ConfigurationException("Unable to load db.properties content");
+        }
+
+        _clusterServicePort = NumbersUtil.parseInt(dbProps.getProperty("cluster.servlet.port"), DEFAULT_SERVICE_PORT);
+        if(s_logger.isInfoEnabled()) {
+            s_logger.info("Cluster service port : " + _clusterServicePort);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One cluster service call or its result on a peer link.  Requests and
+ * responses share the layout; the seq ties a response to its request so
+ * that several calls can be in flight on the same link.
+ */
+public class ClusterServiceNioMessage {
+    public static final byte REQUEST = 1;
+    public static final byte RESPONSE = 2;
+
+    private static final Charset s_charset = Charset.forName("UTF-8");
+
+    byte _kind;
+    long _seq;
+    int _method;
+    long _agentId;
+    long _value;
+    boolean _flag;
+    String _peer;
+    String _payload;
+
+    public ClusterServiceNioMessage() {
+    }
+
+    public static ClusterServiceNioMessage request(int method, String peer, long agentId, long value, boolean flag, String payload) {
+        ClusterServiceNioMessage msg = new ClusterServiceNioMessage();
+        msg._kind = REQUEST;
+        msg._method = method;
+        msg._peer = peer;
+        msg._agentId = agentId;
+        msg._value = value;
+        msg._flag = flag;
+        msg._payload = payload;
+        return msg;
+    }
+
+    public ClusterServiceNioMessage response(long value, boolean flag, String payload) {
+        ClusterServiceNioMessage msg = new ClusterServiceNioMessage();
+        msg._kind = RESPONSE;
+        msg._seq = _seq;
+        msg._method = _method;
+        msg._agentId = _agentId;
+        msg._value = value;
+        msg._flag = flag;
+        msg._payload = payload;
+        return msg;
+    }
+
+    /**
+     * @return the response to send back when the call could not be executed.
+     */
+    public ClusterServiceNioMessage failure() {
+        ClusterServiceNioMessage msg = response(-1, false, null);
+        msg._method = RemoteMethodConstants.METHOD_UNKNOWN;
+        return msg;
+    }
+
+    public boolean isRequest() {
+        return _kind == REQUEST;
+    }
+
+    public long getSeq() {
+        return _seq;
+    }
+
+    public void setSeq(long seq) {
+        _seq = seq;
+    }
+
+    public int getMethod() {
+        return _method;
+    }
+
+    public long getAgentId() {
+        return _agentId;
+    }
+
+    public long getValue() {
+        return _value;
+    }
+
+    public boolean getFlag() {
+        return _flag;
+    }
+
+    public String getPeer() {
+        return _peer;
+    }
+
+    public String getPayload() {
+        return _payload;
+    }
+
+    public byte[] toBytes() {
+        byte[] peer = _peer != null ? _peer.getBytes(s_charset) : null;
+        byte[] payload = _payload != null ? _payload.getBytes(s_charset) : null;
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 1 + 8 + 8 + 1 + 4 + (peer != null ? peer.length : 0) + 4 + (payload != null ? payload.length : 0));
+        buffer.put(_kind);
+        buffer.putLong(_seq);
+        buffer.put((byte)_method);
+        buffer.putLong(_agentId);
+        buffer.putLong(_value);
+        buffer.put(_flag ? (byte)1 : (byte)0);
+        putBytes(buffer, peer);
+        putBytes(buffer, payload);
+        return buffer.array();
+    }
+
+    public static ClusterServiceNioMessage parse(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        ClusterServiceNioMessage msg = new ClusterServiceNioMessage();
+        msg._kind = buffer.get();
+        msg._seq = buffer.getLong();
+        msg._method = buffer.get();
+        msg._agentId = buffer.getLong();
+        msg._value = buffer.getLong();
+        msg._flag = buffer.get() != 0;
+        msg._peer = getString(buffer);
+        msg._payload = getString(buffer);
+        return msg;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        if (len < 0) {
+            return null;
+        }
+        String str = new String(buffer.array(), buffer.position(), len, s_charset);
+        buffer.position(buffer.position() + len);
+        return str;
+    }
+
+    @Override
+    public String toString() {
+        return (isRequest() ? "Request" : "Response") + " seq=" + _seq + ", method=" + _method + ", agent=" + _agentId;
+    }
+}
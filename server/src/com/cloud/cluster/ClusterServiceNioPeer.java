@@ -0,0 +1,366 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioClient;
+import com.cloud.utils.nio.Task;
+
+/**
+ * ClusterService stub that talks to one peer over a long lived nio link.
+ * Calls from any number of threads share the link and are matched with
+ * their responses by sequence number.  The link is opened on first use
+ * and reopened on the next call after it breaks.
+ */
+public class ClusterServiceNioPeer implements ClusterService, HandlerFactory {
+    private static final long serialVersionUID = -2924796474931826045L;
+    private static final Logger s_logger = Logger.getLogger(ClusterServiceNioPeer.class);
+
+    private static final int CONNECT_TIMEOUT = 30000;   // 30 seconds
+
+    private final String _peer;
+    private final String _host;
+    private final int _port;
+    private final int _requestTimeoutSeconds;
+
+    private NioClient _client;
+    private Link _link;
+
+    private final ConcurrentHashMap<Long, PendingCall> _calls = new ConcurrentHashMap<Long, PendingCall>();
+    private final AtomicLong _nextSeq = new AtomicLong();
+
+    private final AtomicLong _connects = new AtomicLong();
+    private final AtomicLong _connectFailures = new AtomicLong();
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+    private volatile long _lastFailure = 0;
+
+    public ClusterServiceNioPeer(String peer, String host, int port, int requestTimeoutSeconds) {
+        s_logger.info("Setup cluster service peer " + peer + " at " + host + ":" + port + ", request timeout: " + requestTimeoutSeconds + " seconds");
+        _peer = peer;
+        _host = host;
+        _port = port;
+        _requestTimeoutSeconds = requestTimeoutSeconds;
+    }
+
+    @Override
+    public String execute(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Send (sync-call) " + gsonPackage + " to " + _peer + " for agent " + agentId + " from " + callingPeer);
+        }
+
+        ClusterServiceNioMessage response = call(ClusterServiceNioMessage.request(RemoteMethodConstants.METHOD_EXECUTE, callingPeer, agentId, 0, stopOnError, gsonPackage));
+        return response.getPayload();
+    }
+
+    @Override
+    public long executeAsync(String callingPeer, long agentId, String gsonPackage, boolean stopOnError) throws RemoteException {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Send (async-call) " + gsonPackage + " to " + _peer + " for agent " + agentId + " from " + callingPeer);
+        }
+
+        ClusterServiceNioMessage response = call(ClusterServiceNioMessage.request(RemoteMethodConstants.METHOD_EXECUTE_ASYNC, callingPeer, agentId, 0, stopOnError, gsonPackage));
+        if (response.getMethod() == RemoteMethodConstants.METHOD_UNKNOWN) {
+            throw new RemoteException("Invalid result returned from async-execution on peer : " + _peer);
+        }
+        return response.getValue();
+    }
+
+    @Override
+    public boolean onAsyncResult(String executingPeer, long agentId, long seq, String gsonPackage) throws RemoteException {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Forward Async-call answer to remote listener, agent: " + agentId
+                    + ", excutingPeer: " + executingPeer
+                    + ", seq: " + seq + ", gsonPackage: " + gsonPackage);
+        }
+
+        ClusterServiceNioMessage response = call(ClusterServiceNioMessage.request(RemoteMethodConstants.METHOD_ASYNC_RESULT, executingPeer, agentId, seq, false, gsonPackage));
+        return response.getFlag();
+    }
+
+    @Override
+    public boolean ping(String callingPeer) throws RemoteException {
+        if(s_logger.isDebugEnabled()) {
+            s_logger.debug("Ping " + _peer);
+        }
+
+        ClusterServiceNioMessage response = call(ClusterServiceNioMessage.request(RemoteMethodConstants.METHOD_PING, callingPeer, 0, 0, false, null));
+        return response.getFlag();
+    }
+
+    protected ClusterServiceNioMessage call(ClusterServiceNioMessage request) throws RemoteException {
+        Link link = connect();
+
+        long seq = _nextSeq.incrementAndGet();
+        request.setSeq(seq);
+        PendingCall call = new PendingCall(link);
+        _calls.put(seq, call);
+
+        long startTick = System.currentTimeMillis();
+        try {
+            // disconnected() only fails the calls it finds, so a link that closed before the put has to be caught here
+            synchronized (this) {
+                if (_link != link) {
+                    throw new ClosedChannelException();
+                }
+            }
+            link.send(request.toBytes());
+            ClusterServiceNioMessage response = call.waitForResponse(_requestTimeoutSeconds * 1000L);
+            if (response == null) {
+                throw new RemoteException("Timed out waiting for " + request + " on peer " + _peer);
+            }
+
+            long latency = System.currentTimeMillis() - startTick;
+            _requests.incrementAndGet();
+            _totalLatency.addAndGet(latency);
+            long max = _maxLatency.get();
+            while (latency > max && !_maxLatency.compareAndSet(max, latency)) {
+                max = _maxLatency.get();
+            }
+            return response;
+        } catch (ClosedChannelException e) {
+            disconnected(link);
+            _failures.incrementAndGet();
+            _lastFailure = System.currentTimeMillis();
+            throw new RemoteException("Link to peer " + _peer + " is closed");
+        } catch (RemoteException e) {
+            _failures.incrementAndGet();
+            _lastFailure = System.currentTimeMillis();
+            throw e;
+        } finally {
+            _calls.remove(seq);
+        }
+    }
+
+    protected synchronized Link connect() throws RemoteException {
+        if (_link != null) {
+            return _link;
+        }
+
+        if (_client != null) {
+            shutdown(_client);
+            _client = null;
+        }
+
+        NioClient client = new NioClient("ClusterPeer-" + _peer, _host, _port, 2, this);
+        client.start();
+        if (!client.isStartup()) {
+            shutdown(client);
+            _connectFailures.incrementAndGet();
+            _lastFailure = System.currentTimeMillis();
+            throw new RemoteException("Unable to connect to peer " + _peer + " at " + _host + ":" + _port);
+        }
+        _client = client;
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (_link == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                shutdown(_client);
+                _client = null;
+                _connectFailures.incrementAndGet();
+                _lastFailure = System.currentTimeMillis();
+                throw new RemoteException("Timed out connecting to peer " + _peer);
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+            }
+        }
+        _connects.incrementAndGet();
+        return _link;
+    }
+
+    protected synchronized void connected(Link link) {
+        _link = link;
+        notifyAll();
+    }
+
+    protected void disconnected(Link link) {
+        synchronized (this) {
+            if (_link != link) {
+                return;
+            }
+            _link = null;
+        }
+
+        s_logger.info("Link to peer " + _peer + " is closed, failing the calls in progress");
+        for (PendingCall call : _calls.values()) {
+            if (call.getLink() == link) {
+                call.fail();
+            }
+        }
+    }
+
+    public void close() {
+        Link link = _link;
+        if (link != null) {
+            link.close();
+            disconnected(link);
+        }
+        synchronized (this) {
+            if (_client != null) {
+                shutdown(_client);
+                _client = null;
+            }
+        }
+    }
+
+    private void shutdown(NioClient client) {
+        client.stop();
+        for (int i = 0; i < 100 && client.isStartup(); i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+            }
+        }
+        try {
+            client.cleanUp();
+        } catch (IOException e) {
+            s_logger.warn("Unable to clean up the connection to peer " + _peer, e);
+        }
+    }
+
+    @Override
+    public Task create(Task.Type type, Link link, byte[] data) {
+        return new PeerTask(type, link, data);
+    }
+
+    public String getHost() {
+        return _host;
+    }
+
+    public int getPort() {
+        return _port;
+    }
+
+    public boolean isConnected() {
+        return _link != null;
+    }
+
+    public int getPendingRequestCount() {
+        return _calls.size();
+    }
+
+    public long getConnectCount() {
+        return _connects.get();
+    }
+
+    public long getConnectFailureCount() {
+        return _connectFailures.get();
+    }
+
+    public long getRequestCount() {
+        return _requests.get();
+    }
+
+    public long getFailureCount() {
+        return _failures.get();
+    }
+
+    public long getAverageLatency() {
+        long requests = _requests.get();
+        return requests == 0 ? 0 : _totalLatency.get() / requests;
+    }
+
+    public long getMaxLatency() {
+        return _maxLatency.get();
+    }
+
+    public long getLastFailureTime() {
+        return _lastFailure;
+    }
+
+    protected class PeerTask extends Task {
+        public PeerTask(Task.Type type, Link link, byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(Task task) throws Exception {
+            if (task.getType() == Task.Type.CONNECT) {
+                connected(task.getLink());
+            } else if (task.getType() == Task.Type.DISCONNECT) {
+                disconnected(task.getLink());
+            } else if (task.getType() == Task.Type.DATA) {
+                ClusterServiceNioMessage response = ClusterServiceNioMessage.parse(task.getData());
+                PendingCall call = _calls.get(response.getSeq());
+                if (call != null) {
+                    call.complete(response);
+                } else if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("No one is waiting for " + response + " from peer " + _peer);
+                }
+            }
+        }
+    }
+
+    protected static class PendingCall {
+        private final Link _link;
+        private ClusterServiceNioMessage _response;
+        private boolean _done;
+
+        public PendingCall(Link link) {
+            _link = link;
+        }
+
+        public Link getLink() {
+            return _link;
+        }
+
+        public synchronized void complete(ClusterServiceNioMessage response) {
+            _response = response;
+            _done = true;
+            notifyAll();
+        }
+
+        public synchronized void fail() {
+            _done = true;
+            notifyAll();
+        }
+
+        public synchronized ClusterServiceNioMessage waitForResponse(long timeout) throws RemoteException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!_done) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                }
+            }
+            if (_response == null) {
+                throw new RemoteException("Link closed while waiting for response");
+            }
+            return _response;
+        }
+    }
+}
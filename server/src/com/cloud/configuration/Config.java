@@ -161,6 +161,11 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
+	AgentReactorEnabled("Advanced", AgentManager.class, Boolean.class, "agent.reactor.enabled", "false", "If true, agent connections are accepted by one thread and served by several selector threads, with SSL handshakes done off the selector threads.", null),
+	AgentReactorCount("Advanced", AgentManager.class, Integer.class, "agent.reactor.count", "0", "Number of selector threads serving agent connections when agent.reactor.enabled is true. 0 means one per processor core.", null),
+	AgentReactorAssignment("Advanced", AgentManager.class, String.class, "agent.reactor.assignment", "RoundRobin", "How agent connections are spread across the selector threads when agent.reactor.enabled is true.", "RoundRobin,LeastLoaded"),
+	AgentCodec("Advanced", AgentManager.class, String.class, "agent.codec", "deflate", "Compression used for requests to agents that support negotiated codecs.", "deflate,gzip"),
+	AgentCodecLevel("Advanced", AgentManager.class, Integer.class, "agent.codec.level", "1", "zlib level (0-9) used when agent.codec is deflate.", "0-9"),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/lib/cloud/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -247,6 +252,8 @@ public enum Config {
     EnableUsageServer("Premium", ManagementServer.class, Boolean.class, "enable.usage.server", "true", "Flag for enabling usage", null),
     DirectNetworkStatsInterval("Premium", ManagementServer.class, Integer.class, "direct.network.stats.interval", "86400", "Interval (in seconds) to collect stats from Traffic Monitor", null),
     UsageSanityCheckInterval("Premium", ManagementServer.class, Integer.class, "usage.sanity.check.interval", null, "Interval (in days) to check sanity of usage data", null),
+    UsageAggregationThreads("Premium", ManagementServer.class, Integer.class, "usage.aggregation.threads", "1", "Number of threads aggregating usage, each working on its own range of accounts. 1 aggregates all accounts on the usage job thread", null),
+    UsageIncrementalParse("Premium", ManagementServer.class, Boolean.class, "usage.incremental.parse", "false", "If true, usage parsing only runs the parsers of the helper tables an account has records in for the aggregation range", null),
     UsageAggregationTimezone("Premium", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
     
 	// Hidden
@@ -178,15 +178,19 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         ComponentInfo<? extends GenericDao<?, ? extends Serializable>> info = addDao("ServiceOfferingDao", ServiceOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("cache.query.size", "100");
         info = addDao("DiskOfferingDao", DiskOfferingDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("cache.query.size", "100");
         info = addDao("DataCenterDao", DataCenterDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("cache.query.size", "100");
         info = addDao("HostPodDao", HostPodDaoImpl.class);
         info.addParameter("cache.size", "50");
         info.addParameter("cache.time.to.live", "600");
+        info.addParameter("cache.query.size", "100");
         addDao("IPAddressDao", IPAddressDaoImpl.class);
         info = addDao("VlanDao", VlanDaoImpl.class);
         info.addParameter("cache.size", "30");
@@ -44,6 +44,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SequenceFetcher;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.NetUtils;
 
 /**
@@ -255,6 +256,14 @@ public class DataCenterDaoImpl extends GenericDaoBase<DataCenterVO, Long> implem
         if (!_vnetAllocDao.configure("vnet Alloc", params)) {
             return false;
         }
+
+        try {
+            JmxUtil.registerMBean("DataCenterDao", "PrivateIpPool", _ipAllocDao.getFreeIdPool());
+            JmxUtil.registerMBean("DataCenterDao", "LinkLocalIpPool", _LinkLocalIpAllocDao.getFreeIdPool());
+            JmxUtil.registerMBean("DataCenterDao", "VnetPool", _vnetAllocDao.getFreeIdPool());
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the allocation pool statistics into JMX monitoring", e);
+        }
         return true;
     }
     
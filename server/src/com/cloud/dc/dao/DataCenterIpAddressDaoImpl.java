@@ -44,32 +44,47 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     private final SearchBuilder<DataCenterIpAddressVO> AllFieldsSearch;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllIpCount;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllAllocatedIpCount;
+    private final GenericSearchBuilder<DataCenterIpAddressVO, Long> FreeIdSearch;
+    private final SearchBuilder<DataCenterIpAddressVO> LeaseSearch;
     
-    @DB
-    public DataCenterIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
-        SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
-        sc.setParameters("pod", podId);
-        sc.setParameters("taken", (Date)null);
-        
-        Transaction txn = Transaction.currentTxn();
-        txn.start();
-        DataCenterIpAddressVO  vo = lockOneRandomRow(sc, true);
-        if (vo == null) {
-            txn.rollback();
+    protected final FreeIdPool _freeIds = new FreeIdPool("Private ip pool") {
+        @Override
+        protected List<Long> listFreeIds(long podId) {
+            SearchCriteria<Long> sc = FreeIdSearch.create();
+            sc.setParameters("pod", podId);
+            return customSearch(sc, null);
+        }
+    };
+    
+    public DataCenterIpAddressVO takeIpAddress(long dcId, long podId, final long instanceId, final String reservationId) {
+        long id = _freeIds.take(podId, new FreeIdPool.Lease() {
+            @Override
+            public boolean lease(long id) {
+                SearchCriteria<DataCenterIpAddressVO> sc = LeaseSearch.create();
+                sc.setParameters("id", id);
+                
+                DataCenterIpAddressVO vo = createForUpdate();
+                vo.setTakenAt(new Date());
+                vo.setInstanceId(instanceId);
+                vo.setReservationId(reservationId);
+                return update(vo, sc) == 1;
+            }
+        });
+        if (id < 0) {
             return null;
         }
-        vo.setTakenAt(new Date());
-        vo.setInstanceId(instanceId);
-        vo.setReservationId(reservationId);
-        update(vo.getId(), vo);
-        txn.commit();
-        return vo;
+        return findById(id);
+    }
+    
+    public FreeIdPool getFreeIdPool() {
+        return _freeIds;
     }
     
     @Override
     public boolean deleteIpAddressByPod(long podId) {
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
+        _freeIds.invalidate(podId);
         return remove(sc) > 0;
     }
     
@@ -112,6 +127,7 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
                 stmt.close();
             }
             txn.commit();
+            _freeIds.invalidate(podId);
         } catch (SQLException ex) {
             throw new CloudRuntimeException("Unable to persist ip address range ", ex);
         } 
@@ -126,12 +142,7 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         sc.setParameters("dc", dcId);
         sc.setParameters("instance", instanceId);
 
-        DataCenterIpAddressVO vo = createForUpdate();
-        
-        vo.setTakenAt(null);
-        vo.setInstanceId(null);
-        vo.setReservationId(null);
-        update(vo, sc);
+        release(sc);
     }
     
     public void releaseIpAddress(long nicId, String reservationId) {
@@ -142,11 +153,21 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         sc.setParameters("instance", nicId);
         sc.setParameters("reservation", reservationId);
         
+        release(sc);
+    }
+    
+    protected void release(SearchCriteria<DataCenterIpAddressVO> sc) {
+        List<DataCenterIpAddressVO> taken = listBy(sc);
+        
         DataCenterIpAddressVO vo = createForUpdate();
         vo.setTakenAt(null);
         vo.setInstanceId(null);
         vo.setReservationId(null);
         update(vo, sc);
+        
+        for (DataCenterIpAddressVO ip : taken) {
+            _freeIds.free(ip.getPodId(), ip.getId());
+        }
     }
     
     public List<DataCenterIpAddressVO> listByPodIdDcId(long podId, long dcId) {
@@ -200,5 +221,16 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         AllAllocatedIpCount.and("pod", AllAllocatedIpCount.entity().getPodId(), SearchCriteria.Op.EQ);
         AllAllocatedIpCount.and("removed", AllAllocatedIpCount.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCount.done();
+        
+        FreeIdSearch = createSearchBuilder(Long.class);
+        FreeIdSearch.selectField(FreeIdSearch.entity().getId());
+        FreeIdSearch.and("pod", FreeIdSearch.entity().getPodId(), SearchCriteria.Op.EQ);
+        FreeIdSearch.and("taken", FreeIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeIdSearch.done();
+        
+        LeaseSearch = createSearchBuilder();
+        LeaseSearch.and("id", LeaseSearch.entity().getId(), SearchCriteria.Op.EQ);
+        LeaseSearch.and("taken", LeaseSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        LeaseSearch.done();
     }
 }
@@ -47,32 +47,46 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
     private final SearchBuilder<DataCenterLinkLocalIpAddressVO> AllFieldsSearch;
     private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Integer> AllIpCount;
     private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Integer> AllAllocatedIpCount;
+    private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Long> FreeIdSearch;
+    private final SearchBuilder<DataCenterLinkLocalIpAddressVO> LeaseSearch;
     
-    @DB
-    public DataCenterLinkLocalIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
-        SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
-        sc.setParameters("pod", podId);
-        sc.setParameters("taken", (Date)null);
-        
-        Transaction txn = Transaction.currentTxn();
-        txn.start();
-        
-        DataCenterLinkLocalIpAddressVO  vo = lockOneRandomRow(sc, true);
-        if (vo == null) {
+    protected final FreeIdPool _freeIds = new FreeIdPool("Link local ip pool") {
+        @Override
+        protected List<Long> listFreeIds(long podId) {
+            SearchCriteria<Long> sc = FreeIdSearch.create();
+            sc.setParameters("pod", podId);
+            return customSearch(sc, null);
+        }
+    };
+    
+    public DataCenterLinkLocalIpAddressVO takeIpAddress(long dcId, long podId, final long instanceId, final String reservationId) {
+        long id = _freeIds.take(podId, new FreeIdPool.Lease() {
+            @Override
+            public boolean lease(long id) {
+                SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = LeaseSearch.create();
+                sc.setParameters("id", id);
+                
+                DataCenterLinkLocalIpAddressVO vo = createForUpdate();
+                vo.setTakenAt(new Date());
+                vo.setInstanceId(instanceId);
+                vo.setReservationId(reservationId);
+                return update(vo, sc) == 1;
+            }
+        });
+        if (id < 0) {
             return null;
         }
-        
-        vo.setTakenAt(new Date());
-        vo.setInstanceId(instanceId);
-        vo.setReservationId(reservationId);
-        update(vo.getId(), vo);
-        txn.commit();
-        return vo;
+        return findById(id);
+    }
+    
+    public FreeIdPool getFreeIdPool() {
+        return _freeIds;
     }
     
     public boolean deleteIpAddressByPod(long podId) {
         SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
+        _freeIds.invalidate(podId);
         return remove(sc) > 0;
     }
     
@@ -96,6 +110,7 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
             }
             stmt.executeBatch();
             txn.commit();
+            _freeIds.invalidate(podId);
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to insert", e);
         }
@@ -110,12 +125,7 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         sc.setParameters("dc", dcId);
         sc.setParameters("instance", instanceId);
 
-        DataCenterLinkLocalIpAddressVO vo = createForUpdate();
-        
-        vo.setTakenAt(null);
-        vo.setInstanceId(null);
-        vo.setReservationId(null);
-        update(vo, sc);
+        release(sc);
     }
     
     public void releaseIpAddress(long nicId, String reservationId) {
@@ -123,12 +133,21 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         sc.setParameters("instance", nicId);
         sc.setParameters("reservation", reservationId);
 
-        DataCenterLinkLocalIpAddressVO vo = createForUpdate();
+        release(sc);
+    }
+    
+    protected void release(SearchCriteria<DataCenterLinkLocalIpAddressVO> sc) {
+        List<DataCenterLinkLocalIpAddressVO> taken = listBy(sc);
         
+        DataCenterLinkLocalIpAddressVO vo = createForUpdate();
         vo.setTakenAt(null);
         vo.setInstanceId(null);
         vo.setReservationId(null);
         update(vo, sc);
+        
+        for (DataCenterLinkLocalIpAddressVO ip : taken) {
+            _freeIds.free(ip.getPodId(), ip.getId());
+        }
     }
     
     public List<DataCenterLinkLocalIpAddressVO> listByPodIdDcId(long podId, long dcId) {
@@ -172,6 +191,16 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         AllAllocatedIpCount.and("removed", AllAllocatedIpCount.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCount.done();
         
+        FreeIdSearch = createSearchBuilder(Long.class);
+        FreeIdSearch.selectField(FreeIdSearch.entity().getId());
+        FreeIdSearch.and("pod", FreeIdSearch.entity().getPodId(), SearchCriteria.Op.EQ);
+        FreeIdSearch.and("taken", FreeIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeIdSearch.done();
+        
+        LeaseSearch = createSearchBuilder();
+        LeaseSearch.and("id", LeaseSearch.entity().getId(), SearchCriteria.Op.EQ);
+        LeaseSearch.and("taken", LeaseSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        LeaseSearch.done();
     }
     
     @Override
@@ -26,6 +26,7 @@ import com.cloud.dc.DataCenterVnetVO;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
@@ -37,10 +38,20 @@ import com.cloud.utils.exception.CloudRuntimeException;
  */
 @DB(txn=false)
 public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long> implements GenericDao<DataCenterVnetVO, Long> {
-    private final SearchBuilder<DataCenterVnetVO> FreeVnetSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearchAllocated;
     private final SearchBuilder<DataCenterVnetVO> DcSearchAllocated;
+    private final GenericSearchBuilder<DataCenterVnetVO, Long> FreeIdSearch;
+    private final SearchBuilder<DataCenterVnetVO> LeaseSearch;
+    
+    protected final FreeIdPool _freeIds = new FreeIdPool("Vnet pool") {
+        @Override
+        protected List<Long> listFreeIds(long dcId) {
+            SearchCriteria<Long> sc = FreeIdSearch.create();
+            sc.setParameters("dc", dcId);
+            return customSearch(sc, null);
+        }
+    };
     
     public List<DataCenterVnetVO> listAllocatedVnets(long dcId) {
     	SearchCriteria<DataCenterVnetVO> sc = DcSearchAllocated.create();
@@ -70,6 +81,7 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
             }
             stmt.executeBatch();
             txn.commit();
+            _freeIds.invalidate(dcId);
         } catch (SQLException e) {
             throw new CloudRuntimeException("Exception caught adding vnet ", e);
         }
@@ -79,27 +91,32 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         SearchCriteria<DataCenterVnetVO> sc = VnetDcSearch.create();
         sc.setParameters("dc", dcId);
         
+        _freeIds.invalidate(dcId);
         remove(sc);
     }
 
-    @DB
-    public DataCenterVnetVO take(long dcId, long accountId, String reservationId) {
-        SearchCriteria<DataCenterVnetVO> sc = FreeVnetSearch.create();
-        sc.setParameters("dc", dcId);
-        Date now = new Date();
-        Transaction txn = Transaction.currentTxn();
-        txn.start();
-        DataCenterVnetVO vo = lockOneRandomRow(sc, true);
-        if (vo == null) {
+    public DataCenterVnetVO take(long dcId, final long accountId, final String reservationId) {
+        long id = _freeIds.take(dcId, new FreeIdPool.Lease() {
+            @Override
+            public boolean lease(long id) {
+                SearchCriteria<DataCenterVnetVO> sc = LeaseSearch.create();
+                sc.setParameters("id", id);
+
+                DataCenterVnetVO vo = createForUpdate();
+                vo.setTakenAt(new Date());
+                vo.setAccountId(accountId);
+                vo.setReservationId(reservationId);
+                return update(vo, sc) == 1;
+            }
+        });
+        if (id < 0) {
             return null;
         }
+        return findById(id);
+    }
 
-        vo.setTakenAt(now);
-        vo.setAccountId(accountId);
-        vo.setReservationId(reservationId);
-        update(vo.getId(), vo);
-        txn.commit();
-        return vo;
+    public FreeIdPool getFreeIdPool() {
+        return _freeIds;
     }
 
     public void release(String vnet, long dcId, long accountId, String reservationId) {
@@ -118,6 +135,7 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         vo.setAccountId(null);
         vo.setReservationId(null);
         update(vo.getId(), vo);
+        _freeIds.free(dcId, vo.getId());
     }
 
     protected DataCenterVnetDaoImpl() {
@@ -127,10 +145,16 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         DcSearchAllocated.and("allocated", DcSearchAllocated.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         DcSearchAllocated.done();
         
-        FreeVnetSearch = createSearchBuilder();
-        FreeVnetSearch.and("dc", FreeVnetSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
-        FreeVnetSearch.and("taken", FreeVnetSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
-        FreeVnetSearch.done();
+        FreeIdSearch = createSearchBuilder(Long.class);
+        FreeIdSearch.selectField(FreeIdSearch.entity().getId());
+        FreeIdSearch.and("dc", FreeIdSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
+        FreeIdSearch.and("taken", FreeIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeIdSearch.done();
+        
+        LeaseSearch = createSearchBuilder();
+        LeaseSearch.and("id", LeaseSearch.entity().getId(), SearchCriteria.Op.EQ);
+        LeaseSearch.and("taken", LeaseSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        LeaseSearch.done();
         
         VnetDcSearch = createSearchBuilder();
         VnetDcSearch.and("vnet", VnetDcSearch.entity().getVnet(), SearchCriteria.Op.EQ);
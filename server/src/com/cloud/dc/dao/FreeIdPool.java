@@ -0,0 +1,252 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.dc.dao;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * FreeIdPool keeps, per pod or zone, a bitmap of the row ids that were free
+ * the last time the allocation table was read, so taking a resource does not
+ * have to lock a random free row.  A cached id is only a candidate: the
+ * caller leases it with a conditional single row update, and an id that was
+ * taken behind our back (another management server, mark(), a stale cache)
+ * simply loses the lease and the next candidate is tried.  The bitmap is
+ * reloaded from the database when it runs dry and periodically to pick up
+ * ids freed elsewhere.
+ */
+public abstract class FreeIdPool extends StandardMBean implements FreeIdPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(FreeIdPool.class);
+
+    protected static final long RELOAD_INTERVAL = 10 * 60 * 1000L;
+
+    public interface Lease {
+        /**
+         * @return true if the row was still free and is now taken.
+         */
+        boolean lease(long id);
+    }
+
+    private final String _name;
+    private final ConcurrentHashMap<Long, Partition> _partitions = new ConcurrentHashMap<Long, Partition>();
+    private final Random _rand = new Random(System.currentTimeMillis());
+
+    private final AtomicLong _takes = new AtomicLong();
+    private final AtomicLong _failedTakes = new AtomicLong();
+    private final AtomicLong _contention = new AtomicLong();
+    private final AtomicLong _reloads = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+
+    protected FreeIdPool(String name) {
+        super(FreeIdPoolMBean.class, false);
+        _name = name;
+    }
+
+    /**
+     * @return ids of the rows currently free under the key.
+     */
+    protected abstract List<Long> listFreeIds(long key);
+
+    /**
+     * Takes a free id under the key.
+     * @return the leased id or -1 if there are no free rows left.
+     */
+    public long take(long key, Lease lease) {
+        long start = System.nanoTime();
+        Partition partition = getPartition(key);
+        long id;
+        try {
+            while ((id = partition.next(key)) >= 0) {
+                if (lease.lease(id)) {
+                    return id;
+                }
+                _contention.incrementAndGet();
+            }
+            _failedTakes.incrementAndGet();
+            return -1;
+        } finally {
+            record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Returns an id that was released so it can be handed out again without
+     * waiting for a reload.
+     */
+    public void free(long key, long id) {
+        Partition partition = _partitions.get(key);
+        if (partition != null) {
+            partition.free(id);
+        }
+    }
+
+    /**
+     * Drops the cached ids of the key, e.g. when its range has changed.
+     */
+    public void invalidate(long key) {
+        _partitions.remove(key);
+    }
+
+    protected Partition getPartition(long key) {
+        Partition partition = _partitions.get(key);
+        if (partition == null) {
+            partition = new Partition();
+            Partition existing = _partitions.putIfAbsent(key, partition);
+            if (existing != null) {
+                partition = existing;
+            }
+        }
+        return partition;
+    }
+
+    protected void record(long latency) {
+        _takes.incrementAndGet();
+        _totalLatency.addAndGet(latency);
+        long current = _maxLatency.get();
+        while (latency > current && !_maxLatency.compareAndSet(current, latency)) {
+            current = _maxLatency.get();
+        }
+    }
+
+    @Override
+    public long getTakeCount() {
+        return _takes.get();
+    }
+
+    @Override
+    public long getFailedTakeCount() {
+        return _failedTakes.get();
+    }
+
+    @Override
+    public long getContentionCount() {
+        return _contention.get();
+    }
+
+    @Override
+    public long getReloadCount() {
+        return _reloads.get();
+    }
+
+    @Override
+    public long getAverageTakeLatency() {
+        long count = _takes.get();
+        return count == 0 ? 0 : _totalLatency.get() / count;
+    }
+
+    @Override
+    public long getMaxTakeLatency() {
+        return _maxLatency.get();
+    }
+
+    @Override
+    public long getCachedFreeCount() {
+        long count = 0;
+        for (Partition partition : _partitions.values()) {
+            count += partition.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void resetStats() {
+        _takes.set(0);
+        _failedTakes.set(0);
+        _contention.set(0);
+        _reloads.set(0);
+        _totalLatency.set(0);
+        _maxLatency.set(0);
+    }
+
+    protected class Partition {
+        BitSet _free = new BitSet();
+        long _base;
+        int _count;
+        long _loadedAt;
+        boolean _loaded;
+
+        /**
+         * Picks a random cached id so management servers sharing the table
+         * don't all race for the same row.  Reloads once if the cache is dry
+         * or old; gives up when a reload finds nothing.
+         */
+        synchronized long next(long key) {
+            if (!_loaded || _count == 0 || System.currentTimeMillis() - _loadedAt > RELOAD_INTERVAL) {
+                load(key);
+                if (_count == 0) {
+                    return -1;
+                }
+            }
+
+            int index = _free.nextSetBit(_rand.nextInt(_free.length()));
+            if (index < 0) {
+                index = _free.nextSetBit(0);
+            }
+            _free.clear(index);
+            _count--;
+            return _base + index;
+        }
+
+        synchronized void free(long id) {
+            if (!_loaded || id < _base || id - _base > Integer.MAX_VALUE) {
+                return;
+            }
+            int index = (int)(id - _base);
+            if (!_free.get(index)) {
+                _free.set(index);
+                _count++;
+            }
+        }
+
+        synchronized int size() {
+            return _count;
+        }
+
+        protected void load(long key) {
+            List<Long> ids = listFreeIds(key);
+            _reloads.incrementAndGet();
+
+            long base = Long.MAX_VALUE;
+            for (Long id : ids) {
+                base = Math.min(base, id);
+            }
+            BitSet free = new BitSet();
+            for (Long id : ids) {
+                free.set((int)(id - base));
+            }
+            _free = free;
+            _base = ids.isEmpty() ? 0 : base;
+            _count = ids.size();
+            _loadedAt = System.currentTimeMillis();
+            _loaded = true;
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(_name + " loaded " + _count + " free ids for " + key + ", " + getTakeCount() + " takes, "
+                        + getContentionCount() + " lost leases, " + getAverageTakeLatency() + "us average take latency");
+            }
+        }
+    }
+}
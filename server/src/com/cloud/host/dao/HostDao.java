@@ -17,6 +17,7 @@
  */
 package com.cloud.host.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -90,6 +91,8 @@ public interface HostDao extends GenericDao<HostVO, Long> {
 
 	public HostVO findByGuid(String guid);
 
+	List<HostVO> listByGuids(Collection<String> guids);
+
 	public HostVO findByName(String name);
 
 
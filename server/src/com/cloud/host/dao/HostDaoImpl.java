@@ -21,6 +21,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -78,6 +79,7 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
     protected final SearchBuilder<HostVO> DcStorageIpAddressSearch;
 
     protected final SearchBuilder<HostVO> GuidSearch;
+    protected final SearchBuilder<HostVO> GuidsSearch;
     protected final SearchBuilder<HostVO> DcSearch;
     protected final SearchBuilder<HostVO> PodSearch;
     protected final SearchBuilder<HostVO> TypeSearch;
@@ -173,6 +175,10 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         GuidSearch.and("guid", GuidSearch.entity().getGuid(), SearchCriteria.Op.EQ);
         GuidSearch.done();
 
+        GuidsSearch = createSearchBuilder();
+        GuidsSearch.and("guids", GuidsSearch.entity().getGuid(), SearchCriteria.Op.IN);
+        GuidsSearch.done();
+
         DcSearch = createSearchBuilder();
         DcSearch.and("dc", DcSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         DcSearch.done();
@@ -704,6 +710,13 @@ public class HostDaoImpl extends GenericDaoBase<HostVO, Long> implements HostDao
         return findOneBy(sc);
     }
 
+    @Override
+    public List<HostVO> listByGuids(Collection<String> guids) {
+        SearchCriteria<HostVO> sc = GuidsSearch.create();
+        sc.setParameters("guids", guids.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public HostVO findByName(String name) {
         SearchCriteria<HostVO> sc = NameSearch.create("name", name);
@@ -81,6 +81,9 @@ public class UsageJobVO {
     @Column(name="heartbeat")
     private Date heartbeat;
 
+    @Column(name="parser_times")
+    private String parserTimes;
+
     public UsageJobVO() {}
 
     public Long getId() {
@@ -178,4 +181,12 @@ public class UsageJobVO {
     public void setHeartbeat(Date heartbeat) {
         this.heartbeat = heartbeat;
     }
+
+    public String getParserTimes() {
+        return parserTimes;
+    }
+
+    public void setParserTimes(String parserTimes) {
+        this.parserTimes = parserTimes;
+    }
 }
@@ -21,6 +21,8 @@ package com.cloud.usage.dao;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.cloud.event.UsageEventVO;
 import com.cloud.exception.UsageServerException;
@@ -41,4 +43,11 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     Long getLastAccountId() throws UsageServerException;
     Long getLastUserStatsId() throws UsageServerException;
     List<Long> listPublicTemplatesByAccount(long accountId);
+
+    /**
+     * @return for each account that has helper records the usage parsers would pick up for the given range, the names
+     *         of the helper tables holding them. Records are listed by the account they belong to, the system account's
+     *         ip addresses are read by domain instead
+     */
+    Map<Long, Set<String>> listAccountsWithUsage(Date startDate, Date endDate);
 }
@@ -21,10 +21,15 @@ package com.cloud.usage.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import javax.ejb.Local;
@@ -40,6 +45,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value={UsageDao.class})
 public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements UsageDao {
@@ -56,6 +62,21 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
     private static final String GET_LAST_USER_STATS = "SELECT id FROM cloud_usage.user_statistics ORDER BY id DESC LIMIT 1";
     private static final String GET_PUBLIC_TEMPLATES_BY_ACCOUNTID = "SELECT id FROM cloud.vm_template WHERE account_id = ? AND public = '1' AND removed IS NULL";
 
+    // same range conditions as the GET_USAGE_RECORDS_BY_ACCOUNT queries of the helper table daos
+    private static final String RANGE_CONDITION = "(deleted IS NULL) OR (created BETWEEN ? AND ?) OR (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))";
+    private static final String[] RANGE_TABLES = new String[] { "usage_volume", "usage_storage", "usage_load_balancer_policy", "usage_port_forwarding", "usage_network_offering" };
+    private static final String GET_ACCOUNTS_WITH_USAGE;
+    static {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT account_id, 'usage_vm_instance' FROM usage_vm_instance WHERE (end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?))");
+        sql.append(" UNION SELECT account_id, 'usage_network' FROM usage_network WHERE event_time_millis BETWEEN ? AND ?");
+        for (String table : RANGE_TABLES) {
+            sql.append(" UNION SELECT account_id, '").append(table).append("' FROM ").append(table).append(" WHERE ").append(RANGE_CONDITION);
+        }
+        sql.append(" UNION SELECT account_id, 'usage_ip_address' FROM usage_ip_address WHERE (released IS NULL AND assigned <= ?) OR (assigned BETWEEN ? AND ?) OR (released BETWEEN ? AND ?) OR ((assigned <= ?) AND (released >= ?))");
+        GET_ACCOUNTS_WITH_USAGE = sql.toString();
+    }
+
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     public UsageDaoImpl () {}
@@ -265,4 +286,48 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         }
         return templateList;
     }
+
+    @Override
+    public Map<Long, Set<String>> listAccountsWithUsage(Date startDate, Date endDate) {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        Map<Long, Set<String>> accountTables = new HashMap<Long, Set<String>>();
+        String start = DateUtil.getDateDisplayString(s_gmtTimeZone, startDate);
+        String end = DateUtil.getDateDisplayString(s_gmtTimeZone, endDate);
+        try {
+            int i = 1;
+            pstmt = txn.prepareAutoCloseStatement(GET_ACCOUNTS_WITH_USAGE);
+            i = setRange(pstmt, i, start, end);
+            pstmt.setLong(i++, startDate.getTime());
+            pstmt.setLong(i++, endDate.getTime());
+            for (int table = 0; table < RANGE_TABLES.length; table++) {
+                i = setRange(pstmt, i, start, end);
+            }
+            pstmt.setString(i++, end);
+            i = setRange(pstmt, i, start, end);
+
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Long accountId = Long.valueOf(rs.getLong(1));
+                Set<String> tables = accountTables.get(accountId);
+                if (tables == null) {
+                    tables = new HashSet<String>();
+                    accountTables.put(accountId, tables);
+                }
+                tables.add(rs.getString(2));
+            }
+        } catch (Exception ex) {
+            s_logger.error("error listing accounts with usage", ex);
+            throw new CloudRuntimeException("Unable to list accounts with usage", ex);
+        }
+        return accountTables;
+    }
+
+    private static int setRange(PreparedStatement pstmt, int i, String start, String end) throws SQLException {
+        for (int j = 0; j < 3; j++) {
+            pstmt.setString(i++, start);
+            pstmt.setString(i++, end);
+        }
+        return i;
+    }
 }
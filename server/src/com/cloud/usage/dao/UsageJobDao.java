@@ -33,5 +33,6 @@ public interface UsageJobDao extends GenericDao<UsageJobVO, Long> {
     long getLastJobSuccessDateMillis();
     Date getLastHeartbeat();
     UsageJobVO isOwner(String hostname, int pid);
-    void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException;
+    void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException;
+    void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success, String parserTimes) throws UsageServerException;
 }
@@ -62,6 +62,11 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
 
     @Override
     public void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException {
+        updateJobSuccess(jobId, startMillis, endMillis, execTime, success, null);
+    }
+
+    @Override
+    public void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success, String parserTimes) throws UsageServerException {
         Transaction txn = Transaction.open(Transaction.USAGE_DB);
         try {
             txn.start();
@@ -74,6 +79,9 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
             jobForUpdate.setStartDate(new Date(startMillis));
             jobForUpdate.setEndDate(new Date(endMillis));
             jobForUpdate.setSuccess(success);
+            if (parserTimes != null) {
+                jobForUpdate.setParserTimes(parserTimes);
+            }
             update(job.getId(), jobForUpdate);
 
             txn.commit();
@@ -22,8 +22,10 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -140,6 +142,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.utils.fsm.NoTransitionException;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.ItWorkVO.Step;
 import com.cloud.vm.VirtualMachine.Event;
 import com.cloud.vm.VirtualMachine.State;
@@ -223,6 +226,9 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     protected Adapters<HostAllocator> _hostAllocators;
 
     Map<VirtualMachine.Type, VirtualMachineGuru<? extends VMInstanceVO>> _vmGurus = new HashMap<VirtualMachine.Type, VirtualMachineGuru<? extends VMInstanceVO>>();
+    protected final VirtualMachineSyncMBeanImpl _syncStats = new VirtualMachineSyncMBeanImpl();
+
+    protected static final int SYNC_BATCH_SIZE = 500;
     protected StateMachine2<State, VirtualMachine.Event, VirtualMachine> _stateMachine;
 
     ScheduledExecutorService _executor = null;
@@ -397,11 +403,22 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
     public boolean start() {
         _executor.scheduleAtFixedRate(new CleanupTask(), _cleanupInterval, _cleanupInterval, TimeUnit.SECONDS);
         cancelWorkItems(_nodeId);
+
+        try {
+            JmxUtil.registerMBean("VirtualMachineManager", "VmSync", _syncStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the vm sync statistics into JMX monitoring", e);
+        }
         return true;
     }
 
     @Override
     public boolean stop() {
+        try {
+            JmxUtil.unregisterMBean("VirtualMachineManager", "VmSync");
+        } catch (Exception e) {
+            s_logger.warn("Unable to unregister the vm sync statistics from JMX monitoring", e);
+        }
         return true;
     }
 
@@ -1521,8 +1538,10 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return new StopCommand(vmName);
     }
 
-    public Commands deltaSync(Map<String, Pair<String, State>> newStates) {
-        Map<Long, AgentVmInfo> states = convertDeltaToInfos(newStates);
+    public Commands deltaSync(long hostId, Map<String, Pair<String, State>> newStates) {
+        long startTick = System.currentTimeMillis();
+        Map<Long, AgentVmInfo> states = convertToInfos(newStates, findByInstanceNames(newStates));
+        long resolveTick = System.currentTimeMillis();
         Commands commands = new Commands(OnError.Continue);
 
         for (Map.Entry<Long, AgentVmInfo> entry : states.entrySet()) {
@@ -1546,31 +1565,48 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             }
         }
 
+        _syncStats.recordSync(hostId, false, newStates == null ? 0 : newStates.size(), resolveTick - startTick, System.currentTimeMillis() - resolveTick);
         return commands;
     }
 
-    public Commands fullSync(final long clusterId, Map<String, Pair<String, State>> newStates) {
+    public Commands fullSync(long hostId, final long clusterId, Map<String, Pair<String, State>> newStates) {
+        long startTick = System.currentTimeMillis();
         Commands commands = new Commands(OnError.Continue);
-        Map<Long, AgentVmInfo> infos = convertToInfos(newStates);
-        long hId = 0;
+
+        // Everything the cluster should be running, resolved up front so the
+        // reported vms and hosts can be matched against it in memory.
         final List<VMInstanceVO> vms = _vmDao.listByClusterId(clusterId);
+        Map<Long, VMInstanceVO> typedVms = findTypedVms(vms);
+        Map<String, VMInstanceVO> vmsByName = new HashMap<String, VMInstanceVO>(typedVms.size());
+        for (VMInstanceVO vm : typedVms.values()) {
+            vmsByName.put(vm.getInstanceName(), vm);
+        }
+        Map<Long, AgentVmInfo> infos = convertToInfos(newStates, vmsByName);
+        Map<String, HostVO> hostsByGuid = findHostsByGuid(infos.values());
+        long resolveTick = System.currentTimeMillis();
+
+        long hId = 0;
         for (VMInstanceVO vm : vms) {
             AgentVmInfo info = infos.remove(vm.getId());
-            VMInstanceVO castedVm = null;
+            VMInstanceVO castedVm = typedVms.get(vm.getId());
             if (info == null) {
                 info = new AgentVmInfo(vm.getInstanceName(), getVmGuru(vm), vm, State.Stopped);
-                castedVm = info.guru.findById(vm.getId());
                 hId = vm.getHostId() == null ? vm.getLastHostId() : vm.getHostId();
             } else {
-                castedVm = info.vm;
-                String host_guid = info.getHostUuid();
-                Host host = _hostDao.findByGuid(host_guid);
+                if (info.vm != null) {
+                    castedVm = info.vm;
+                }
+                Host host = hostsByGuid.get(info.getHostUuid());
                 if (host == null) {
                     infos.put(vm.getId(), info);
                     continue;
                 }
                 hId = host.getId();
             }
+            if (castedVm == null) {
+                s_logger.debug("Skipping vm that has been removed since the sync started: " + vm);
+                continue;
+            }
             HypervisorGuru hvGuru = _hvGuruMgr.getGuru(castedVm.getHypervisorType());
             Command command = compareState(hId, castedVm, info, true, hvGuru.trackVmHostChange());
             if (command != null) {
@@ -1581,32 +1617,44 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             s_logger.warn("Stopping a VM that we have no record of: " + left.name);
             commands.addCommand(cleanup(left.name));
         }
+
+        _syncStats.recordSync(hostId, true, newStates == null ? 0 : newStates.size(), resolveTick - startTick, System.currentTimeMillis() - resolveTick);
         return commands;
     }
 
-    protected Map<Long, AgentVmInfo> convertDeltaToInfos(final Map<String, Pair<String, State>> states) {
+    /**
+     * Matches the names reported by the agent to the vms.  Names that aren't in
+     * vmsByName are left to the gurus to resolve one by one.
+     */
+    protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates, final Map<String, VMInstanceVO> vmsByName) {
         final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
 
-        if (states == null) {
+        if (newStates == null) {
             return map;
         }
 
         Collection<VirtualMachineGuru<? extends VMInstanceVO>> vmGurus = _vmGurus.values();
 
-        for (Map.Entry<String, Pair<String, State>> entry : states.entrySet()) {
-            for (VirtualMachineGuru<? extends VMInstanceVO> vmGuru : vmGurus) {
-                String name = entry.getKey();
-
-                VMInstanceVO vm = vmGuru.findByName(name);
+        for (Map.Entry<String, Pair<String, State>> entry : newStates.entrySet()) {
+            String name = entry.getKey();
+            VMInstanceVO vm = vmsByName.get(name);
+            if (vm != null) {
+                VirtualMachineGuru<? extends VMInstanceVO> vmGuru = _vmGurus.get(vm.getType());
+                if (vmGuru != null) {
+                    map.put(vm.getId(), new AgentVmInfo(name, vmGuru, vm, entry.getValue().second(), entry.getValue().first()));
+                    continue;
+                }
+            }
 
+            for (VirtualMachineGuru<? extends VMInstanceVO> vmGuru : vmGurus) {
+                vm = vmGuru.findByName(name);
                 if (vm != null) {
-                    map.put(vm.getId(), new AgentVmInfo(entry.getKey(), vmGuru, vm, entry.getValue().second()));
+                    map.put(vm.getId(), new AgentVmInfo(name, vmGuru, vm, entry.getValue().second(), entry.getValue().first()));
                     break;
                 }
-
                 Long id = vmGuru.convertToId(name);
                 if (id != null) {
-                    map.put(id, new AgentVmInfo(entry.getKey(), vmGuru, null, entry.getValue().second()));
+                    map.put(id, new AgentVmInfo(name, vmGuru, null, entry.getValue().second(), entry.getValue().first()));
                     break;
                 }
             }
@@ -1615,32 +1663,104 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return map;
     }
 
-    protected Map<Long, AgentVmInfo> convertToInfos(final Map<String, Pair<String, State>> newStates) {
-        final HashMap<Long, AgentVmInfo> map = new HashMap<Long, AgentVmInfo>();
+    /**
+     * @return the vms going by the reported names, keyed by instance name and
+     * loaded as the type their guru works with.
+     */
+    protected Map<String, VMInstanceVO> findByInstanceNames(final Map<String, Pair<String, State>> newStates) {
+        Map<String, VMInstanceVO> vmsByName = new HashMap<String, VMInstanceVO>();
+        if (newStates == null || newStates.isEmpty()) {
+            return vmsByName;
+        }
 
-        if (newStates == null) {
-            return map;
+        List<String> names = new ArrayList<String>(newStates.keySet());
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>(names.size());
+        for (int i = 0; i < names.size(); i += SYNC_BATCH_SIZE) {
+            vms.addAll(_vmDao.listByInstanceNames(names.subList(i, Math.min(names.size(), i + SYNC_BATCH_SIZE))));
         }
 
-        Collection<VirtualMachineGuru<? extends VMInstanceVO>> vmGurus = _vmGurus.values();
+        for (VMInstanceVO vm : findTypedVms(vms).values()) {
+            vmsByName.put(vm.getInstanceName(), vm);
+        }
+        return vmsByName;
+    }
 
-        for (Map.Entry<String, Pair<String, State>> entry : newStates.entrySet()) {
-            for (VirtualMachineGuru<? extends VMInstanceVO> vmGuru : vmGurus) {
-                String name = entry.getKey();
-                VMInstanceVO vm = vmGuru.findByName(name);
-                if (vm != null) {
-                    map.put(vm.getId(), new AgentVmInfo(entry.getKey(), vmGuru, vm, entry.getValue().second(), entry.getValue().first()));
-                    break;
+    /**
+     * Reloads the vms as the type their guru works with, one query per vm type.
+     * Vms that have been removed in the meantime are left out.
+     */
+    protected Map<Long, VMInstanceVO> findTypedVms(final List<VMInstanceVO> vms) {
+        Map<VirtualMachine.Type, List<Long>> idsByType = new HashMap<VirtualMachine.Type, List<Long>>();
+        for (VMInstanceVO vm : vms) {
+            List<Long> ids = idsByType.get(vm.getType());
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                idsByType.put(vm.getType(), ids);
+            }
+            ids.add(vm.getId());
+        }
+
+        Map<Long, VMInstanceVO> typedVms = new HashMap<Long, VMInstanceVO>(vms.size());
+        for (Map.Entry<VirtualMachine.Type, List<Long>> entry : idsByType.entrySet()) {
+            List<Long> ids = entry.getValue();
+            for (int i = 0; i < ids.size(); i += SYNC_BATCH_SIZE) {
+                List<Long> batch = ids.subList(i, Math.min(ids.size(), i + SYNC_BATCH_SIZE));
+                List<? extends VMInstanceVO> found = listByIds(entry.getKey(), batch);
+                if (found != null) {
+                    for (VMInstanceVO vm : found) {
+                        typedVms.put(vm.getId(), vm);
+                    }
+                    continue;
                 }
-                Long id = vmGuru.convertToId(name);
-                if (id != null) {
-                    map.put(id, new AgentVmInfo(entry.getKey(), vmGuru, null, entry.getValue().second(), entry.getValue().first()));
-                    break;
+
+                VirtualMachineGuru<? extends VMInstanceVO> guru = _vmGurus.get(entry.getKey());
+                for (Long id : batch) {
+                    VMInstanceVO vm = guru.findById(id);
+                    if (vm != null) {
+                        typedVms.put(id, vm);
+                    }
                 }
             }
         }
+        return typedVms;
+    }
 
-        return map;
+    /**
+     * @return the vms loaded through the dao of their type, or null if the
+     *         type has a guru but no dao to load it in bulk with.
+     */
+    protected List<? extends VMInstanceVO> listByIds(VirtualMachine.Type type, List<Long> ids) {
+        switch (type) {
+        case User:
+            return _userVmDao.listByIds(ids);
+        case DomainRouter:
+        case ElasticLoadBalancerVm:
+            return _routerDao.listByIds(ids);
+        case ConsoleProxy:
+            return _consoleDao.listByIds(ids);
+        case SecondaryStorageVm:
+            return _secondaryDao.listByIds(ids);
+        default:
+            return _vmGurus.containsKey(type) ? null : _vmDao.listByIds(ids);
+        }
+    }
+
+    protected Map<String, HostVO> findHostsByGuid(final Collection<AgentVmInfo> infos) {
+        Set<String> guids = new HashSet<String>();
+        for (AgentVmInfo info : infos) {
+            if (info.getHostUuid() != null) {
+                guids.add(info.getHostUuid());
+            }
+        }
+
+        Map<String, HostVO> hosts = new HashMap<String, HostVO>(guids.size());
+        List<String> guidList = new ArrayList<String>(guids);
+        for (int i = 0; i < guidList.size(); i += SYNC_BATCH_SIZE) {
+            for (HostVO host : _hostDao.listByGuids(guidList.subList(i, Math.min(guidList.size(), i + SYNC_BATCH_SIZE)))) {
+                hosts.put(host.getGuid(), host);
+            }
+        }
+        return hosts;
     }
 
     /**
@@ -1885,9 +2005,9 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
             if (answer instanceof ClusterSyncAnswer) {
                 ClusterSyncAnswer hs = (ClusterSyncAnswer) answer;
                 if (hs.isFull()) {
-                    fullSync(hs.getClusterId(), hs.getNewStates());
+                    fullSync(agentId, hs.getClusterId(), hs.getNewStates());
                 } else {
-                    deltaSync(hs.getNewStates());
+                    deltaSync(agentId, hs.getNewStates());
                 }
             } else if (!answer.getResult()) {
                 s_logger.warn("Cleanup failed due to " + answer.getDetails());
@@ -0,0 +1,133 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+public class VirtualMachineSyncMBeanImpl extends StandardMBean implements VirtualMachineSyncMBean {
+    private final ConcurrentHashMap<Long, SyncStats> _stats = new ConcurrentHashMap<Long, SyncStats>();
+    private final AtomicLong _fullSyncs = new AtomicLong();
+    private final AtomicLong _deltaSyncs = new AtomicLong();
+
+    public VirtualMachineSyncMBeanImpl() {
+        super(VirtualMachineSyncMBean.class, false);
+    }
+
+    public void recordSync(long hostId, boolean full, int vmCount, long resolveTime, long compareTime) {
+        if (full) {
+            _fullSyncs.incrementAndGet();
+        } else {
+            _deltaSyncs.incrementAndGet();
+        }
+
+        SyncStats stats = _stats.get(hostId);
+        if (stats == null) {
+            stats = new SyncStats();
+            SyncStats existing = _stats.putIfAbsent(hostId, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(vmCount, resolveTime, compareTime);
+    }
+
+    @Override
+    public long getFullSyncCount() {
+        return _fullSyncs.get();
+    }
+
+    @Override
+    public long getDeltaSyncCount() {
+        return _deltaSyncs.get();
+    }
+
+    @Override
+    public Map<Long, Integer> getLastReportedVmCounts() {
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (Map.Entry<Long, SyncStats> entry : _stats.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().vmCount);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<Long, Long> getLastResolveTimes() {
+        Map<Long, Long> times = new HashMap<Long, Long>();
+        for (Map.Entry<Long, SyncStats> entry : _stats.entrySet()) {
+            times.put(entry.getKey(), entry.getValue().resolveTime);
+        }
+        return times;
+    }
+
+    @Override
+    public Map<Long, Long> getLastCompareTimes() {
+        Map<Long, Long> times = new HashMap<Long, Long>();
+        for (Map.Entry<Long, SyncStats> entry : _stats.entrySet()) {
+            times.put(entry.getKey(), entry.getValue().compareTime);
+        }
+        return times;
+    }
+
+    @Override
+    public Map<Long, Long> getLastSyncTimes() {
+        Map<Long, Long> times = new HashMap<Long, Long>();
+        for (Map.Entry<Long, SyncStats> entry : _stats.entrySet()) {
+            SyncStats stats = entry.getValue();
+            times.put(entry.getKey(), stats.resolveTime + stats.compareTime);
+        }
+        return times;
+    }
+
+    @Override
+    public Map<Long, Long> getMaxSyncTimes() {
+        Map<Long, Long> times = new HashMap<Long, Long>();
+        for (Map.Entry<Long, SyncStats> entry : _stats.entrySet()) {
+            times.put(entry.getKey(), entry.getValue().maxTime);
+        }
+        return times;
+    }
+
+    @Override
+    public void resetSyncStats() {
+        _stats.clear();
+        _fullSyncs.set(0);
+        _deltaSyncs.set(0);
+    }
+
+    protected static class SyncStats {
+        volatile int vmCount;
+        volatile long resolveTime;
+        volatile long compareTime;
+        volatile long maxTime;
+
+        synchronized void record(int vmCount, long resolveTime, long compareTime) {
+            this.vmCount = vmCount;
+            this.resolveTime = resolveTime;
+            this.compareTime = compareTime;
+            if (resolveTime + compareTime > maxTime) {
+                maxTime = resolveTime + compareTime;
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.cloud.vm.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -82,6 +83,12 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
     public Long countAllocatedVirtualRoutersForAccount(long accountId);
 
     List<VMInstanceVO> listByClusterId(long clusterId);
+
+    /**
+     * @param names instance names as reported by the agents.
+     * @return the vms that go by those instance names.
+     */
+    List<VMInstanceVO> listByInstanceNames(Collection<String> names);
     List<VMInstanceVO> listVmsMigratingFromHost(Long hostId);
     
     public Long countRunningByHostId(long hostId);    
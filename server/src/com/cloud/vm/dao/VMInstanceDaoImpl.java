@@ -19,6 +19,7 @@
 package com.cloud.vm.dao;
 
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -54,6 +55,7 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected final SearchBuilder<VMInstanceVO> AllFieldsSearch;
     protected final SearchBuilder<VMInstanceVO> ZoneTemplateNonExpungedSearch;
     protected final SearchBuilder<VMInstanceVO> NameLikeSearch;
+    protected final SearchBuilder<VMInstanceVO> InstanceNamesSearch;
     protected final SearchBuilder<VMInstanceVO> StateChangeSearch;
     protected final SearchBuilder<VMInstanceVO> TransitionSearch;
     protected final SearchBuilder<VMInstanceVO> TypesSearch;
@@ -99,6 +101,10 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         NameLikeSearch.and("name", NameLikeSearch.entity().getHostName(), Op.LIKE);
         NameLikeSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("names", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
         StateChangeSearch = createSearchBuilder();
         StateChangeSearch.and("id", StateChangeSearch.entity().getId(), Op.EQ);
         StateChangeSearch.and("states", StateChangeSearch.entity().getState(), Op.EQ);
@@ -191,6 +197,13 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return listBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> names) {
+        SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+        sc.setParameters("names", names.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public List<VMInstanceVO> listByZoneIdAndType(long zoneId, VirtualMachine.Type type) {
         SearchCriteria<VMInstanceVO> sc = AllFieldsSearch.create();
@@ -0,0 +1,218 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiResponseGsonHelper;
+import com.cloud.api.ResponseObject;
+import com.google.gson.Gson;
+
+/**
+ * Times serializing large list responses: the streamed JSON and XML
+ * serializers against building the JSON string with a Gson instance per call
+ * and unescaping every element, the way the API server used to.
+ *
+ * Usage: ApiResponseSerializerBenchmark [-vms 1000] [-events 5000] [-iterations 10]
+ */
+public class ApiResponseSerializerBenchmark {
+    private static final Logger s_logger = Logger.getLogger(ApiResponseSerializerBenchmark.class);
+
+    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
+
+    static ListResponse<UserVmResponse> listVms(int count) {
+        List<UserVmResponse> vms = new ArrayList<UserVmResponse>();
+        for (int i = 0; i < count; i++) {
+            UserVmResponse vm = new UserVmResponse();
+            vm.setId((long) i);
+            vm.setName("i-2-" + i + "-VM");
+            vm.setDisplayName("web <" + i + "> & 'db' café");
+            vm.setAccountName("admin");
+            vm.setDomainId(1L);
+            vm.setDomainName("ROOT");
+            vm.setCreated(new Date(1300000000000L + i));
+            vm.setState("Running");
+            vm.setHaEnable(false);
+            vm.setZoneId(1L);
+            vm.setZoneName("zone1");
+            vm.setHostId(3L);
+            vm.setHostName("xenserver-3");
+            vm.setTemplateId(2L);
+            vm.setTemplateName("CentOS 5.5(64-bit) no GUI (XenServer)");
+            vm.setServiceOfferingId(1L);
+            vm.setServiceOfferingName("Small Instance");
+            vm.setCpuNumber(1);
+            vm.setCpuSpeed(500);
+            vm.setMemory(512);
+            vm.setGuestOsId(12L);
+            vm.setRootDeviceId(0L);
+            vm.setRootDeviceType("NetworkFilesystem");
+            vm.setHypervisor("XenServer");
+
+            List<NicResponse> nics = new ArrayList<NicResponse>();
+            NicResponse nic = new NicResponse();
+            nic.setId((long) i);
+            nic.setNetworkid(204L);
+            nic.setIpaddress("10.1.1." + (i % 250));
+            nic.setNetmask("255.255.255.0");
+            nic.setGateway("10.1.1.1");
+            nic.setTrafficType("Guest");
+            nic.setType("Virtual");
+            nic.setIsDefault(true);
+            nics.add(nic);
+            vm.setNics(nics);
+
+            vm.setObjectName("virtualmachine");
+            vms.add(vm);
+        }
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        response.setResponses(vms);
+        response.setResponseName("listvirtualmachinesresponse");
+        return response;
+    }
+
+    static ListResponse<EventResponse> listEvents(int count) {
+        List<EventResponse> events = new ArrayList<EventResponse>();
+        for (int i = 0; i < count; i++) {
+            EventResponse event = new EventResponse();
+            event.setId((long) i);
+            event.setUsername("admin");
+            event.setEventType("VM.START");
+            event.setLevel("INFO");
+            event.setDescription("Successfully completed starting Vm. Vm Id: " + i);
+            event.setAccountName("admin");
+            event.setDomainId(1L);
+            event.setDomainName("ROOT");
+            event.setCreated(new Date(1300000000000L + i));
+            event.setObjectName("event");
+            events.add(event);
+        }
+        ListResponse<EventResponse> response = new ListResponse<EventResponse>();
+        response.setResponses(events);
+        response.setResponseName("listeventsresponse");
+        return response;
+    }
+
+    static String legacyJSON(ListResponse<? extends ResponseObject> result) {
+        Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ \"" + result.getResponseName() + "\" : ");
+        List<? extends ResponseObject> responses = result.getResponses();
+        sb.append("{ \"count\":" + responses.size() + " ,\"" + responses.get(0).getObjectName() + "\" : [  ");
+        for (int i = 0; i < responses.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String str = gson.toJson(responses.get(i));
+            Matcher matcher = s_unicodeEscapePattern.matcher(str);
+            while (matcher.find()) {
+                str = str.replaceAll("\\" + matcher.group(0), Character.toString((char) Integer.parseInt(matcher.group(1), 16)));
+            }
+            sb.append(str);
+        }
+        sb.append(" ] } }");
+        return sb.toString();
+    }
+
+    static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static void benchmark(ListResponse<? extends ResponseObject> response, int iterations) throws IOException {
+        String legacy = legacyJSON(response);
+        StringWriter json = new StringWriter();
+        ApiResponseSerializer.serializeJSON(response, json);
+        if (!legacy.equals(json.toString())) {
+            s_logger.error(response.getResponseName() + ": the streamed json differs from the string json, not timing it");
+            return;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            Runtime.getRuntime().gc();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                legacyJSON(response);
+            }
+            long legacyTime = System.currentTimeMillis() - start;
+
+            NullWriter out = new NullWriter();
+            start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                ApiResponseSerializer.serializeJSON(response, out);
+            }
+            long streamTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                ApiResponseSerializer.serializeXML(response, "test", out);
+            }
+            long xmlTime = System.currentTimeMillis() - start;
+
+            s_logger.info(response.getResponseName() + " of " + response.getCount() + " objects, " + legacy.length() + " chars: string json " + (legacyTime / iterations)
+                    + "ms, streamed json " + (streamTime / iterations) + "ms, streamed xml " + (xmlTime / iterations) + "ms");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int vms = 1000;
+        int events = 5000;
+        int iterations = 10;
+
+        Iterator<String> iter = Arrays.asList(args).iterator();
+        while (iter.hasNext()) {
+            String arg = iter.next();
+            if (arg.equals("-vms")) {
+                vms = Integer.parseInt(iter.next());
+            } else if (arg.equals("-events")) {
+                events = Integer.parseInt(iter.next());
+            } else if (arg.equals("-iterations")) {
+                iterations = Integer.parseInt(iter.next());
+            }
+        }
+
+        benchmark(listVms(vms), iterations);
+        benchmark(listEvents(events), iterations);
+    }
+}
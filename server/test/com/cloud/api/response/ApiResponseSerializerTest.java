@@ -0,0 +1,236 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.api.response;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import com.cloud.api.ApiResponseGsonHelper;
+import com.cloud.api.ResponseObject;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ApiResponseSerializerTest extends TestCase {
+    private static ListResponse<UserVmResponse> listVms(int count) {
+        List<UserVmResponse> vms = new ArrayList<UserVmResponse>();
+        for (int i = 0; i < count; i++) {
+            UserVmResponse vm = new UserVmResponse();
+            vm.setId((long) i);
+            vm.setName("i-2-" + i + "-VM");
+            vm.setDisplayName("web <" + i + "> & 'db' café");
+            vm.setAccountName("admin");
+            vm.setDomainId(1L);
+            vm.setDomainName("ROOT");
+            vm.setCreated(new Date(1300000000000L + i));
+            vm.setState("Running");
+            vm.setHaEnable(false);
+            vm.setZoneId(1L);
+            vm.setZoneName("zone1");
+            vm.setHostId(3L);
+            vm.setHostName("xenserver-3");
+            vm.setTemplateId(2L);
+            vm.setTemplateName("CentOS 5.5(64-bit) no GUI (XenServer)");
+            vm.setServiceOfferingId(1L);
+            vm.setServiceOfferingName("Small Instance");
+            vm.setCpuNumber(1);
+            vm.setCpuSpeed(500);
+            vm.setMemory(512);
+            vm.setGuestOsId(12L);
+            vm.setRootDeviceId(0L);
+            vm.setRootDeviceType("NetworkFilesystem");
+            vm.setHypervisor("XenServer");
+
+            List<NicResponse> nics = new ArrayList<NicResponse>();
+            NicResponse nic = new NicResponse();
+            nic.setId((long) i);
+            nic.setNetworkid(204L);
+            nic.setIpaddress("10.1.1." + (i % 250));
+            nic.setNetmask("255.255.255.0");
+            nic.setGateway("10.1.1.1");
+            nic.setTrafficType("Guest");
+            nic.setType("Virtual");
+            nic.setIsDefault(true);
+            nics.add(nic);
+            vm.setNics(nics);
+
+            vm.setObjectName("virtualmachine");
+            vms.add(vm);
+        }
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        response.setResponses(vms);
+        response.setResponseName("listvirtualmachinesresponse");
+        return response;
+    }
+
+    private static ListResponse<EventResponse> listEvents(int count) {
+        List<EventResponse> events = new ArrayList<EventResponse>();
+        for (int i = 0; i < count; i++) {
+            EventResponse event = new EventResponse();
+            event.setId((long) i);
+            event.setUsername("admin");
+            event.setEventType("VM.START");
+            event.setLevel("INFO");
+            event.setDescription("Successfully completed starting Vm. Vm Id: " + i);
+            event.setAccountName("admin");
+            event.setDomainId(1L);
+            event.setDomainName("ROOT");
+            event.setCreated(new Date(1300000000000L + i));
+            event.setObjectName("event");
+            events.add(event);
+        }
+        ListResponse<EventResponse> response = new ListResponse<EventResponse>();
+        response.setResponses(events);
+        response.setResponseName("listeventsresponse");
+        return response;
+    }
+
+    public void testJSON() throws Exception {
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.serializeJSON(listVms(3), out);
+
+        JsonObject list = new JsonParser().parse(out.toString()).getAsJsonObject().getAsJsonObject("listvirtualmachinesresponse");
+        Assert.assertEquals(3, list.get("count").getAsInt());
+        JsonArray vms = list.getAsJsonArray("virtualmachine");
+        Assert.assertEquals(3, vms.size());
+        JsonObject vm = vms.get(2).getAsJsonObject();
+        Assert.assertEquals(2, vm.get("id").getAsLong());
+        Assert.assertEquals("web <2> & 'db' café", vm.get("displayname").getAsString());
+        Assert.assertEquals("10.1.1.2", vm.getAsJsonArray("nic").get(0).getAsJsonObject().get("ipaddress").getAsString());
+        // no unicode escapes for the html characters
+        Assert.assertTrue(out.toString().contains("web <2> & 'db'"));
+
+        out = new StringWriter();
+        ApiResponseSerializer.serializeJSON(listEvents(0), out);
+        Assert.assertEquals("{ \"listeventsresponse\" : { } }", out.toString());
+    }
+
+    public void testXML() throws Exception {
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.serializeXML(listVms(3), "test", out);
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(out.toString())));
+        Element root = doc.getDocumentElement();
+        Assert.assertEquals("listvirtualmachinesresponse", root.getTagName());
+        Assert.assertEquals("test", root.getAttribute("cloud-stack-version"));
+        Assert.assertEquals("3", root.getElementsByTagName("count").item(0).getTextContent());
+        Assert.assertEquals(3, root.getElementsByTagName("virtualmachine").getLength());
+        Element vm = (Element) root.getElementsByTagName("virtualmachine").item(1);
+        Assert.assertEquals("web <1> & 'db' café", vm.getElementsByTagName("displayname").item(0).getTextContent());
+        Assert.assertEquals("10.1.1.1", ((Element) vm.getElementsByTagName("nic").item(0)).getElementsByTagName("ipaddress").item(0).getTextContent());
+    }
+
+    /**
+     * Compares against building the response with a Gson instance per call and unescaping every element,
+     * the way the serializer used to.
+     */
+    public void testMatchesLegacyJSON() throws Exception {
+        for (ListResponse<? extends ResponseObject> response : new ListResponse<?>[] { listVms(20), listEvents(50) }) {
+            StringWriter json = new StringWriter();
+            ApiResponseSerializer.serializeJSON(response, json);
+            Assert.assertEquals(legacyJSON(response), json.toString());
+        }
+    }
+
+    /**
+     * A response that fails part way through is held back while it fits the buffer, past that the part
+     * already written goes out as is.
+     */
+    public void testFailureWhileStreaming() throws Exception {
+        ListResponse<EventResponse> events = listEvents(100);
+        List<EventResponse> failing = new ArrayList<EventResponse>(events.getResponses()) {
+            @Override
+            public EventResponse get(int index) {
+                if (index == 50) {
+                    throw new IllegalStateException("broken response");
+                }
+                return super.get(index);
+            }
+        };
+        events.setResponses(failing);
+
+        StringWriter out = new StringWriter();
+        BufferedResponseWriter buffered = new BufferedResponseWriter(out, 1024 * 1024);
+        try {
+            ApiResponseSerializer.serializeJSON(events, buffered);
+            Assert.fail("Serialization should have failed");
+        } catch (IllegalStateException e) {
+        }
+        Assert.assertFalse(buffered.isCommitted());
+        Assert.assertEquals(0, out.getBuffer().length());
+
+        out = new StringWriter();
+        buffered = new BufferedResponseWriter(out, 1024);
+        try {
+            ApiResponseSerializer.serializeJSON(events, buffered);
+            Assert.fail("Serialization should have failed");
+        } catch (IllegalStateException e) {
+        }
+        Assert.assertTrue(buffered.isCommitted());
+        Assert.assertTrue(out.toString().startsWith("{ \"listeventsresponse\" : "));
+        Assert.assertTrue(out.getBuffer().length() > 1024);
+
+        StringWriter expected = new StringWriter();
+        ApiResponseSerializer.serializeJSON(listVms(30), expected);
+        out = new StringWriter();
+        buffered = new BufferedResponseWriter(out, 1024);
+        ApiResponseSerializer.serializeJSON(listVms(30), buffered);
+        buffered.close();
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
+
+    private static String legacyJSON(ListResponse<? extends ResponseObject> result) {
+        Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ \"" + result.getResponseName() + "\" : ");
+        List<? extends ResponseObject> responses = result.getResponses();
+        sb.append("{ \"count\":" + responses.size() + " ,\"" + responses.get(0).getObjectName() + "\" : [  ");
+        for (int i = 0; i < responses.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String str = gson.toJson(responses.get(i));
+            Matcher matcher = s_unicodeEscapePattern.matcher(str);
+            while (matcher.find()) {
+                str = str.replaceAll("\\" + matcher.group(0), Character.toString((char) Integer.parseInt(matcher.group(1), 16)));
+            }
+            sb.append(str);
+        }
+        sb.append(" ] } }");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.cluster;
+
+import java.nio.channels.ClosedChannelException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+public class ClusterServiceNioPeerTest extends TestCase {
+    private final static Logger s_logger = Logger.getLogger(ClusterServiceNioPeerTest.class);
+    private final static int PORT = 19090;
+
+    /**
+     * Echoes the payload back, answering in reverse order of the agent id
+     * so the responses overtake each other on the link.
+     */
+    protected static class EchoFactory implements HandlerFactory {
+        @Override
+        public Task create(Task.Type type, Link link, byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(Task task) throws Exception {
+                    if (task.getType() != Task.Type.DATA) {
+                        return;
+                    }
+                    ClusterServiceNioMessage request = ClusterServiceNioMessage.parse(task.getData());
+                    Thread.sleep(10 * (10 - request.getAgentId() % 10));
+                    try {
+                        task.getLink().send(request.response(request.getAgentId(), true, request.getPayload()).toBytes());
+                    } catch (ClosedChannelException e) {
+                    }
+                }
+            };
+        }
+    }
+
+    public void testMessage() {
+        ClusterServiceNioMessage request = ClusterServiceNioMessage.request(RemoteMethodConstants.METHOD_ASYNC_RESULT, "1234", 5, 42, true, "[{\"x\":\"é\"}]");
+        request.setSeq(7);
+        ClusterServiceNioMessage parsed = ClusterServiceNioMessage.parse(request.toBytes());
+        Assert.assertTrue(parsed.isRequest());
+        Assert.assertEquals(7, parsed.getSeq());
+        Assert.assertEquals(RemoteMethodConstants.METHOD_ASYNC_RESULT, parsed.getMethod());
+        Assert.assertEquals("1234", parsed.getPeer());
+        Assert.assertEquals(5, parsed.getAgentId());
+        Assert.assertEquals(42, parsed.getValue());
+        Assert.assertTrue(parsed.getFlag());
+        Assert.assertEquals("[{\"x\":\"é\"}]", parsed.getPayload());
+
+        ClusterServiceNioMessage failure = ClusterServiceNioMessage.parse(parsed.failure().toBytes());
+        Assert.assertFalse(failure.isRequest());
+        Assert.assertEquals(7, failure.getSeq());
+        Assert.assertEquals(RemoteMethodConstants.METHOD_UNKNOWN, failure.getMethod());
+        Assert.assertNull(failure.getPayload());
+    }
+
+    public void testPipelinedCalls() throws Exception {
+        NioServer server = new NioServer("ClusterServiceNioPeerTest", PORT, 10, new EchoFactory());
+        server.start();
+
+        final ClusterServiceNioPeer peer = new ClusterServiceNioPeer("1", "localhost", PORT, 10);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 20; i++) {
+            final long agentId = i;
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String result = peer.execute("0", agentId, "package-" + agentId, false);
+                        Assert.assertEquals("package-" + agentId, result);
+                        Assert.assertEquals(agentId, peer.executeAsync("0", agentId, "async", false));
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join(30000);
+        }
+
+        try {
+            Assert.assertTrue("Calls failed: " + errors, errors.isEmpty());
+            Assert.assertTrue(peer.isConnected());
+            Assert.assertEquals(1, peer.getConnectCount());
+            Assert.assertEquals(40, peer.getRequestCount());
+            Assert.assertEquals(0, peer.getPendingRequestCount());
+            s_logger.info("Average latency " + peer.getAverageLatency() + "ms, max " + peer.getMaxLatency() + "ms");
+        } finally {
+            peer.close();
+            server.stop();
+        }
+        Assert.assertFalse(peer.isConnected());
+
+        try {
+            new ClusterServiceNioPeer("2", "localhost", PORT + 1, 10).ping("0");
+            Assert.fail("Should not be able to reach a peer that isn't listening");
+        } catch (RemoteException e) {
+        }
+    }
+
+    public void testLinkClosedBeforeCallRegistered() throws Exception {
+        NioServer server = new NioServer("ClusterServiceNioPeerTest", PORT + 2, 10, new EchoFactory());
+        server.start();
+
+        // the link goes away after connect() handed it out but before the call is in _calls
+        ClusterServiceNioPeer peer = new ClusterServiceNioPeer("1", "localhost", PORT + 2, 10) {
+            @Override
+            protected synchronized Link connect() throws RemoteException {
+                Link link = super.connect();
+                disconnected(link);
+                return link;
+            }
+        };
+        try {
+            long start = System.currentTimeMillis();
+            try {
+                peer.ping("0");
+                Assert.fail("Call on a closed link should fail");
+            } catch (RemoteException e) {
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertEquals(0, peer.getPendingRequestCount());
+            Assert.assertEquals(1, peer.getFailureCount());
+        } finally {
+            peer.close();
+            server.stop();
+        }
+    }
+}
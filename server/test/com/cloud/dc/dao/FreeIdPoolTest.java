@@ -0,0 +1,129 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.dc.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+public class FreeIdPoolTest extends TestCase {
+    /**
+     * Stands in for an op_dc_*_alloc table: ids 1000..1000+size-1 under key 1.
+     */
+    protected static class TablePool extends FreeIdPool {
+        final ConcurrentHashMap<Long, Boolean> _taken = new ConcurrentHashMap<Long, Boolean>();
+        final int _size;
+
+        TablePool(int size) {
+            super("Test pool");
+            _size = size;
+        }
+
+        @Override
+        protected List<Long> listFreeIds(long key) {
+            List<Long> ids = new ArrayList<Long>();
+            for (long id = 1000; id < 1000 + _size; id++) {
+                if (!_taken.containsKey(id)) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+
+        final FreeIdPool.Lease _lease = new FreeIdPool.Lease() {
+            @Override
+            public boolean lease(long id) {
+                return _taken.putIfAbsent(id, Boolean.TRUE) == null;
+            }
+        };
+
+        long take() {
+            return take(1, _lease);
+        }
+    }
+
+    public void testConcurrentTakes() throws Exception {
+        final TablePool pool = new TablePool(500);
+        // taken behind the pool's back after it has cached them
+        Assert.assertTrue(pool.take() >= 1000);
+        for (long id = 1000; id < 1050; id++) {
+            pool._taken.put(id, Boolean.TRUE);
+        }
+
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final List<Long> duplicates = new ArrayList<Long>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 10; i++) {
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long id;
+                    while ((id = pool.take()) >= 0) {
+                        if (!ids.add(id)) {
+                            synchronized (duplicates) {
+                                duplicates.add(id);
+                            }
+                        }
+                    }
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join(30000);
+        }
+
+        Assert.assertTrue("Handed out twice: " + duplicates, duplicates.isEmpty());
+        Assert.assertEquals(500, pool._taken.size());
+        Assert.assertTrue(ids.size() >= 449);
+        Assert.assertTrue(pool.getContentionCount() > 0);
+        Assert.assertEquals(0, pool.getCachedFreeCount());
+        Assert.assertEquals(-1, pool.take());
+    }
+
+    public void testFreeAndInvalidate() {
+        TablePool pool = new TablePool(3);
+        long a = pool.take();
+        long b = pool.take();
+        long c = pool.take();
+        Assert.assertEquals(-1, pool.take());
+        long reloads = pool.getReloadCount();
+
+        // released locally: handed out again without going to the table
+        pool._taken.remove(b);
+        pool.free(1, b);
+        Assert.assertEquals(b, pool.take());
+        Assert.assertEquals(reloads, pool.getReloadCount());
+
+        // released elsewhere: picked up once the cache is dropped
+        pool._taken.remove(a);
+        pool._taken.remove(c);
+        pool.invalidate(1);
+        Assert.assertTrue(pool.take() >= 0);
+        Assert.assertTrue(pool.take() >= 0);
+        Assert.assertEquals(-1, pool.take());
+        Assert.assertEquals(6, pool.getTakeCount() - pool.getFailedTakeCount());
+    }
+}
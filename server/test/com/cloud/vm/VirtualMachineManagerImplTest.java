@@ -0,0 +1,92 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.vm;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.vm.dao.DomainRouterDao;
+import com.cloud.vm.dao.UserVmDao;
+
+public class VirtualMachineManagerImplTest extends TestCase {
+    /**
+     * A dao that answers listByIds from the given vms and records the size of each call.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T dao(Class<T> type, final List<? extends VMInstanceVO> vms, final List<Integer> calls) {
+        return (T)Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("listByIds")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                Collection<Long> ids = (Collection<Long>)args[0];
+                calls.add(ids.size());
+                List<VMInstanceVO> found = new ArrayList<VMInstanceVO>();
+                for (VMInstanceVO vm : vms) {
+                    if (ids.contains(vm.getId())) {
+                        found.add(vm);
+                    }
+                }
+                return found;
+            }
+        });
+    }
+
+    public void testFindTypedVmsInBatches() {
+        int count = VirtualMachineManagerImpl.SYNC_BATCH_SIZE * 2 + 7;
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        List<UserVmVO> userVms = new ArrayList<UserVmVO>();
+        for (long id = 1; id <= count; id++) {
+            vms.add(new VMInstanceVO(id, 1, "vm-" + id, "i-2-" + id + "-VM", VirtualMachine.Type.User, 1l, HypervisorType.KVM, 1, 1, 2, false));
+            userVms.add(new UserVmVO(id, "i-2-" + id + "-VM", "vm-" + id, 1, HypervisorType.KVM, 1, false, false, 1, 2, 1, null, "vm-" + id));
+        }
+        // a router that was removed in the meantime
+        vms.add(new VMInstanceVO(count + 1, 1, "r-1", "r-1-VM", VirtualMachine.Type.DomainRouter, 1l, HypervisorType.KVM, 1, 1, 2, false));
+
+        List<Integer> userVmCalls = new ArrayList<Integer>();
+        List<Integer> routerCalls = new ArrayList<Integer>();
+        VirtualMachineManagerImpl mgr = new VirtualMachineManagerImpl();
+        mgr._userVmDao = dao(UserVmDao.class, userVms, userVmCalls);
+        mgr._routerDao = dao(DomainRouterDao.class, new ArrayList<VMInstanceVO>(), routerCalls);
+
+        Map<Long, VMInstanceVO> typed = mgr.findTypedVms(vms);
+        Assert.assertEquals(count, typed.size());
+        for (long id = 1; id <= count; id++) {
+            Assert.assertTrue(typed.get(id) instanceof UserVmVO);
+        }
+
+        // one query per batch of each type
+        Assert.assertEquals(3, userVmCalls.size());
+        Assert.assertEquals(VirtualMachineManagerImpl.SYNC_BATCH_SIZE, (int)userVmCalls.get(0));
+        Assert.assertEquals(VirtualMachineManagerImpl.SYNC_BATCH_SIZE, (int)userVmCalls.get(1));
+        Assert.assertEquals(7, (int)userVmCalls.get(2));
+        Assert.assertEquals(1, routerCalls.size());
+    }
+}
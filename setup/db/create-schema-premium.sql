@@ -103,6 +103,7 @@ CREATE TABLE  `cloud_usage`.`usage_job` (
   `end_date` DATETIME COMMENT 'end date of the aggregation range used by this job',
   `success` int(1),
   `heartbeat` DATETIME NOT NULL,
+  `parser_times` varchar(1024) COMMENT 'milliseconds spent in each usage parser by this job',
   PRIMARY KEY  (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
@@ -0,0 +1,5 @@
+--;
+-- Premium schema upgrade from 2.2.12 to 2.2.13;
+--;
+
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `parser_times` varchar(1024) COMMENT 'milliseconds spent in each usage parser by this job';
@@ -6,4 +6,12 @@ UPDATE networks SET guru_name='ExternalGuestNetworkGuru' WHERE guru_name='GuestN
 UPDATE nics SET reserver_name='ExternalGuestNetworkGuru' WHERE reserver_name='GuestNetworkGuru';
 UPDATE configuration SET value='KVM,XenServer,VMware,BareMetal,Ovm' WHERE name='hypervisor.list';
 
+INSERT IGNORE INTO configuration VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.reactor.enabled', 'false', 'If true, agent connections are accepted by one thread and served by several selector threads, with SSL handshakes done off the selector threads.');
+INSERT IGNORE INTO configuration VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.reactor.count', '0', 'Number of selector threads serving agent connections when agent.reactor.enabled is true. 0 means one per processor core.');
+INSERT IGNORE INTO configuration VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.reactor.assignment', 'RoundRobin', 'How agent connections are spread across the selector threads when agent.reactor.enabled is true.');
+INSERT IGNORE INTO configuration VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.codec', 'deflate', 'Compression used for requests to agents that support negotiated codecs.');
+INSERT IGNORE INTO configuration VALUES ('Advanced', 'DEFAULT', 'AgentManager', 'agent.codec.level', '1', 'zlib level (0-9) used when agent.codec is deflate.');
 
+INSERT IGNORE INTO configuration VALUES ('Premium', 'DEFAULT', 'management-server', 'usage.aggregation.threads', '1', 'Number of threads aggregating usage, each working on its own range of accounts. 1 aggregates all accounts on the usage job thread');
+
+INSERT IGNORE INTO configuration VALUES ('Premium', 'DEFAULT', 'management-server', 'usage.incremental.parse', 'false', 'If true, usage parsing only runs the parsers of the helper tables an account has records in for the aggregation range');
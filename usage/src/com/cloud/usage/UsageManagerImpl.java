@@ -22,16 +22,25 @@ package com.cloud.usage;
 
 import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -88,6 +97,11 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private static final int DAILY_TIME = 60 * 24;
 	private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
 	private static final int USAGE_AGGREGATION_RANGE_MIN = 10;
+	// in the order parseHelperTables runs them
+	private static final String[] PARSER_NAMES = new String[] { "vm", "network", "volume", "storage", "loadbalancer", "portforwarding", "networkoffering", "ipaddress" };
+	// the helper table each of those parsers reads
+	private static final String[] PARSER_TABLES = new String[] { "usage_vm_instance", "usage_network", "usage_volume", "usage_storage", "usage_load_balancer_policy",
+	    "usage_port_forwarding", "usage_network_offering", "usage_ip_address" };
 
 	private final ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
 	private final AccountDao m_accountDao = _locator.getDao(AccountDao.class);
@@ -110,6 +124,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private final Calendar m_jobExecTime = Calendar.getInstance();
 	private int m_aggregationDuration = 0;
 	private int m_sanityCheckInterval = 0;
+	private int m_aggregationThreads = 1;
+	private boolean m_incrementalParse = false;
     String m_hostname = null;
     int m_pid = 0;
     TimeZone m_usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -118,6 +134,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
 	private final ScheduledExecutorService m_heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
 	private final ScheduledExecutorService m_sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+	private ExecutorService m_parserExecutor = null;
 	private Future m_scheduledFuture = null;
 	private Future m_heartbeat = null;
 	private Future m_sanity = null;
@@ -171,6 +188,19 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         if(sanityCheckInterval != null){
             m_sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        String aggregationThreads = configs.get("usage.aggregation.threads");
+        if (aggregationThreads != null) {
+            try {
+                m_aggregationThreads = Math.max(1, Integer.parseInt(aggregationThreads));
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("Unable to parse usage.aggregation.threads '" + aggregationThreads + "'");
+            }
+        }
+        m_incrementalParse = Boolean.parseBoolean(configs.get("usage.incremental.parse"));
+        if (m_aggregationThreads > 1) {
+            s_logger.info("Aggregating usage on " + m_aggregationThreads + " threads");
+            m_parserExecutor = Executors.newFixedThreadPool(m_aggregationThreads, new NamedThreadFactory("Usage-Parser"));
+        }
 
         m_usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
         s_logger.debug("Usage stats aggregation time zone: "+aggreagationTimeZone);
@@ -267,6 +297,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	    m_heartbeat.cancel(true);
 	    m_scheduledFuture.cancel(true);
 	    m_sanity.cancel(true);
+	    if (m_parserExecutor != null) {
+	        m_parserExecutor.shutdownNow();
+	    }
 		return true;
 	}
 
@@ -347,6 +380,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	    boolean success = false;
 	    long timeStart = System.currentTimeMillis();
 	    long deleteOldStatsTimeMillis = 0L;
+	    AtomicLongArray parserTimes = new AtomicLongArray(PARSER_NAMES.length);
+	    List<Integer> committedPartitions = new ArrayList<Integer>();
         try {
             if ((endDateMillis == 0) || (endDateMillis > timeStart)) {
                 endDateMillis = timeStart;
@@ -575,83 +610,12 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 usageTxn.commit();
                 usageTxn.start();
 
-                boolean parsed = false;
-                numAcctsProcessed = 0;
-                
-                Date currentStartDate = startDate;
-                Date currentEndDate = endDate;
-                Date tempDate = endDate;
-                
-                Calendar aggregateCal = Calendar.getInstance(m_usageTimezone);
-                
-                while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)){
-                    currentEndDate = tempDate;
-                    aggregateCal.setTime(tempDate);
-                    aggregateCal.add(Calendar.MINUTE, -m_aggregationDuration);                                        
-                    tempDate = aggregateCal.getTime();
-                }
-                
-                while (!currentEndDate.after(endDate) || (currentEndDate.getTime() -endDate.getTime() < 60000)){
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = m_accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = m_accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
-                                for(Long templateId : publicTemplates){
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved()); 
-                                        m_usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    currentStartDate = new Date(currentEndDate.getTime() + 1);
-                    aggregateCal.setTime(currentEndDate);
-                    aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);                        
-                    currentEndDate = aggregateCal.getTime();
-                }
-                
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+                boolean parsed;
+                if (m_parserExecutor != null) {
+                    parsed = parsePartitioned(startDate, endDate, recentlyDeletedDate, parserTimes, committedPartitions);
+                } else {
+                    Boolean result = parseAccounts(0, 1, startDate, endDate, recentlyDeletedDate, parserTimes);
+                    parsed = result != null && result;
                 }
 
                 // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
@@ -665,8 +629,13 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 s_logger.error("Exception in usage manager", ex);
                 usageTxn.rollback();
             } finally {
+                String times = formatParserTimes(parserTimes);
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Usage parser times for job " + job.getId() + ": " + times);
+                }
+
                 // everything seemed to work...set endDate as the last success date
-                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
+                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success, times);
 
                 // create a new job if this is a recurring job
                 if (job.getJobType() == UsageJobVO.JOB_TYPE_RECURRING) {
@@ -679,6 +648,13 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 Transaction swap = Transaction.open(Transaction.CLOUD_DB);
                 if(!success){
                     _alertMgr.sendAlert(AlertManager.ALERT_TYPE_USAGE_SERVER_RESULT, 0, new Long(0), "Usage job failed. Job id: "+job.getId(), "Usage job failed. Job id: "+job.getId());
+                    if (!committedPartitions.isEmpty()) {
+                        // those partitions' usage is in already and the next job parses the same range again
+                        String msg = "Usage job " + job.getId() + " failed after committing usage of account partitions " + committedPartitions + " of " + m_aggregationThreads +
+                                " from " + new Date(startDateMillis) + " to " + new Date(endDateMillis) + ", their usage records for that range need to be removed before the next job";
+                        s_logger.error(msg);
+                        _alertMgr.sendAlert(AlertManager.ALERT_TYPE_USAGE_SERVER_RESULT, 0, new Long(0), "Usage job partially committed. Job id: " + job.getId(), msg);
+                    }
                 } else {
                     _alertMgr.clearAlert(AlertManager.ALERT_TYPE_USAGE_SERVER_RESULT, 0, 0);
                 }
@@ -690,59 +666,295 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 		}
 	}
 	
-	private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate){
+    /**
+     * Parses the usage of every partitions-th page of accounts, starting with page partition, for each aggregation
+     * range between startDate and endDate.
+     * 
+     * @return null if there were no accounts to parse, otherwise whether every account parsed.
+     */
+    private Boolean parseAccounts(int partition, int partitions, Date startDate, Date endDate, Date recentlyDeletedDate, AtomicLongArray parserTimes) {
+        List<AccountVO> accounts = null;
+        Boolean parsed = null;
+        int numAcctsProcessed = 0;
+        int numAcctsSkipped = 0;
+        int numParsesSkipped = 0;
+        
+        Date currentStartDate = startDate;
+        Date currentEndDate = endDate;
+        Date tempDate = endDate;
+        
+        Calendar aggregateCal = Calendar.getInstance(m_usageTimezone);
+        
+        while ((tempDate.after(startDate)) && ((tempDate.getTime() - startDate.getTime()) > 60000)){
+            currentEndDate = tempDate;
+            aggregateCal.setTime(tempDate);
+            aggregateCal.add(Calendar.MINUTE, -m_aggregationDuration);                                        
+            tempDate = aggregateCal.getTime();
+        }
+        
+        while (!currentEndDate.after(endDate) || (currentEndDate.getTime() -endDate.getTime() < 60000)){
+            // in incremental mode only the helper tables an account has records in for the range are parsed
+            Map<Long, Set<String>> accountsWithUsage = null;
+            if (m_incrementalParse) {
+                accountsWithUsage = m_usageDao.listAccountsWithUsage(currentStartDate, currentEndDate);
+            }
+
+            Long limit = Long.valueOf(500);
+            Long offset = Long.valueOf(partition * limit.longValue());
+
+            do {
+                Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                accounts = m_accountDao.listAll(filter);
+                if ((accounts != null) && !accounts.isEmpty()) {
+                    for (AccountVO account : accounts) {
+                        boolean accountParsed = true;
+                        Set<String> tables = usageTables(accountsWithUsage, account);
+                        if (tables == null || !tables.isEmpty()) {
+                            accountParsed = parseHelperTables(account, currentStartDate, currentEndDate, tables, parserTimes);
+                            numParsesSkipped += tables == null ? 0 : PARSER_TABLES.length - tables.size();
+                        } else {
+                            numAcctsSkipped++;
+                        }
+                        parsed = (parsed == null || parsed) && accountParsed;
+                        numAcctsProcessed++;
+                    }
+                }
+                offset = new Long(offset.longValue() + partitions * limit.longValue());
+            } while ((accounts != null) && !accounts.isEmpty());
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
+            }
+            numAcctsProcessed = 0;
+
+            // reset offset
+            offset = Long.valueOf(partition * limit.longValue());
+
+            do {
+                Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+
+                accounts = m_accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+
+                if ((accounts != null) && !accounts.isEmpty()) {
+                    for (AccountVO account : accounts) {
+                        boolean accountParsed = true;
+                        Set<String> tables = usageTables(accountsWithUsage, account);
+                        if (tables == null || !tables.isEmpty()) {
+                            accountParsed = parseHelperTables(account, currentStartDate, currentEndDate, tables, parserTimes);
+                            numParsesSkipped += tables == null ? 0 : PARSER_TABLES.length - tables.size();
+                        } else {
+                            numAcctsSkipped++;
+                        }
+                        parsed = (parsed == null || parsed) && accountParsed;
+                        List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
+                        for(Long templateId : publicTemplates){
+                            //mark public templates owned by deleted accounts as deleted
+                            List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+                            if (storageVOs.size() > 1) {
+                                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
+                            }
+                            for (UsageStorageVO storageVO : storageVOs) {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                                }
+                                storageVO.setDeleted(account.getRemoved()); 
+                                m_usageStorageDao.update(storageVO);
+                            }
+                        }
+                        numAcctsProcessed++;
+                    }
+                }
+                offset = new Long(offset.longValue() + partitions * limit.longValue());
+            } while ((accounts != null) && !accounts.isEmpty());
+
+            currentStartDate = new Date(currentEndDate.getTime() + 1);
+            aggregateCal.setTime(currentEndDate);
+            aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);                        
+            currentEndDate = aggregateCal.getTime();
+        }
+        
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+            if (m_incrementalParse) {
+                s_logger.debug("skipped " + numAcctsSkipped + " account ranges without usage records and " + numParsesSkipped + " helper table parses of the other accounts");
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Spreads the accounts over m_aggregationThreads partitions that are parsed in parallel, each in its own usage
+     * transaction. The partitions are only committed once every one of them parsed successfully, otherwise they are all
+     * rolled back, so that a failed job can run again without counting usage twice. Like parseAccounts() the job is
+     * parsed if there were accounts to parse and every one of them parsed.
+     * 
+     * A partition whose commit fails after others committed is parsed again in the job's own transaction. Those that
+     * did commit are added to committedPartitions; if the job still fails with any in there, running it again counts
+     * their usage twice, which the caller raises an alert for.
+     */
+    private boolean parsePartitioned(final Date startDate, final Date endDate, final Date recentlyDeletedDate, final AtomicLongArray parserTimes, List<Integer> committedPartitions) throws InterruptedException {
+        final int partitions = m_aggregationThreads;
+        final CountDownLatch parsedLatch = new CountDownLatch(partitions);
+        final CountDownLatch decisionLatch = new CountDownLatch(1);
+        final AtomicBoolean parsed = new AtomicBoolean(false);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean commit = new AtomicBoolean(false);
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final int partition = i;
+                results.add(m_parserExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+                        try {
+                            try {
+                                txn.start();
+                                Boolean result = parseAccounts(partition, partitions, startDate, endDate, recentlyDeletedDate, parserTimes);
+                                if (result != null) {
+                                    parsed.set(true);
+                                    if (!result) {
+                                        failed.set(true);
+                                    }
+                                }
+                            } catch (Exception e) {
+                                s_logger.error("Unable to parse usage of account partition " + partition, e);
+                                failed.set(true);
+                            } finally {
+                                parsedLatch.countDown();
+                            }
+
+                            decisionLatch.await();
+                            if (commit.get()) {
+                                txn.commit();
+                                return true;
+                            }
+                            txn.rollback();
+                            return false;
+                        } finally {
+                            txn.close();
+                        }
+                    }
+                }));
+            }
+
+            parsedLatch.await();
+            commit.set(parsed.get() && !failed.get());
+        } finally {
+            // never leave a partition waiting on its transaction
+            decisionLatch.countDown();
+        }
+
+        for (int i = 0; i < partitions; i++) {
+            try {
+                if (results.get(i).get()) {
+                    committedPartitions.add(i);
+                }
+            } catch (ExecutionException e) {
+                s_logger.error("Unable to complete usage account partition " + i, e.getCause());
+            }
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Usage account partitions " + (commit.get() ? "committed" : "rolled back") + ", parsed: " + parsed.get() + ", failed: " + failed.get());
+        }
+        if (!commit.get()) {
+            return false;
+        }
+
+        for (int i = 0; i < partitions; i++) {
+            if (!committedPartitions.contains(i)) {
+                s_logger.warn("Usage account partition " + i + " was not committed, parsing it again");
+                Boolean result = parseAccounts(i, partitions, startDate, endDate, recentlyDeletedDate, parserTimes);
+                if (result != null && !result) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the helper tables to parse for the account, null to parse all of them. Incremental parsing skips the
+     *         parsers of tables without records of the account in the range, it keeps no per account checkpoints and the
+     *         tables an account does have records in are parsed in full as before. The system account is always parsed
+     *         in full since the ip address parser reads its records by domain.
+     */
+    private static Set<String> usageTables(Map<Long, Set<String>> accountsWithUsage, AccountVO account) {
+        if (accountsWithUsage == null || account.getId() == Account.ACCOUNT_ID_SYSTEM) {
+            return null;
+        }
+        Set<String> tables = accountsWithUsage.get(account.getId());
+        return tables != null ? tables : Collections.<String>emptySet();
+    }
+
+    private static boolean skip(Set<String> tables, int parser) {
+        return tables != null && !tables.contains(PARSER_TABLES[parser]);
+    }
+
+	private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate, Set<String> tables, AtomicLongArray parserTimes){
 	    boolean parsed = false;
+	    int parser = 0;
+	    long time = System.nanoTime();
 
-	    parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
+	    parsed = skip(tables, parser) || VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
+	    time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
 
-        parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
 
-        parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
 
-        parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || StorageUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
 
-        parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
         
-        parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
         
-        parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = addParserTime(parserTimes, parser++, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
         
-        parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
+        parsed = skip(tables, parser) || IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
+        addParserTime(parserTimes, parser, time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -752,6 +964,23 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         return parsed;
 	}
 
+	private static long addParserTime(AtomicLongArray parserTimes, int parser, long start) {
+	    long now = System.nanoTime();
+	    parserTimes.addAndGet(parser, now - start);
+	    return now;
+	}
+
+	private static String formatParserTimes(AtomicLongArray parserTimes) {
+	    StringBuilder sb = new StringBuilder();
+	    for (int i = 0; i < PARSER_NAMES.length; i++) {
+	        if (i > 0) {
+	            sb.append(", ");
+	        }
+	        sb.append(PARSER_NAMES[i]).append(": ").append(TimeUnit.NANOSECONDS.toMillis(parserTimes.get(i))).append("ms");
+	    }
+	    return sb.toString();
+	}
+
 	private void createHelperRecord(UsageEventVO event) {
 	    String eventType = event.getType();
 	    if (isVMEvent(eventType)) {
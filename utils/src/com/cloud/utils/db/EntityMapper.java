@@ -0,0 +1,383 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * Maps result set columns into the fields of an entity.  The conversion for
+ * each field is worked out once, including the annotations it needs, and
+ * the column layout of a result set is bound once per query instead of
+ * being looked up for every row.
+ * 
+ * The mappers write through java.lang.reflect.Field because the VO fields
+ * are private, which classes generated by cglib can't reach.
+ */
+public class EntityMapper {
+    protected final static TimeZone s_gmtTimeZone = GenericDaoBase.s_gmtTimeZone;
+
+    protected final Map<Pair<String, String>, Attribute> _allColumns;
+    protected final ConcurrentHashMap<Field, ColumnMapper> _mappers = new ConcurrentHashMap<Field, ColumnMapper>();
+
+    public EntityMapper(Map<Pair<String, String>, Attribute> allColumns) {
+        _allColumns = allColumns;
+        for (Attribute attr : allColumns.values()) {
+            if (attr.field != null) {
+                get(attr.field);
+            }
+        }
+    }
+
+    public ColumnMapper get(Field field) {
+        ColumnMapper mapper = _mappers.get(field);
+        if (mapper == null) {
+            mapper = create(field);
+            _mappers.put(field, mapper);
+        }
+        return mapper;
+    }
+
+    public ColumnMapper get(Attribute attr) {
+        return attr.field != null ? get(attr.field) : null;
+    }
+
+    /**
+     * @return the mapper for each column of the result set in column order.
+     */
+    public ColumnMapper[] bind(ResultSetMetaData meta) throws SQLException {
+        ColumnMapper[] columns = new ColumnMapper[meta.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(i + 1), meta.getColumnName(i + 1)));
+            assert (attr != null) : "How come I can't find " + meta.getCatalogName(i + 1) + "." + meta.getColumnName(i + 1);
+            columns[i] = get(attr.field);
+        }
+        return columns;
+    }
+
+    public ColumnMapper[] bind(List<Field> fields) {
+        ColumnMapper[] columns = new ColumnMapper[fields.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = get(fields.get(i));
+        }
+        return columns;
+    }
+
+    public void map(Object entity, ResultSet rs, ColumnMapper[] columns) throws SQLException {
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].map(entity, rs, i + 1);
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    protected static ColumnMapper create(Field field) {
+        final Class<?> type = field.getType();
+        if (type == String.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte[] bytes = rs.getBytes(index);
+                    if (bytes == null) {
+                        _field.set(entity, null);
+                        return;
+                    }
+                    try {
+                        _field.set(entity, new String(bytes, "UTF-8"));
+                    } catch (UnsupportedEncodingException e) {
+                        assert(false);
+                        throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
+                    }
+                }
+            };
+        } else if (type == long.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setLong(entity, rs.getLong(index));
+                }
+            };
+        } else if (type == Long.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    long value = rs.getLong(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type.isEnum()) {
+            return new EnumMapper(field);
+        } else if (type == int.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setInt(entity, rs.getInt(index));
+                }
+            };
+        } else if (type == Integer.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    int value = rs.getInt(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == Date.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    if (rs.getDate(index) == null) {
+                        _field.set(entity, null);
+                        return;
+                    }
+                    _field.set(entity, DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
+                }
+            };
+        } else if (type == Calendar.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    if (rs.getDate(index) == null) {
+                        _field.set(entity, null);
+                        return;
+                    }
+                    final Calendar cal = Calendar.getInstance();
+                    cal.setTime(DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
+                    _field.set(entity, cal);
+                }
+            };
+        } else if (type == boolean.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setBoolean(entity, rs.getBoolean(index));
+                }
+            };
+        } else if (type == Boolean.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    boolean value = rs.getBoolean(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == URI.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str == null ? null : new URI(str));
+                    } catch (URISyntaxException e) {
+                        throw new CloudRuntimeException("Invalid URI: " + str, e);
+                    }
+                }
+            };
+        } else if (type == URL.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str != null ? new URL(str) : null);
+                    } catch (MalformedURLException e) {
+                        throw new CloudRuntimeException("Invalid URL: " + str, e);
+                    }
+                }
+            };
+        } else if (type == Ip.class) {
+            final boolean string = field.getAnnotation(Enumerated.class) == null || field.getAnnotation(Enumerated.class).value() == EnumType.STRING;
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    Ip ip = null;
+                    if (string) {
+                        String s = rs.getString(index);
+                        ip = s == null ? null : new Ip(NetUtils.ip2Long(s));
+                    } else {
+                        ip = new Ip(rs.getLong(index));
+                    }
+                    _field.set(entity, ip);
+                }
+            };
+        } else if (type == short.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setShort(entity, rs.getShort(index));
+                }
+            };
+        } else if (type == Short.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    short value = rs.getShort(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == float.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setFloat(entity, rs.getFloat(index));
+                }
+            };
+        } else if (type == Float.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    float value = rs.getFloat(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == double.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setDouble(entity, rs.getDouble(index));
+                }
+            };
+        } else if (type == Double.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    double value = rs.getDouble(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setByte(entity, rs.getByte(index));
+                }
+            };
+        } else if (type == Byte.class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte value = rs.getByte(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte[].class) {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, rs.getBytes(index));
+                }
+            };
+        } else {
+            return new ColumnMapper(field) {
+                @Override
+                void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, rs.getObject(index));
+                }
+            };
+        }
+    }
+
+    /**
+     * Converts one column into one field.  Also keeps the annotations the
+     * statements need when writing the field back.
+     */
+    public static abstract class ColumnMapper {
+        protected final Field _field;
+        protected final Column _column;
+        protected final Enumerated _enumerated;
+
+        protected ColumnMapper(Field field) {
+            _field = field;
+            _column = field.getAnnotation(Column.class);
+            _enumerated = field.getAnnotation(Enumerated.class);
+        }
+
+        public Field getField() {
+            return _field;
+        }
+
+        public Column getColumn() {
+            return _column;
+        }
+
+        public EnumType getEnumType(EnumType defaultType) {
+            return _enumerated == null ? defaultType : _enumerated.value();
+        }
+
+        abstract void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException;
+    }
+
+    protected static class EnumMapper extends ColumnMapper {
+        final EnumType _type;
+        final Enum<?>[] _byOrdinal;
+        final Map<String, Enum<?>> _byName;
+
+        EnumMapper(Field field) {
+            super(field);
+            _type = getEnumType(EnumType.STRING);
+            _byOrdinal = (Enum<?>[])field.getType().getEnumConstants();
+            _byName = new HashMap<String, Enum<?>>(_byOrdinal.length * 2);
+            for (Enum<?> e : _byOrdinal) {
+                _byName.put(e.name().toLowerCase(Locale.ENGLISH), e);
+            }
+        }
+
+        @Override
+        void map(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+            Enum<?> e = null;
+            if (_type == EnumType.STRING) {
+                String name = rs.getString(index);
+                e = name == null ? null : _byName.get(name.toLowerCase(Locale.ENGLISH));
+            } else {
+                int ordinal = rs.getInt(index);
+                e = ordinal >= 0 && ordinal < _byOrdinal.length ? _byOrdinal[ordinal] : null;
+            }
+            // An unknown value leaves the field as it was.
+            if (e != null) {
+                _field.set(entity, e);
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -130,6 +131,15 @@ public interface GenericDao<T, ID extends Serializable> {
     
     boolean update(ID id, T entity);
     
+    /**
+     * Updates the changes recorded in each of the entity beans using
+     * batched statements within a single transaction.  The beans must have
+     * been retrieved from this dao.
+     * @param entities beans to update.
+     * @return total number of rows updated.
+     */
+    int updateBatch(List<T> entities);
+    
     /**
      * Look for all active rows.
      * @return list of entity beans.
@@ -142,6 +152,13 @@ public interface GenericDao<T, ID extends Serializable> {
      * @return list of entity beans.
      */
     List<T> listAll(Filter filter);
+
+    /**
+     * Look for the active rows with the given ids, in one query.
+     * @param ids ids to look for.
+     * @return list of entity beans found, in no particular order.
+     */
+    List<T> listByIds(Collection<ID> ids);
     
     
     /**
@@ -184,6 +201,15 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
     
+    /**
+     * Persist the entity beans using batched inserts within a single
+     * transaction.  The id field of each entity is updated with its new id.
+     * Unlike persist, the rows are not re-read from the database.
+     * @param entities beans to persist.
+     * @return the same beans with their ids set.
+     **/
+    List<T> persistBatch(List<T> entities);
+    
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
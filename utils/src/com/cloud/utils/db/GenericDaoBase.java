@@ -38,6 +38,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -68,6 +69,7 @@ import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
+import com.cloud.utils.db.EntityMapper.ColumnMapper;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.Ip;
@@ -144,6 +146,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected Enhancer _enhancer;
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
+    protected final EntityMapper _mapper;
     protected int _timeoutSeconds;
 
     protected final static CallbackFilter s_callbackFilter = new UpdateFilter();
@@ -152,6 +155,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected static final String SHARE_MODE_CLAUSE = " LOCK IN SHARE MODE";
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
 
+    // Maximum number of rows sent to the database in one executeBatch.
+    protected static final int BATCH_SIZE = 500;
+
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
     protected String _name;
@@ -213,6 +219,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         _allAttributes = generator.getAllAttributes();
         _allColumns = generator.getAllColumns();
+        _mapper = new EntityMapper(_allColumns);
 
         _selectByIdSql = buildSelectByIdSql(createPartialSelectSql(null, true));
         _removeSql = generator.buildRemoveSql();
@@ -355,6 +362,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final String sql = str.toString();
 
+        QueryCache.Key key = null;
+        long generation = 0;
+        if (_queryCache != null && lock == null && joins == null && !txn.dbTxnStarted()) {
+            key = new QueryCache.Key(sql, clause != null ? sc.getValues() : null, groupByValues);
+            List<T> cached = _queryCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = _queryCache.getGeneration();
+        }
+
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
@@ -380,8 +398,15 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 txn.registerLock(pstmt.toString());
             }
             final ResultSet rs = pstmt.executeQuery();
+            ColumnMapper[] columns = null;
             while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
+                if (columns == null) {
+                    columns = _mapper.bind(rs.getMetaData());
+                }
+                result.add(toEntityBean(rs, cache, columns));
+            }
+            if (key != null) {
+                _queryCache.put(key, result, generation);
             }
             return result;
         } catch (final SQLException e) {
@@ -441,14 +466,19 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             SelectType st = sc.getSelectType();
             ArrayList<M> results = new ArrayList<M>();
             List<Field> fields = sc.getSelectFields();
+            ColumnMapper[] columns = null;
             while (rs.next()) {
                 if (st == SelectType.Entity) {
-                    results.add((M)toEntityBean(rs, false));
+                    if (columns == null) {
+                        columns = _mapper.bind(rs.getMetaData());
+                    }
+                    results.add((M)toEntityBean(rs, false, columns));
                 } else if (st == SelectType.Fields || st == SelectType.Result) {
-                    M m = sc.getResultType().newInstance();
-                    for (int j = 1; j <= fields.size(); j++) {
-                        setField(m, fields.get(j - 1), rs, j);
+                    if (columns == null) {
+                        columns = _mapper.bind(fields);
                     }
+                    M m = sc.getResultType().newInstance();
+                    _mapper.map(m, rs, columns);
                     results.add(m);
                 } else if (st == SelectType.Single) {
                     results.add(getObject(sc.getResultType(), rs, 1));
@@ -1017,8 +1047,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final ResultSet rs = pstmt.executeQuery();
+            ColumnMapper[] columns = null;
             while (rs.next()) {
-                result.add(toEntityBean(rs, true));
+                if (columns == null) {
+                    columns = _mapper.bind(rs.getMetaData());
+                }
+                result.add(toEntityBean(rs, true, columns));
             }
             return result;
         } catch (final SQLException e) {
@@ -1033,6 +1067,16 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return listAll(null);
     }
 
+    @Override @DB(txn=false)
+    public List<T> listByIds(Collection<ID> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.IN, ids.toArray());
+        return listBy(sc);
+    }
+
     @Override @DB(txn=false)
     public List<T> listAll(final Filter filter) {
         if (_removed == null) {
@@ -1096,7 +1140,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1260,6 +1305,183 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> persistBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return entities;
+        }
+
+        List<T> enhanced = new ArrayList<T>();
+        List<T> inserts = new ArrayList<T>(entities.size());
+        for (T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                assert _idField != null : "Can't call persist if you don't have primary key";
+                enhanced.add(entity);
+            } else {
+                inserts.add(entity);
+            }
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            if (!enhanced.isEmpty()) {
+                updateBatch(enhanced);
+            }
+
+            for (int from = 0; from < inserts.size(); from += BATCH_SIZE) {
+                List<T> chunk = inserts.subList(from, Math.min(from + BATCH_SIZE, inserts.size()));
+                boolean first = true;
+                for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                    final Attribute[] attrs = pair.second();
+                    pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                    for (T entity : chunk) {
+                        prepareAttributes(pstmt, entity, attrs, 1);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+
+                    // Only the primary table generates the ids; the secondary
+                    // tables pick them up from the entities set here.
+                    if (first && _idField != null) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        for (T entity : chunk) {
+                            if (rs != null && rs.next()) {
+                                _idField.set(entity, rs.getObject(1));
+                            }
+                        }
+                    }
+                    first = false;
+                }
+
+                if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                    for (T entity : chunk) {
+                        HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                        for (Attribute attr : _ecAttributes) {
+                            Object ec = attr.field.get(entity);
+                            if (ec != null) {
+                                ecAttributes.put(attr, ec);
+                            }
+                        }
+                        insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                    }
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        }
+
+        return entities;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+        assert _idField != null : "Can't update in batch if you don't have primary key";
+
+        // Entities with the same set of changes share one statement.
+        final Map<String, PreparedStatement> stmts = new LinkedHashMap<String, PreparedStatement>();
+        final Map<String, Integer> pending = new HashMap<String, Integer>();
+        final List<UpdateBuilder> builders = new ArrayList<UpdateBuilder>(entities.size());
+        final Transaction txn = Transaction.currentTxn();
+        String sql = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            for (T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+                ID id = (ID)_idField.get(entity);
+                if (_cache != null) {
+                    _cache.remove(id);
+                }
+
+                UpdateBuilder ub = getUpdateBuilder(entity);
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], id, ub.getCollectionChanges());
+                }
+
+                StringBuilder str = ub.toSql(_tables);
+                if (str == null) {
+                    continue;
+                }
+                SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+                sql = str.append(sc.getWhereClause()).toString();
+
+                PreparedStatement pstmt = stmts.get(sql);
+                if (pstmt == null) {
+                    pstmt = txn.prepareAutoCloseStatement(sql);
+                    stmts.put(sql, pstmt);
+                }
+
+                int i = 1;
+                for (final Ternary<Attribute, Boolean, Object> value : ub.getChanges()) {
+                    prepareAttribute(i++, pstmt, value.first(), value.third());
+                }
+                for (Pair<Attribute, Object> value : sc.getValues()) {
+                    prepareAttribute(i++, pstmt, value.first(), value.second());
+                }
+                pstmt.addBatch();
+                builders.add(ub);
+
+                Integer count = pending.get(sql);
+                count = count == null ? 1 : count + 1;
+                if (count >= BATCH_SIZE) {
+                    rowsUpdated += sum(pstmt.executeBatch());
+                    count = 0;
+                }
+                pending.put(sql, count);
+            }
+
+            for (Map.Entry<String, PreparedStatement> entry : stmts.entrySet()) {
+                sql = entry.getKey();
+                if (pending.get(sql) > 0) {
+                    rowsUpdated += sum(entry.getValue().executeBatch());
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id of the entity", e);
+        }
+
+        for (UpdateBuilder ub : builders) {
+            ub.clear();
+        }
+        return rowsUpdated;
+    }
+
+    private static int sum(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                total += count;
+            } else if (count == Statement.SUCCESS_NO_INFO) {
+                total++;
+            }
+        }
+        return total;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1332,7 +1554,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 pstmt.setString(j, null);
                 return;
             }
-            final Column column = attr.field.getAnnotation(Column.class);
+            final Column column = _mapper.get(attr.field).getColumn();
             final int length = column != null ? column.length() : 255;
 
             // to support generic localization, utilize MySql UTF-8 support
@@ -1380,8 +1602,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 pstmt.setString(j, DateUtil.getDateDisplayString(s_gmtTimeZone, cal.getTime()));
             }
         } else if (attr.field.getType().isEnum()) {
-            final Enumerated enumerated = attr.field.getAnnotation(Enumerated.class);
-            final EnumType type = (enumerated == null) ? EnumType.STRING : enumerated.value();
+            final EnumType type = _mapper.get(attr.field).getEnumType(EnumType.STRING);
             if (type == EnumType.STRING) {
                 pstmt.setString(j, value == null ? null :  value.toString());
             } else if (type == EnumType.ORDINAL) {
@@ -1394,8 +1615,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         } else if (attr.field.getType() == byte[].class) {
             pstmt.setBytes(j, (byte[])value);
         } else if (attr.field.getType() == Ip.class) {
-            final Enumerated enumerated = attr.field.getAnnotation(Enumerated.class);
-            final EnumType type = (enumerated == null) ? EnumType.ORDINAL : enumerated.value();
+            final EnumType type = _mapper.get(attr.field).getEnumType(EnumType.ORDINAL);
             if (type == EnumType.STRING) {
                 pstmt.setString(j, value == null ? null : value.toString());
             } else if (type == EnumType.ORDINAL) {
@@ -1425,9 +1645,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @SuppressWarnings("unchecked") @DB(txn=false)
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
+        return toEntityBean(result, cache, _mapper.bind(result.getMetaData()));
+    }
+
+    /**
+     * @param columns mappers bound to the result set once for all of its rows.
+     */
+    @DB(txn=false) @SuppressWarnings("unchecked")
+    protected T toEntityBean(final ResultSet result, final boolean cache, final ColumnMapper[] columns) throws SQLException {
         final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
 
-        toEntityBean(result, entity);
+        toEntityBean(result, entity, columns);
 
         if (cache && _cache != null) {
             try {
@@ -1442,10 +1670,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @DB(txn=false)
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
-        ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
-        }
+        toEntityBean(result, entity, _mapper.bind(result.getMetaData()));
+    }
+
+    @DB(txn=false)
+    protected void toEntityBean(final ResultSet result, final T entity, final ColumnMapper[] columns) throws SQLException {
+        _mapper.map(entity, result, columns);
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
         }
@@ -1603,6 +1833,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected Cache _cache;
+    protected QueryCache<T> _queryCache;
+
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
@@ -1618,6 +1850,28 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         } else {
             _cache = null;
         }
+
+        final String querySize = (String)params.get("cache.query.size");
+        if (querySize != null) {
+            final int live = NumbersUtil.parseInt((String)params.get("cache.query.time.to.live"), 600);
+            _queryCache = new QueryCache<T>(getName(), NumbersUtil.parseInt(querySize, 0), live);
+            _queryCache.register(_idAttributes.keySet());
+            s_logger.info("Query cache created for " + getName());
+        } else {
+            _queryCache = null;
+        }
+    }
+
+    /**
+     * Drops the cached search results once the current transaction commits.
+     * Writes prepared through Transaction do this on their own; DAOs that
+     * use the query cache and write through a Connection need to call it.
+     */
+    @DB(txn=false)
+    protected void invalidateQueryCache() {
+        if (_queryCache != null) {
+            Transaction.invalidateOnCommit(_queryCache);
+        }
     }
 
     @Override @DB(txn=false)
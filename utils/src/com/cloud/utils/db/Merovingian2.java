@@ -21,12 +21,19 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.management.StandardMBean;
 
@@ -53,6 +60,14 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    // Polling interval bounds for locks held by other management servers.
+    // Their releases normally wake us up before the backoff expires.
+    private static final long INITIAL_BACKOFF = 50;
+    private static final long MAX_BACKOFF = 5000;
+
+    // Upper bounds, in milliseconds, of the lock wait histogram buckets.
+    private static final long[] WAIT_BUCKETS = { 10, 100, 1000, 5000, 30000 };
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -61,6 +76,16 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final ConcurrentHashMap<String, LocalLock> _localLocks = new ConcurrentHashMap<String, LocalLock>();
+    // Other management servers waiting for locks held here, by lock key.
+    private final ConcurrentHashMap<String, Set<Long>> _remoteWaiters = new ConcurrentHashMap<String, Set<Long>>();
+    private volatile Listener _listener = null;
+
+    private final AtomicLongArray _waitHistogram = new AtomicLongArray(WAIT_BUCKETS.length + 1);
+    private final AtomicLong _waitTimeouts = new AtomicLong();
+    private final AtomicLong _totalWaitTime = new AtomicLong();
+    private final AtomicLong _maxWaitTime = new AtomicLong();
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -92,6 +117,26 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    /**
+     * Listener that carries lock waits and releases between management
+     * servers, so that a waiter is woken up by the server holding the lock.
+     */
+    public interface Listener {
+        /**
+         * A thread here waits for a lock held by another management server.
+         */
+        void waiting(String key, long ownerMsId);
+
+        /**
+         * A lock the given management servers wait for was released.
+         */
+        void released(String key, Set<Long> waiters);
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
 
     protected void incrCount() {
         Count count = s_tls.get();
@@ -121,30 +166,257 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeInSeconds * 1000L;
+
+        LocalLock lock = checkout(key);
+        boolean acquired = false;
+        boolean contending = false;
+        int count = 0;
+        // the server we told about our wait, and the release count at the time
+        long waitingOn = -1;
+        long waitingSince = -1;
+        try {
+            // Threads on this server queue up locally so that only one of
+            // them at a time goes to the database for the lock.
+            synchronized (lock) {
+                if (lock.owner == th) {
+                    if (increment(key, threadName, threadId)) {
+                        lock.count++;
+                        acquired = true;
+                        return true;
+                    }
+                    lock.owner = null;
+                    lock.count = 0;
+                }
+                while (lock.owner != null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                lock.owner = th;
+                contending = true;
+            }
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+            long backoff = INITIAL_BACKOFF;
+            while (true) {
+                long released;
+                synchronized (lock) {
+                    released = lock.released;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                Map<String, String> holder = isLocked(key);
+                count = owns(holder, threadId);
+                if (count >= 1) {
+                    acquired = increment(key, threadName, threadId);
+                    if (acquired) {
+                        break;
+                    }
+                } else if (count == 0) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        acquired = true;
+                        break;
+                    }
+                } else {
+                    // once per holder, and again after each wakeup since the holder forgets us when it releases
+                    long holderMsId = Long.parseLong(holder.get("mgmt"));
+                    Listener listener = _listener;
+                    if (listener != null && holderMsId != _msId && (holderMsId != waitingOn || released != waitingSince)) {
+                        listener.waiting(key, holderMsId);
+                        waitingOn = holderMsId;
+                        waitingSince = released;
+                    }
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
                 }
-            }
-            try {
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    s_logger.trace("Waiting up to " + Math.min(backoff, remaining) + "ms for lck-" + key);
+                }
+                synchronized (lock) {
+                    if (lock.released == released) {
+                        try {
+                            lock.wait(Math.min(backoff, remaining));
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            return acquired;
+        } finally {
+            if (contending) {
+                synchronized (lock) {
+                    if (acquired) {
+                        lock.count = count >= 1 ? count + 1 : 1;
+                    } else {
+                        lock.owner = null;
+                        lock.notifyAll();
+                    }
+                }
+            }
+            checkin(key, lock);
+            recordWait(System.currentTimeMillis() - startTime, acquired);
+            if (!acquired && s_logger.isTraceEnabled()) {
+                s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (System.currentTimeMillis() - startTime));
+            }
+        }
+    }
+
+    protected LocalLock checkout(String key) {
+        while (true) {
+            LocalLock lock = _localLocks.get(key);
+            if (lock == null) {
+                lock = new LocalLock();
+                LocalLock existing = _localLocks.putIfAbsent(key, lock);
+                if (existing != null) {
+                    lock = existing;
+                }
+            }
+            synchronized (lock) {
+                if (!lock.removed) {
+                    lock.waiters++;
+                    return lock;
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
             }
         }
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
+    }
+
+    protected void checkin(String key, LocalLock lock) {
+        synchronized (lock) {
+            lock.waiters--;
+            removeIfUnused(key, lock);
+        }
+    }
+
+    private void removeIfUnused(String key, LocalLock lock) {
+        if (lock.waiters == 0 && lock.owner == null) {
+            lock.removed = true;
+            _localLocks.remove(key, lock);
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting on a lock that was released by another
+     * management server.
+     */
+    public void wakeup(String key) {
+        LocalLock lock = _localLocks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.released++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records that a thread on another management server waits for a lock,
+     * so that it is told when this server releases the lock.  If the lock is
+     * no longer held here the waiter is told right away.
+     */
+    public void addRemoteWaiter(String key, long msId) {
+        Set<Long> waiters;
+        while (true) {
+            waiters = _remoteWaiters.get(key);
+            if (waiters == null) {
+                waiters = new HashSet<Long>();
+                Set<Long> existing = _remoteWaiters.putIfAbsent(key, waiters);
+                if (existing != null) {
+                    waiters = existing;
+                }
+            }
+            synchronized (waiters) {
+                waiters.add(msId);
+            }
+            // a release may have taken the set away meanwhile
+            if (_remoteWaiters.get(key) == waiters) {
+                break;
+            }
+        }
+
+        LocalLock lock = _localLocks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.owner != null && lock.count > 0) {
+                    return;
+                }
+            }
+        }
+        synchronized (waiters) {
+            waiters.remove(msId);
+        }
+        Listener listener = _listener;
+        if (listener != null) {
+            listener.released(key, Collections.singleton(msId));
+        }
+    }
+
+    protected void notifyRemoteWaiters(String key) {
+        Set<Long> waiters = _remoteWaiters.remove(key);
+        Listener listener = _listener;
+        if (waiters == null || listener == null) {
+            return;
+        }
+        Set<Long> copy;
+        synchronized (waiters) {
+            copy = new HashSet<Long>(waiters);
+        }
+        if (!copy.isEmpty()) {
+            listener.released(key, copy);
+        }
+    }
+
+    public int getRemoteWaiterCount(String key) {
+        Set<Long> waiters = _remoteWaiters.get(key);
+        if (waiters == null) {
+            return 0;
+        }
+        synchronized (waiters) {
+            return waiters.size();
+        }
+    }
+
+    protected void wakeupAll() {
+        for (String key : _localLocks.keySet()) {
+            wakeup(key);
+        }
+    }
+
+    protected void clearLocal(String key) {
+        LocalLock lock = _localLocks.get(key);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.owner = null;
+                lock.count = 0;
+                lock.released++;
+                lock.notifyAll();
+                removeIfUnused(key, lock);
+            }
+        }
+    }
+
+    protected void recordWait(long time, boolean acquired) {
+        if (!acquired) {
+            _waitTimeouts.incrementAndGet();
+        }
+        int bucket = 0;
+        while (bucket < WAIT_BUCKETS.length && time >= WAIT_BUCKETS[bucket]) {
+            bucket++;
+        }
+        _waitHistogram.incrementAndGet(bucket);
+        _totalWaitTime.addAndGet(time);
+        long max = _maxWaitTime.get();
+        while (time > max && !_maxWaitTime.compareAndSet(max, time)) {
+            max = _maxWaitTime.get();
         }
-        return false;
     }
 
     protected boolean increment(String key, String threadName, int threadId) {
@@ -258,6 +530,24 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (msId == _msId) {
+                for (String key : _localLocks.keySet()) {
+                    clearLocal(key);
+                }
+                for (String key : _remoteWaiters.keySet()) {
+                    notifyRemoteWaiters(key);
+                }
+            } else {
+                // nothing will come from that server anymore
+                for (Set<Long> waiters : _remoteWaiters.values()) {
+                    synchronized (waiters) {
+                        waiters.remove(msId);
+                    }
+                }
+                if (rows > 0) {
+                    wakeupAll();
+                }
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -298,6 +588,21 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     s_logger.trace("lck-" + key + " removed");
                 }
                 decrCount();
+
+                LocalLock lock = _localLocks.get(key);
+                if (lock != null) {
+                    synchronized (lock) {
+                        if (lock.owner == th && --lock.count <= 0) {
+                            lock.owner = null;
+                            lock.count = 0;
+                            lock.notifyAll();
+                            removeIfUnused(key, lock);
+                        }
+                    }
+                }
+                if (result == 1) {
+                    notifyRemoteWaiters(key);
+                }
             } else  if (rows < 1) {
                 s_logger.warn("Was unable to find lock for the key " + key + " and thread id " + threadId);
             }
@@ -373,7 +678,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     public int owns(String key) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
-        Map<String, String> owner = isLocked(key);
+        return owns(isLocked(key), threadId);
+    }
+
+    protected int owns(Map<String, String> owner, int threadId) {
         if (owner == null) {
             return 0;
         }
@@ -422,6 +730,18 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
 
+        for (Map.Entry<String, LocalLock> entry : _localLocks.entrySet()) {
+            LocalLock lock = entry.getValue();
+            synchronized (lock) {
+                if (lock.owner == th) {
+                    lock.owner = null;
+                    lock.count = 0;
+                    lock.notifyAll();
+                    removeIfUnused(entry.getKey(), lock);
+                }
+            }
+        }
+
         PreparedStatement pstmt = null;
         try {
             pstmt = _concierge.conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);
@@ -450,13 +770,75 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            clearLocal(key);
+            if (rows > 0) {
+                notifyRemoteWaiters(key);
+            }
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
             return false;
         }
     }
+
+    @Override
+    public Map<String, Long> getLockWaitHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+            histogram.put("<" + WAIT_BUCKETS[i] + "ms", _waitHistogram.get(i));
+        }
+        histogram.put(">=" + WAIT_BUCKETS[WAIT_BUCKETS.length - 1] + "ms", _waitHistogram.get(WAIT_BUCKETS.length));
+        return histogram;
+    }
+
+    @Override
+    public long getLockWaitTimeouts() {
+        return _waitTimeouts.get();
+    }
+
+    @Override
+    public long getAverageLockWaitTime() {
+        long count = 0;
+        for (int i = 0; i < _waitHistogram.length(); i++) {
+            count += _waitHistogram.get(i);
+        }
+        return count == 0 ? 0 : _totalWaitTime.get() / count;
+    }
+
+    @Override
+    public long getMaxLockWaitTime() {
+        return _maxWaitTime.get();
+    }
+
+    @Override
+    public int getLocalLockCount() {
+        return _localLocks.size();
+    }
+
+    @Override
+    public void resetLockWaitStats() {
+        for (int i = 0; i < _waitHistogram.length(); i++) {
+            _waitHistogram.set(i, 0);
+        }
+        _waitTimeouts.set(0);
+        _totalWaitTime.set(0);
+        _maxWaitTime.set(0);
+    }
+
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * In-memory state of a lock on this server.  owner is the thread that
+     * holds, or is currently trying to get, the lock in the database.
+     * released is bumped whenever a release may let a waiter through.
+     */
+    protected static class LocalLock {
+        Thread owner;
+        int count;
+        int waiters;
+        long released;
+        boolean removed;
+    }
 }
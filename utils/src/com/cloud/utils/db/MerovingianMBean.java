@@ -30,4 +30,19 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    /**
+     * @return number of lock acquisitions keyed by how long they waited.
+     */
+    Map<String, Long> getLockWaitHistogram();
+
+    long getLockWaitTimeouts();
+
+    long getAverageLockWaitTime();
+
+    long getMaxLockWaitTime();
+
+    int getLocalLockCount();
+
+    void resetLockWaitStats();
 }
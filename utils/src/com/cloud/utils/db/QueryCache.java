@@ -0,0 +1,290 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Caches the results of a DAO's searches keyed by the generated sql and the
+ * values bound to it.  Any write to one of the DAO's tables drops every
+ * cached result; writes are rare on the DAOs this is turned on for, so finer
+ * grained invalidation isn't worth the bookkeeping.
+ * 
+ * Writes are found by Transaction from the sql it prepares, whichever DAO
+ * prepares it, and the caches are dropped once the outermost transaction
+ * commits; a rolled back transaction leaves them alone.  Results read
+ * inside a DB transaction are neither cached nor served from the cache
+ * since they may contain changes that aren't committed.  Writes made by
+ * other management servers reach this cache through the Listener, which the
+ * cluster manager uses to tell its peers.
+ */
+public class QueryCache<T> extends StandardMBean implements QueryCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(QueryCache.class);
+
+    public interface Listener {
+        /**
+         * Called after a write through the DAO named has invalidated its cache.
+         */
+        void invalidated(String name);
+    }
+
+    private static final ConcurrentHashMap<String, QueryCache<?>> s_caches = new ConcurrentHashMap<String, QueryCache<?>>();
+    private static final ConcurrentHashMap<String, List<QueryCache<?>>> s_tables = new ConcurrentHashMap<String, List<QueryCache<?>>>();
+    // the table an INSERT, REPLACE, UPDATE or DELETE writes to, or the first of them for multiple table ones
+    private static final Pattern s_writePattern = Pattern.compile(
+            "^\\s*(?:INSERT(?:\\s+IGNORE)?(?:\\s+INTO)?|REPLACE(?:\\s+INTO)?|UPDATE(?:\\s+IGNORE)?|DELETE\\b.*?\\bFROM)\\s+`?(?:\\w+`?\\.`?)?(\\w+)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static volatile Listener s_listener;
+
+    private final String _name;
+    private final int _maxSize;
+    private final long _timeToLive;
+    private final LinkedHashMap<Key, Pair<Long, List<T>>> _entries;
+    private final AtomicLong _generation = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+
+    /**
+     * @param name name of the DAO.
+     * @param maxSize maximum number of results kept.
+     * @param timeToLive seconds a result is kept.
+     */
+    public QueryCache(String name, final int maxSize, int timeToLive) {
+        super(QueryCacheMBean.class, false);
+        _name = name;
+        _maxSize = maxSize;
+        _timeToLive = timeToLive * 1000l;
+        _entries = new LinkedHashMap<Key, Pair<Long, List<T>>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Pair<Long, List<T>>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static void setListener(Listener listener) {
+        s_listener = listener;
+    }
+
+    /**
+     * Drops the results cached for a DAO because of a write on another
+     * management server.
+     */
+    public static void invalidate(String name) {
+        QueryCache<?> cache = s_caches.get(name);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return the caches of the table the sql writes to, empty if it is a
+     *         read or no cache uses the table.
+     */
+    public static List<QueryCache<?>> writtenBy(String sql) {
+        if (s_tables.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Matcher matcher = s_writePattern.matcher(sql);
+        if (!matcher.find()) {
+            return Collections.emptyList();
+        }
+        List<QueryCache<?>> caches = s_tables.get(matcher.group(1).toLowerCase());
+        return caches != null ? caches : Collections.<QueryCache<?>>emptyList();
+    }
+
+    /**
+     * @param tables tables the DAO reads its entities from.
+     */
+    public void register(Collection<String> tables) {
+        s_caches.put(_name, this);
+        for (String table : tables) {
+            List<QueryCache<?>> caches = new CopyOnWriteArrayList<QueryCache<?>>();
+            List<QueryCache<?>> existing = s_tables.putIfAbsent(table.toLowerCase(), caches);
+            (existing != null ? existing : caches).add(this);
+        }
+        try {
+            JmxUtil.registerMBean("QueryCache", _name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register query cache " + _name, e);
+        }
+    }
+
+    /**
+     * @return a copy of the cached result or null if there isn't one.
+     */
+    public List<T> get(Key key) {
+        Pair<Long, List<T>> entry;
+        synchronized (_entries) {
+            entry = _entries.get(key);
+            if (entry != null && entry.first() < System.currentTimeMillis()) {
+                _entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return new ArrayList<T>(entry.second());
+    }
+
+    /**
+     * @return generation to pass to put() for a search that is about to start.
+     */
+    public long getGeneration() {
+        return _generation.get();
+    }
+
+    /**
+     * Caches the result unless the cache has been invalidated since the
+     * search started.
+     */
+    public void put(Key key, List<T> result, long generation) {
+        synchronized (_entries) {
+            if (generation == _generation.get()) {
+                _entries.put(key, new Pair<Long, List<T>>(System.currentTimeMillis() + _timeToLive, new ArrayList<T>(result)));
+            }
+        }
+    }
+
+    /**
+     * Drops all cached results because of a committed write to one of the
+     * DAO's tables.
+     */
+    public void invalidate() {
+        clear();
+        Listener listener = s_listener;
+        if (listener != null) {
+            listener.invalidated(_name);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (_entries) {
+            _generation.incrementAndGet();
+            _entries.clear();
+        }
+        _invalidations.incrementAndGet();
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _maxSize;
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return _timeToLive / 1000;
+    }
+
+    @Override
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return _invalidations.get();
+    }
+
+    /**
+     * The sql of a search together with the values bound to it.
+     */
+    public static class Key {
+        private final String _sql;
+        private final Object[] _values;
+        private final int _hash;
+
+        public Key(String sql, List<Pair<Attribute, Object>> values, List<Object> groupByValues) {
+            _sql = sql;
+            List<Object> all = new ArrayList<Object>();
+            if (values != null) {
+                for (Pair<Attribute, Object> value : values) {
+                    all.add(value.second());
+                }
+            }
+            if (groupByValues != null) {
+                all.addAll(groupByValues);
+            }
+            _values = all.toArray();
+            _hash = sql.hashCode() * 31 + Arrays.deepHashCode(_values);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key)obj;
+            return _hash == that._hash && _sql.equals(that._sql) && Arrays.deepEquals(_values, that._values);
+        }
+    }
+}
@@ -26,9 +26,11 @@ import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
@@ -68,6 +70,12 @@ public class Transaction {
     private static final Logger s_connLogger = Logger.getLogger(Transaction.class.getName() + "." + "Connection");
 
     private static final ThreadLocal<Transaction> tls = new ThreadLocal<Transaction>();
+    private static final ThreadLocal<long[]> s_statementCount = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
     private static final String START_TXN = "start_txn";
     private static final String CURRENT_TXN = "current_txn";
     private static final String CREATE_TXN = "create_txn";
@@ -101,6 +109,8 @@ public class Transaction {
     private long _txnTime;
     private Statement _stmt;
     private String _creator;
+    // query caches of the tables written to, dropped once the writes can be seen by other connections
+    private final Set<QueryCache<?>> _staleCaches = new LinkedHashSet<QueryCache<?>>();
 
     private Transaction _prev = null;
 
@@ -365,6 +375,7 @@ public class Transaction {
             return;
         }
 
+        invalidateStaleCaches();
         _txn = true;
 
         _txnTime = System.currentTimeMillis();
@@ -422,6 +433,7 @@ public class Transaction {
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql);
+        prepared(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -442,6 +454,7 @@ public class Transaction {
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        prepared(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -464,6 +477,7 @@ public class Transaction {
     public PreparedStatement prepareAutoCloseStatement(final String sql, final String[] columnNames) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql, columnNames);
+        prepared(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -485,6 +499,7 @@ public class Transaction {
     public PreparedStatement prepareAutoCloseStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
         final Connection conn = getConnection();
         final PreparedStatement pstmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        prepared(sql);
         if (s_stmtLogger.isTraceEnabled()) {
             s_stmtLogger.trace("Preparing: " + sql);
         }
@@ -493,6 +508,55 @@ public class Transaction {
         return pstmt;
     }
 
+    /**
+     * @return number of statements prepared through this class on the
+     *         current thread so far, across its transactions.
+     */
+    public static long getStatementCount() {
+        return s_statementCount.get()[0];
+    }
+
+    private void prepared(final String sql) {
+        s_statementCount.get()[0]++;
+        written(sql);
+    }
+
+    /**
+     * Notes the query caches of the table the sql writes to.  They are
+     * dropped when the outermost transaction commits, or when the
+     * transaction closes if the write was auto-committed.
+     */
+    protected void written(final String sql) {
+        _staleCaches.addAll(QueryCache.writtenBy(sql));
+    }
+
+    /**
+     * Drops the query cache after a write made without preparing the sql
+     * through this class, once that write is committed.
+     */
+    static void invalidateOnCommit(final QueryCache<?> cache) {
+        Transaction txn = tls.get();
+        if (txn != null && txn._txn) {
+            txn._staleCaches.add(cache);
+        } else {
+            if (txn != null) {
+                txn._staleCaches.remove(cache);
+            }
+            cache.invalidate();
+        }
+    }
+
+    protected void invalidateStaleCaches() {
+        if (_staleCaches.isEmpty()) {
+            return;
+        }
+        QueryCache<?>[] caches = _staleCaches.toArray(new QueryCache<?>[_staleCaches.size()]);
+        _staleCaches.clear();
+        for (QueryCache<?> cache : caches) {
+            cache.invalidate();
+        }
+    }
+
     /**
      * Returns the db connection.
      * 
@@ -587,6 +651,7 @@ public class Transaction {
         }
         _txn = false;
         _name = null;
+        invalidateStaleCaches();
 
         closeConnection();
 
@@ -599,6 +664,9 @@ public class Transaction {
 
     public void close() {
         removeUpTo(CURRENT_TXN, null);
+        if (!_txn) {
+            invalidateStaleCaches();
+        }
 
         if (_stack.size() == 0) {
             s_logger.trace("Transaction is done");
@@ -685,6 +753,7 @@ public class Transaction {
                 clearLockTimes();
                 closeConnection();
             }
+            invalidateStaleCaches();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -793,6 +862,7 @@ public class Transaction {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _staleCaches.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -1019,10 +1089,11 @@ public class Transaction {
             final int usagePort = Integer.parseInt(dbProps.getProperty("db.usage.port"));
             final String usageDbName = dbProps.getProperty("db.usage.name");
             final boolean usageAutoReconnect = Boolean.parseBoolean(dbProps.getProperty("db.usage.autoReconnect"));
+            final String usageUrl = dbProps.getProperty("db.usage.url.params");
             final GenericObjectPool usageConnectionPool = new GenericObjectPool(null, usageMaxActive, GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION,
                     usageMaxWait, usageMaxIdle);
             final ConnectionFactory usageConnectionFactory = new DriverManagerConnectionFactory("jdbc:mysql://"+usageHost + ":" + usagePort + "/" + usageDbName +
-                    "?autoReconnect="+usageAutoReconnect, usageUsername, usagePassword);
+                    "?autoReconnect="+usageAutoReconnect + (usageUrl != null ? "&" + usageUrl : ""), usageUsername, usagePassword);
             final PoolableConnectionFactory usagePoolableConnectionFactory = new PoolableConnectionFactory(usageConnectionFactory, usageConnectionPool,
                     new StackKeyedObjectPoolFactory(), null, false, false);
             s_usageDS = new PoolingDataSource(usagePoolableConnectionFactory.getPool());
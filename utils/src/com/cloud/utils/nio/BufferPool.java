@@ -0,0 +1,233 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * BufferPool hands out direct ByteBuffers in power of two size classes so
+ * that the nio framing and SSL wrap/unwrap code doesn't allocate a new
+ * buffer for every packet.  Each NioConnection owns one pool, and each
+ * reactor of a multi-selector NioServer owns another for the links it
+ * serves, so a pool is mostly used by one selector thread, but buffers can
+ * be released from any thread.  Requests larger than the biggest size class are served with
+ * unpooled heap buffers so that big messages can't exhaust direct memory.
+ */
+public class BufferPool extends StandardMBean implements BufferPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(BufferPool.class);
+
+    protected static final int MIN_CLASS_SHIFT = 9;    // 512 bytes
+    protected static final int MAX_CLASS_SHIFT = 16;   // 64k
+    protected static final int MAX_BUFFERS_PER_CLASS = 256;
+
+    private static final BufferPool s_sharedPool = new BufferPool("Shared");
+    static {
+        s_sharedPool.register();
+    }
+
+    private final String _name;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _classes;
+    private final AtomicInteger[] _counts;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _outstanding = new AtomicLong();
+    private final AtomicLong _pooled = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(String name) {
+        super(BufferPoolMBean.class, false);
+        _name = name;
+        int count = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        _classes = new ConcurrentLinkedQueue[count];
+        _counts = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            _classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _counts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return the pool used by the static helpers in Link that aren't tied to a NioConnection.
+     */
+    public static BufferPool getSharedPool() {
+        return s_sharedPool;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public void register() {
+        try {
+            JmxUtil.registerMBean("BufferPool", _name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register buffer pool " + _name, e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            JmxUtil.unregisterMBean("BufferPool", _name);
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister buffer pool " + _name + ": " + e.getMessage());
+        }
+    }
+
+    protected static int classIndex(int size) {
+        int shift = MIN_CLASS_SHIFT;
+        while ((1 << shift) < size) {
+            shift++;
+        }
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Gets a buffer that can hold at least size bytes.  The buffer is cleared
+     * and its limit is set to size.
+     * 
+     * @param size number of bytes needed.
+     * @return buffer to use.  Give it back through release() when done.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        ByteBuffer buffer = null;
+        if (index < _classes.length) {
+            buffer = _classes[index].poll();
+            if (buffer != null) {
+                _counts[index].decrementAndGet();
+                _pooled.addAndGet(-buffer.capacity());
+                _hits.incrementAndGet();
+            } else {
+                buffer = ByteBuffer.allocateDirect(1 << (index + MIN_CLASS_SHIFT));
+                _misses.incrementAndGet();
+            }
+        } else {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Allocating unpooled buffer of " + size);
+            }
+            buffer = ByteBuffer.allocate(size);
+            _misses.incrementAndGet();
+        }
+
+        _outstanding.addAndGet(buffer.capacity());
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool.  The buffer must not be used by the
+     * caller afterwards.
+     * 
+     * @param buffer buffer retrieved from acquire(); null is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        _outstanding.addAndGet(-capacity);
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        int index = classIndex(capacity);
+        if (index >= _classes.length || (1 << (index + MIN_CLASS_SHIFT)) != capacity) {
+            return;
+        }
+
+        if (_counts[index].incrementAndGet() > MAX_BUFFERS_PER_CLASS) {
+            _counts[index].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        _pooled.addAndGet(capacity);
+        _classes[index].offer(buffer);
+    }
+
+    /**
+     * Gets a bigger buffer with the contents of the current one, releasing the current one.
+     * 
+     * @param buffer buffer in write mode.
+     * @param size minimum capacity needed.
+     * @return new buffer in write mode.
+     */
+    public ByteBuffer expand(ByteBuffer buffer, int size) {
+        ByteBuffer newBuffer = acquire(size);
+        newBuffer.limit(newBuffer.capacity());
+        buffer.flip();
+        newBuffer.put(buffer);
+        release(buffer);
+        return newBuffer;
+    }
+
+    @Override
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getOutstandingBytes() {
+        return _outstanding.get();
+    }
+
+    @Override
+    public long getPooledBytes() {
+        return _pooled.get();
+    }
+
+    @Override
+    public Map<String, Integer> getPooledBuffersBySize() {
+        Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < _classes.length; i++) {
+            sizes.put(Integer.toString(1 << (i + MIN_CLASS_SHIFT)), _counts[i].get());
+        }
+        return sizes;
+    }
+
+    @Override
+    public String purge() {
+        int count = 0;
+        for (int i = 0; i < _classes.length; i++) {
+            ByteBuffer buffer;
+            while ((buffer = _classes[i].poll()) != null) {
+                _counts[i].decrementAndGet();
+                _pooled.addAndGet(-buffer.capacity());
+                count++;
+            }
+        }
+        return "Purged " + count + " buffers";
+    }
+}
@@ -55,6 +55,7 @@ public class Link {
     private final NioConnection _connection;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
+    private final BufferPool _bufferPool;
     private ByteBuffer _readBuffer;
     private ByteBuffer _plaintextBuffer;
     private Object _attach;
@@ -64,9 +65,17 @@ public class Link {
     private SSLEngine _sslEngine;
 
     public Link(InetSocketAddress addr, NioConnection connection) {
+        this(addr, connection, connection != null ? connection.getBufferPool() : BufferPool.getSharedPool());
+    }
+
+    /**
+     * @param pool pool of the selector thread that is going to serve the link.
+     */
+    public Link(InetSocketAddress addr, NioConnection connection, BufferPool pool) {
         _addr = addr;
         _connection = connection;
-        _readBuffer = ByteBuffer.allocate(2048);
+        _bufferPool = pool;
+        _readBuffer = null;
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
@@ -75,7 +84,7 @@ public class Link {
     }
     
     public Link (Link link) {
-        this(link._addr, link._connection);
+        this(link._addr, link._connection, link._bufferPool);
     }
     
     public Object attachment() {
@@ -137,12 +146,21 @@ public class Link {
     }
     */
     
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        SSLEngineResult engResult;
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer headBuf = pool.acquire(4);
+        try {
+            doWrite(ch, buffers, sslEngine, pkgBuf, headBuf);
+        } finally {
+            pool.release(headBuf);
+            pool.release(pkgBuf);
+        }
+    }
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, ByteBuffer pkgBuf, ByteBuffer headBuf) throws IOException {
+        SSLEngineResult engResult;
+        int pkgLimit = pkgBuf.limit();
         
         int totalLen = 0;
         for (ByteBuffer buffer : buffers) {
@@ -152,7 +170,9 @@ public class Link {
         int processedLen = 0;
         while (processedLen < totalLen) {
             headBuf.clear();
+            headBuf.limit(4);
             pkgBuf.clear();
+            pkgBuf.limit(pkgLimit);
             engResult = sslEngine.wrap(buffers, pkgBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                     engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
@@ -203,7 +223,7 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, BufferPool.getSharedPool());
         } 
     }
     
@@ -211,7 +231,14 @@ public class Link {
     protected static final int      MAX_SIZE_PER_PACKET = 18000;
     protected static final int      HEADER_FLAG_FOLLOWING = 0x10000;
     
+    /* Marks the end of the write queue when the connection should be closed after writing */
+    protected static final ByteBuffer[] CLOSE_MARKER = new ByteBuffer[0];
+    
     public byte[] read(SocketChannel ch) throws IOException {
+        if (_readBuffer == null) {
+            _readBuffer = _bufferPool.acquire(2048);
+        }
+        
         if (_readHeader) {   // Start of a packet
             if (_readBuffer.position() == 0) {
                 _readBuffer.limit(4);
@@ -237,7 +264,9 @@ public class Link {
             }
             
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _bufferPool.release(_plaintextBuffer);
+                _plaintextBuffer = _bufferPool.acquire(2000);
+                _plaintextBuffer.limit(_plaintextBuffer.capacity());
             }
             
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -253,7 +282,8 @@ public class Link {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Resizing the byte buffer from " + _readBuffer.capacity());
                 }
-                _readBuffer = ByteBuffer.allocate(readSize);
+                _bufferPool.release(_readBuffer);
+                _readBuffer = _bufferPool.acquire(readSize);
             }
             _readBuffer.limit(readSize);
         }
@@ -276,34 +306,37 @@ public class Link {
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
 
-        appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-        if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                engResult.getStatus() != SSLEngineResult.Status.OK) {
-            throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-        }
+        appBuf = _bufferPool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                    engResult.getStatus() != SSLEngineResult.Status.OK) {
+                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+            }
 
-        appBuf.flip();
-        if (_plaintextBuffer.remaining() < appBuf.limit()) {
-            // We need to expand _plaintextBuffer for more data
-            ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-            _plaintextBuffer.flip();
-            newBuffer.put(_plaintextBuffer);
-            _plaintextBuffer = newBuffer;
+            appBuf.flip();
+            if (_plaintextBuffer.remaining() < appBuf.limit()) {
+                // We need to expand _plaintextBuffer for more data
+                _plaintextBuffer = _bufferPool.expand(_plaintextBuffer, Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appBuf.limit()));
+            }
+            _plaintextBuffer.put(appBuf);
+
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Done with packet: " + appBuf.limit());
+            }
+        } finally {
+            _bufferPool.release(appBuf);
         }
-        _plaintextBuffer.put(appBuf);
         _readBuffer.clear();
         _readHeader = true;
         
-        if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Done with packet: " + appBuf.limit());
-        }
-        
         if (!_gotFollowingPacket) {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _bufferPool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -322,24 +355,17 @@ public class Link {
     }
     
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
         
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if  (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_MARKER);
         }
         synchronized (this) {
             if (_key == null) {
@@ -362,21 +388,32 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_MARKER) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine, _bufferPool);
         }
         return false;
     }
     
+    /**
+     * Gives the read buffers back to the pool.  Only called by the selector
+     * thread once the connection is closed since that's the only thread
+     * reading from this link.
+     */
+    void releaseBuffers() {
+        _bufferPool.release(_readBuffer);
+        _readBuffer = null;
+        _bufferPool.release(_plaintextBuffer);
+        _plaintextBuffer = null;
+        _readHeader = true;
+        _gotFollowingPacket = false;
+    }
+    
     public InetSocketAddress getSocketAddress() {
         return _addr;
     }
@@ -439,21 +476,40 @@ public class Link {
 
     public static void doHandshake(SocketChannel ch, SSLEngine sslEngine,
                                boolean isClient) throws IOException {
+        doHandshake(ch, sslEngine, isClient, BufferPool.getSharedPool());
+    }
+
+    public static void doHandshake(SocketChannel ch, SSLEngine sslEngine,
+                               boolean isClient, BufferPool pool) throws IOException {
+        SSLSession sslSession = sslEngine.getSession();
+        int pkgSize = sslSession.getPacketBufferSize() + 40;
+        int appSize = sslSession.getApplicationBufferSize() + 40;
+        ByteBuffer in_pkgBuf = pool.acquire(pkgSize);
+        ByteBuffer in_appBuf = pool.acquire(appSize);
+        ByteBuffer out_pkgBuf = pool.acquire(pkgSize);
+        ByteBuffer out_appBuf = pool.acquire(appSize);
+        ByteBuffer tmp_pkgBuf = pool.acquire(pkgSize);
+        try {
+            doHandshake(ch, sslEngine, isClient, in_pkgBuf, in_appBuf, out_pkgBuf, out_appBuf, tmp_pkgBuf);
+        } finally {
+            pool.release(tmp_pkgBuf);
+            pool.release(out_appBuf);
+            pool.release(out_pkgBuf);
+            pool.release(in_appBuf);
+            pool.release(in_pkgBuf);
+        }
+    }
+
+    private static void doHandshake(SocketChannel ch, SSLEngine sslEngine, boolean isClient, ByteBuffer in_pkgBuf, ByteBuffer in_appBuf,
+                               ByteBuffer out_pkgBuf, ByteBuffer out_appBuf, ByteBuffer tmp_pkgBuf) throws IOException {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("SSL: begin Handshake, isClient: " + isClient);
         }
 
         SSLEngineResult engResult;
-        SSLSession sslSession = sslEngine.getSession();
         HandshakeStatus hsStatus;
-        ByteBuffer in_pkgBuf =
-            ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer in_appBuf =
-            ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        ByteBuffer out_pkgBuf =
-            ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer out_appBuf =
-            ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
+        int pkgSize = in_pkgBuf.limit();
+        int appSize = in_appBuf.limit();
         int count;
 
         if (isClient) {
@@ -469,7 +525,9 @@ public class Link {
             engResult = null;
             if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
                 out_pkgBuf.clear();
+                out_pkgBuf.limit(pkgSize);
                 out_appBuf.clear();
+                out_appBuf.limit(appSize);
                 out_appBuf.put("Hello".getBytes());
                 engResult = sslEngine.wrap(out_appBuf, out_pkgBuf);
                 out_pkgBuf.flip();
@@ -482,9 +540,11 @@ public class Link {
                 }
             } else if (hsStatus == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
                 in_appBuf.clear();
+                in_appBuf.limit(appSize);
                 // One packet may contained multiply operation
                 if (in_pkgBuf.position() == 0 || !in_pkgBuf.hasRemaining()) {
                     in_pkgBuf.clear();
+                    in_pkgBuf.limit(pkgSize);
                     count = ch.read(in_pkgBuf);
                     if (count == -1) {
                         throw new IOException("Connection closed with -1 on reading size.");
@@ -492,8 +552,6 @@ public class Link {
                     in_pkgBuf.flip();
                 }
                 engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
-                ByteBuffer tmp_pkgBuf =
-                    ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
                 int loop_count = 0;
                 while (engResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
                     // The client is too slow? Cut it and let it reconnect
@@ -505,6 +563,7 @@ public class Link {
                         s_logger.trace("SSL: Buffer underflowed, getting more packets");
                     }
                     tmp_pkgBuf.clear();
+                    tmp_pkgBuf.limit(pkgSize);
                     count = ch.read(tmp_pkgBuf);
                     if (count == -1) {
                         throw new IOException("Connection closed with -1 on reading size.");
@@ -518,6 +577,7 @@ public class Link {
                     in_pkgBuf.reset();
                     
                     in_appBuf.clear();
+                    in_appBuf.limit(appSize);
                     engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
                     loop_count ++;
                 }
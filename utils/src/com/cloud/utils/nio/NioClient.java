@@ -77,7 +77,7 @@ public class NioClient extends NioConnection {
         	sslEngine = sslContext.createSSLEngine(_host, _port);
         	sslEngine.setUseClientMode(true);
 
-        	Link.doHandshake(sch, sslEngine, true);
+        	Link.doHandshake(sch, sslEngine, true, _bufferPool);
         	s_logger.info("SSL: Handshake done");
         } catch (Exception e) {
         	_selector.close();
@@ -60,6 +60,7 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected BufferPool _bufferPool;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
@@ -68,11 +69,13 @@ public abstract class NioConnection implements Runnable {
         _selector = null;
         _port = port;
         _factory = factory;
+        _bufferPool = new BufferPool(name);
         _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
     }
 
     public void start() {
         _todos = new ArrayList<ChangeRequest>();
+        _bufferPool.register();
         
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
@@ -80,7 +83,9 @@ public abstract class NioConnection implements Runnable {
         // Wait until we got init() done
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (_isRunning && !_isStartup) {
+                    _thread.wait();
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
@@ -89,6 +94,7 @@ public abstract class NioConnection implements Runnable {
 
     public void stop() {
     	_executor.shutdown();
+        _bufferPool.unregister();
         _isRunning = false;
         if (_thread != null) {
             _thread.interrupt();
@@ -103,6 +109,10 @@ public abstract class NioConnection implements Runnable {
     	return _isStartup;
     }
     
+    public BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+    
     @Override
     public void run() {
     	synchronized(_thread) {
@@ -110,12 +120,18 @@ public abstract class NioConnection implements Runnable {
     			init();
     		} catch (ConnectException e) {
     			s_logger.error("Unable to connect to remote");
+    			_isRunning = false;
+    			_thread.notifyAll();
     			return;
     		} catch (IOException e) {
     			s_logger.error("Unable to initialize the threads.", e);
+    			_isRunning = false;
+    			_thread.notifyAll();
     			return;
     		} catch (Exception e) {
     			s_logger.error("Unable to initialize the threads due to unknown exception.", e);
+    			_isRunning = false;
+    			_thread.notifyAll();
     			return;
     		}
     		_isStartup = true;
@@ -138,25 +154,7 @@ public abstract class NioConnection implements Runnable {
                     SelectionKey sk = i.next();
                     i.remove();
 
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
-                        }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
-                    }
+                    processKey(sk);
                 }
                 
                 s_logger.trace("Keys Done Processing.");
@@ -171,6 +169,40 @@ public abstract class NioConnection implements Runnable {
     	}
     }
 
+    /**
+     * Dispatches one ready key.  Called by the selector thread or, in the
+     * multi-selector mode, by the reactor thread that owns the key.
+     */
+    protected void processKey(SelectionKey sk) throws IOException {
+        if (!sk.isValid()) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Selection Key is invalid: " + sk.toString());
+            }
+            Link link = (Link)sk.attachment();
+            if (link != null) {
+                link.terminated();
+            } else {
+                closeConnection(sk);
+            }
+        } else if (sk.isReadable()) {
+            read(sk);
+        } else if (sk.isWritable()) {
+            write(sk);
+        } else if (sk.isAcceptable()) {
+            accept(sk);
+        } else if (sk.isConnectable()) {
+            connect(sk);
+        }
+    }
+
+    /**
+     * @param selector selector the key is registered with.
+     * @return the reactor that owns the selector or null if the selector is the connection's own.
+     */
+    protected NioReactor getReactor(Selector selector) {
+        return null;
+    }
+
     abstract void init() throws IOException;
     abstract void registerLink(InetSocketAddress saddr, Link link);
     abstract void unregisterLink(InetSocketAddress saddr);
@@ -186,6 +218,30 @@ public abstract class NioConnection implements Runnable {
             s_logger.trace("Connection accepted for " + socket);
         }
         
+        SSLEngine sslEngine = serverHandshake(socketChannel);
+        if (sslEngine == null) {
+            return;
+        }
+        
+        InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
+        Link link = new Link(saddr, this);
+        link.setSSLEngine(sslEngine);
+        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+        Task task = _factory.create(Task.Type.CONNECT, link, null);
+        registerLink(saddr, link);
+        _executor.execute(task);
+    }
+    
+    /**
+     * Does the server side of the SSL handshake in blocking mode and puts the
+     * channel back in non-blocking mode afterwards.
+     * 
+     * @param socketChannel channel that was just accepted.
+     * @return SSLEngine to use for the link or null if the handshake failed, in which case the channel is closed.
+     */
+    protected SSLEngine serverHandshake(SocketChannel socketChannel) throws IOException {
+        Socket socket = socketChannel.socket();
+        
         // Begin SSL handshake in BLOCKING mode
         socketChannel.configureBlocking(true);
 
@@ -196,7 +252,7 @@ public abstract class NioConnection implements Runnable {
             sslEngine.setUseClientMode(false);
             sslEngine.setNeedClientAuth(false);
 
-            Link.doHandshake(socketChannel, sslEngine, false);
+            Link.doHandshake(socketChannel, sslEngine, false, _bufferPool);
 
         } catch (Exception e) {
             if (s_logger.isTraceEnabled()) {
@@ -207,20 +263,14 @@ public abstract class NioConnection implements Runnable {
                 socket.close();
             } catch (IOException ignore) {
             }
-            return;
+            return null;
         }
         
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("SSL: Handshake done");
         }
         socketChannel.configureBlocking(false);
-        InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
-        Link link = new Link(saddr, this);
-        link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
-        Task task = _factory.create(Task.Type.CONNECT, link, null);
-        registerLink(saddr, link);
-        _executor.execute(task);
+        return sslEngine;
     }
     
     protected void terminate(SelectionKey key) {
@@ -295,6 +345,10 @@ public abstract class NioConnection implements Runnable {
             _todos = new ArrayList<ChangeRequest>();
         }
 
+        processTodos(_selector, todos);
+    }
+
+    protected void processTodos(Selector selector, List<ChangeRequest> todos) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -318,7 +372,7 @@ public abstract class NioConnection implements Runnable {
                     break;
                 case ChangeRequest.REGISTER :
                     try {
-                        key = ((SocketChannel)(todo.key)).register(_selector, todo.ops, todo.att);
+                        key = ((SocketChannel)(todo.key)).register(selector, todo.ops, todo.att);
                         if (todo.att != null) {
                             Link link = (Link)todo.att;
                             link.setKey(key);
@@ -334,6 +388,23 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ACCEPT :
+                    Link accepted = (Link)todo.att;
+                    try {
+                        key = ((SocketChannel)(todo.key)).register(selector, todo.ops, accepted);
+                        accepted.setKey(key);
+                        registerLink(accepted.getSocketAddress(), accepted);
+                        _executor.execute(_factory.create(Task.Type.CONNECT, accepted, null));
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                        try {
+                            ((SocketChannel)(todo.key)).close();
+                        } catch (IOException ignore) {
+                        } finally {
+                            accepted.terminated();
+                        }
+                    }
+                    break;
                 case ChangeRequest.CLOSE :
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -406,6 +477,10 @@ public abstract class NioConnection implements Runnable {
         if (key != null) {
             SocketChannel channel = (SocketChannel)key.channel();
             key.cancel();
+            Object attachment = key.attachment();
+            if (attachment instanceof Link) {
+                ((Link)attachment).releaseBuffers();
+            }
             try {
                 if (channel != null) {
                     if (s_logger.isDebugEnabled()) {
@@ -428,6 +503,11 @@ public abstract class NioConnection implements Runnable {
 
     public void change(int ops, SelectionKey key, Object att) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
+        NioReactor reactor = key != null ? getReactor(key.selector()) : null;
+        if (reactor != null) {
+            reactor.addTodo(todo);
+            return;
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -436,6 +516,11 @@ public abstract class NioConnection implements Runnable {
 
     public void close(SelectionKey key) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
+        NioReactor reactor = key != null ? getReactor(key.selector()) : null;
+        if (reactor != null) {
+            reactor.addTodo(todo);
+            return;
+        }
         synchronized (this) {
             _todos.add(todo);
         }
@@ -453,6 +538,7 @@ public abstract class NioConnection implements Runnable {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;     // Register a channel that has finished its SSL handshake.
 
         public Object key;
         public int type;
@@ -0,0 +1,143 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.nio.NioConnection.ChangeRequest;
+
+/**
+ * NioReactor runs a selector of its own for a subset of the links of a
+ * NioConnection.  The connection still does all of the key processing; the
+ * reactor only owns the selector, the thread, the pending change requests
+ * for the keys registered with it and the buffer pool of its links, so that
+ * reactors don't contend with each other for buffers.
+ */
+public class NioReactor implements Runnable {
+    private static final Logger s_logger = Logger.getLogger(NioReactor.class);
+
+    protected final NioConnection _connection;
+    protected final String _name;
+    protected Selector _selector;
+    protected Thread _thread;
+    protected volatile boolean _isRunning;
+    protected List<ChangeRequest> _todos;
+    protected final BufferPool _bufferPool;
+
+    public NioReactor(NioConnection connection, String name) {
+        _connection = connection;
+        _name = name;
+        _todos = new ArrayList<ChangeRequest>();
+        _bufferPool = new BufferPool(name);
+    }
+
+    public void start() throws IOException {
+        _selector = SelectorProvider.provider().openSelector();
+        _bufferPool.register();
+        _isRunning = true;
+        _thread = new Thread(this, _name);
+        _thread.start();
+    }
+
+    public void stop() {
+        _bufferPool.unregister();
+        _isRunning = false;
+        if (_selector != null) {
+            _selector.wakeup();
+        }
+    }
+
+    public void cleanUp() throws IOException {
+        if (_selector != null) {
+            _selector.close();
+        }
+    }
+
+    public Selector getSelector() {
+        return _selector;
+    }
+
+    public BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return number of channels registered with this reactor.  It's only a hint since it's read outside of the reactor thread.
+     */
+    public int getLoad() {
+        Selector selector = _selector;
+        if (selector == null || !selector.isOpen()) {
+            return 0;
+        }
+        return selector.keys().size();
+    }
+
+    public void addTodo(ChangeRequest todo) {
+        synchronized (this) {
+            _todos.add(todo);
+        }
+        _selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (_isRunning) {
+            try {
+                _selector.select();
+
+                Set<SelectionKey> readyKeys = _selector.selectedKeys();
+                Iterator<SelectionKey> i = readyKeys.iterator();
+
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Keys Processing: " + readyKeys.size());
+                }
+                while (i.hasNext()) {
+                    SelectionKey sk = i.next();
+                    i.remove();
+
+                    _connection.processKey(sk);
+                }
+
+                List<ChangeRequest> todos;
+                synchronized (this) {
+                    if (_todos.size() == 0) {
+                        continue;
+                    }
+                    todos = _todos;
+                    _todos = new ArrayList<ChangeRequest>();
+                }
+                _connection.processTodos(_selector, todos);
+            } catch (Throwable e) {
+                s_logger.warn("Caught an exception but continuing on.", e);
+            }
+        }
+    }
+}
@@ -19,30 +19,80 @@ package com.cloud.utils.nio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * NioServer listens for connections.  By default, accept, SSL handshake,
+ * read and write are all done by the one selector thread.  If reactors are
+ * configured, the selector thread only accepts; the SSL handshake is done
+ * by a separate pool and the link is then handed to one of the reactors,
+ * each of which runs its own selector.
+ */
 public class NioServer extends NioConnection {
     private final static Logger s_logger = Logger.getLogger(NioServer.class);
     
+    public enum ReactorAssignment {
+        RoundRobin,
+        LeastLoaded;
+    }
+    
     protected InetSocketAddress _localAddr;
     
     protected WeakHashMap<InetSocketAddress, Link> _links;
     
+    protected int _reactorCount;
+    protected ReactorAssignment _assignment;
+    protected NioReactor[] _reactors;
+    protected ExecutorService _handshakeExecutor;
+    protected final AtomicInteger _nextReactor = new AtomicInteger();
+    
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, factory, 0, ReactorAssignment.RoundRobin);
+    }
+    
+    /**
+     * @param reactors number of reactor selectors.  0 keeps everything on the one selector thread.
+     * @param assignment how links are spread across the reactors.
+     */
+    public NioServer(String name, int port, int workers, HandlerFactory factory, int reactors, ReactorAssignment assignment) {
         super(name, port, workers, factory);
         _localAddr = null;
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        _reactorCount = reactors;
+        _assignment = assignment;
     }
     
     @Override
     protected void init() throws IOException {
         _selector = SelectorProvider.provider().openSelector();
+        
+        if (_reactorCount > 0) {
+            _handshakeExecutor = new ThreadPoolExecutor(_reactorCount, _reactorCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(_name + "-Handshake"));
+            _reactors = new NioReactor[_reactorCount];
+            for (int i = 0; i < _reactorCount; i++) {
+                _reactors[i] = new NioReactor(this, _name + "-Reactor-" + i);
+                _reactors[i].start();
+            }
+            s_logger.info("NioConnection started " + _reactorCount + " reactors assigned by " + _assignment);
+        }
 
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.configureBlocking(false);
@@ -55,14 +105,119 @@ public class NioServer extends NioConnection {
         s_logger.info("NioConnection started and listening on " + _localAddr.toString());
     }
     
+    @Override
+    public void stop() {
+        super.stop();
+        if (_handshakeExecutor != null) {
+            _handshakeExecutor.shutdown();
+        }
+        if (_reactors != null) {
+            for (NioReactor reactor : _reactors) {
+                reactor.stop();
+            }
+        }
+    }
+    
+    @Override
+    public void cleanUp() throws IOException {
+        super.cleanUp();
+        if (_reactors != null) {
+            for (NioReactor reactor : _reactors) {
+                reactor.cleanUp();
+            }
+        }
+    }
+    
+    @Override
+    protected NioReactor getReactor(Selector selector) {
+        if (_reactors == null) {
+            return null;
+        }
+        for (NioReactor reactor : _reactors) {
+            if (reactor.getSelector() == selector) {
+                return reactor;
+            }
+        }
+        return null;
+    }
+    
+    protected NioReactor assignReactor() {
+        if (_assignment == ReactorAssignment.LeastLoaded) {
+            NioReactor chosen = _reactors[0];
+            int load = chosen.getLoad();
+            for (int i = 1; i < _reactors.length; i++) {
+                int l = _reactors[i].getLoad();
+                if (l < load) {
+                    chosen = _reactors[i];
+                    load = l;
+                }
+            }
+            return chosen;
+        }
+        
+        int next = _nextReactor.getAndIncrement() & Integer.MAX_VALUE;
+        return _reactors[next % _reactors.length];
+    }
+    
+    @Override
+    protected void accept(SelectionKey key) throws IOException {
+        if (_reactors == null) {
+            super.accept(key);
+            return;
+        }
+        
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel)key.channel();
+        final SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        Socket socket = socketChannel.socket();
+        socket.setKeepAlive(true);
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Connection accepted for " + socket);
+        }
+        
+        _handshakeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SSLEngine sslEngine = serverHandshake(socketChannel);
+                    if (sslEngine == null) {
+                        return;
+                    }
+                    
+                    InetSocketAddress saddr = (InetSocketAddress)socketChannel.socket().getRemoteSocketAddress();
+                    NioReactor reactor = assignReactor();
+                    Link link = new Link(saddr, NioServer.this, reactor.getBufferPool());
+                    link.setSSLEngine(sslEngine);
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Assigning " + saddr + " to " + reactor.getName());
+                    }
+                    reactor.addTodo(new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
+                } catch (Throwable th) {
+                    s_logger.warn("Unable to hand over connection " + socketChannel.socket(), th);
+                    try {
+                        socketChannel.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        });
+    }
+    
     @Override
     protected void registerLink(InetSocketAddress addr, Link link) {
-        _links.put(addr, link);
+        synchronized (_links) {
+            _links.put(addr, link);
+        }
     }
 
     @Override
     protected void unregisterLink(InetSocketAddress saddr) {
-        _links.remove(saddr);
+        synchronized (_links) {
+            _links.remove(saddr);
+        }
     }
     
     /**
@@ -75,7 +230,10 @@ public class NioServer extends NioConnection {
      * @return null if not sent.  attach object in link if sent.
      */
     public Object send(InetSocketAddress saddr, byte[] data) throws ClosedChannelException {
-        Link link = _links.get(saddr);
+        Link link;
+        synchronized (_links) {
+            link = _links.get(saddr);
+        }
         if (link == null) {
             return null;
         }
@@ -57,6 +57,7 @@ public class Script implements Callable<String> {
     long _timeout;
     Process _process;
     Thread _thread;
+    int _exitValue = -1;
 
     ScriptBuilder _builder;
 
@@ -160,8 +161,16 @@ public class Script implements Callable<String> {
     	return buildCommandLine(command);
     }
     
+    /**
+     * @return the exit value of the last execute(), -1 if it did not run to completion.
+     */
+    public int getExitValue() {
+        return _exitValue;
+    }
+
     public String execute(OutputInterpreter interpreter) {
         String[] command = _command.toArray(new String[_command.size()]);
+        _exitValue = -1;
 
         if (_logger.isDebugEnabled()) {
             _logger.debug("Executing: " + buildCommandLine(command));
@@ -194,7 +203,8 @@ public class Script implements Callable<String> {
             }
 
             try {
-                if (_process.waitFor() == 0) {
+                _exitValue = _process.waitFor();
+                if (_exitValue == 0) {
                     _logger.debug("Execution is successful.");
 
                     return interpreter.drain() ? task.getResult() : interpreter.interpret(ir);
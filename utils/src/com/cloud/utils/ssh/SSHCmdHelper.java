@@ -18,6 +18,7 @@
 
 package com.cloud.utils.ssh;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -53,6 +54,23 @@ public class SSHCmdHelper {
 		}
 	}
 	
+	public static com.trilead.ssh2.Connection acquireAuthorizedConnection(String ip, int port, String username, File pemKeyFile) {
+		com.trilead.ssh2.Connection sshConnection = new com.trilead.ssh2.Connection(ip, port);
+		try {
+			sshConnection.connect(null, 60000, 60000);
+			if (!sshConnection.authenticateWithPublicKey(username, pemKeyFile, null)) {
+				s_logger.warn("SSH authorizes failed with key " + pemKeyFile + " to " + ip);
+				sshConnection.close();
+				return null;
+			}
+			return sshConnection;
+		} catch (IOException e) {
+			s_logger.warn("Get SSH connection to " + ip + " failed: " + e.getMessage());
+			sshConnection.close();
+			return null;
+		}
+	}
+	
 	public static void releaseSshConnection(com.trilead.ssh2.Connection sshConnection) {
 		if (sshConnection != null) {
 			sshConnection.close();
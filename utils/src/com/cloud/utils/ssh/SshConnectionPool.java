@@ -0,0 +1,431 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.utils.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+/**
+ * SshConnectionPool keeps one authenticated ssh connection per host and runs
+ * every command in a channel of its own on that connection, so only the
+ * first command to a host pays for the key exchange.  Connections that sat
+ * unused longer than the idle timeout are closed, and a connection that
+ * fails to open a channel is replaced once before the command is given up.
+ * A replaced connection is only closed once the commands still running on
+ * it are done, a failed command never takes the others down with it.
+ */
+public class SshConnectionPool extends StandardMBean implements SshConnectionPoolMBean {
+	private static final Logger s_logger = Logger.getLogger(SshConnectionPool.class);
+
+	private final String _username;
+	private final File _keyFile;
+	private final int _port;
+	private final int _idleTimeout;
+	private final ConcurrentHashMap<String, HostEntry> _hosts = new ConcurrentHashMap<String, HostEntry>();
+	private final ScheduledExecutorService _evictor;
+	private final ExecutorService _feeders;
+
+	private final AtomicLong _connects = new AtomicLong();
+	private final AtomicLong _commands = new AtomicLong();
+	private final AtomicLong _reused = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();
+	private final AtomicLong _totalLatency = new AtomicLong();
+	private final AtomicLong _maxLatency = new AtomicLong();
+
+	/**
+	 * @param idleTimeout seconds a connection may stay unused before it is closed.
+	 */
+	public SshConnectionPool(String username, File keyFile, int port, int idleTimeout) {
+		super(SshConnectionPoolMBean.class, false);
+		_username = username;
+		_keyFile = keyFile;
+		_port = port;
+		_idleTimeout = idleTimeout;
+
+		_feeders = Executors.newCachedThreadPool(new NamedThreadFactory("SshPoolInput"));
+		_evictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SshPoolEvictor"));
+		long interval = Math.max(idleTimeout / 2, 1);
+		_evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Runs the command on the host in a new channel of the pooled connection.
+	 *
+	 * @param input written to the stdin of the command, may be null.
+	 * @param timeout milliseconds to wait for the command to exit.
+	 * @return the exit status of the command, or -1 if it timed out or the
+	 * connection went away, and its combined stdout and stderr.
+	 * @throws IOException if the command could not be started, in which case
+	 * it did not run at all.
+	 */
+	public Pair<Integer, String> execute(String host, String command, final byte[] input, long timeout) throws IOException {
+		long start = System.currentTimeMillis();
+		HostEntry entry = getHostEntry(host);
+		Connection connection = null;
+		Session session = null;
+		boolean broken = false;
+		boolean dead = false;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			for (int attempt = 0; session == null; attempt++) {
+				connection = entry.borrow();
+				try {
+					session = connection.openSession();
+					session.execCommand(command);
+				} catch (IOException e) {
+					if (session != null) {
+						session.close();
+						session = null;
+					}
+					entry.giveBack(connection, true);
+					connection = null;
+					if (attempt > 0) {
+						throw e;
+					}
+					s_logger.debug("Reconnecting to " + host + " after " + e.getMessage());
+				}
+			}
+
+			final OutputStream stdin = session.getStdin();
+			if (input == null) {
+				stdin.close();
+			} else {
+				// fed from another thread so a command that answers while reading can't stall on a full window
+				_feeders.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							stdin.write(input);
+						} catch (IOException e) {
+							s_logger.debug("Unable to write the input of the command: " + e.getMessage());
+						} finally {
+							try {
+								stdin.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+			}
+
+			long deadline = start + timeout;
+			if (!drain(session, output, deadline)) {
+				s_logger.warn("Timed out running " + command + " on " + host);
+				return new Pair<Integer, String>(-1, output.toString());
+			}
+			session.waitForCondition(ChannelCondition.EXIT_STATUS, Math.max(deadline - System.currentTimeMillis(), 1));
+			Integer status = session.getExitStatus();
+			if (status == null) {
+				broken = true;
+				dead = !isAlive(connection);
+				return new Pair<Integer, String>(-1, output.toString());
+			}
+			return new Pair<Integer, String>(status, output.toString());
+		} catch (IOException e) {
+			broken = true;
+			if (session == null) {
+				throw e;
+			}
+			dead = !isAlive(connection);
+			// the command was started, so report it as failed rather than not run
+			s_logger.warn("Lost the output of " + command + " on " + host + ": " + e.getMessage());
+			return new Pair<Integer, String>(-1, output.toString());
+		} finally {
+			if (session != null) {
+				session.close();
+			}
+			if (connection != null) {
+				entry.giveBack(connection, dead);
+			}
+			if (broken) {
+				_failures.incrementAndGet();
+			}
+			record(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Copies stdout and stderr of the session until the remote side closes them.
+	 * @return false if the deadline passed first.
+	 */
+	protected boolean drain(Session session, OutputStream output, long deadline) throws IOException {
+		InputStream stdout = session.getStdout();
+		InputStream stderr = session.getStderr();
+		byte[] buffer = new byte[8192];
+		while (true) {
+			if (stdout.available() == 0 && stderr.available() == 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				int conditions = session.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF, remaining);
+				if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+					return false;
+				}
+				if ((conditions & ChannelCondition.EOF) != 0 && (conditions & (ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA)) == 0) {
+					return true;
+				}
+			}
+			copy(stdout, output, buffer);
+			copy(stderr, output, buffer);
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+		while (in.available() > 0) {
+			int len = in.read(buffer);
+			if (len < 0) {
+				return;
+			}
+			out.write(buffer, 0, len);
+		}
+	}
+
+	/**
+	 * @return false if the transport of the connection is gone, a command that
+	 * merely lost its channel leaves the connection usable for the others.
+	 */
+	protected boolean isAlive(Connection connection) {
+		if (!connection.isAuthenticationComplete()) {
+			return false;
+		}
+		try {
+			connection.sendIgnorePacket();
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	protected Connection connect(String host) throws IOException {
+		Connection connection = SSHCmdHelper.acquireAuthorizedConnection(host, _port, _username, _keyFile);
+		if (connection == null) {
+			throw new IOException("Unable to connect to " + host + ":" + _port);
+		}
+		_connects.incrementAndGet();
+		if (s_logger.isDebugEnabled()) {
+			s_logger.debug("Opened a pooled ssh connection to " + host);
+		}
+		return connection;
+	}
+
+	protected HostEntry getHostEntry(String host) {
+		HostEntry entry = _hosts.get(host);
+		if (entry == null) {
+			entry = new HostEntry(host);
+			HostEntry existing = _hosts.putIfAbsent(host, entry);
+			if (existing != null) {
+				entry = existing;
+			}
+		}
+		return entry;
+	}
+
+	protected void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (HostEntry entry : _hosts.values()) {
+			try {
+				entry.evictIfIdle(now);
+			} catch (Throwable th) {
+				s_logger.warn("Unable to close the idle ssh connection to " + entry._host, th);
+			}
+		}
+	}
+
+	protected void record(long latency) {
+		_commands.incrementAndGet();
+		_totalLatency.addAndGet(latency);
+		long current = _maxLatency.get();
+		while (latency > current && !_maxLatency.compareAndSet(current, latency)) {
+			current = _maxLatency.get();
+		}
+	}
+
+	public void stop() {
+		_evictor.shutdownNow();
+		_feeders.shutdownNow();
+		for (HostEntry entry : _hosts.values()) {
+			entry.closeAll();
+		}
+	}
+
+	@Override
+	public int getPoolSize() {
+		int size = 0;
+		for (HostEntry entry : _hosts.values()) {
+			if (entry.isConnected()) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getConnectCount() {
+		return _connects.get();
+	}
+
+	@Override
+	public long getCommandCount() {
+		return _commands.get();
+	}
+
+	@Override
+	public long getFailedCommandCount() {
+		return _failures.get();
+	}
+
+	@Override
+	public double getReuseRate() {
+		long commands = _commands.get();
+		if (commands == 0) {
+			return 0;
+		}
+		return Math.min(_reused.get(), commands) * 100.0 / commands;
+	}
+
+	@Override
+	public long getAverageLatency() {
+		long commands = _commands.get();
+		return commands == 0 ? 0 : _totalLatency.get() / commands;
+	}
+
+	@Override
+	public long getMaxLatency() {
+		return _maxLatency.get();
+	}
+
+	@Override
+	public int getIdleTimeout() {
+		return _idleTimeout;
+	}
+
+	@Override
+	public void resetStats() {
+		_connects.set(0);
+		_commands.set(0);
+		_reused.set(0);
+		_failures.set(0);
+		_totalLatency.set(0);
+		_maxLatency.set(0);
+	}
+
+	/**
+	 * The pooled connection of a host and the number of commands running on it
+	 * and on the connections it replaced.
+	 */
+	protected class HostEntry {
+		final String _host;
+		Connection _connection;
+		final Map<Connection, Integer> _active = new HashMap<Connection, Integer>();
+		long _lastUsed;
+
+		HostEntry(String host) {
+			_host = host;
+		}
+
+		synchronized Connection borrow() throws IOException {
+			if (_connection == null) {
+				_connection = connect(_host);
+			} else {
+				_reused.incrementAndGet();
+			}
+			Integer active = _active.get(_connection);
+			_active.put(_connection, active == null ? 1 : active + 1);
+			_lastUsed = System.currentTimeMillis();
+			return _connection;
+		}
+
+		/**
+		 * @param retire true if the connection is not to be handed out again,
+		 * it is closed once the last command running on it gives it back.
+		 */
+		synchronized void giveBack(Connection connection, boolean retire) {
+			int active = _active.get(connection) - 1;
+			if (active > 0) {
+				_active.put(connection, active);
+			} else {
+				_active.remove(connection);
+			}
+			_lastUsed = System.currentTimeMillis();
+			if (retire && connection == _connection) {
+				_connection = null;
+			}
+			if (active == 0 && connection != _connection) {
+				connection.close();
+			}
+		}
+
+		synchronized void evictIfIdle(long now) {
+			if (_connection != null && !_active.containsKey(_connection) && now - _lastUsed > _idleTimeout * 1000L) {
+				if (s_logger.isDebugEnabled()) {
+					s_logger.debug("Closing the idle ssh connection to " + _host);
+				}
+				close();
+			}
+		}
+
+		synchronized boolean isConnected() {
+			return _connection != null;
+		}
+
+		synchronized void close() {
+			if (_connection != null) {
+				_connection.close();
+				_connection = null;
+			}
+		}
+
+		synchronized void closeAll() {
+			close();
+			for (Connection connection : _active.keySet()) {
+				connection.close();
+			}
+			_active.clear();
+		}
+	}
+}
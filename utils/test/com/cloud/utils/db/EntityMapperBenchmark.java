@@ -0,0 +1,270 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.utils.db;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.EntityMapper.ColumnMapper;
+import com.cloud.utils.db.EntityMapperTest.BenchHostVO;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+
+/**
+ * Times mapping result set rows onto an entity through the reflective
+ * per-column setField() and through the column mappers bound once per result
+ * set.  The rows come from an in-memory result set so only the mapping is
+ * measured.  The entity is EntityMapperTest's stand-in for the host table;
+ * any VO on the classpath can be timed through an anonymous MappingDao.
+ *
+ * Usage: EntityMapperBenchmark [-rows 50000] [-rounds 5]
+ */
+public class EntityMapperBenchmark {
+    private static final Logger s_logger = Logger.getLogger(EntityMapperBenchmark.class);
+
+    /**
+     * Instantiated as an anonymous subclass so GenericDaoBase can read the entity type.
+     */
+    static class MappingDao<T> extends GenericDaoBase<T, Long> {
+        final List<Pair<String, String>> _columns = new ArrayList<Pair<String, String>>();
+        final List<Field> _fields = new ArrayList<Field>();
+        final Constructor<T> _constructor;
+
+        MappingDao() throws NoSuchMethodException {
+            _constructor = _entityBeanType.getDeclaredConstructor();
+            _constructor.setAccessible(true);
+            for (Map.Entry<Pair<String, String>, Attribute> entry : _allColumns.entrySet()) {
+                Field field = entry.getValue().getField();
+                if (field != null && entry.getValue().isSelectable()) {
+                    _columns.add(entry.getKey());
+                    _fields.add(field);
+                }
+            }
+        }
+
+        T newEntity() {
+            try {
+                return _constructor.newInstance();
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to create " + _entityBeanType, e);
+            }
+        }
+
+        void mapReflectively(ResultSet rs) throws SQLException {
+            T vo = newEntity();
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
+                setField(vo, rs, meta, index);
+            }
+        }
+
+        void mapBound(ResultSet rs, ColumnMapper[] columns) throws SQLException {
+            _mapper.map(newEntity(), rs, columns);
+        }
+
+        ColumnMapper[] bind(ResultSet rs) throws SQLException {
+            return _mapper.bind(rs.getMetaData());
+        }
+
+        /**
+         * Values for every mapped column, with the nullable ones left null on every fifth row.
+         */
+        Object[][] rows(int count) {
+            Object[][] rows = new Object[count][];
+            for (int i = 0; i < count; i++) {
+                Object[] row = new Object[_fields.size()];
+                for (int j = 0; j < row.length; j++) {
+                    Class<?> type = _fields.get(j).getType();
+                    row[j] = type.isPrimitive() || i % 5 != 0 ? value(type, i) : null;
+                }
+                rows[i] = row;
+            }
+            return rows;
+        }
+    }
+
+    static Object value(Class<?> type, int i) {
+        if (type == String.class) {
+            return "value-" + i;
+        } else if (type == Date.class || type == Calendar.class) {
+            return "2011-05-01 10:00:00";
+        } else if (type == boolean.class || type == Boolean.class) {
+            return i % 2 == 0;
+        } else if (type == Ip.class) {
+            return new Ip(0x0a010100l + (i % 255));
+        } else if (type.isEnum()) {
+            Object[] constants = type.getEnumConstants();
+            return constants[i % constants.length];
+        } else if (type == long.class || type == Long.class || type == int.class || type == Integer.class || type == short.class || type == Short.class
+                || type == byte.class || type == Byte.class || type == float.class || type == Float.class || type == double.class || type == Double.class) {
+            return i % 100;
+        }
+        return null;
+    }
+
+    /**
+     * A forward-only result set that cycles through the given rows.
+     */
+    static ResultSet resultSet(final List<Pair<String, String>> columns, final Object[][] rows, final int count) {
+        final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(EntityMapperBenchmark.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getColumnCount")) {
+                    return columns.size();
+                } else if (name.equals("getTableName")) {
+                    return columns.get((Integer)args[0] - 1).first();
+                } else if (name.equals("getColumnName")) {
+                    return columns.get((Integer)args[0] - 1).second();
+                }
+                return "";
+            }
+        });
+
+        return (ResultSet)Proxy.newProxyInstance(EntityMapperBenchmark.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            int _row = -1;
+            Object[] _values;
+            boolean _wasNull;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    _row++;
+                    _values = _row < count ? rows[_row % rows.length] : null;
+                    return _values != null;
+                } else if (name.equals("getMetaData")) {
+                    return meta;
+                } else if (name.equals("wasNull")) {
+                    return _wasNull;
+                }
+
+                Object value = _values[(Integer)args[0] - 1];
+                _wasNull = value == null;
+                if (value == null) {
+                    return method.getReturnType().isPrimitive() ? zero(method.getReturnType()) : null;
+                } else if (name.equals("getObject")) {
+                    return value;
+                }
+
+                String str = value instanceof Enum<?> ? ((Enum<?>)value).name() : value instanceof Ip ? ((Ip)value).addr() : value.toString();
+                if (name.equals("getBytes")) {
+                    return str.getBytes();
+                } else if (name.equals("getString")) {
+                    return str;
+                } else if (name.equals("getDate")) {
+                    return new java.sql.Date(0);
+                } else if (name.equals("getBoolean")) {
+                    return (Boolean)value;
+                }
+
+                long number = value instanceof Enum<?> ? ((Enum<?>)value).ordinal() : value instanceof Ip ? ((Ip)value).longValue() : ((Number)value).longValue();
+                if (name.equals("getLong")) {
+                    return number;
+                } else if (name.equals("getInt")) {
+                    return (int)number;
+                } else if (name.equals("getShort")) {
+                    return (short)number;
+                } else if (name.equals("getByte")) {
+                    return (byte)number;
+                } else if (name.equals("getFloat")) {
+                    return (float)number;
+                } else if (name.equals("getDouble")) {
+                    return (double)number;
+                }
+                return value;
+            }
+        });
+    }
+
+    static Object zero(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0l;
+        } else if (type == short.class) {
+            return (short)0;
+        } else if (type == byte.class) {
+            return (byte)0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        }
+        return 0;
+    }
+
+    static void benchmark(String entity, MappingDao<?> dao, int rows, int rounds) throws SQLException {
+        Object[][] data = dao.rows(1000);
+        for (int round = 0; round < rounds; round++) {
+            ResultSet rs = resultSet(dao._columns, data, rows);
+            long start = System.currentTimeMillis();
+            while (rs.next()) {
+                dao.mapReflectively(rs);
+            }
+            long reflective = System.currentTimeMillis() - start;
+
+            rs = resultSet(dao._columns, data, rows);
+            start = System.currentTimeMillis();
+            ColumnMapper[] columns = null;
+            while (rs.next()) {
+                if (columns == null) {
+                    columns = dao.bind(rs);
+                }
+                dao.mapBound(rs, columns);
+            }
+            long bound = System.currentTimeMillis() - start;
+
+            s_logger.info(entity + ": mapping " + rows + " rows of " + dao._columns.size() + " columns: reflective setField " + reflective + "ms, bound mappers " + bound + "ms");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = 50000;
+        int rounds = 5;
+
+        Iterator<String> iter = Arrays.asList(args).iterator();
+        while (iter.hasNext()) {
+            String arg = iter.next();
+            if (arg.equals("-rows")) {
+                rows = Integer.parseInt(iter.next());
+            } else if (arg.equals("-rounds")) {
+                rounds = Integer.parseInt(iter.next());
+            }
+        }
+
+        benchmark("BenchHostVO", new MappingDao<BenchHostVO>() {}, rows, rounds);
+    }
+}
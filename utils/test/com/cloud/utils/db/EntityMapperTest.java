@@ -0,0 +1,217 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import com.cloud.utils.db.EntityMapper.ColumnMapper;
+
+/**
+ * Compares mapping rows through the bound column mappers with the
+ * reflective per-column setField() on a row shaped like the host table.
+ */
+public class EntityMapperTest extends TestCase {
+    public enum BenchStatus {
+        Up, Down, Disconnected
+    }
+
+    public enum BenchType {
+        Routing, Storage, SecondaryStorage
+    }
+
+    @Entity
+    @Table(name="bench_host")
+    public static class BenchHostVO {
+        @Id
+        @Column(name="id")
+        long id;
+
+        @Column(name="name")
+        String name;
+
+        @Column(name="guid")
+        String guid;
+
+        @Column(name="status")
+        @Enumerated(value=EnumType.STRING)
+        BenchStatus status;
+
+        @Column(name="type")
+        @Enumerated(value=EnumType.ORDINAL)
+        BenchType type;
+
+        @Column(name="pod_id")
+        Long podId;
+
+        @Column(name="cpus")
+        Integer cpus;
+
+        @Column(name="speed")
+        Long speed;
+
+        @Column(name="ram")
+        long totalMemory;
+
+        @Column(name="disconnected")
+        @Temporal(value=TemporalType.TIMESTAMP)
+        Date disconnectedOn;
+
+        @Column(name="created")
+        @Temporal(value=TemporalType.TIMESTAMP)
+        Date created;
+
+        @Column(name="removed")
+        @Temporal(value=TemporalType.TIMESTAMP)
+        Date removed;
+
+        @Column(name="private_ip_address")
+        String privateIpAddress;
+
+        @Column(name="setup")
+        boolean setup;
+
+        @Column(name="mgmt_server_id")
+        Long managementServerId;
+
+        public BenchHostVO() {
+        }
+    }
+
+    public static class BenchHostDaoImpl extends GenericDaoBase<BenchHostVO, Long> {
+        BenchHostVO mapReflectively(ResultSet rs) throws SQLException {
+            BenchHostVO vo = new BenchHostVO();
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
+                setField(vo, rs, meta, index);
+            }
+            return vo;
+        }
+
+        BenchHostVO mapBound(ResultSet rs, ColumnMapper[] columns) throws SQLException {
+            BenchHostVO vo = new BenchHostVO();
+            _mapper.map(vo, rs, columns);
+            return vo;
+        }
+    }
+
+    static final String[] s_columns = new String[] { "id", "name", "guid", "status", "type", "pod_id", "cpus", "speed", "ram", "disconnected", "created", "removed", "private_ip_address", "setup", "mgmt_server_id" };
+
+    static Object[] row(int i) {
+        return new Object[] { (long)i, "host-" + i, "guid-" + i + "-LibvirtComputingResource", i % 3 == 0 ? "Down" : "Up", i % 2, (long)(i % 7), 8, 2400l, 8589934592l,
+                "2011-05-01 10:00:00", "2011-01-01 08:30:00", null, "10.1.1." + (i % 255), Boolean.TRUE, i % 5 == 0 ? null : 345049103841l };
+    }
+
+    static final Object[][] s_rows = new Object[1000][];
+    static {
+        for (int i = 0; i < s_rows.length; i++) {
+            s_rows[i] = row(i);
+        }
+    }
+
+    /**
+     * A forward-only result set over generated rows.
+     */
+    static ResultSet resultSet(final int rows) {
+        final ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(EntityMapperTest.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getColumnCount")) {
+                    return s_columns.length;
+                } else if (name.equals("getTableName")) {
+                    return "bench_host";
+                } else if (name.equals("getColumnName")) {
+                    return s_columns[(Integer)args[0] - 1];
+                }
+                return "";
+            }
+        });
+
+        return (ResultSet)Proxy.newProxyInstance(EntityMapperTest.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            int _row = -1;
+            Object[] _values;
+            boolean _wasNull;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    _row++;
+                    _values = _row < rows ? s_rows[_row % s_rows.length] : null;
+                    return _values != null;
+                } else if (name.equals("getMetaData")) {
+                    return meta;
+                } else if (name.equals("wasNull")) {
+                    return _wasNull;
+                }
+
+                Object value = _values[(Integer)args[0] - 1];
+                _wasNull = value == null;
+                if (name.equals("getBytes")) {
+                    return value == null ? null : value.toString().getBytes();
+                } else if (name.equals("getString")) {
+                    return value == null ? null : value.toString();
+                } else if (name.equals("getDate")) {
+                    return value == null ? null : new java.sql.Date(0);
+                } else if (name.equals("getLong")) {
+                    return value == null ? 0l : ((Number)value).longValue();
+                } else if (name.equals("getInt")) {
+                    return value == null ? 0 : ((Number)value).intValue();
+                } else if (name.equals("getBoolean")) {
+                    return value == null ? false : (Boolean)value;
+                }
+                return value;
+            }
+        });
+    }
+
+    public void testMapping() throws Exception {
+        BenchHostDaoImpl dao = new BenchHostDaoImpl();
+        ResultSet rs = resultSet(100);
+        ColumnMapper[] columns = dao._mapper.bind(rs.getMetaData());
+        ResultSet reflective = resultSet(100);
+        while (rs.next()) {
+            reflective.next();
+            BenchHostVO expected = dao.mapReflectively(reflective);
+            BenchHostVO actual = dao.mapBound(rs, columns);
+            for (Field field : BenchHostVO.class.getDeclaredFields()) {
+                Assert.assertEquals(field.getName(), field.get(expected), field.get(actual));
+            }
+        }
+    }
+}
@@ -17,6 +17,11 @@
  */
 package com.cloud.utils.db;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -74,5 +79,76 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void testWaiterWokenOnRelease() throws Exception {
+        final String key = "contended" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final boolean[] acquired = new boolean[1];
+        final long[] waited = new long[1];
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                acquired[0] = _lockMaster.acquire(key, 10);
+                waited[0] = System.currentTimeMillis() - start;
+                if (acquired[0]) {
+                    _lockMaster.release(key);
+                }
+            }
+        }, "Merovingian2Test-waiter");
+        waiter.start();
+
+        Thread.sleep(200);
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(10000);
+
+        Assert.assertTrue(acquired[0]);
+        s_logger.info("Waiter got the lock after " + waited[0] + "ms");
+        Assert.assertTrue("Waiter should not have polled for the lock", waited[0] < 2000);
+        Assert.assertEquals(0, _lockMaster.getLocalLockCount());
+    }
+
+    @Test
+    public void testRemoteWaiters() {
+        final String key = "remote" + 1234;
+        final List<String> released = new ArrayList<String>();
+        _lockMaster.setListener(new Merovingian2.Listener() {
+            @Override
+            public void waiting(String key, long ownerMsId) {
+            }
+
+            @Override
+            public void released(String key, Set<Long> waiters) {
+                released.add(key + waiters);
+            }
+        });
+        try {
+            // nobody to tell about a release without waiters
+            Assert.assertTrue(_lockMaster.acquire(key, 5));
+            Assert.assertTrue(_lockMaster.release(key));
+            Assert.assertTrue(released.isEmpty());
+
+            // a waiter for a lock that isn't held here is told right away
+            _lockMaster.addRemoteWaiter(key, 42);
+            Assert.assertEquals(Arrays.asList(key + "[42]"), released);
+            Assert.assertEquals(0, _lockMaster.getRemoteWaiterCount(key));
+            released.clear();
+
+            // and otherwise only once the lock is released for good
+            Assert.assertTrue(_lockMaster.acquire(key, 5));
+            Assert.assertTrue(_lockMaster.acquire(key, 5));
+            _lockMaster.addRemoteWaiter(key, 42);
+            Assert.assertEquals(1, _lockMaster.getRemoteWaiterCount(key));
+            Assert.assertTrue(_lockMaster.release(key));
+            Assert.assertTrue(released.isEmpty());
+            Assert.assertTrue(_lockMaster.release(key));
+            Assert.assertEquals(Arrays.asList(key + "[42]"), released);
+            Assert.assertEquals(0, _lockMaster.getRemoteWaiterCount(key));
+        } finally {
+            _lockMaster.setListener(null);
+        }
+    }
     
 }
@@ -0,0 +1,119 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import com.cloud.utils.Pair;
+
+public class QueryCacheTest extends TestCase {
+
+    private static QueryCache.Key key(String sql, Object... values) {
+        List<Pair<Attribute, Object>> pairs = new ArrayList<Pair<Attribute, Object>>();
+        for (Object value : values) {
+            pairs.add(new Pair<Attribute, Object>(null, value));
+        }
+        return new QueryCache.Key(sql, pairs, null);
+    }
+
+    public void testHitsAndInvalidation() {
+        QueryCache<String> cache = new QueryCache<String>("test", 2, 600);
+        String sql = "SELECT * FROM host WHERE status = ?";
+
+        Assert.assertNull(cache.get(key(sql, "Up")));
+        cache.put(key(sql, "Up"), Arrays.asList("h1", "h2"), cache.getGeneration());
+        Assert.assertEquals(Arrays.asList("h1", "h2"), cache.get(key(sql, "Up")));
+        Assert.assertNull(cache.get(key(sql, "Down")));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        // Array values of IN clauses compare by content.
+        cache.put(key(sql, (Object)new Long[] { 1l, 2l }), Arrays.asList("h3"), cache.getGeneration());
+        Assert.assertEquals(Arrays.asList("h3"), cache.get(key(sql, (Object)new Long[] { 1l, 2l })));
+
+        // A search that started before a write mustn't cache what it read.
+        long generation = cache.getGeneration();
+        cache.invalidate();
+        cache.put(key(sql, "Up"), Arrays.asList("stale"), generation);
+        Assert.assertNull(cache.get(key(sql, "Up")));
+        Assert.assertEquals(0, cache.getSize());
+
+        // Least recently used results are dropped past the maximum size.
+        for (int i = 0; i < 5; i++) {
+            cache.put(key(sql, "s" + i), Arrays.asList("h" + i), cache.getGeneration());
+        }
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertNotNull(cache.get(key(sql, "s4")));
+        Assert.assertNull(cache.get(key(sql, "s0")));
+    }
+
+    public void testWrittenBy() {
+        QueryCache<String> cache = new QueryCache<String>("test_written", 2, 600);
+        cache.register(Arrays.asList("test_written", "test_written_details"));
+        List<QueryCache<?>> written = new ArrayList<QueryCache<?>>();
+        written.add(cache);
+
+        Assert.assertEquals(written, QueryCache.writtenBy("INSERT INTO `cloud`.`test_written` (id) VALUES (?)"));
+        Assert.assertEquals(written, QueryCache.writtenBy("insert ignore into test_written_details values (?)"));
+        Assert.assertEquals(written, QueryCache.writtenBy("UPDATE test_written INNER JOIN host ON host.id = test_written.host_id SET removed = now()"));
+        Assert.assertEquals(written, QueryCache.writtenBy("DELETE FROM cloud.test_written WHERE removed IS NOT NULL"));
+        Assert.assertEquals(written, QueryCache.writtenBy("  REPLACE INTO test_written (id) VALUES (?)"));
+        Assert.assertTrue(QueryCache.writtenBy("SELECT * FROM test_written").isEmpty());
+        Assert.assertTrue(QueryCache.writtenBy("UPDATE host SET test_written = ?").isEmpty());
+    }
+
+    public void testInvalidatedOnCommit() {
+        QueryCache<String> cache = new QueryCache<String>("test_commit", 2, 600);
+        cache.register(Arrays.asList("test_commit"));
+        String sql = "SELECT * FROM test_commit";
+
+        // A write inside a nested transaction waits for the outermost commit.
+        Transaction txn = Transaction.open("testInvalidatedOnCommit");
+        try {
+            txn.start();
+            txn.start();
+            txn.written("UPDATE test_commit SET name = ?");
+            txn.commit();
+            cache.put(key(sql), Arrays.asList("stale"), cache.getGeneration());
+            Assert.assertNotNull(cache.get(key(sql)));
+            txn.commit();
+            Assert.assertNull(cache.get(key(sql)));
+
+            // A rolled back write leaves the cache alone.
+            txn.start();
+            txn.written("DELETE FROM test_commit");
+            Transaction.invalidateOnCommit(cache);
+            cache.put(key(sql), Arrays.asList("kept"), cache.getGeneration());
+            txn.rollback();
+            Assert.assertEquals(Arrays.asList("kept"), cache.get(key(sql)));
+
+            // An auto-committed write drops it when the transaction closes.
+            txn.written("INSERT INTO test_commit VALUES (?)");
+            Assert.assertNotNull(cache.get(key(sql)));
+        } finally {
+            txn.close();
+        }
+        Assert.assertNull(cache.get(key(sql)));
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testPooledAndUnpooled() {
+        BufferPool pool = new BufferPool("BufferPoolTest");
+
+        ByteBuffer small = pool.acquire(1000);
+        Assert.assertTrue(small.isDirect());
+        Assert.assertEquals(1024, small.capacity());
+        Assert.assertEquals(1000, small.limit());
+        pool.release(small);
+        Assert.assertSame(small, pool.acquire(600));
+
+        // beyond the largest size class the buffer comes from the heap and isn't pooled
+        ByteBuffer big = pool.acquire((1 << BufferPool.MAX_CLASS_SHIFT) + 1);
+        Assert.assertFalse(big.isDirect());
+        pool.release(big);
+        Assert.assertNotSame(big, pool.acquire((1 << BufferPool.MAX_CLASS_SHIFT) + 1));
+
+        ByteBuffer buffer = pool.acquire(512);
+        buffer.put(new byte[] { 1, 2, 3 });
+        buffer = pool.expand(buffer, 200000);
+        Assert.assertFalse(buffer.isDirect());
+        Assert.assertEquals(3, buffer.position());
+        Assert.assertEquals(2, buffer.get(1));
+    }
+}
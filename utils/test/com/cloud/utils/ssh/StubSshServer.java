@@ -0,0 +1,718 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.utils.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Just enough of an ssh server to test clients against: it only speaks
+ * diffie-hellman-group14-sha1, ssh-rsa, aes128-ctr and hmac-sha1, accepts any
+ * public key and runs exec requests with /bin/sh on the local host.
+ */
+public class StubSshServer {
+	private static final Logger s_logger = Logger.getLogger(StubSshServer.class);
+
+	static final BigInteger P = new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DD"
+			+ "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE6"
+			+ "49286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804"
+			+ "F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6955817183995497CEA956AE515D2261898FA0510"
+			+ "15728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+	static final BigInteger G = BigInteger.valueOf(2);
+
+	static final int MSG_DISCONNECT = 1;
+	static final int MSG_SERVICE_REQUEST = 5;
+	static final int MSG_SERVICE_ACCEPT = 6;
+	static final int MSG_KEXINIT = 20;
+	static final int MSG_NEWKEYS = 21;
+	static final int MSG_KEXDH_INIT = 30;
+	static final int MSG_KEXDH_REPLY = 31;
+	static final int MSG_USERAUTH_REQUEST = 50;
+	static final int MSG_USERAUTH_FAILURE = 51;
+	static final int MSG_USERAUTH_SUCCESS = 52;
+	static final int MSG_USERAUTH_PK_OK = 60;
+	static final int MSG_GLOBAL_REQUEST = 80;
+	static final int MSG_REQUEST_FAILURE = 82;
+	static final int MSG_CHANNEL_OPEN = 90;
+	static final int MSG_CHANNEL_OPEN_CONFIRMATION = 91;
+	static final int MSG_CHANNEL_OPEN_FAILURE = 92;
+	static final int MSG_CHANNEL_WINDOW_ADJUST = 93;
+	static final int MSG_CHANNEL_DATA = 94;
+	static final int MSG_CHANNEL_EXTENDED_DATA = 95;
+	static final int MSG_CHANNEL_EOF = 96;
+	static final int MSG_CHANNEL_CLOSE = 97;
+	static final int MSG_CHANNEL_REQUEST = 98;
+	static final int MSG_CHANNEL_SUCCESS = 99;
+	static final int MSG_CHANNEL_FAILURE = 100;
+
+	private static final SecureRandom s_random = new SecureRandom();
+
+	private final ServerSocket _server;
+	private final KeyPair _hostKey;
+	private final List<Socket> _sockets = new ArrayList<Socket>();
+	private final AtomicInteger _connections = new AtomicInteger();
+	private final AtomicInteger _open = new AtomicInteger();
+	private final AtomicInteger _refusedChannels = new AtomicInteger();
+	private final List<String> _commands = new ArrayList<String>();
+
+	public StubSshServer() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		_hostKey = generator.generateKeyPair();
+		_server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!_server.isClosed()) {
+					try {
+						final Socket socket = _server.accept();
+						synchronized (_sockets) {
+							_sockets.add(socket);
+						}
+						_connections.incrementAndGet();
+						Thread thread = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								new ServerConnection(socket).run();
+							}
+						}, "StubSshConnection");
+						thread.setDaemon(true);
+						thread.start();
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			}
+		}, "StubSshAcceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return _server.getLocalPort();
+	}
+
+	/**
+	 * @return the number of connections accepted so far.
+	 */
+	public int getConnectionCount() {
+		return _connections.get();
+	}
+
+	/**
+	 * @return the number of connections the client has not closed yet.
+	 */
+	public int getOpenConnectionCount() {
+		return _open.get();
+	}
+
+	/**
+	 * Refuses to open the next count channels, whichever connection they are asked for on.
+	 */
+	public void refuseChannels(int count) {
+		_refusedChannels.set(count);
+	}
+
+	/**
+	 * @return the commands exec'ed so far.
+	 */
+	public List<String> getCommands() {
+		synchronized (_commands) {
+			return new ArrayList<String>(_commands);
+		}
+	}
+
+	/**
+	 * Drops the open connections the way a rebooted host would, without a disconnect message.
+	 */
+	public void dropConnections() {
+		synchronized (_sockets) {
+			for (Socket socket : _sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+			_sockets.clear();
+		}
+	}
+
+	public void stop() {
+		try {
+			_server.close();
+		} catch (IOException e) {
+		}
+		dropConnections();
+	}
+
+	static class PacketWriter {
+		final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+		final DataOutputStream _out = new DataOutputStream(_bytes);
+
+		PacketWriter(int msg) throws IOException {
+			if (msg >= 0) {
+				_out.writeByte(msg);
+			}
+		}
+
+		PacketWriter writeByte(int value) throws IOException {
+			_out.writeByte(value);
+			return this;
+		}
+
+		PacketWriter writeBoolean(boolean value) throws IOException {
+			_out.writeBoolean(value);
+			return this;
+		}
+
+		PacketWriter writeInt(long value) throws IOException {
+			_out.writeInt((int)value);
+			return this;
+		}
+
+		PacketWriter writeString(byte[] value) throws IOException {
+			_out.writeInt(value.length);
+			_out.write(value);
+			return this;
+		}
+
+		PacketWriter writeString(String value) throws IOException {
+			return writeString(value.getBytes("ISO-8859-1"));
+		}
+
+		PacketWriter writeMpint(BigInteger value) throws IOException {
+			return writeString(value.toByteArray());
+		}
+
+		byte[] toByteArray() {
+			return _bytes.toByteArray();
+		}
+	}
+
+	static class PacketReader {
+		final ByteBuffer _buffer;
+
+		PacketReader(byte[] payload) {
+			_buffer = ByteBuffer.wrap(payload);
+		}
+
+		int readByte() {
+			return _buffer.get() & 0xff;
+		}
+
+		boolean readBoolean() {
+			return _buffer.get() != 0;
+		}
+
+		long readInt() {
+			return _buffer.getInt() & 0xffffffffL;
+		}
+
+		byte[] readBytes() {
+			byte[] value = new byte[_buffer.getInt()];
+			_buffer.get(value);
+			return value;
+		}
+
+		String readString() throws IOException {
+			return new String(readBytes(), "ISO-8859-1");
+		}
+
+		BigInteger readMpint() {
+			return new BigInteger(readBytes());
+		}
+	}
+
+	class ServerConnection {
+		final Socket _socket;
+		DataInputStream _in;
+		OutputStream _out;
+		Cipher _encrypt;
+		Cipher _decrypt;
+		Mac _outMac;
+		Mac _inMac;
+		int _outSeq;
+		int _inSeq;
+		final Map<Long, Channel> _channels = new ConcurrentHashMap<Long, Channel>();
+		long _nextChannel;
+
+		ServerConnection(Socket socket) {
+			_socket = socket;
+		}
+
+		void run() {
+			_open.incrementAndGet();
+			try {
+				_in = new DataInputStream(_socket.getInputStream());
+				_out = _socket.getOutputStream();
+				exchangeKeys();
+				while (true) {
+					if (!dispatch(readPacket())) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				s_logger.debug("Connection closed: " + e.getMessage());
+			} catch (Exception e) {
+				s_logger.warn("Connection failed", e);
+			} finally {
+				for (Channel channel : _channels.values()) {
+					channel.destroy();
+				}
+				try {
+					_socket.close();
+				} catch (IOException e) {
+				}
+				_open.decrementAndGet();
+			}
+		}
+
+		void exchangeKeys() throws Exception {
+			String serverVersion = "SSH-2.0-StubSshServer";
+			_out.write((serverVersion + "\r\n").getBytes("ISO-8859-1"));
+			_out.flush();
+			String clientVersion = readLine();
+			while (!clientVersion.startsWith("SSH-")) {
+				clientVersion = readLine();
+			}
+
+			byte[] cookie = new byte[16];
+			s_random.nextBytes(cookie);
+			PacketWriter kexinit = new PacketWriter(MSG_KEXINIT);
+			kexinit._out.write(cookie);
+			kexinit.writeString("diffie-hellman-group14-sha1").writeString("ssh-rsa").writeString("aes128-ctr").writeString("aes128-ctr")
+					.writeString("hmac-sha1").writeString("hmac-sha1").writeString("none").writeString("none").writeString("").writeString("")
+					.writeBoolean(false).writeInt(0);
+			byte[] serverKexinit = kexinit.toByteArray();
+			writePacket(serverKexinit);
+			byte[] clientKexinit = readPacket();
+			if (clientKexinit[0] != MSG_KEXINIT) {
+				throw new IOException("Expected KEXINIT, got " + clientKexinit[0]);
+			}
+
+			byte[] payload = readPacket();
+			if (payload[0] != MSG_KEXDH_INIT) {
+				throw new IOException("Expected KEXDH_INIT, got " + payload[0]);
+			}
+			PacketReader reader = new PacketReader(payload);
+			reader.readByte();
+			BigInteger e = reader.readMpint();
+			BigInteger y = new BigInteger(512, s_random);
+			BigInteger f = G.modPow(y, P);
+			BigInteger k = e.modPow(y, P);
+
+			RSAPublicKey publicKey = (RSAPublicKey)_hostKey.getPublic();
+			byte[] hostKey = new PacketWriter(-1).writeString("ssh-rsa").writeMpint(publicKey.getPublicExponent()).writeMpint(publicKey.getModulus()).toByteArray();
+			byte[] h = MessageDigest.getInstance("SHA-1").digest(new PacketWriter(-1).writeString(clientVersion).writeString(serverVersion).writeString(clientKexinit)
+					.writeString(serverKexinit).writeString(hostKey).writeMpint(e).writeMpint(f).writeMpint(k).toByteArray());
+
+			Signature signature = Signature.getInstance("SHA1withRSA");
+			signature.initSign(_hostKey.getPrivate());
+			signature.update(h);
+			byte[] signatureBlob = new PacketWriter(-1).writeString("ssh-rsa").writeString(signature.sign()).toByteArray();
+			writePacket(new PacketWriter(MSG_KEXDH_REPLY).writeString(hostKey).writeMpint(f).writeString(signatureBlob).toByteArray());
+
+			writePacket(new PacketWriter(MSG_NEWKEYS).toByteArray());
+			synchronized (this) {
+				_encrypt = Cipher.getInstance("AES/CTR/NoPadding");
+				_encrypt.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(deriveKey(k, h, 'D', 16), "AES"), new IvParameterSpec(deriveKey(k, h, 'B', 16)));
+				_outMac = Mac.getInstance("HmacSHA1");
+				_outMac.init(new SecretKeySpec(deriveKey(k, h, 'F', 20), "HmacSHA1"));
+			}
+
+			payload = readPacket();
+			if (payload[0] != MSG_NEWKEYS) {
+				throw new IOException("Expected NEWKEYS, got " + payload[0]);
+			}
+			_decrypt = Cipher.getInstance("AES/CTR/NoPadding");
+			_decrypt.init(Cipher.DECRYPT_MODE, new SecretKeySpec(deriveKey(k, h, 'C', 16), "AES"), new IvParameterSpec(deriveKey(k, h, 'A', 16)));
+			_inMac = Mac.getInstance("HmacSHA1");
+			_inMac.init(new SecretKeySpec(deriveKey(k, h, 'E', 20), "HmacSHA1"));
+		}
+
+		byte[] deriveKey(BigInteger k, byte[] h, char letter, int length) throws Exception {
+			// h is also the session id as there is a single key exchange
+			byte[] key = MessageDigest.getInstance("SHA-1").digest(concat(new PacketWriter(-1).writeMpint(k).toByteArray(), h, new byte[] { (byte)letter }, h));
+			return Arrays.copyOf(key, length);
+		}
+
+		byte[] concat(byte[]... parts) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (byte[] part : parts) {
+				out.write(part, 0, part.length);
+			}
+			return out.toByteArray();
+		}
+
+		String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = _in.read()) != '\n') {
+				if (c < 0) {
+					throw new IOException("Connection closed during the version exchange");
+				}
+				if (c != '\r') {
+					line.append((char)c);
+				}
+			}
+			return line.toString();
+		}
+
+		synchronized void writePacket(byte[] payload) throws IOException {
+			int blockSize = _encrypt == null ? 8 : 16;
+			int padding = blockSize - (5 + payload.length) % blockSize;
+			if (padding < 4) {
+				padding += blockSize;
+			}
+			byte[] packet = new byte[5 + payload.length + padding];
+			ByteBuffer.wrap(packet).putInt(1 + payload.length + padding).put((byte)padding).put(payload);
+			byte[] random = new byte[padding];
+			s_random.nextBytes(random);
+			System.arraycopy(random, 0, packet, 5 + payload.length, padding);
+
+			byte[] mac = null;
+			if (_outMac != null) {
+				_outMac.update(ByteBuffer.allocate(4).putInt(_outSeq).array());
+				mac = _outMac.doFinal(packet);
+			}
+			_out.write(_encrypt == null ? packet : _encrypt.update(packet));
+			if (mac != null) {
+				_out.write(mac);
+			}
+			_out.flush();
+			_outSeq++;
+		}
+
+		byte[] readPacket() throws IOException {
+			int blockSize = _decrypt == null ? 8 : 16;
+			byte[] first = new byte[blockSize];
+			_in.readFully(first);
+			if (_decrypt != null) {
+				first = _decrypt.update(first);
+			}
+			int length = ByteBuffer.wrap(first).getInt();
+			if (length < blockSize - 4 || length > 256 * 1024) {
+				throw new IOException("Bad packet length " + length);
+			}
+			byte[] rest = new byte[length + 4 - blockSize];
+			_in.readFully(rest);
+			if (_decrypt != null && rest.length > 0) {
+				rest = _decrypt.update(rest);
+			}
+			byte[] packet = concat(first, rest);
+			if (_inMac != null) {
+				byte[] mac = new byte[20];
+				_in.readFully(mac);
+				_inMac.update(ByteBuffer.allocate(4).putInt(_inSeq).array());
+				if (!Arrays.equals(mac, _inMac.doFinal(packet))) {
+					throw new IOException("Bad mac on packet " + _inSeq);
+				}
+			}
+			_inSeq++;
+			int padding = packet[4] & 0xff;
+			return Arrays.copyOfRange(packet, 5, 4 + length - padding);
+		}
+
+		/**
+		 * @return false once the client disconnects.
+		 */
+		boolean dispatch(byte[] payload) throws IOException {
+			PacketReader reader = new PacketReader(payload);
+			int msg = reader.readByte();
+			switch (msg) {
+			case MSG_DISCONNECT:
+				return false;
+			case MSG_SERVICE_REQUEST:
+				writePacket(new PacketWriter(MSG_SERVICE_ACCEPT).writeString(reader.readString()).toByteArray());
+				break;
+			case MSG_USERAUTH_REQUEST: {
+				reader.readString();
+				reader.readString();
+				String method = reader.readString();
+				if (!method.equals("publickey")) {
+					writePacket(new PacketWriter(MSG_USERAUTH_FAILURE).writeString("publickey").writeBoolean(false).toByteArray());
+				} else if (reader.readBoolean()) {
+					writePacket(new PacketWriter(MSG_USERAUTH_SUCCESS).toByteArray());
+				} else {
+					String algorithm = reader.readString();
+					writePacket(new PacketWriter(MSG_USERAUTH_PK_OK).writeString(algorithm).writeString(reader.readBytes()).toByteArray());
+				}
+				break;
+			}
+			case MSG_GLOBAL_REQUEST:
+				reader.readString();
+				if (reader.readBoolean()) {
+					writePacket(new PacketWriter(MSG_REQUEST_FAILURE).toByteArray());
+				}
+				break;
+			case MSG_CHANNEL_OPEN: {
+				reader.readString();
+				long remoteId = reader.readInt();
+				long window = reader.readInt();
+				long maxPacket = reader.readInt();
+				if (_refusedChannels.get() > 0 && _refusedChannels.getAndDecrement() > 0) {
+					writePacket(new PacketWriter(MSG_CHANNEL_OPEN_FAILURE).writeInt(remoteId).writeInt(4).writeString("refused").writeString("").toByteArray());
+					break;
+				}
+				Channel channel = new Channel(this, _nextChannel++, remoteId, window, maxPacket);
+				_channels.put(channel._id, channel);
+				writePacket(new PacketWriter(MSG_CHANNEL_OPEN_CONFIRMATION).writeInt(remoteId).writeInt(channel._id).writeInt(Integer.MAX_VALUE).writeInt(32768)
+						.toByteArray());
+				break;
+			}
+			case MSG_CHANNEL_REQUEST: {
+				Channel channel = _channels.get(reader.readInt());
+				String type = reader.readString();
+				boolean wantReply = reader.readBoolean();
+				boolean started = false;
+				if (channel != null && type.equals("exec")) {
+					String command = reader.readString();
+					synchronized (_commands) {
+						_commands.add(command);
+					}
+					started = channel.exec(command, !command.endsWith("# no exit status"));
+				}
+				if (wantReply) {
+					writePacket(new PacketWriter(started ? MSG_CHANNEL_SUCCESS : MSG_CHANNEL_FAILURE).writeInt(channel != null ? channel._remoteId : 0).toByteArray());
+				}
+				break;
+			}
+			case MSG_CHANNEL_WINDOW_ADJUST: {
+				Channel channel = _channels.get(reader.readInt());
+				if (channel != null) {
+					channel.adjust(reader.readInt());
+				}
+				break;
+			}
+			case MSG_CHANNEL_DATA: {
+				Channel channel = _channels.get(reader.readInt());
+				if (channel != null) {
+					channel.input(reader.readBytes());
+				}
+				break;
+			}
+			case MSG_CHANNEL_EOF: {
+				Channel channel = _channels.get(reader.readInt());
+				if (channel != null) {
+					channel.inputDone();
+				}
+				break;
+			}
+			case MSG_CHANNEL_CLOSE: {
+				Channel channel = _channels.remove(reader.readInt());
+				if (channel != null) {
+					channel.destroy();
+					channel.close();
+				}
+				break;
+			}
+			default:
+				s_logger.debug("Ignoring message " + msg);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A session channel running one command.
+	 */
+	static class Channel {
+		final ServerConnection _connection;
+		final long _id;
+		final long _remoteId;
+		final long _maxPacket;
+		long _window;
+		Process _process;
+		boolean _closed;
+		final LinkedBlockingQueue<byte[]> _input = new LinkedBlockingQueue<byte[]>();
+
+		Channel(ServerConnection connection, long id, long remoteId, long window, long maxPacket) {
+			_connection = connection;
+			_id = id;
+			_remoteId = remoteId;
+			_window = window;
+			_maxPacket = maxPacket;
+		}
+
+		boolean exec(String command, final boolean exitStatus) {
+			try {
+				_process = new ProcessBuilder("/bin/sh", "-c", command).start();
+			} catch (IOException e) {
+				return false;
+			}
+			feed();
+			final Thread stdout = pump(_process.getInputStream(), -1);
+			final Thread stderr = pump(_process.getErrorStream(), 1);
+			Thread waiter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int status = _process.waitFor();
+						stdout.join();
+						stderr.join();
+						synchronized (Channel.this) {
+							if (_closed) {
+								return;
+							}
+							if (exitStatus) {
+								_connection.writePacket(new PacketWriter(MSG_CHANNEL_REQUEST).writeInt(_remoteId).writeString("exit-status").writeBoolean(false).writeInt(status)
+										.toByteArray());
+							}
+							_connection.writePacket(new PacketWriter(MSG_CHANNEL_EOF).writeInt(_remoteId).toByteArray());
+							close();
+						}
+					} catch (Exception e) {
+						s_logger.debug("Unable to report the exit of the command: " + e.getMessage());
+					}
+				}
+			}, "StubSshWaiter");
+			waiter.setDaemon(true);
+			waiter.start();
+			return true;
+		}
+
+		Thread pump(final InputStream in, final int type) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						int len;
+						while ((len = in.read(buffer)) >= 0) {
+							send(type, buffer, len);
+						}
+					} catch (Exception e) {
+						s_logger.debug("Stopped copying the output of the command: " + e.getMessage());
+					}
+				}
+			}, "StubSshPump");
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+
+		void send(int type, byte[] data, int len) throws IOException, InterruptedException {
+			int off = 0;
+			while (off < len) {
+				// nothing may follow the close, so the data goes out under the channel lock
+				synchronized (this) {
+					while (_window == 0 && !_closed) {
+						wait();
+					}
+					if (_closed) {
+						throw new IOException("Channel closed");
+					}
+					int n = (int)Math.min(Math.min(len - off, _window), _maxPacket - 64);
+					_window -= n;
+					PacketWriter message = type < 0 ? new PacketWriter(MSG_CHANNEL_DATA).writeInt(_remoteId) : new PacketWriter(MSG_CHANNEL_EXTENDED_DATA).writeInt(_remoteId).writeInt(type);
+					message.writeString(Arrays.copyOfRange(data, off, off + n));
+					_connection.writePacket(message.toByteArray());
+					off += n;
+				}
+			}
+		}
+
+		synchronized void adjust(long bytes) {
+			_window += bytes;
+			notifyAll();
+		}
+
+		void input(byte[] data) {
+			_input.add(data);
+		}
+
+		void inputDone() {
+			_input.add(new byte[0]);
+		}
+
+		/**
+		 * Feeds the command from its own thread, the connection has to keep reading window adjustments meanwhile.
+		 */
+		void feed() {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					OutputStream stdin = _process.getOutputStream();
+					try {
+						byte[] data;
+						while ((data = _input.take()).length > 0) {
+							stdin.write(data);
+							stdin.flush();
+						}
+					} catch (Exception e) {
+						// the command did not read all of its input
+					} finally {
+						try {
+							stdin.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}, "StubSshFeeder");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void destroy() {
+			_input.add(new byte[0]);
+			if (_process != null) {
+				_process.destroy();
+			}
+		}
+
+		synchronized void close() throws IOException {
+			if (_closed) {
+				return;
+			}
+			_closed = true;
+			notifyAll();
+			_connection.writePacket(new PacketWriter(MSG_CHANNEL_CLOSE).writeInt(_remoteId).toByteArray());
+		}
+	}
+}